@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Chooses the capture format from the available send bandwidth estimate, with the format
+ * selection of the capture quality slider. The estimate is converted to a pixel rate the encoder
+ * can use with acceptable quality, so the camera does not capture pixels the encoder would have
+ * to throw away.
+ *
+ * <p>Switching down needs lower formats to be selected for DOWN_HOLD_MS and switching up needs
+ * UP_MARGIN of spare bandwidth for UP_HOLD_MS; the format selected last is then used. Consecutive
+ * switches are at least MIN_SWITCH_INTERVAL_MS apart.
+ *
+ * <p>Not thread safe.
+ */
+class BandwidthCaptureController {
+  private static final String TAG = "BandwidthCaptureCtrl";
+  // Bits per pixel the encoder needs for acceptable quality at typical motion.
+  private static final double BITS_PER_PIXEL = 0.07;
+  // Switching up selects a format for this fraction of the estimate.
+  private static final double UP_MARGIN = 0.8;
+  private static final long DOWN_HOLD_MS = 2000;
+  private static final long UP_HOLD_MS = 10000;
+  private static final long MIN_SWITCH_INTERVAL_MS = 4000;
+  private static final int MIN_FRAMERATE = 5;
+
+  private final List<CaptureFormat> formats = new ArrayList<>();
+  private final int maxBitrateBps;
+  private int width;
+  private int height;
+  private int framerate;
+  private long lastSwitchTimeMs = Long.MIN_VALUE / 2;
+  // Direction of the pending switch, -1 for down, 1 for up or 0 for none, and since when.
+  private int pendingDirection;
+  private long pendingSinceMs;
+
+  /**
+   * @param width          Capture width, the largest format that will be selected.
+   * @param height         Capture height.
+   * @param framerate      Capture frame rate, the highest that will be selected.
+   * @param maxBitrateKbps Maximum video bitrate, or 0 if unlimited.
+   */
+  BandwidthCaptureController(int width, int height, int framerate, int maxBitrateKbps) {
+    this.width = width;
+    this.height = height;
+    this.framerate = framerate;
+    this.maxBitrateBps = maxBitrateKbps * 1000;
+    final int maxFramerate = framerate * 1000;
+    formats.add(new CaptureFormat(width, height, 0, maxFramerate));
+    for (CaptureFormat format : CaptureQualityController.FORMATS) {
+      if (format.width * format.height < width * height) {
+        formats.add(new CaptureFormat(format.width, format.height, 0,
+            Math.min(format.framerate.max, maxFramerate)));
+      }
+    }
+  }
+
+  /**
+   * Updates the state with the available send bandwidth estimate |bps| at |timeMs|. Returns true
+   * if the capture format has changed.
+   */
+  boolean onAvailableBandwidth(long timeMs, double bps) {
+    if (maxBitrateBps > 0) {
+      bps = Math.min(bps, maxBitrateBps);
+    }
+    final int pixelRate = width * height * framerate;
+    CaptureFormat target = select(bps);
+    int direction = -1;
+    if (pixelRate(target) >= pixelRate) {
+      target = select(bps * UP_MARGIN);
+      direction = 1;
+      if (pixelRate(target) <= pixelRate) {
+        // Enough bandwidth for the current format, but not enough to switch up.
+        pendingDirection = 0;
+        return false;
+      }
+    }
+
+    if (direction != pendingDirection) {
+      pendingDirection = direction;
+      pendingSinceMs = timeMs;
+    }
+    final long holdMs = direction < 0 ? DOWN_HOLD_MS : UP_HOLD_MS;
+    if (timeMs - pendingSinceMs < holdMs || timeMs - lastSwitchTimeMs < MIN_SWITCH_INTERVAL_MS) {
+      return false;
+    }
+    Log.d(TAG, "Switching from " + width + "x" + height + "@" + framerate + " to "
+            + target.width + "x" + target.height + "@" + target.framerate.max / 1000 + " for "
+            + (int) bps / 1000 + " kbps.");
+    width = target.width;
+    height = target.height;
+    framerate = target.framerate.max / 1000;
+    lastSwitchTimeMs = timeMs;
+    pendingDirection = 0;
+    return true;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  int getFramerate() {
+    return framerate;
+  }
+
+  private CaptureFormat select(double bps) {
+    // Millipixels / second, as used by the capture quality slider.
+    final CaptureFormat format =
+        CaptureQualityController.selectFormat(formats, bps / BITS_PER_PIXEL * 1000);
+    if (format.framerate.max >= MIN_FRAMERATE * 1000) {
+      return format;
+    }
+    final int minFramerate = Math.min(MIN_FRAMERATE * 1000, formats.get(0).framerate.max);
+    return new CaptureFormat(format.width, format.height, minFramerate, minFramerate);
+  }
+
+  private static int pixelRate(CaptureFormat format) {
+    return format.width * format.height * (format.framerate.max / 1000);
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+import javax.annotation.Nullable;
+
+/**
+ * Runtime governor of the maximum video send bitrate. It takes the call metrics samples, i.e.
+ * send packet loss, RTT, CPU usage and the available send bandwidth, and once per stats report
+ * asks a {@link Policy} for a new maximum bitrate, which is kept between a floor and a ceiling.
+ * Decreases take effect right away; increases at most every MIN_INCREASE_INTERVAL_MS.
+ *
+ * <p>The governor only depends on its inputs and the sample times, so the same samples always
+ * give the same decisions.
+ *
+ * <p>Not thread safe.
+ */
+public class BitrateGovernor {
+  public static final int MIN_BITRATE_BPS = 100_000;
+  // Ceiling if the maximum video bitrate is not set.
+  public static final int DEFAULT_MAX_BITRATE_BPS = 2_500_000;
+  private static final long MIN_INCREASE_INTERVAL_MS = 2000;
+  // Changes smaller than this fraction of the current maximum are not applied.
+  private static final double MIN_CHANGE_FRACTION = 0.03;
+
+  /** Network type of the call, for policies that depend on it. */
+  public enum NetworkType { UNKNOWN, ETHERNET, WIFI, CELLULAR_2G, CELLULAR_3G, CELLULAR_4G }
+
+  /** Latest signals when a decision is made. NaN if not known yet. */
+  public static class Conditions {
+    public final long timeMs;
+    public final double sendLossPercent;
+    public final double rttMs;
+    public final double cpuPercent;
+    public final double availableSendBps;
+    public final NetworkType networkType;
+
+    public Conditions(long timeMs, double sendLossPercent, double rttMs, double cpuPercent,
+        double availableSendBps, NetworkType networkType) {
+      this.timeMs = timeMs;
+      this.sendLossPercent = sendLossPercent;
+      this.rttMs = rttMs;
+      this.cpuPercent = cpuPercent;
+      this.availableSendBps = availableSendBps;
+      this.networkType = networkType;
+    }
+  }
+
+  /**
+   * Decides the maximum video bitrate. Implementations must be deterministic and may keep state,
+   * so each governor needs its own instance.
+   */
+  public interface Policy {
+    /**
+     * Returns the new maximum bitrate in bps for |conditions|, given the current maximum
+     * |maxBitrateBps| and the allowed |ceilingBps|.
+     */
+    int getMaxBitrateBps(Conditions conditions, int maxBitrateBps, int ceilingBps);
+  }
+
+  /**
+   * Additive-increase, multiplicative-decrease policy. The bitrate is cut when loss, RTT or CPU
+   * usage cross their limits, and raised after enough consecutive samples well below all of them.
+   * The bitrate is held while any of them is not known yet.
+   */
+  public static class AimdPolicy implements Policy {
+    private final double maxLossPercent;
+    private final double maxRttMs;
+    private final double maxCpuPercent;
+    private final double decreaseFactor;
+    private final double increaseFactor;
+    private final int samplesBeforeIncrease;
+    // Multiple of the available send bandwidth the maximum is raised to at most.
+    private final double maxBandwidthFactor;
+    // Consecutive samples well below all limits since the last change, which may be more than
+    // |samplesBeforeIncrease| while the governor holds back the increase.
+    private int cleanSamples;
+    // Maximum bitrate of the previous decision, to tell whether the governor applied it.
+    private int lastMaxBitrateBps;
+
+    public AimdPolicy(double maxLossPercent, double maxRttMs, double maxCpuPercent,
+        double decreaseFactor, double increaseFactor, int samplesBeforeIncrease,
+        double maxBandwidthFactor) {
+      this.maxLossPercent = maxLossPercent;
+      this.maxRttMs = maxRttMs;
+      this.maxCpuPercent = maxCpuPercent;
+      this.decreaseFactor = decreaseFactor;
+      this.increaseFactor = increaseFactor;
+      this.samplesBeforeIncrease = samplesBeforeIncrease;
+      this.maxBandwidthFactor = maxBandwidthFactor;
+    }
+
+    /** Backs off early and recovers slowly. */
+    public static AimdPolicy conservative() {
+      return new AimdPolicy(5, 300, 85, 0.8, 1.08, 3, 1.25);
+    }
+
+    /** Tolerates more loss and delay and recovers quickly. */
+    public static AimdPolicy aggressive() {
+      return new AimdPolicy(10, 500, 95, 0.9, 1.15, 1, 2);
+    }
+
+    @Override
+    public int getMaxBitrateBps(Conditions conditions, int maxBitrateBps, int ceilingBps) {
+      if (maxBitrateBps > lastMaxBitrateBps) {
+        // The previous increase was applied, count the samples towards the next one anew.
+        cleanSamples = 0;
+      }
+      lastMaxBitrateBps = maxBitrateBps;
+      if (exceeds(conditions, 1)) {
+        cleanSamples = 0;
+        return (int) (maxBitrateBps * decreaseFactor);
+      }
+      if (exceeds(conditions, 0.5)) {
+        // Between the limits and half of them: hold.
+        cleanSamples = 0;
+        return maxBitrateBps;
+      }
+      if (Double.isNaN(conditions.sendLossPercent) || Double.isNaN(conditions.rttMs)
+          || Double.isNaN(conditions.cpuPercent)) {
+        // A signal not known yet is not clean: hold.
+        return maxBitrateBps;
+      }
+      if (++cleanSamples < samplesBeforeIncrease) {
+        return maxBitrateBps;
+      }
+      int increasedBps = (int) Math.min((double) ceilingBps, maxBitrateBps * increaseFactor);
+      if (conditions.availableSendBps > 0) {
+        final double bandwidthLimitBps = conditions.availableSendBps * maxBandwidthFactor;
+        increasedBps = (int) Math.min(increasedBps, Math.max(maxBitrateBps, bandwidthLimitBps));
+      }
+      return increasedBps;
+    }
+
+    private boolean exceeds(Conditions conditions, double scale) {
+      return conditions.sendLossPercent >= maxLossPercent * scale
+          || conditions.rttMs >= maxRttMs * scale || conditions.cpuPercent >= maxCpuPercent * scale;
+    }
+  }
+
+  /** Fixed maximum per network type, regardless of call quality. */
+  public static class NetworkCapPolicy implements Policy {
+    @Override
+    public int getMaxBitrateBps(Conditions conditions, int maxBitrateBps, int ceilingBps) {
+      switch (conditions.networkType) {
+        case CELLULAR_2G:
+          return 150_000;
+        case CELLULAR_3G:
+          return 600_000;
+        case CELLULAR_4G:
+          return 1_500_000;
+        default:
+          return ceilingBps;
+      }
+    }
+  }
+
+  /** Returns the policy named |name|, one of "conservative", "aggressive" or "network", or null. */
+  @Nullable
+  public static Policy createPolicy(@Nullable String name) {
+    if ("conservative".equals(name)) {
+      return AimdPolicy.conservative();
+    } else if ("aggressive".equals(name)) {
+      return AimdPolicy.aggressive();
+    } else if ("network".equals(name)) {
+      return new NetworkCapPolicy();
+    }
+    return null;
+  }
+
+  /** Maps ConnectivityManager network type and subtype to a NetworkType. */
+  public static NetworkType toNetworkType(int type, int subtype) {
+    switch (type) {
+      case ConnectivityManager.TYPE_ETHERNET:
+        return NetworkType.ETHERNET;
+      case ConnectivityManager.TYPE_WIFI:
+        return NetworkType.WIFI;
+      case ConnectivityManager.TYPE_MOBILE:
+        switch (subtype) {
+          case TelephonyManager.NETWORK_TYPE_GPRS:
+          case TelephonyManager.NETWORK_TYPE_EDGE:
+          case TelephonyManager.NETWORK_TYPE_CDMA:
+          case TelephonyManager.NETWORK_TYPE_1xRTT:
+          case TelephonyManager.NETWORK_TYPE_IDEN:
+            return NetworkType.CELLULAR_2G;
+          case TelephonyManager.NETWORK_TYPE_LTE:
+            return NetworkType.CELLULAR_4G;
+          default:
+            return NetworkType.CELLULAR_3G;
+        }
+      default:
+        return NetworkType.UNKNOWN;
+    }
+  }
+
+  private final Policy policy;
+  private final int ceilingBps;
+  private int maxBitrateBps;
+  private long lastIncreaseTimeMs = Long.MIN_VALUE / 2;
+  private double sendLossPercent = Double.NaN;
+  private double rttMs = Double.NaN;
+  private double cpuPercent = Double.NaN;
+  private NetworkType networkType = NetworkType.UNKNOWN;
+  @Nullable private Conditions lastConditions;
+
+  /**
+   * @param policy            Policy deciding the maximum bitrate.
+   * @param maxBitrateKbps    Ceiling, or 0 to use DEFAULT_MAX_BITRATE_BPS.
+   */
+  public BitrateGovernor(Policy policy, int maxBitrateKbps) {
+    this.policy = policy;
+    ceilingBps = maxBitrateKbps > 0 ? maxBitrateKbps * 1000 : DEFAULT_MAX_BITRATE_BPS;
+    maxBitrateBps = ceilingBps;
+  }
+
+  public void setNetworkType(NetworkType networkType) {
+    this.networkType = networkType;
+  }
+
+  public int getMaxBitrateBps() {
+    return maxBitrateBps;
+  }
+
+  /** Returns the conditions of the latest decision, or null if none was made yet. */
+  @Nullable
+  public Conditions getLastConditions() {
+    return lastConditions;
+  }
+
+  /**
+   * Updates the state with a call metrics sample. A decision is made on every available send
+   * bandwidth sample, which comes once per stats report. Returns true if the maximum bitrate has
+   * changed.
+   */
+  public boolean onSample(CallMetricsRecorder.Metric metric, long timeMs, double value) {
+    switch (metric) {
+      case SEND_PACKET_LOSS_PERCENT:
+        sendLossPercent = value;
+        return false;
+      case RTT_MS:
+        rttMs = value;
+        return false;
+      case CPU_USAGE_PERCENT:
+        cpuPercent = value;
+        return false;
+      case AVAILABLE_SEND_BANDWIDTH_BPS:
+        return decide(new Conditions(timeMs, sendLossPercent, rttMs, cpuPercent, value,
+            networkType));
+      default:
+        return false;
+    }
+  }
+
+  private boolean decide(Conditions conditions) {
+    lastConditions = conditions;
+    final int newBitrateBps = Math.max(MIN_BITRATE_BPS,
+        Math.min(ceilingBps, policy.getMaxBitrateBps(conditions, maxBitrateBps, ceilingBps)));
+    if (newBitrateBps == maxBitrateBps) {
+      return false;
+    }
+    // Skip small changes, unless they reach the floor or the ceiling.
+    if (Math.abs(newBitrateBps - maxBitrateBps) < maxBitrateBps * MIN_CHANGE_FRACTION
+        && newBitrateBps != ceilingBps && newBitrateBps != MIN_BITRATE_BPS) {
+      return false;
+    }
+    if (newBitrateBps > maxBitrateBps) {
+      if (conditions.timeMs - lastIncreaseTimeMs < MIN_INCREASE_INTERVAL_MS) {
+        return false;
+      }
+      lastIncreaseTimeMs = conditions.timeMs;
+    }
+    maxBitrateBps = newBitrateBps;
+    return true;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * Pool of direct buffers of one size, for consumers that keep a message beyond the callback that
+ * delivered it. Buffers can be acquired on one thread and released on another without locks or
+ * allocations: free buffers sit in a small array of slots that are claimed with compare-and-set.
+ * Messages larger than the pool's buffers are copied into buffers that are not pooled.
+ */
+class ByteBufferPool {
+  private final int bufferBytes;
+  private final AtomicReferenceArray<ByteBuffer> freeBuffers;
+
+  /**
+   * @param bufferBytes      Capacity of each buffer.
+   * @param maxPooledBuffers Free buffers kept for reuse; more are left to the garbage collector.
+   */
+  ByteBufferPool(int bufferBytes, int maxPooledBuffers) {
+    this.bufferBytes = bufferBytes;
+    freeBuffers = new AtomicReferenceArray<>(maxPooledBuffers);
+  }
+
+  /**
+   * Returns a buffer holding a copy of the remaining bytes of |data|, without changing the
+   * position of |data|. Pass the buffer to release() once done with it.
+   */
+  ByteBuffer copy(ByteBuffer data) {
+    final ByteBuffer buffer;
+    if (data.remaining() > bufferBytes) {
+      buffer = ByteBuffer.allocateDirect(data.remaining());
+    } else {
+      final ByteBuffer free = takeFreeBuffer();
+      if (free != null) {
+        free.clear();
+        buffer = free;
+      } else {
+        buffer = ByteBuffer.allocateDirect(bufferBytes);
+      }
+    }
+    final int position = data.position();
+    buffer.put(data);
+    data.position(position);
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Returns |buffer|, from copy(), to the pool. It must not be used afterwards. */
+  void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferBytes) {
+      return;
+    }
+    for (int i = 0; i < freeBuffers.length(); i++) {
+      if (freeBuffers.get(i) == null && freeBuffers.compareAndSet(i, null, buffer)) {
+        return;
+      }
+    }
+    // The pool is full.
+  }
+
+  @Nullable
+  private ByteBuffer takeFreeBuffer() {
+    for (int i = 0; i < freeBuffers.length(); i++) {
+      final ByteBuffer buffer = freeBuffers.get(i);
+      if (buffer != null && freeBuffers.compareAndSet(i, buffer, null)) {
+        return buffer;
+      }
+    }
+    return null;
+  }
+}
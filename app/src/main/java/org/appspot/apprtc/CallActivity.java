@@ -33,9 +33,13 @@ import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
 import java.io.IOException;
 import java.lang.RuntimeException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
 import org.appspot.apprtc.AppRTCAudioManager.AudioManagerEvents;
@@ -56,9 +60,7 @@ import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
-import org.webrtc.VideoFileRenderer;
 import org.webrtc.VideoFrame;
-import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSink;
 
 /**
@@ -81,7 +83,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_VIDEO_FPS = "org.appspot.apprtc.VIDEO_FPS";
   public static final String EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED =
       "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
+  public static final String EXTRA_CPU_ADAPTATION_ENABLED = "org.appspot.apprtc.CPU_ADAPTATION";
+  public static final String EXTRA_BANDWIDTH_ADAPTATION_ENABLED =
+      "org.appspot.apprtc.BANDWIDTH_ADAPTATION";
   public static final String EXTRA_VIDEO_BITRATE = "org.appspot.apprtc.VIDEO_BITRATE";
+  public static final String EXTRA_BITRATE_GOVERNOR = "org.appspot.apprtc.BITRATE_GOVERNOR";
+  public static final String EXTRA_SIMULCAST_LAYERS = "org.appspot.apprtc.SIMULCAST_LAYERS";
   public static final String EXTRA_VIDEOCODEC = "org.appspot.apprtc.VIDEOCODEC";
   public static final String EXTRA_HWCODEC_ENABLED = "org.appspot.apprtc.HWCODEC";
   public static final String EXTRA_CAPTURETOTEXTURE_ENABLED = "org.appspot.apprtc.CAPTURETOTEXTURE";
@@ -93,6 +100,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_AECDUMP_ENABLED = "org.appspot.apprtc.AECDUMP";
   public static final String EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED =
       "org.appspot.apprtc.SAVE_INPUT_AUDIO_TO_FILE";
+  public static final String EXTRA_SAVE_INPUT_AUDIO_SEGMENT_SEC =
+      "org.appspot.apprtc.SAVE_INPUT_AUDIO_SEGMENT_SEC";
+  public static final String EXTRA_SAVE_INPUT_AUDIO_MAX_MB =
+      "org.appspot.apprtc.SAVE_INPUT_AUDIO_MAX_MB";
   public static final String EXTRA_OPENSLES_ENABLED = "org.appspot.apprtc.OPENSLES";
   public static final String EXTRA_DISABLE_BUILT_IN_AEC = "org.appspot.apprtc.DISABLE_BUILT_IN_AEC";
   public static final String EXTRA_DISABLE_BUILT_IN_AGC = "org.appspot.apprtc.DISABLE_BUILT_IN_AGC";
@@ -110,6 +121,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_WIDTH";
   public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT =
       "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT";
+  // "y4m" (default) or "h264".
+  public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FORMAT =
+      "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_FORMAT";
+  // Y4M only: size of a file segment, and number of the newest segments kept.
+  public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB =
+      "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB";
+  public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES =
+      "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES";
   public static final String EXTRA_USE_VALUES_FROM_INTENT =
       "org.appspot.apprtc.USE_VALUES_FROM_INTENT";
   public static final String EXTRA_DATA_CHANNEL_ENABLED = "org.appspot.apprtc.DATA_CHANNEL_ENABLED";
@@ -119,9 +138,23 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_PROTOCOL = "org.appspot.apprtc.PROTOCOL";
   public static final String EXTRA_NEGOTIATED = "org.appspot.apprtc.NEGOTIATED";
   public static final String EXTRA_ID = "org.appspot.apprtc.ID";
+  // Additional data channels, as label:priority:ordered:maxRetransmitTimeMs:maxRetransmits
+  // separated by ';', e.g. "control:0:true:-1:-1;telemetry:1:false:-1:0".
+  public static final String EXTRA_DATA_CHANNELS = "org.appspot.apprtc.DATA_CHANNELS";
+  public static final String EXTRA_DATA_TRANSFER_BENCHMARK_KB =
+      "org.appspot.apprtc.DATA_TRANSFER_BENCHMARK_KB";
   public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
+  public static final String EXTRA_ENABLE_METRICS_JOURNAL =
+      "org.appspot.apprtc.ENABLE_METRICS_JOURNAL";
+  public static final String EXTRA_FRAMED_DIRECT_SIGNALING =
+      "org.appspot.apprtc.FRAMED_DIRECT_SIGNALING";
+  public static final String EXTRA_BATCH_ICE_CANDIDATES =
+      "org.appspot.apprtc.BATCH_ICE_CANDIDATES";
   public static final String EXTRA_USE_LEGACY_AUDIO_DEVICE =
       "org.appspot.apprtc.USE_LEGACY_AUDIO_DEVICE";
+  public static final String EXTRA_WARM_START = "org.appspot.apprtc.WARM_START";
+  // Starts a DirectCallHubActivity listening on the IP address of the room ID instead of a call.
+  public static final String EXTRA_DIRECT_CALL_HUB = "org.appspot.apprtc.DIRECT_CALL_HUB";
 
   private static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
 
@@ -132,30 +165,57 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   // Peer connection statistics callback period in ms.
   private static final int STAT_CALLBACK_PERIOD = 1000;
 
-  private static class ProxyRenderer implements VideoRenderer.Callbacks {
-    private VideoRenderer.Callbacks target;
+  // Frames waiting for conversion and for the file writer of the remote video recorder before
+  // the oldest is dropped.
+  private static final int REMOTE_VIDEO_FILE_QUEUE_FRAMES = 2;
+  private static final int REMOTE_VIDEO_FILE_BUFFERED_FRAMES = 8;
+
+  // Blobs the data transfer benchmark sends once the data channel is open.
+  private static final int DATA_TRANSFER_BENCHMARK_TRANSFERS = 10;
+
+  // Logs the throughput of the data transfer benchmark, measured from the first blob queued to
+  // the last one received, so with loopback it covers both ends of the data channel.
+  private static class DataTransferBenchmark implements DataChannelTransfer.Listener {
+    private final int transfers;
+    private final AtomicInteger receivedTransfers = new AtomicInteger();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile long startNs;
+
+    DataTransferBenchmark(int transfers) {
+      this.transfers = transfers;
+    }
+
+    void start() {
+      startNs = System.nanoTime();
+    }
 
     @Override
-    synchronized public void renderFrame(VideoRenderer.I420Frame frame) {
-      if (target == null) {
-        Logging.d(TAG, "Dropping frame in proxy because target is null.");
-        VideoRenderer.renderFrameDone(frame);
-        return;
-      }
+    public void onTransferSent(int transferId, int bytes, long elapsedMs) {}
 
-      target.renderFrame(frame);
+    @Override
+    public void onTransferFailed(int transferId, int bytes) {
+      Log.e(TAG, "Data transfer benchmark failed to send " + bytes + " bytes.");
     }
 
-    synchronized public void setTarget(VideoRenderer.Callbacks target) {
-      this.target = target;
+    @Override
+    public void onTransferReceived(int transferId, ByteBuffer data, long elapsedMs) {
+      final long bytes = receivedBytes.addAndGet(data.capacity());
+      if (receivedTransfers.incrementAndGet() != transfers) {
+        return;
+      }
+      final long totalMs = Math.max(1, (System.nanoTime() - startNs) / 1000000);
+      Log.d(TAG, "Data transfer benchmark: " + bytes + " bytes in " + totalMs + " ms, "
+              + String.format(Locale.US, "%.2f", bytes / 1000.0 / totalMs) + " MB/s");
     }
   }
 
+  // Volatile rather than synchronized, so swapping feeds never blocks the frame thread.
   private static class ProxyVideoSink implements VideoSink {
-    private VideoSink target;
+    @Nullable private volatile VideoSink target;
 
     @Override
-    synchronized public void onFrame(VideoFrame frame) {
+    public void onFrame(VideoFrame frame) {
+      final VideoSink target = this.target;
       if (target == null) {
         Logging.d(TAG, "Dropping frame in proxy because target is null.");
         return;
@@ -164,13 +224,15 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       target.onFrame(frame);
     }
 
-    synchronized public void setTarget(VideoSink target) {
+    public void setTarget(@Nullable VideoSink target) {
       this.target = target;
     }
   }
 
-  private final ProxyRenderer remoteProxyRenderer = new ProxyRenderer();
+  private final ProxyVideoSink remoteProxyRenderer = new ProxyVideoSink();
   private final ProxyVideoSink localProxyVideoSink = new ProxyVideoSink();
+  // Remote video to the screen, and to a file if it is saved.
+  private final FanOutVideoSink remoteVideoSink = new FanOutVideoSink();
   @Nullable
   private PeerConnectionClient peerConnectionClient = null;
   @Nullable
@@ -184,8 +246,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   @Nullable
   private SurfaceViewRenderer fullscreenRenderer;
   @Nullable
-  private VideoFileRenderer videoFileRenderer;
-  private final List<VideoRenderer.Callbacks> remoteRenderers = new ArrayList<>();
+  private RemoteVideoRecorder remoteVideoRecorder;
+  @Nullable
+  private DataTransferBenchmark dataTransferBenchmark;
+  private int dataTransferBenchmarkKb;
   private Toast logToast;
   private boolean commandLineRun;
   private boolean activityRunning;
@@ -250,12 +314,31 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     });
 
     fullscreenRenderer.setOnClickListener(listener);
-    remoteRenderers.add(remoteProxyRenderer);
+    remoteVideoSink.addDirectTarget(remoteProxyRenderer);
+    remoteVideoSink.addDirectTarget(new VideoSink() {
+      private boolean firstFrameReported;
+
+      @Override
+      public void onFrame(VideoFrame frame) {
+        if (firstFrameReported) {
+          return;
+        }
+        firstFrameReported = true;
+        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            logAndToast("First remote frame, delay=" + delta + "ms");
+          }
+        });
+      }
+    });
 
     final Intent intent = getIntent();
 
     // Create peer connection client.
-    peerConnectionClient = new PeerConnectionClient(getApplicationContext());
+    peerConnectionClient = new PeerConnectionClient(
+        getApplicationContext(), intent.getBooleanExtra(EXTRA_WARM_START, false));
 
     // Create video renderers.
     pipRenderer.init(peerConnectionClient.getRenderContext(), null);
@@ -266,10 +349,23 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (saveRemoteVideoToFile != null) {
       int videoOutWidth = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
       int videoOutHeight = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
+      RemoteVideoRecorder.Format videoOutFormat = RemoteVideoRecorder.Format.Y4M;
+      if ("h264".equals(intent.getStringExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FORMAT))) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+          videoOutFormat = RemoteVideoRecorder.Format.H264;
+        } else {
+          Log.w(TAG, "H.264 recording needs API level 18, recording Y4M.");
+        }
+      }
+      long videoOutMaxBytes =
+          intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB, 0) * 1024L * 1024L;
+      int videoOutMaxFiles = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES, 0);
       try {
-        videoFileRenderer = new VideoFileRenderer(saveRemoteVideoToFile, videoOutWidth,
-            videoOutHeight, peerConnectionClient.getRenderContext());
-        remoteRenderers.add(videoFileRenderer);
+        remoteVideoRecorder = new RemoteVideoRecorder(saveRemoteVideoToFile, videoOutWidth,
+            videoOutHeight, videoOutFormat, videoOutMaxBytes, videoOutMaxFiles,
+            REMOTE_VIDEO_FILE_BUFFERED_FRAMES);
+        remoteVideoSink.addQueuedTarget(remoteVideoRecorder, REMOTE_VIDEO_FILE_QUEUE_FRAMES);
+        hudFragment.setRemoteVideoRecorder(remoteVideoRecorder);
       } catch (IOException e) {
         throw new RuntimeException(
             "Failed to open video file for output: " + saveRemoteVideoToFile, e);
@@ -315,7 +411,6 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
 
     boolean loopback = intent.getBooleanExtra(EXTRA_LOOPBACK, false);
-    boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
 
     int videoWidth = intent.getIntExtra(EXTRA_VIDEO_WIDTH, 0);
     int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
@@ -327,42 +422,21 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       videoWidth = displayMetrics.widthPixels;
       videoHeight = displayMetrics.heightPixels;
     }
-    DataChannelParameters dataChannelParameters = null;
-    if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, false)) {
-      dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
-          intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
-          intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
-          intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
-    }
-    peerConnectionParameters =
-        new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true), loopback,
-            tracing, videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
-            intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
-            intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
-            intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
-            intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
-            intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, false),
-            intent.getBooleanExtra(EXTRA_ENABLE_RTCEVENTLOG, false),
-            intent.getBooleanExtra(EXTRA_USE_LEGACY_AUDIO_DEVICE, false), dataChannelParameters);
+    peerConnectionParameters = createPeerConnectionParameters(intent, videoWidth, videoHeight);
     commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
     int runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
     Log.d(TAG, "VIDEO_FILE: '" + intent.getStringExtra(EXTRA_VIDEO_FILE_AS_CAMERA) + "'");
 
+    boolean batchIceCandidates = intent.getBooleanExtra(EXTRA_BATCH_ICE_CANDIDATES, false);
     // Create connection client. Use DirectRTCClient if room name is an IP otherwise use the
     // standard WebSocketRTCClient.
     if (loopback || !DirectRTCClient.IP_PATTERN.matcher(roomId).matches()) {
-      appRtcClient = new WebSocketRTCClient(this);
+      appRtcClient = new WebSocketRTCClient(this, batchIceCandidates);
     } else {
       Log.i(TAG, "Using DirectRTCClient because room name looks like an IP.");
-      appRtcClient = new DirectRTCClient(this);
+      appRtcClient = new DirectRTCClient(this,
+          intent.getBooleanExtra(EXTRA_FRAMED_DIRECT_SIGNALING, false), batchIceCandidates);
     }
     // Create connection parameters.
     String urlParameters = intent.getStringExtra(EXTRA_URLPARAMETERS);
@@ -373,7 +447,35 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (CpuMonitor.isSupported()) {
       cpuMonitor = new CpuMonitor(this);
       hudFragment.setCpuMonitor(cpuMonitor);
+      final PeerConnectionClient reportClient = peerConnectionClient;
+      cpuMonitor.setReportListener(new CpuMonitor.ReportListener() {
+        @Override
+        public void onCpuReport(CpuMonitor.CpuReport report) {
+          reportClient.onCpuReport(report);
+        }
+      });
+      peerConnectionClient.enableCpuAdaptation(
+          intent.getBooleanExtra(EXTRA_CPU_ADAPTATION_ENABLED, false));
+    }
+    peerConnectionClient.enableBandwidthAdaptation(
+        intent.getBooleanExtra(EXTRA_BANDWIDTH_ADAPTATION_ENABLED, false));
+    peerConnectionClient.setBitrateGovernorPolicy(intent.getStringExtra(EXTRA_BITRATE_GOVERNOR));
+    final List<DataChannelParameters> scheduledDataChannels =
+        parseDataChannels(intent.getStringExtra(EXTRA_DATA_CHANNELS));
+    for (DataChannelParameters parameters : scheduledDataChannels) {
+      peerConnectionClient.addDataChannel(parameters);
+    }
+    if (!scheduledDataChannels.isEmpty()) {
+      hudFragment.setDataChannelScheduler(peerConnectionClient.getDataChannelScheduler());
     }
+    dataTransferBenchmarkKb = intent.getIntExtra(EXTRA_DATA_TRANSFER_BENCHMARK_KB, 0);
+    if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, false) && dataTransferBenchmarkKb > 0) {
+      dataTransferBenchmark = new DataTransferBenchmark(DATA_TRANSFER_BENCHMARK_TRANSFERS);
+      peerConnectionClient.setDataTransferListener(dataTransferBenchmark);
+    }
+    peerConnectionClient.setInputAudioSegments(
+        intent.getIntExtra(EXTRA_SAVE_INPUT_AUDIO_SEGMENT_SEC, 0),
+        intent.getIntExtra(EXTRA_SAVE_INPUT_AUDIO_MAX_MB, 0));
 
     // Send intent arguments to fragments.
     callFragment.setArguments(intent.getExtras());
@@ -394,9 +496,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       }, runTimeMs);
     }
 
-    if (loopback) {
-      PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-      options.networkIgnoreMask = 0;
+    PeerConnectionFactory.Options options = createFactoryOptions(loopback);
+    if (options != null) {
       peerConnectionClient.setPeerConnectionFactoryOptions(options);
     }
     peerConnectionClient.createPeerConnectionFactory(peerConnectionParameters, CallActivity.this);
@@ -408,6 +509,57 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
   }
 
+  /**
+   * Starts creating the peer connection factory that a CallActivity started with |intent| and
+   * EXTRA_WARM_START will use, so that it is ready by the time the room is joined.
+   */
+  static void prewarmPeerConnectionFactory(Context appContext, Intent intent) {
+    PeerConnectionClient.prewarm(appContext,
+        createPeerConnectionParameters(intent, intent.getIntExtra(EXTRA_VIDEO_WIDTH, 0),
+            intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0)),
+        createFactoryOptions(intent.getBooleanExtra(EXTRA_LOOPBACK, false)));
+  }
+
+  static PeerConnectionParameters createPeerConnectionParameters(
+      Intent intent, int videoWidth, int videoHeight) {
+    DataChannelParameters dataChannelParameters = null;
+    if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, false)) {
+      dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
+          intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
+          intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
+          intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
+    }
+    return new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true),
+        intent.getBooleanExtra(EXTRA_LOOPBACK, false), intent.getBooleanExtra(EXTRA_TRACING, false),
+        videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
+        intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
+        intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
+        intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
+        intent.getIntExtra(EXTRA_SIMULCAST_LAYERS, 1),
+        intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
+        intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, false),
+        intent.getBooleanExtra(EXTRA_ENABLE_RTCEVENTLOG, false),
+        intent.getBooleanExtra(EXTRA_ENABLE_METRICS_JOURNAL, false),
+        intent.getBooleanExtra(EXTRA_USE_LEGACY_AUDIO_DEVICE, false), dataChannelParameters);
+  }
+
+  @Nullable
+  static PeerConnectionFactory.Options createFactoryOptions(boolean loopback) {
+    if (!loopback) {
+      return null;
+    }
+    PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
+    options.networkIgnoreMask = 0;
+    return options;
+  }
+
   @TargetApi(17)
   private DisplayMetrics getDisplayMetrics() {
     DisplayMetrics displayMetrics = new DisplayMetrics();
@@ -417,6 +569,29 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     return displayMetrics;
   }
 
+  // Parses EXTRA_DATA_CHANNELS, skipping malformed entries.
+  private static List<DataChannelParameters> parseDataChannels(@Nullable String spec) {
+    final List<DataChannelParameters> channels = new ArrayList<>();
+    if (spec == null || spec.isEmpty()) {
+      return channels;
+    }
+    for (String entry : spec.split(";")) {
+      final String[] fields = entry.split(":");
+      if (fields.length != 5 || fields[0].isEmpty()) {
+        Log.e(TAG, "Invalid data channel: " + entry);
+        continue;
+      }
+      try {
+        channels.add(new DataChannelParameters(fields[0], Integer.parseInt(fields[1]),
+            Boolean.parseBoolean(fields[2]), Integer.parseInt(fields[3]),
+            Integer.parseInt(fields[4]), "", false /* negotiated */, -1 /* id */));
+      } catch (NumberFormatException e) {
+        Log.e(TAG, "Invalid data channel: " + entry);
+      }
+    }
+    return channels;
+  }
+
   @TargetApi(19)
   private static int getSystemUiVisibility() {
     int flags = View.SYSTEM_UI_FLAG_HIDE_NAVIGATION | View.SYSTEM_UI_FLAG_FULLSCREEN;
@@ -654,9 +829,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       pipRenderer.release();
       pipRenderer = null;
     }
-    if (videoFileRenderer != null) {
-      videoFileRenderer.release();
-      videoFileRenderer = null;
+    remoteVideoSink.release();
+    if (remoteVideoRecorder != null) {
+      remoteVideoRecorder.release();
+      remoteVideoRecorder = null;
     }
     if (fullscreenRenderer != null) {
       fullscreenRenderer.release();
@@ -775,7 +951,15 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       videoCapturer = createVideoCapturer();
     }
     peerConnectionClient.createPeerConnection(
-        localProxyVideoSink, remoteRenderers, videoCapturer, signalingParameters);
+        localProxyVideoSink, remoteVideoSink, videoCapturer, signalingParameters);
+    if (dataTransferBenchmark != null) {
+      // Queued until the data channel is open.
+      final ByteBuffer blob = ByteBuffer.allocateDirect(dataTransferBenchmarkKb * 1024);
+      dataTransferBenchmark.start();
+      for (int i = 0; i < DATA_TRANSFER_BENCHMARK_TRANSFERS; i++) {
+        peerConnectionClient.sendData(blob);
+      }
+    }
 
     if (signalingParameters.initiator) {
       logAndToast("Creating OFFER...");
@@ -955,12 +1139,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
   @Override
   public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    // Digest the reports on the calling thread and only hand the resulting text to the UI thread.
+    final HudStatsDigester.HudStats stats = hudFragment.digestStatistics(reports);
+    if (stats == null) {
+      return;
+    }
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
         if (!isError && iceConnected) {
-          hudFragment.updateEncoderStatistics(reports);
+          hudFragment.updateEncoderStatistics(stats);
         }
+        stats.release();
       }
     });
   }
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.annotation.Nullable;
+
+/**
+ * Binary journal of call metrics and peer connection events for post-mortem analysis of
+ * degraded calls.
+ *
+ * <p>The file starts with a 16 byte header: magic, version, record size and the wall clock
+ * start time in ms. It is followed by fixed-size 16 byte records: the time since start in ms,
+ * the record type, a type specific code and a value. Records are written through a memory-mapped
+ * window that is flushed to disk every {@link #FORCE_PERIOD_MS} and when the window is full. The
+ * file never grows beyond {@link #OUTPUT_FILE_MAX_BYTES}. Unwritten space reads as zero, so a
+ * reader stops at the first record of type {@link RecordType#NONE} even if the writer did not
+ * close the file.
+ *
+ * <p>Use {@link #read(File, RecordVisitor)} to read a journal on any JVM.
+ */
+public class CallMetricsJournal {
+  private static final String TAG = "CallMetricsJournal";
+  public static final int OUTPUT_FILE_MAX_BYTES = 10_000_000;
+  static final int MAGIC = 0x41524d4a; // "ARMJ"
+  static final short VERSION = 1;
+  static final int HEADER_BYTES = 16;
+  static final int RECORD_BYTES = 16;
+  private static final int MAP_WINDOW_BYTES = 4096 * RECORD_BYTES;
+  private static final long FORCE_PERIOD_MS = 5000;
+
+  /** Record types. The ordinal is stored in the file, so only append new types. */
+  public enum RecordType {
+    // Marks the end of the written records.
+    NONE,
+    // code: CallMetricsRecorder.Metric ordinal, value: sample.
+    STATS_SAMPLE,
+    // code: SessionDescription.Type ordinal, value: description length.
+    LOCAL_DESCRIPTION,
+    REMOTE_DESCRIPTION,
+    // code: sdpMLineIndex.
+    LOCAL_ICE_CANDIDATE,
+    REMOTE_ICE_CANDIDATE,
+    // value: number of candidates.
+    ICE_CANDIDATES_REMOVED,
+    // code: PeerConnection.IceConnectionState ordinal.
+    ICE_CONNECTION_STATE,
+    PEER_CONNECTION_ERROR,
+    PEER_CONNECTION_CLOSED,
+    // code: core index, value: usage in percent, or -1 if the core was offline.
+    CPU_CORE_USAGE,
+    // code: thread id truncated to 16 bits, value: percentage of the capacity of all cores.
+    THREAD_CPU_USAGE,
+    // code: new CpuAdaptationController level, value: average CPU usage in percent.
+    CPU_ADAPTATION,
+    // code: new capture height chosen by BandwidthCaptureController, value: bandwidth in bps.
+    BANDWIDTH_ADAPTATION,
+    // code: BitrateGovernor.NetworkType ordinal.
+    NETWORK_TYPE,
+    // value: new maximum video bitrate set by BitrateGovernor in bps.
+    MAX_VIDEO_BITRATE;
+
+    private static final RecordType[] VALUES = values();
+
+    @Nullable
+    static RecordType fromOrdinal(int ordinal) {
+      return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : null;
+    }
+  }
+
+  /** Receives the records of a journal in order. */
+  public interface RecordVisitor {
+    void onRecord(long timeMs, RecordType type, int code, double value);
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long startTimeMs;
+  @Nullable private MappedByteBuffer window;
+  // File offset of |window|.
+  private long windowPosition;
+  private long lastForceTimeMs;
+  private boolean full;
+
+  private CallMetricsJournal(RandomAccessFile file, long startTimeMs) {
+    this.file = file;
+    this.channel = file.getChannel();
+    this.startTimeMs = startTimeMs;
+  }
+
+  /** Creates a journal in |outputFile|, replacing any existing file. Returns null on failure. */
+  @Nullable
+  public static CallMetricsJournal create(File outputFile) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(outputFile, "rw");
+      file.setLength(0);
+      final CallMetricsJournal journal =
+          new CallMetricsJournal(file, SystemClock.elapsedRealtime());
+      journal.mapWindow(0);
+      journal.window.putInt(MAGIC)
+          .putShort(VERSION)
+          .putShort((short) RECORD_BYTES)
+          .putLong(System.currentTimeMillis());
+      Log.d(TAG, "Journal started: " + outputFile);
+      return journal;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to create journal " + outputFile, e);
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException closeException) {
+          // Ignore.
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Writes a record with the current time. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void write(RecordType type, int code, double value) {
+    writeAt(SystemClock.elapsedRealtime(), type, code, value);
+  }
+
+  /** Writes a record with |elapsedRealtimeMs| as its time. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void writeAt(long elapsedRealtimeMs, RecordType type, int code,
+      double value) {
+    if (window == null || full) {
+      return;
+    }
+    try {
+      if (!window.hasRemaining()) {
+        final long nextPosition = windowPosition + window.capacity();
+        if (nextPosition + RECORD_BYTES > OUTPUT_FILE_MAX_BYTES) {
+          Log.w(TAG, "Journal is full, dropping further records.");
+          full = true;
+          return;
+        }
+        window.force();
+        mapWindow(nextPosition);
+      }
+      window.putInt((int) (elapsedRealtimeMs - startTimeMs))
+          .putShort((short) type.ordinal())
+          .putShort((short) code)
+          .putDouble(value);
+      if (elapsedRealtimeMs - lastForceTimeMs >= FORCE_PERIOD_MS) {
+        window.force();
+        lastForceTimeMs = elapsedRealtimeMs;
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write journal", e);
+      full = true;
+    }
+  }
+
+  /** Flushes the journal, trims unused space and closes the file. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void close() {
+    if (window == null) {
+      return;
+    }
+    final long length = windowPosition + window.position();
+    window.force();
+    window = null;
+    try {
+      channel.truncate(length);
+      file.close();
+      Log.d(TAG, "Journal closed, " + length + " bytes.");
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close journal", e);
+    }
+  }
+
+  // Maps |MAP_WINDOW_BYTES| at |position|, capped to the maximum file size.
+  private void mapWindow(long position) throws IOException {
+    final long size = Math.min(MAP_WINDOW_BYTES, OUTPUT_FILE_MAX_BYTES - position);
+    window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    windowPosition = position;
+  }
+
+  /**
+   * Reads the journal in |inputFile| and passes each record to |visitor|. Record times are
+   * wall clock times in ms. Returns the number of records read.
+   */
+  public static int read(File inputFile, RecordVisitor visitor) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+    try {
+      final FileChannel channel = file.getChannel();
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a call metrics journal: " + inputFile);
+      }
+      final short version = buffer.getShort();
+      final short recordBytes = buffer.getShort();
+      if (version != VERSION || recordBytes != RECORD_BYTES) {
+        throw new IOException("Unsupported journal version " + version);
+      }
+      final long startTimeMs = buffer.getLong();
+      int count = 0;
+      while (buffer.remaining() >= RECORD_BYTES) {
+        final int offsetMs = buffer.getInt();
+        final RecordType type = RecordType.fromOrdinal(buffer.getShort());
+        final int code = buffer.getShort();
+        final double value = buffer.getDouble();
+        if (type == null || type == RecordType.NONE) {
+          break;
+        }
+        visitor.onRecord(startTimeMs + offsetMs, type, code, value);
+        count++;
+      }
+      return count;
+    } finally {
+      file.close();
+    }
+  }
+}
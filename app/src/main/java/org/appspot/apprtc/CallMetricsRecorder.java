@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.webrtc.StatsReport;
+
+/**
+ * Records key call quality metrics from stats reports into fixed-capacity time series, so that
+ * the HUD, adaptation logic and logging can share the recent history of a call without parsing
+ * reports again. Each series keeps its samples in primitive ring buffers; appending is O(1) and
+ * windowed queries are linear in the number of samples in the window.
+ *
+ * <p>Thread safe. record() and recordCpuUsage() are usually called on different threads, e.g.
+ * the stats callback thread and the thread of the CPU monitor reports; they are serialized, so
+ * the sample listener is never called concurrently. Series may be queried from any thread.
+ */
+public class CallMetricsRecorder {
+  private static final String TAG = "CallMetricsRecorder";
+
+  /** Recorded metrics. */
+  public enum Metric {
+    FPS_SENT,
+    FPS_RECEIVED,
+    TARGET_ENC_BITRATE_BPS,
+    ACTUAL_ENC_BITRATE_BPS,
+    RTT_MS,
+    // Percentage of received video packets lost since the previous sample.
+    PACKET_LOSS_PERCENT,
+    JITTER_MS,
+    AVAILABLE_SEND_BANDWIDTH_BPS,
+    AVAILABLE_RECEIVE_BANDWIDTH_BPS,
+    // Device-wide CPU usage, from CpuMonitor.
+    CPU_USAGE_PERCENT,
+    // Percentage of sent video packets, of all simulcast layers, reported lost by the remote end
+    // since the previous sample.
+    SEND_PACKET_LOSS_PERCENT
+  }
+
+  /**
+   * Fixed-capacity series of (time, value) samples. Once full, each append overwrites the
+   * oldest sample. Windows are relative to the time of the latest sample.
+   */
+  public static class Series {
+    private final long[] timesMs;
+    private final double[] values;
+    // Scratch buffer for percentile queries.
+    private final double[] sorted;
+    // Index of the next sample to write.
+    private int head;
+    private int size;
+
+    Series(int capacity) {
+      timesMs = new long[capacity];
+      values = new double[capacity];
+      sorted = new double[capacity];
+    }
+
+    public synchronized void append(long timeMs, double value) {
+      timesMs[head] = timeMs;
+      values[head] = value;
+      head = (head + 1) % values.length;
+      if (size < values.length) {
+        size++;
+      }
+    }
+
+    public synchronized int size() {
+      return size;
+    }
+
+    public synchronized void clear() {
+      head = 0;
+      size = 0;
+    }
+
+    /** Returns the latest value, or NaN if the series is empty. */
+    public synchronized double getLatest() {
+      return size == 0 ? Double.NaN : values[index(size - 1)];
+    }
+
+    /** Returns the minimum over the last |windowMs|, or NaN if the series is empty. */
+    public synchronized double getMin(long windowMs) {
+      double min = Double.NaN;
+      for (int i = windowStart(windowMs); i < size; i++) {
+        final double value = values[index(i)];
+        if (Double.isNaN(min) || value < min) {
+          min = value;
+        }
+      }
+      return min;
+    }
+
+    /** Returns the maximum over the last |windowMs|, or NaN if the series is empty. */
+    public synchronized double getMax(long windowMs) {
+      double max = Double.NaN;
+      for (int i = windowStart(windowMs); i < size; i++) {
+        final double value = values[index(i)];
+        if (Double.isNaN(max) || value > max) {
+          max = value;
+        }
+      }
+      return max;
+    }
+
+    /** Returns the average over the last |windowMs|, or NaN if the series is empty. */
+    public synchronized double getAverage(long windowMs) {
+      final int start = windowStart(windowMs);
+      if (start == size) {
+        return Double.NaN;
+      }
+      double sum = 0;
+      for (int i = start; i < size; i++) {
+        sum += values[index(i)];
+      }
+      return sum / (size - start);
+    }
+
+    /**
+     * Returns the |percentile| (0-100) over the last |windowMs| using the nearest-rank method, or
+     * NaN if the series is empty.
+     */
+    public synchronized double getPercentile(long windowMs, double percentile) {
+      final int start = windowStart(windowMs);
+      final int count = size - start;
+      if (count == 0) {
+        return Double.NaN;
+      }
+      for (int i = 0; i < count; i++) {
+        sorted[i] = values[index(start + i)];
+      }
+      Arrays.sort(sorted, 0, count);
+      final int rank = (int) Math.ceil(percentile / 100 * count);
+      return sorted[Math.min(Math.max(rank - 1, 0), count - 1)];
+    }
+
+    // Maps the logical index |i| (0 is the oldest sample) to an array index.
+    private int index(int i) {
+      return (head - size + i + values.length) % values.length;
+    }
+
+    // Returns the logical index of the oldest sample within |windowMs| of the latest sample.
+    private int windowStart(long windowMs) {
+      if (size == 0) {
+        return 0;
+      }
+      final long startTimeMs = timesMs[index(size - 1)] - windowMs;
+      int start = size;
+      while (start > 0 && timesMs[index(start - 1)] > startTimeMs) {
+        start--;
+      }
+      return start;
+    }
+  }
+
+  /**
+   * Receives every recorded sample, on the thread calling record() or recordCpuUsage(). Called
+   * with the recorder locked, so it must not wait for another thread that records.
+   */
+  public interface SampleListener {
+    void onSample(Metric metric, long timeMs, double value);
+  }
+
+  // Not modified after construction.
+  private final Map<Metric, Series> series = new EnumMap<>(Metric.class);
+  // The fields below are guarded by |this|.
+  @Nullable private SampleListener sampleListener;
+  // Cumulative received video packet counters at the previous sample, or -1.
+  private long lastPacketsReceived = -1;
+  private long lastPacketsLost = -1;
+  // Cumulative sent and lost packet counters of each sent video layer at its previous sample, by
+  // report id. Simulcast sends a layer per SSRC, each with its own counters.
+  private final Map<String, long[]> lastSendPackets = new HashMap<>();
+  // Sent and lost video packets of all layers since their previous samples, summed by record().
+  private long sendPacketsDelta;
+  private long sendPacketsLostDelta;
+  // Frame rate and width of the widest sent video layer, found by record().
+  private double sentFps;
+  private double sentFpsWidth;
+
+  /**
+   * @param historyMs         How much history to keep.
+   * @param minSamplePeriodMs Shortest expected interval between record() calls.
+   */
+  public CallMetricsRecorder(long historyMs, long minSamplePeriodMs) {
+    final int capacity = (int) Math.max(1, historyMs / Math.max(1, minSamplePeriodMs));
+    for (Metric metric : Metric.values()) {
+      series.put(metric, new Series(capacity));
+    }
+  }
+
+  public synchronized void setSampleListener(@Nullable SampleListener sampleListener) {
+    this.sampleListener = sampleListener;
+  }
+
+  public Series getSeries(Metric metric) {
+    return series.get(metric);
+  }
+
+  /** Records the metrics found in |reports| with the current time. */
+  public synchronized void record(StatsReport[] reports) {
+    final long timeMs = SystemClock.elapsedRealtime();
+    sendPacketsDelta = 0;
+    sendPacketsLostDelta = 0;
+    sentFps = Double.NaN;
+    sentFpsWidth = -1;
+    for (StatsReport report : reports) {
+      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
+        String trackId = getValue(report, "googTrackId");
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          addSentLayer(report);
+        }
+      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("recv")) {
+        if (getValue(report, "googFrameWidthReceived") != null) {
+          // Video track.
+          append(Metric.FPS_RECEIVED, timeMs, report, "googFrameRateReceived");
+          recordPacketLoss(timeMs, report);
+        } else {
+          // Audio track.
+          append(Metric.JITTER_MS, timeMs, report, "googJitterReceived");
+        }
+      } else if (report.id.equals("bweforvideo")) {
+        append(Metric.TARGET_ENC_BITRATE_BPS, timeMs, report, "googTargetEncBitrate");
+        append(Metric.ACTUAL_ENC_BITRATE_BPS, timeMs, report, "googActualEncBitrate");
+        append(Metric.AVAILABLE_SEND_BANDWIDTH_BPS, timeMs, report, "googAvailableSendBandwidth");
+        append(Metric.AVAILABLE_RECEIVE_BANDWIDTH_BPS, timeMs, report,
+            "googAvailableReceiveBandwidth");
+      } else if (report.type.equals("googCandidatePair")) {
+        if ("true".equals(getValue(report, "googActiveConnection"))) {
+          append(Metric.RTT_MS, timeMs, report, "googRtt");
+        }
+      }
+    }
+    // One sample for all sent layers.
+    if (!Double.isNaN(sentFps)) {
+      add(Metric.FPS_SENT, timeMs, sentFps);
+    }
+    if (sendPacketsDelta > 0) {
+      add(Metric.SEND_PACKET_LOSS_PERCENT, timeMs,
+          Math.min(100.0, 100.0 * sendPacketsLostDelta / sendPacketsDelta));
+    }
+  }
+
+  /** Records the device-wide CPU usage of a CpuMonitor sample. */
+  public synchronized void recordCpuUsage(long timeMs, int percent) {
+    add(Metric.CPU_USAGE_PERCENT, timeMs, percent);
+  }
+
+  /** Drops all recorded samples. */
+  public synchronized void clear() {
+    for (Series s : series.values()) {
+      s.clear();
+    }
+    lastPacketsReceived = -1;
+    lastPacketsLost = -1;
+    lastSendPackets.clear();
+  }
+
+  /** Logs average and maximum of every metric over the last |windowMs|. */
+  public void logSummary(long windowMs) {
+    for (Map.Entry<Metric, Series> entry : series.entrySet()) {
+      final Series s = entry.getValue();
+      if (s.size() > 0) {
+        Log.d(TAG, entry.getKey() + ": avg " + s.getAverage(windowMs) + ", max "
+                + s.getMax(windowMs) + ", p95 " + s.getPercentile(windowMs, 95));
+      }
+    }
+  }
+
+  private void recordPacketLoss(long timeMs, StatsReport report) {
+    final double received = parseValue(getValue(report, "packetsReceived"));
+    final double lost = parseValue(getValue(report, "packetsLost"));
+    if (Double.isNaN(received) || Double.isNaN(lost)) {
+      return;
+    }
+    if (lastPacketsReceived >= 0) {
+      final long receivedDelta = (long) received - lastPacketsReceived;
+      final long lostDelta = (long) lost - lastPacketsLost;
+      final long total = receivedDelta + lostDelta;
+      if (total > 0 && lostDelta >= 0) {
+        add(Metric.PACKET_LOSS_PERCENT, timeMs, 100.0 * lostDelta / total);
+      }
+    }
+    lastPacketsReceived = (long) received;
+    lastPacketsLost = (long) lost;
+  }
+
+  // Adds the packets a sent video layer sent and lost since its previous sample to the deltas
+  // of this record() call, and keeps its frame rate if it is the widest layer so far.
+  private void addSentLayer(StatsReport report) {
+    final double fps = parseValue(getValue(report, "googFrameRateSent"));
+    final double width = parseValue(getValue(report, "googFrameWidthSent"));
+    if (!Double.isNaN(fps) && (Double.isNaN(sentFps) || width > sentFpsWidth)) {
+      sentFps = fps;
+      sentFpsWidth = Double.isNaN(width) ? -1 : width;
+    }
+    final double sent = parseValue(getValue(report, "packetsSent"));
+    final double lost = parseValue(getValue(report, "packetsLost"));
+    if (Double.isNaN(sent) || Double.isNaN(lost)) {
+      return;
+    }
+    long[] last = lastSendPackets.get(report.id);
+    if (last == null) {
+      last = new long[] {(long) sent, (long) lost};
+      lastSendPackets.put(report.id, last);
+      return;
+    }
+    final long sentDelta = (long) sent - last[0];
+    final long lostDelta = (long) lost - last[1];
+    if (sentDelta >= 0 && lostDelta >= 0) {
+      sendPacketsDelta += sentDelta;
+      sendPacketsLostDelta += lostDelta;
+    }
+    last[0] = (long) sent;
+    last[1] = (long) lost;
+  }
+
+  private void append(Metric metric, long timeMs, StatsReport report, String name) {
+    final double value = parseValue(getValue(report, name));
+    if (!Double.isNaN(value)) {
+      add(metric, timeMs, value);
+    }
+  }
+
+  private void add(Metric metric, long timeMs, double value) {
+    series.get(metric).append(timeMs, value);
+    if (sampleListener != null) {
+      sampleListener.onSample(metric, timeMs, value);
+    }
+  }
+
+  @Nullable
+  private static String getValue(StatsReport report, String name) {
+    for (StatsReport.Value value : report.values) {
+      if (value.name.equals(name)) {
+        return value.value;
+      }
+    }
+    return null;
+  }
+
+  private static double parseValue(@Nullable String value) {
+    if (value == null) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+}
@@ -22,7 +22,7 @@ import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
  * Control capture format based on a seekbar listener.
  */
 public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener {
-  private final List<CaptureFormat> formats =
+  static final List<CaptureFormat> FORMATS =
       Arrays.asList(new CaptureFormat(1280, 720, 0, 30000), new CaptureFormat(960, 540, 0, 30000),
           new CaptureFormat(640, 480, 0, 30000), new CaptureFormat(480, 360, 0, 30000),
           new CaptureFormat(320, 240, 0, 30000), new CaptureFormat(256, 144, 0, 30000));
@@ -33,7 +33,6 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
   private int width = 0;
   private int height = 0;
   private int framerate = 0;
-  private double targetBandwidth = 0;
 
   public CaptureQualityController(
       TextView captureFormatText, CallFragment.OnCallEvents callEvents) {
@@ -41,22 +40,31 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     this.callEvents = callEvents;
   }
 
-  private final Comparator<CaptureFormat> compareFormats = new Comparator<CaptureFormat>() {
-    @Override
-    public int compare(CaptureFormat first, CaptureFormat second) {
-      int firstFps = calculateFramerate(targetBandwidth, first);
-      int secondFps = calculateFramerate(targetBandwidth, second);
+  /**
+   * Chooses the best of |formats| for |targetBandwidth| in millipixels / second. Returns the
+   * format with the highest frame rate possible, as both its minimum and maximum frame rate.
+   */
+  static CaptureFormat selectFormat(List<CaptureFormat> formats, final double targetBandwidth) {
+    final CaptureFormat bestFormat =
+        Collections.max(formats, new Comparator<CaptureFormat>() {
+          @Override
+          public int compare(CaptureFormat first, CaptureFormat second) {
+            int firstFps = calculateFramerate(targetBandwidth, first);
+            int secondFps = calculateFramerate(targetBandwidth, second);
 
-      if ((firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD)
-          || firstFps == secondFps) {
-        // Compare resolution.
-        return first.width * first.height - second.width * second.height;
-      } else {
-        // Compare fps.
-        return firstFps - secondFps;
-      }
-    }
-  };
+            if ((firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD)
+                || firstFps == secondFps) {
+              // Compare resolution.
+              return first.width * first.height - second.width * second.height;
+            } else {
+              // Compare fps.
+              return firstFps - secondFps;
+            }
+          }
+        });
+    final int framerate = calculateFramerate(targetBandwidth, bestFormat) * 1000;
+    return new CaptureFormat(bestFormat.width, bestFormat.height, framerate, framerate);
+  }
 
   @Override
   public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
@@ -70,7 +78,7 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
 
     // Extract max bandwidth (in millipixels / second).
     long maxCaptureBandwidth = java.lang.Long.MIN_VALUE;
-    for (CaptureFormat format : formats) {
+    for (CaptureFormat format : FORMATS) {
       maxCaptureBandwidth =
           Math.max(maxCaptureBandwidth, (long) format.width * format.height * format.framerate.max);
     }
@@ -81,13 +89,13 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     final double kExpConstant = 3.0;
     bandwidthFraction =
         (Math.exp(kExpConstant * bandwidthFraction) - 1) / (Math.exp(kExpConstant) - 1);
-    targetBandwidth = bandwidthFraction * maxCaptureBandwidth;
+    final double targetBandwidth = bandwidthFraction * maxCaptureBandwidth;
 
     // Choose the best format given a target bandwidth.
-    final CaptureFormat bestFormat = Collections.max(formats, compareFormats);
+    final CaptureFormat bestFormat = selectFormat(FORMATS, targetBandwidth);
     width = bestFormat.width;
     height = bestFormat.height;
-    framerate = calculateFramerate(targetBandwidth, bestFormat);
+    framerate = bestFormat.framerate.max / 1000;
     captureFormatText.setText(
         String.format(captureFormatText.getContext().getString(R.string.format_description), width,
             height, framerate));
@@ -102,7 +110,7 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
   }
 
   // Return the highest frame rate possible based on bandwidth and format.
-  private int calculateFramerate(double bandwidth, CaptureFormat format) {
+  private static int calculateFramerate(double bandwidth, CaptureFormat format) {
     return (int) Math.round(
         Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
         / 1000.0);
@@ -297,6 +297,16 @@ public class ConnectActivity extends Activity {
     String audioCodec = sharedPrefGetString(R.string.pref_audiocodec_key,
         CallActivity.EXTRA_AUDIOCODEC, R.string.pref_audiocodec_default, useValuesFromIntent);
 
+    // Get bitrate governor policy.
+    String bitrateGovernor = sharedPrefGetString(R.string.pref_bitrate_governor_key,
+        CallActivity.EXTRA_BITRATE_GOVERNOR, R.string.pref_bitrate_governor_default,
+        useValuesFromIntent);
+
+    // Get number of simulcast layers.
+    int simulcastLayers = sharedPrefGetInteger(R.string.pref_simulcast_layers_key,
+        CallActivity.EXTRA_SIMULCAST_LAYERS, R.string.pref_simulcast_layers_default,
+        useValuesFromIntent);
+
     // Check HW codec flag.
     boolean hwCodec = sharedPrefGetBoolean(R.string.pref_hwcodec_key,
         CallActivity.EXTRA_HWCODEC_ENABLED, R.string.pref_hwcodec_default, useValuesFromIntent);
@@ -393,6 +403,16 @@ public class ConnectActivity extends Activity {
         CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
         R.string.pref_capturequalityslider_default, useValuesFromIntent);
 
+    // Check CPU adaptation flag.
+    boolean cpuAdaptation = sharedPrefGetBoolean(R.string.pref_cpu_adaptation_key,
+        CallActivity.EXTRA_CPU_ADAPTATION_ENABLED, R.string.pref_cpu_adaptation_default,
+        useValuesFromIntent);
+
+    // Check bandwidth adaptation flag.
+    boolean bandwidthAdaptation = sharedPrefGetBoolean(R.string.pref_bandwidth_adaptation_key,
+        CallActivity.EXTRA_BANDWIDTH_ADAPTATION_ENABLED,
+        R.string.pref_bandwidth_adaptation_default, useValuesFromIntent);
+
     // Get video and audio start bitrate.
     int videoStartBitrate = 0;
     if (useValuesFromIntent) {
@@ -434,6 +454,30 @@ public class ConnectActivity extends Activity {
         CallActivity.EXTRA_ENABLE_RTCEVENTLOG, R.string.pref_enable_rtceventlog_default,
         useValuesFromIntent);
 
+    // Check framed direct signaling.
+    boolean framedDirectSignaling = sharedPrefGetBoolean(
+        R.string.pref_framed_direct_signaling_key, CallActivity.EXTRA_FRAMED_DIRECT_SIGNALING,
+        R.string.pref_framed_direct_signaling_default, useValuesFromIntent);
+
+    // Check ICE candidate batching.
+    boolean batchIceCandidates = sharedPrefGetBoolean(R.string.pref_batch_ice_candidates_key,
+        CallActivity.EXTRA_BATCH_ICE_CANDIDATES, R.string.pref_batch_ice_candidates_default,
+        useValuesFromIntent);
+
+    // Check warm start.
+    boolean warmStart = sharedPrefGetBoolean(R.string.pref_warm_start_key,
+        CallActivity.EXTRA_WARM_START, R.string.pref_warm_start_default, useValuesFromIntent);
+
+    // Check direct call hub.
+    boolean directCallHub = sharedPrefGetBoolean(R.string.pref_direct_call_hub_key,
+        CallActivity.EXTRA_DIRECT_CALL_HUB, R.string.pref_direct_call_hub_default,
+        useValuesFromIntent);
+
+    // Check Enable call metrics journal.
+    boolean metricsJournalEnabled = sharedPrefGetBoolean(R.string.pref_enable_metrics_journal_key,
+        CallActivity.EXTRA_ENABLE_METRICS_JOURNAL, R.string.pref_enable_metrics_journal_default,
+        useValuesFromIntent);
+
     boolean useLegacyAudioDevice = sharedPrefGetBoolean(R.string.pref_use_legacy_audio_device_key,
         CallActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, R.string.pref_use_legacy_audio_device_default,
         useValuesFromIntent);
@@ -472,7 +516,11 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
       intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
       intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
+      intent.putExtra(CallActivity.EXTRA_CPU_ADAPTATION_ENABLED, cpuAdaptation);
+      intent.putExtra(CallActivity.EXTRA_BANDWIDTH_ADAPTATION_ENABLED, bandwidthAdaptation);
       intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
+      intent.putExtra(CallActivity.EXTRA_BITRATE_GOVERNOR, bitrateGovernor);
+      intent.putExtra(CallActivity.EXTRA_SIMULCAST_LAYERS, simulcastLayers);
       intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
       intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
       intent.putExtra(CallActivity.EXTRA_CAPTURETOTEXTURE_ENABLED, captureToTexture);
@@ -490,6 +538,11 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
       intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
       intent.putExtra(CallActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
+      intent.putExtra(CallActivity.EXTRA_ENABLE_METRICS_JOURNAL, metricsJournalEnabled);
+      intent.putExtra(CallActivity.EXTRA_FRAMED_DIRECT_SIGNALING, framedDirectSignaling);
+      intent.putExtra(CallActivity.EXTRA_BATCH_ICE_CANDIDATES, batchIceCandidates);
+      intent.putExtra(CallActivity.EXTRA_WARM_START, warmStart);
+      intent.putExtra(CallActivity.EXTRA_DIRECT_CALL_HUB, directCallHub);
       intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
       intent.putExtra(CallActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, useLegacyAudioDevice);
@@ -529,6 +582,54 @@ public class ConnectActivity extends Activity {
               getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
           intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, videoOutHeight);
         }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FORMAT)) {
+          String videoOutFormat =
+              getIntent().getStringExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FORMAT);
+          intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FORMAT, videoOutFormat);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB)) {
+          int videoOutMaxMb =
+              getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB, 0);
+          intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_MB, videoOutMaxMb);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES)) {
+          int videoOutMaxFiles =
+              getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES, 0);
+          intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_MAX_FILES, videoOutMaxFiles);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_SEGMENT_SEC)) {
+          int audioSegmentSec =
+              getIntent().getIntExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_SEGMENT_SEC, 0);
+          intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_SEGMENT_SEC, audioSegmentSec);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_MAX_MB)) {
+          int audioMaxMb = getIntent().getIntExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_MAX_MB, 0);
+          intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_MAX_MB, audioMaxMb);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_DATA_CHANNELS)) {
+          String dataChannels = getIntent().getStringExtra(CallActivity.EXTRA_DATA_CHANNELS);
+          intent.putExtra(CallActivity.EXTRA_DATA_CHANNELS, dataChannels);
+        }
+
+        if (getIntent().hasExtra(CallActivity.EXTRA_DATA_TRANSFER_BENCHMARK_KB)) {
+          int benchmarkKb =
+              getIntent().getIntExtra(CallActivity.EXTRA_DATA_TRANSFER_BENCHMARK_KB, 0);
+          intent.putExtra(CallActivity.EXTRA_DATA_TRANSFER_BENCHMARK_KB, benchmarkKb);
+        }
+      }
+
+      if (directCallHub && DirectRTCClient.IP_PATTERN.matcher(roomId).matches()) {
+        // Listens for peers on the address of the room ID, with the same extras.
+        intent.setClass(this, DirectCallHubActivity.class);
+      } else if (warmStart) {
+        // Builds the factory while CallActivity starts and connects to the room.
+        CallActivity.prewarmPeerConnectionFactory(getApplicationContext(), intent);
       }
 
       startActivityForResult(intent, CONNECTION_REQUEST);
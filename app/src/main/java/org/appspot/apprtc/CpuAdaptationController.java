@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+/**
+ * Closed-loop capture degradation driven by CpuMonitor reports. The capture format walks down a
+ * ladder of lower frame rates and resolutions while the device stays under stress, i.e. the CPU
+ * is overused or the battery runs hot, and back up one step at a time once there is headroom
+ * again. Headroom means a CPU well below the overuse threshold, a cool battery that is charging
+ * or not low, sustained for longer than the stress needed to step down. Stepping back down soon
+ * after stepping up doubles the headroom needed for the next step up, so the format does not
+ * oscillate around the capacity of the device.
+ *
+ * <p>Every decision is logged. Not thread safe.
+ */
+class CpuAdaptationController {
+  private static final String TAG = "CpuAdaptationController";
+  // Percentages of the base resolution and frame rate, least degraded first.
+  private static final int[][] LEVELS = {
+      {100, 100}, {100, 67}, {75, 67}, {75, 50}, {50, 50}, {50, 34}, {25, 34}};
+  private static final int MIN_FRAMERATE = 5;
+  // Consecutive reports, one every CpuMonitor sample period, needed to change level. Stepping
+  // down waits for the CpuMonitor moving average to cover only samples taken after the previous
+  // step.
+  private static final int STRESS_REPORTS = 5;
+  private static final int HEADROOM_REPORTS = 10;
+  private static final int MAX_HEADROOM_REPORTS = 8 * HEADROOM_REPORTS;
+  // Headroom needs the average usage at the current frequency below this percentage.
+  private static final int HEADROOM_CPU_PERCENT = 50;
+  // Battery temperatures in tenths of a degree Celsius.
+  private static final int HOT_BATTERY_TEMPERATURE = 450;
+  private static final int WARM_BATTERY_TEMPERATURE = 400;
+  private static final int LOW_BATTERY_LEVEL = 15;
+
+  private int baseWidth;
+  private int baseHeight;
+  private int baseFramerate;
+  private int level;
+  private int stressReports;
+  private int headroomReports;
+  private int headroomReportsNeeded = HEADROOM_REPORTS;
+  // True if the last level change was a step up.
+  private boolean steppedUp;
+
+  CpuAdaptationController(int width, int height, int framerate) {
+    setBaseFormat(width, height, framerate);
+  }
+
+  /** Sets the undegraded capture format, e.g. after a manual format change, and resets. */
+  void setBaseFormat(int width, int height, int framerate) {
+    baseWidth = width;
+    baseHeight = height;
+    baseFramerate = framerate;
+    level = 0;
+    stressReports = 0;
+    headroomReports = 0;
+    headroomReportsNeeded = HEADROOM_REPORTS;
+    steppedUp = false;
+  }
+
+  /**
+   * Updates the state with |report|. Returns true if the capture format has changed. A zero base
+   * format, i.e. stopped capture, is not adapted.
+   */
+  boolean onCpuReport(CpuMonitor.CpuReport report) {
+    if (baseWidth == 0 || baseHeight == 0 || baseFramerate == 0) {
+      return false;
+    }
+    final boolean hot = report.batteryTemperature >= HOT_BATTERY_TEMPERATURE;
+    if (report.overuse || hot) {
+      headroomReports = 0;
+      if (++stressReports < STRESS_REPORTS || level == LEVELS.length - 1) {
+        return false;
+      }
+      String reason = (report.overuse ? "CPU overuse. " : "battery hot. ") + describe(report);
+      if (steppedUp) {
+        headroomReportsNeeded = Math.min(2 * headroomReportsNeeded, MAX_HEADROOM_REPORTS);
+        reason += " Stepping up again needs " + headroomReportsNeeded + " reports of headroom.";
+      }
+      setLevel(level + 1, false, reason);
+      return true;
+    }
+    stressReports = 0;
+
+    final boolean headroom = report.averagePercent < HEADROOM_CPU_PERCENT
+        && report.batteryTemperature < WARM_BATTERY_TEMPERATURE
+        && (report.batteryCharging || report.batteryLevel < 0
+               || report.batteryLevel > LOW_BATTERY_LEVEL);
+    if (!headroom || level == 0) {
+      headroomReports = 0;
+      return false;
+    }
+    if (++headroomReports < headroomReportsNeeded) {
+      return false;
+    }
+    setLevel(level - 1, true, "headroom for " + headroomReports + " reports. " + describe(report));
+    return true;
+  }
+
+  /** Sets the undegraded capture format, e.g. chosen for the bandwidth, keeping the level. */
+  void updateBaseFormat(int width, int height, int framerate) {
+    baseWidth = width;
+    baseHeight = height;
+    baseFramerate = framerate;
+  }
+
+  int getBaseWidth() {
+    return baseWidth;
+  }
+
+  int getBaseHeight() {
+    return baseHeight;
+  }
+
+  int getBaseFramerate() {
+    return baseFramerate;
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  int getWidth() {
+    return baseWidth * LEVELS[level][0] / 100;
+  }
+
+  int getHeight() {
+    return baseHeight * LEVELS[level][0] / 100;
+  }
+
+  int getFramerate() {
+    return Math.max(
+        baseFramerate * LEVELS[level][1] / 100, Math.min(baseFramerate, MIN_FRAMERATE));
+  }
+
+  private void setLevel(int newLevel, boolean up, String reason) {
+    level = newLevel;
+    steppedUp = up;
+    stressReports = 0;
+    headroomReports = 0;
+    Log.d(TAG, "Stepping " + (up ? "up" : "down") + " to level " + level + ", " + getWidth() + "x"
+            + getHeight() + "@" + getFramerate() + ": " + reason);
+  }
+
+  private static String describe(CpuMonitor.CpuReport report) {
+    return "CPU " + report.averagePercent + "% at " + report.averageFrequencyPercent
+        + "% frequency, " + report.averageTotalPercent + "% of capacity. Battery "
+        + report.batteryLevel + "%" + (report.batteryCharging ? " charging" : "") + ", "
+        + report.batteryTemperature / 10.0 + "C.";
+  }
+}
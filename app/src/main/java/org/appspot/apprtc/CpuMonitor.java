@@ -19,13 +19,15 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -42,6 +44,14 @@ import javax.annotation.Nullable;
  * calls, and (3) getCpuAvgAll() returns the use over all SAMPLE_SAVE_NUMBER
  * calls.
  *
+ * <p>Each sample also attributes the CPU use to cores, from the per-core lines
+ * of /proc/stat, and to the threads of this process, from
+ * /proc/self/task/[tid]/stat, see {@link CpuReport}. The report also carries
+ * the overuse state and the battery level and temperature, the inputs of
+ * CpuAdaptationController. Only the busiest threads are read on every sample;
+ * all threads are listed and read every few samples. Apart from those scans,
+ * sampling does not allocate.
+ *
  * <p>CPUs in Android are often "offline", and while this of course means 0 Hz
  * as current frequency, in this state we cannot even get their nominal
  * frequency.  We therefore tread carefully, and allow any CPU to be missing.
@@ -81,8 +91,94 @@ class CpuMonitor {
 
   private static final int CPU_STAT_SAMPLE_PERIOD_MS = 2000;
   private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
+  // Enough for the cpu lines of /proc/stat, which come first.
+  private static final int PROC_READ_BUFFER_BYTES = 4096;
+  private static final byte[] CPU_LINE_PREFIX = {'c', 'p', 'u', ' '};
+  private static final byte[] CORE_LINE_PREFIX = {'c', 'p', 'u'};
+  private static final String TASK_DIR = "/proc/self/task";
+  // All threads are listed and read every few samples. In between, only the busiest threads of
+  // the last scan are read, through files kept open; the files of the others are closed.
+  private static final int THREAD_SCAN_PERIOD_SAMPLES = 5;
+  private static final int MAX_OPEN_THREAD_FILES = 16;
+  static final int TOP_THREAD_COUNT = 5;
+  // The battery state changes slowly, and querying the sticky broadcast goes through binder.
+  private static final int BATTERY_PERIOD_SAMPLES = 15;
+  // The CPU is overused while the average usage at the current frequency is at or above
+  // CPU_OVERUSE_PERCENT, until it drops below CPU_UNDERUSE_PERCENT.
+  private static final int CPU_OVERUSE_PERCENT = 85;
+  private static final int CPU_UNDERUSE_PERCENT = 70;
+
+  /** CPU use of a thread of this process over one sample. */
+  static class ThreadUsage {
+    int tid;
+    String name;
+    // Percentage of the capacity of all cores, like the total usage.
+    int percent;
+  }
+
+  /**
+   * Breakdown of the CPU use over one sample. Two reports are filled alternately, so a report
+   * stays unchanged for one more sample period after the next one is delivered. Read it when it
+   * is delivered and do not keep it; keep a copy() instead, e.g. to read it on another thread.
+   */
+  static class CpuReport {
+    long timeMs;
+    // User and system usage of all cores, in percent.
+    int totalPercent;
+    // Usage of each core in percent, or -1 if the core was offline.
+    final int[] corePercents;
+    // The busiest threads of this process, busiest first. Only the first topThreadCount are set.
+    final ThreadUsage[] topThreads;
+    int topThreadCount;
+    // Moving averages of the usage at the current frequency, of the usage relative to the
+    // maximum frequency and of the frequency relative to the maximum, in percent.
+    int averagePercent;
+    int averageTotalPercent;
+    int averageFrequencyPercent;
+    boolean overuse;
+    // Battery level in percent, temperature in tenths of a degree Celsius, or -1 if unknown.
+    int batteryLevel;
+    int batteryTemperature;
+    boolean batteryCharging;
+
+    CpuReport(int cores) {
+      corePercents = new int[cores];
+      topThreads = new ThreadUsage[TOP_THREAD_COUNT];
+      for (int i = 0; i < TOP_THREAD_COUNT; i++) {
+        topThreads[i] = new ThreadUsage();
+      }
+    }
+
+    /** Returns a copy that the monitor does not refill. */
+    CpuReport copy() {
+      final CpuReport copy = new CpuReport(corePercents.length);
+      copy.timeMs = timeMs;
+      copy.totalPercent = totalPercent;
+      System.arraycopy(corePercents, 0, copy.corePercents, 0, corePercents.length);
+      for (int i = 0; i < topThreadCount; i++) {
+        copy.topThreads[i].tid = topThreads[i].tid;
+        copy.topThreads[i].name = topThreads[i].name;
+        copy.topThreads[i].percent = topThreads[i].percent;
+      }
+      copy.topThreadCount = topThreadCount;
+      copy.averagePercent = averagePercent;
+      copy.averageTotalPercent = averageTotalPercent;
+      copy.averageFrequencyPercent = averageFrequencyPercent;
+      copy.overuse = overuse;
+      copy.batteryLevel = batteryLevel;
+      copy.batteryTemperature = batteryTemperature;
+      copy.batteryCharging = batteryCharging;
+      return copy;
+    }
+  }
+
+  /** Receives a report after every successful sample, on the monitor thread. */
+  interface ReportListener {
+    void onCpuReport(CpuReport report);
+  }
 
   private final Context appContext;
+  private final IntentFilter batteryChangedFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
   // User CPU usage at current frequency.
   private final MovingAverage userCpuUsage;
   // System CPU usage at current frequency.
@@ -100,21 +196,60 @@ class CpuMonitor {
   private int actualCpusPresent;
   private boolean initialized;
   private boolean cpuOveruse;
-  private String[] maxPath;
-  private String[] curPath;
+  private int batteryLevel = -1;
+  private int batteryTemperature = -1;
+  private boolean batteryCharging;
+  // Sampled files are kept open and read without allocating, see ProcReader.
+  private final ProcReader procReader = new ProcReader(PROC_READ_BUFFER_BYTES);
+  private ProcReader.Handle procStatFile;
+  private ProcReader.Handle[] maxFreqFiles;
+  private ProcReader.Handle[] curFreqFiles;
   private double[] curFreqScales;
-  @Nullable
+  // The two instances are swapped after every successful sample.
+  private ProcStat procStat;
   private ProcStat lastProcStat;
+  private final List<ThreadStat> threadStats = new ArrayList<>();
+  // Busiest threads of a scan or a sample, busiest first.
+  private final ThreadStat[] openThreadStats = new ThreadStat[MAX_OPEN_THREAD_FILES];
+  private final ThreadStat[] topThreadStats = new ThreadStat[TOP_THREAD_COUNT];
+  private int sampleCount;
+  // The report to fill next and the latest one; swapped after every successful sample.
+  private CpuReport nextReport;
+  @Nullable
+  private CpuReport lastReport;
+  @Nullable
+  private ReportListener reportListener;
 
   private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
+    long userTime;
+    long systemTime;
+    long idleTime;
+    // Busy and total time of each core, or -1 if the core is offline.
+    final long[] coreBusyTime;
+    final long[] coreTotalTime;
+
+    ProcStat(int cores) {
+      coreBusyTime = new long[cores];
+      coreTotalTime = new long[cores];
+    }
+  }
 
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
+  private static class ThreadStat {
+    final int tid;
+    final String name;
+    final ProcReader.Handle file;
+    // utime + stime when last read and the sample count then, or -1.
+    long lastTime = -1;
+    int lastSample;
+    // Average CPU time per sample since the previous read.
+    long diffTime;
+    // Whether the thread is read on every sample, with its file kept open.
+    boolean open;
+
+    ThreadStat(int tid, String name, ProcReader.Handle file) {
+      this.tid = tid;
+      this.name = name;
+      this.file = file;
     }
   }
 
@@ -186,6 +321,7 @@ class CpuMonitor {
       executor.shutdownNow();
       executor = null;
     }
+    closeFiles();
   }
 
   public void resume() {
@@ -222,6 +358,20 @@ class CpuMonitor {
     return doubleToPercent(frequencyScale.getAverage());
   }
 
+  /** Returns the breakdown of the latest sample, or null if there is none yet. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  @Nullable
+  public synchronized CpuReport getLatestReport() {
+    return lastReport;
+  }
+
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void setReportListener(@Nullable ReportListener reportListener) {
+    this.reportListener = reportListener;
+  }
+
   private void scheduleCpuUtilizationTask() {
     if (executor != null) {
       executor.shutdownNow();
@@ -240,6 +390,15 @@ class CpuMonitor {
 
   private void cpuUtilizationTask() {
     boolean cpuMonitorAvailable = sampleCpuUtilization();
+    final CpuReport report;
+    final ReportListener listener;
+    synchronized (this) {
+      report = lastReport;
+      listener = reportListener;
+    }
+    if (cpuMonitorAvailable && listener != null) {
+      listener.onCpuReport(report);
+    }
     if (cpuMonitorAvailable
         && SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
       lastStatLogTimeMs = SystemClock.elapsedRealtime();
@@ -265,22 +424,36 @@ class CpuMonitor {
     }
 
     cpuFreqMax = new long[cpusPresent];
-    maxPath = new String[cpusPresent];
-    curPath = new String[cpusPresent];
+    maxFreqFiles = new ProcReader.Handle[cpusPresent];
+    curFreqFiles = new ProcReader.Handle[cpusPresent];
     curFreqScales = new double[cpusPresent];
     for (int i = 0; i < cpusPresent; i++) {
       cpuFreqMax[i] = 0; // Frequency "not yet determined".
       curFreqScales[i] = 0;
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
+      maxFreqFiles[i] =
+          procReader.handle("/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq");
+      curFreqFiles[i] =
+          procReader.handle("/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq");
     }
+    procStatFile = procReader.handle("/proc/stat");
 
-    lastProcStat = new ProcStat(0, 0, 0);
+    procStat = new ProcStat(cpusPresent);
+    lastProcStat = new ProcStat(cpusPresent);
+    Arrays.fill(lastProcStat.coreTotalTime, -1);
+    nextReport = new CpuReport(cpusPresent);
+    lastReport = null;
     resetStat();
 
     initialized = true;
   }
 
+  private synchronized void closeFiles() {
+    procReader.closeAll();
+    for (int i = 0; i < threadStats.size(); i++) {
+      threadStats.get(i).lastTime = -1;
+    }
+  }
+
   private synchronized void resetStat() {
     userCpuUsage.reset();
     systemCpuUsage.reset();
@@ -289,18 +462,21 @@ class CpuMonitor {
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
   }
 
-  private int getBatteryLevel() {
-    // Use sticky broadcast with null receiver to read battery level once only.
-    Intent intent = appContext.registerReceiver(
-        null /* receiver */, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+  private void updateBatteryState() {
+    // Use sticky broadcast with null receiver to read battery state once only.
+    Intent intent = appContext.registerReceiver(null /* receiver */, batteryChangedFilter);
+    if (intent == null) {
+      return;
+    }
 
-    int batteryLevel = 0;
+    batteryLevel = -1;
     int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
     if (batteryScale > 0) {
       batteryLevel =
           (int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
     }
-    return batteryLevel;
+    batteryTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+    batteryCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
   }
 
   /**
@@ -334,18 +510,18 @@ class CpuMonitor {
       curFreqScales[i] = 0;
       if (cpuFreqMax[i] == 0) {
         // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
+        long cpufreqMax = readFreqFromFile(maxFreqFiles[i]);
         if (cpufreqMax > 0) {
           Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
           lastSeenMaxFreq = cpufreqMax;
           cpuFreqMax[i] = cpufreqMax;
-          maxPath[i] = null; // Kill path to free its memory.
+          procReader.close(maxFreqFiles[i]); // Not read again.
         }
       } else {
         lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
       }
 
-      long cpuFreqCur = readFreqFromFile(curPath[i]);
+      long cpuFreqCur = readFreqFromFile(curFreqFiles[i]);
       if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
         // No current frequency information for this CPU core - ignore it.
         continue;
@@ -384,8 +560,7 @@ class CpuMonitor {
       currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
     }
 
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
+    if (!readProcStat(procStat)) {
       return false;
     }
 
@@ -411,8 +586,27 @@ class CpuMonitor {
         (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
     totalCpuUsage.addValue(currentTotalCpuUsage);
 
+    final int averagePercent =
+        doubleToPercent(userCpuUsage.getAverage() + systemCpuUsage.getAverage());
+    if (averagePercent >= CPU_OVERUSE_PERCENT) {
+      cpuOveruse = true;
+    } else if (averagePercent < CPU_UNDERUSE_PERCENT) {
+      cpuOveruse = false;
+    }
+
+    if (sampleCount % BATTERY_PERIOD_SAMPLES == 0) {
+      updateBatteryState();
+    }
+    sampleThreads();
+    final CpuReport report = nextReport;
+    fillReport(report, diffUserTime + diffSystemTime, allTime);
+    nextReport = lastReport == null ? new CpuReport(cpusPresent) : lastReport;
+    lastReport = report;
+
     // Save new measurements for next round's deltas.
+    final ProcStat previousProcStat = lastProcStat;
     lastProcStat = procStat;
+    procStat = previousProcStat;
 
     return true;
   }
@@ -445,7 +639,16 @@ class CpuMonitor {
     for (int i = 0; i < cpusPresent; i++) {
       stat.append(doubleToPercent(curFreqScales[i])).append(" ");
     }
-    stat.append("). Battery: ").append(getBatteryLevel());
+    stat.append(")");
+    if (lastReport != null) {
+      stat.append(". Core usage: ").append(Arrays.toString(lastReport.corePercents));
+      stat.append(". Threads:");
+      for (int i = 0; i < lastReport.topThreadCount; i++) {
+        final ThreadUsage thread = lastReport.topThreads[i];
+        stat.append(" ").append(thread.name).append("=").append(thread.percent);
+      }
+    }
+    stat.append(". Battery: ").append(batteryLevel);
     if (cpuOveruse) {
       stat.append(". Overuse.");
     }
@@ -453,72 +656,230 @@ class CpuMonitor {
   }
 
   /**
-   * Read a single integer value from the named file.  Return the read value
+   * Read a single integer value from the file.  Return the read value
    * or if an error occurs return 0.
    */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
-    try (FileInputStream stream = new FileInputStream(fileName);
-         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
-         BufferedReader reader = new BufferedReader(streamReader)) {
-      String line = reader.readLine();
-      number = parseLong(line);
-    } catch (FileNotFoundException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is not present. This is not an error.
-    } catch (IOException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is empty. This is not an error.
+  private long readFreqFromFile(ProcReader.Handle file) {
+    // A missing or empty file means that the CPU core is off. This is not an error.
+    if (!procReader.read(file)) {
+      return 0;
     }
-    return number;
+    return Math.max(procReader.nextLong(), 0);
   }
 
-  private static long parseLong(String value) {
-    long number = 0;
-    try {
-      number = Long.parseLong(value);
-    } catch (NumberFormatException e) {
-      Log.e(TAG, "parseLong error.", e);
+  /*
+   * Read the current utilization of all CPUs using the cumulative first line
+   * of /proc/stat into |procStat|.
+   */
+  private boolean readProcStat(ProcStat procStat) {
+    if (!procReader.read(procStatFile)) {
+      Log.e(TAG, "Cannot open /proc/stat for reading");
+      return false;
     }
-    return number;
+    // line should contain something like this:
+    // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+    //       user    nice  system     idle   iowait  irq   softirq
+    if (!procReader.startsWith(CPU_LINE_PREFIX)) {
+      Log.e(TAG, "Problems parsing /proc/stat");
+      return false;
+    }
+    procReader.skipToken();
+    final long user = procReader.nextLong();
+    final long nice = procReader.nextLong();
+    final long system = procReader.nextLong();
+    final long idle = procReader.nextLong();
+    if (user < 0 || nice < 0 || system < 0 || idle < 0) {
+      Log.e(TAG, "Problems parsing /proc/stat");
+      return false;
+    }
+    // Older kernels do not report the remaining fields.
+    final long iowait = Math.max(procReader.nextLong(), 0);
+    final long irq = Math.max(procReader.nextLong(), 0);
+    final long softirq = Math.max(procReader.nextLong(), 0);
+    procStat.userTime = user + nice + iowait;
+    procStat.systemTime = system + irq + softirq;
+    procStat.idleTime = idle;
+
+    // Per-core lines follow, e.g. "cpu3 ...". Offline cores are not listed.
+    Arrays.fill(procStat.coreTotalTime, -1);
+    while (procReader.nextLine() && procReader.startsWith(CORE_LINE_PREFIX)) {
+      procReader.skip(CORE_LINE_PREFIX.length);
+      final long core = procReader.nextLong();
+      if (core < 0 || core >= cpusPresent) {
+        continue;
+      }
+      long busy = 0;
+      long total = 0;
+      for (int field = 0; field < 7; field++) {
+        final long time = Math.max(procReader.nextLong(), 0);
+        total += time;
+        if (field != 3) {
+          // All but idle.
+          busy += time;
+        }
+      }
+      procStat.coreBusyTime[(int) core] = busy;
+      procStat.coreTotalTime[(int) core] = total;
+    }
+    return true;
   }
 
-  /*
-   * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
+  /**
+   * Updates the CPU time of the threads of this process since the previous sample. Every
+   * THREAD_SCAN_PERIOD_SAMPLES samples, all threads are listed and read, and the files of the
+   * busiest MAX_OPEN_THREAD_FILES threads are kept open; the other threads count as idle until
+   * the next scan.
    */
-  @SuppressWarnings("StringSplitter")
-  private @Nullable ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
-    try (FileInputStream stream = new FileInputStream("/proc/stat");
-         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
-         BufferedReader reader = new BufferedReader(streamReader)) {
-      // line should contain something like this:
-      // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-      //       user    nice  system     idle   iowait  irq   softirq
-      String line = reader.readLine();
-      String[] lines = line.split("\\s+");
-      int length = lines.length;
-      if (length >= 5) {
-        userTime = parseLong(lines[1]); // user
-        userTime += parseLong(lines[2]); // nice
-        systemTime = parseLong(lines[3]); // system
-        idleTime = parseLong(lines[4]); // idle
+  private void sampleThreads() {
+    final boolean scan = sampleCount++ % THREAD_SCAN_PERIOD_SAMPLES == 0;
+    if (scan) {
+      listThreads();
+    }
+    for (int i = threadStats.size() - 1; i >= 0; i--) {
+      final ThreadStat threadStat = threadStats.get(i);
+      if (!scan && !threadStat.open) {
+        threadStat.diffTime = 0;
+        continue;
       }
-      if (length >= 8) {
-        userTime += parseLong(lines[5]); // iowait
-        systemTime += parseLong(lines[6]); // irq
-        systemTime += parseLong(lines[7]); // softirq
+      final long time = readThreadTime(threadStat.file);
+      if (time < 0) {
+        // The thread has exited.
+        procReader.remove(threadStat.file);
+        threadStats.remove(i);
+        continue;
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
-    } catch (Exception e) {
-      Log.e(TAG, "Problems parsing /proc/stat", e);
-      return null;
+      // Threads read only by scans get their average over the samples since the last scan.
+      threadStat.diffTime = threadStat.lastTime < 0
+          ? 0
+          : (time - threadStat.lastTime) / (sampleCount - threadStat.lastSample);
+      threadStat.lastTime = time;
+      threadStat.lastSample = sampleCount;
+    }
+    if (scan) {
+      final int openCount = selectBusiest(openThreadStats, false);
+      for (int i = 0; i < threadStats.size(); i++) {
+        final ThreadStat threadStat = threadStats.get(i);
+        threadStat.open = false;
+        for (int j = 0; j < openCount; j++) {
+          if (openThreadStats[j] == threadStat) {
+            threadStat.open = true;
+            break;
+          }
+        }
+        if (!threadStat.open) {
+          procReader.close(threadStat.file);
+        }
+      }
+      Arrays.fill(openThreadStats, null);
+    }
+  }
+
+  // Adds threads started since the last listing.
+  private void listThreads() {
+    final String[] tids = new File(TASK_DIR).list();
+    if (tids == null) {
+      return;
+    }
+    for (String tidString : tids) {
+      final int tid;
+      try {
+        tid = Integer.parseInt(tidString);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (findThreadStat(tid) != null) {
+        continue;
+      }
+      final ProcReader.Handle file = procReader.handle(TASK_DIR + "/" + tid + "/stat");
+      // The name is the second field, in parentheses: "1234 (HwBinder:1234_1) S ...".
+      final String name = procReader.read(file) ? procReader.stringBetween((byte) '(', (byte) ')')
+                                                 : null;
+      if (name == null) {
+        procReader.remove(file);
+        continue;
+      }
+      threadStats.add(new ThreadStat(tid, name, file));
+    }
+  }
+
+  @Nullable
+  private ThreadStat findThreadStat(int tid) {
+    for (int i = 0; i < threadStats.size(); i++) {
+      if (threadStats.get(i).tid == tid) {
+        return threadStats.get(i);
+      }
+    }
+    return null;
+  }
+
+  // Returns utime + stime of the thread in clock ticks, or -1 if it cannot be read.
+  private long readThreadTime(ProcReader.Handle file) {
+    if (!procReader.read(file) || !procReader.skipPastLast((byte) ')')) {
+      return -1;
+    }
+    // Skip fields 3 (state) to 13 (cmajflt), some of which may be negative.
+    for (int field = 3; field <= 13; field++) {
+      procReader.skipToken();
+    }
+    final long utime = procReader.nextLong();
+    final long stime = procReader.nextLong();
+    return utime < 0 || stime < 0 ? -1 : utime + stime;
+  }
+
+  /**
+   * Fills |top| with the threads with the most CPU time in the last sample, busiest first, and
+   * returns their number. Idle threads are only included if |busyOnly| is false.
+   */
+  private int selectBusiest(ThreadStat[] top, boolean busyOnly) {
+    int topCount = 0;
+    for (int j = 0; j < threadStats.size(); j++) {
+      final ThreadStat threadStat = threadStats.get(j);
+      if (busyOnly && threadStat.diffTime <= 0) {
+        continue;
+      }
+      int i = topCount < top.length ? topCount++ : top.length;
+      while (i > 0 && top[i - 1].diffTime < threadStat.diffTime) {
+        if (i < top.length) {
+          top[i] = top[i - 1];
+        }
+        i--;
+      }
+      if (i < top.length) {
+        top[i] = threadStat;
+      }
+    }
+    return topCount;
+  }
+
+  private void fillReport(CpuReport report, long busyTime, long allTime) {
+    for (int i = 0; i < cpusPresent; i++) {
+      final long diffTotal = procStat.coreTotalTime[i] - lastProcStat.coreTotalTime[i];
+      if (procStat.coreTotalTime[i] < 0 || lastProcStat.coreTotalTime[i] < 0 || diffTotal <= 0) {
+        report.corePercents[i] = -1;
+      } else {
+        report.corePercents[i] = doubleToPercent(
+            (procStat.coreBusyTime[i] - lastProcStat.coreBusyTime[i]) / (double) diffTotal);
+      }
+    }
+
+    report.topThreadCount = selectBusiest(topThreadStats, true);
+    for (int i = 0; i < report.topThreadCount; i++) {
+      final ThreadUsage thread = report.topThreads[i];
+      thread.tid = topThreadStats[i].tid;
+      thread.name = topThreadStats[i].name;
+      thread.percent = doubleToPercent(topThreadStats[i].diffTime / (double) allTime);
     }
-    return new ProcStat(userTime, systemTime, idleTime);
+    Arrays.fill(topThreadStats, null);
+
+    report.timeMs = SystemClock.elapsedRealtime();
+    report.totalPercent = doubleToPercent(busyTime / (double) allTime);
+    report.averagePercent =
+        doubleToPercent(userCpuUsage.getAverage() + systemCpuUsage.getAverage());
+    report.averageTotalPercent = doubleToPercent(totalCpuUsage.getAverage());
+    report.averageFrequencyPercent = doubleToPercent(frequencyScale.getAverage());
+    report.overuse = cpuOveruse;
+    report.batteryLevel = batteryLevel;
+    report.batteryTemperature = batteryTemperature;
+    report.batteryCharging = batteryCharging;
   }
 }
@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
+import org.webrtc.DataChannel;
+
+/**
+ * Sends messages over several data channels, e.g. a reliable control lane and a lossy telemetry
+ * lane, and counts what each of them sends and receives.
+ *
+ * <p>SCTP sends the messages buffered by all channels of a peer connection in about the order they
+ * were queued, so a control message behind a megabyte of telemetry waits for all of it. Channels
+ * of priority 0 therefore hand their messages to the channel right away, while channels of lower
+ * priority, i.e. larger numbers, only send while all channels together buffer less than
+ * HIGH_WATERMARK_BYTES. Otherwise their messages wait, and are sent in priority order once
+ * onBufferedAmountChange reports LOW_WATERMARK_BYTES or less. A lossy channel below priority 0
+ * that has more than MAX_QUEUED_MESSAGES waiting drops its oldest, as only fresh samples matter
+ * for telemetry. Reliable channels and channels of priority 0 never drop messages.
+ *
+ * <p>The channel a DataChannelTransfer sends blobs over is added as the lane of the lowest
+ * priority. The transfer paces itself to its own, larger watermarks, but its buffered bytes count
+ * towards HIGH_WATERMARK_BYTES, so lanes below priority 0 wait in their queues instead of behind a
+ * blob in the SCTP buffers.
+ */
+class DataChannelScheduler {
+  private static final String TAG = "DataChannelScheduler";
+  static final long HIGH_WATERMARK_BYTES = 64 * 1024;
+  static final long LOW_WATERMARK_BYTES = 16 * 1024;
+  private static final int MAX_QUEUED_MESSAGES = 64;
+  // Messages up to this size are copied into pooled buffers.
+  private static final int POOLED_MESSAGE_BYTES = 2048;
+  private static final int MAX_POOLED_MESSAGES = 2 * MAX_QUEUED_MESSAGES;
+  static final int TRANSFER_LANE_PRIORITY = Integer.MAX_VALUE;
+
+  private class Lane implements DataChannel.Observer {
+    final String label;
+    final int priority;
+    // Whether the oldest queued messages are dropped once MAX_QUEUED_MESSAGES wait.
+    final boolean dropsOldest;
+    final DataChannel channel;
+    @Nullable final DataChannelTransfer.MessageConsumer consumer;
+    // Observer of a channel the scheduler does not send on, which gets all its events.
+    @Nullable final DataChannel.Observer delegate;
+
+    // Only used on the executor.
+    final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    final ArrayDeque<Boolean> queueBinary = new ArrayDeque<>();
+
+    // Each written on one thread and read by appendStats().
+    volatile long sentMessages;
+    volatile long sentBytes;
+    volatile long receivedMessages;
+    volatile long receivedBytes;
+    volatile int droppedMessages;
+    volatile int queuedMessages;
+    volatile long bufferedAmount;
+
+    Lane(String label, int priority, boolean reliable, DataChannel channel,
+        @Nullable DataChannelTransfer.MessageConsumer consumer,
+        @Nullable DataChannel.Observer delegate) {
+      this.label = label;
+      this.priority = priority;
+      this.dropsOldest = priority > 0 && !reliable;
+      this.channel = channel;
+      this.consumer = consumer;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+      if (delegate != null) {
+        delegate.onBufferedAmountChange(previousAmount);
+      }
+      bufferedAmount = channel.bufferedAmount();
+      if (waitingForDrain && getBufferedAmount(lanes) <= LOW_WATERMARK_BYTES) {
+        waitingForDrain = false;
+        postDrain();
+      }
+    }
+
+    @Override
+    public void onStateChange() {
+      if (delegate != null) {
+        delegate.onStateChange();
+        return;
+      }
+      Log.d(TAG, "Data channel state changed: " + label + ": " + channel.state());
+      if (channel.state() == DataChannel.State.OPEN) {
+        postDrain();
+      }
+    }
+
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+      receive(buffer);
+    }
+
+    // Called on the data channel observer thread.
+    void receive(DataChannel.Buffer buffer) {
+      receivedMessages++;
+      receivedBytes += buffer.data.remaining();
+      if (delegate != null) {
+        delegate.onMessage(buffer);
+      } else if (consumer != null) {
+        consumer.onMessage(label, buffer.data, buffer.binary);
+      }
+    }
+  }
+
+  private final ExecutorService executor;
+  private final ByteBufferPool pool = new ByteBufferPool(POOLED_MESSAGE_BYTES, MAX_POOLED_MESSAGES);
+  // Sorted by priority. Replaced on the executor, read on any thread.
+  private volatile Lane[] lanes = new Lane[0];
+  // Set on the executor when a lane waits for the channels to drain.
+  private volatile boolean waitingForDrain;
+
+  DataChannelScheduler(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Schedules the messages sent over |channel| with |priority|, 0 being the highest, and
+   * receives on it. |reliable| tells whether the channel retransmits without limits. Called on
+   * the executor.
+   */
+  void addLane(String label, int priority, boolean reliable, DataChannel channel,
+      @Nullable DataChannelTransfer.MessageConsumer consumer) {
+    insertLane(new Lane(label, priority, reliable, channel, consumer, null /* delegate */));
+  }
+
+  /**
+   * Adds |channel|, which |transfer| sends blobs over, as the lane of the lowest priority and
+   * passes the events of the channel on to |transfer|. The scheduler takes over the channel and
+   * disposes it in release(). Called on the executor.
+   */
+  void addTransferLane(DataChannel channel, DataChannelTransfer transfer) {
+    insertLane(new Lane(channel.label(), TRANSFER_LANE_PRIORITY, true /* reliable */, channel,
+        null /* consumer */, transfer));
+  }
+
+  private void insertLane(Lane lane) {
+    lane.channel.registerObserver(lane);
+    final Lane[] current = lanes;
+    int index = 0;
+    while (index < current.length && current[index].priority <= lane.priority) {
+      index++;
+    }
+    final Lane[] updated = new Lane[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, index);
+    updated[index] = lane;
+    System.arraycopy(current, index, updated, index + 1, current.length - index);
+    lanes = updated;
+  }
+
+  /**
+   * Returns an observer counting the messages of |channel|, opened by the remote peer, into the
+   * lane with the same label, or null if there is none or it is a transfer lane. Called on any
+   * thread.
+   */
+  @Nullable
+  DataChannel.Observer createReceiveObserver(DataChannel channel) {
+    final Lane lane = findLane(channel.label());
+    if (lane == null || lane.delegate != null) {
+      return null;
+    }
+    return new DataChannel.Observer() {
+      @Override
+      public void onBufferedAmountChange(long previousAmount) {}
+
+      @Override
+      public void onStateChange() {}
+
+      @Override
+      public void onMessage(DataChannel.Buffer buffer) {
+        lane.receive(buffer);
+      }
+    };
+  }
+
+  /**
+   * Copies the remaining bytes of |data| and queues them to be sent over the lane named |label|.
+   * |data| can be reused when this returns. Called on any thread.
+   */
+  void send(final String label, ByteBuffer data, final boolean binary) {
+    final ByteBuffer message = pool.copy(data);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final Lane lane = findLane(label);
+        if (lane == null) {
+          Log.e(TAG, "No data channel " + label);
+          pool.release(message);
+          return;
+        }
+        lane.queue.add(message);
+        lane.queueBinary.add(binary);
+        if (lane.dropsOldest && lane.queue.size() > MAX_QUEUED_MESSAGES) {
+          pool.release(lane.queue.poll());
+          lane.queueBinary.poll();
+          lane.droppedMessages++;
+        }
+        lane.queuedMessages = lane.queue.size();
+        drain();
+      }
+    });
+  }
+
+  /** Closes the channels and drops their queued messages. Called on the executor. */
+  void release() {
+    for (Lane lane : lanes) {
+      lane.channel.unregisterObserver();
+      lane.channel.dispose();
+      lane.queue.clear();
+      lane.queueBinary.clear();
+    }
+    lanes = new Lane[0];
+  }
+
+  /** Appends a line of counts per lane to |stats|. Called on any thread. */
+  void appendStats(StringBuilder stats) {
+    for (Lane lane : lanes) {
+      stats.append("DC ")
+          .append(lane.label)
+          .append(" p")
+          .append(lane.priority)
+          .append(": tx ")
+          .append(lane.sentMessages)
+          .append("/")
+          .append(lane.sentBytes / 1024)
+          .append("kB, rx ")
+          .append(lane.receivedMessages)
+          .append("/")
+          .append(lane.receivedBytes / 1024)
+          .append("kB, q ")
+          .append(lane.queuedMessages)
+          .append(", drop ")
+          .append(lane.droppedMessages)
+          .append(", buf ")
+          .append(lane.bufferedAmount)
+          .append("\n");
+    }
+  }
+
+  @Nullable
+  private Lane findLane(String label) {
+    for (Lane lane : lanes) {
+      if (lane.label.equals(label)) {
+        return lane;
+      }
+    }
+    return null;
+  }
+
+  private void postDrain() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  // Sends the queued messages in priority order, holding back lanes below priority 0 while the
+  // channels buffer HIGH_WATERMARK_BYTES or more.
+  private void drain() {
+    final Lane[] lanes = this.lanes;
+    long buffered = updateBufferedAmount(lanes);
+    for (Lane lane : lanes) {
+      if (lane.channel.state() != DataChannel.State.OPEN) {
+        continue;
+      }
+      while (!lane.queue.isEmpty()) {
+        if (lane.priority > 0 && buffered >= HIGH_WATERMARK_BYTES) {
+          waitingForDrain = true;
+          // The channels may have drained before the flag was set.
+          buffered = updateBufferedAmount(lanes);
+          if (buffered >= HIGH_WATERMARK_BYTES) {
+            return;
+          }
+          waitingForDrain = false;
+        }
+        final ByteBuffer message = lane.queue.poll();
+        final boolean binary = lane.queueBinary.poll();
+        final int bytes = message.remaining();
+        if (lane.channel.send(new DataChannel.Buffer(message, binary))) {
+          lane.sentMessages++;
+          lane.sentBytes += bytes;
+          buffered += bytes;
+        } else {
+          lane.droppedMessages++;
+        }
+        pool.release(message);
+        lane.queuedMessages = lane.queue.size();
+      }
+    }
+  }
+
+  // Returns the bytes buffered by |lanes| as last seen.
+  private static long getBufferedAmount(Lane[] lanes) {
+    long buffered = 0;
+    for (Lane lane : lanes) {
+      buffered += lane.bufferedAmount;
+    }
+    return buffered;
+  }
+
+  // Reads and returns the bytes buffered by |lanes|. Called on the executor.
+  private static long updateBufferedAmount(Lane[] lanes) {
+    for (Lane lane : lanes) {
+      lane.bufferedAmount = lane.channel.bufferedAmount();
+    }
+    return getBufferedAmount(lanes);
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
+import org.webrtc.DataChannel;
+
+/**
+ * Sends and receives blobs of any size over a DataChannel. A blob is split into binary chunks
+ * of at most MAX_MESSAGE_BYTES, the largest message every SCTP implementation accepts, each with
+ * a header of the transfer id, the blob size and the chunk index.
+ *
+ * <p>Sending runs on the executor and pauses once the channel buffers HIGH_WATERMARK_BYTES,
+ * resuming when onBufferedAmountChange reports LOW_WATERMARK_BYTES or less, so a large blob never
+ * makes the channel buffer more than about a megabyte. Received chunks are copied straight into a
+ * buffer of the blob size at their offset, so chunks may arrive in any order, as they do on
+ * unordered channels. On channels with limited retransmissions a chunk can be lost; at most
+ * MAX_PENDING_RECEIVES incomplete blobs of MAX_PENDING_RECEIVE_BYTES in total are kept and the
+ * oldest are dropped to make room for a new one. Blobs are at most MAX_TRANSFER_BYTES.
+ */
+class DataChannelTransfer implements DataChannel.Observer {
+  private static final String TAG = "DataChannelTransfer";
+  static final int MAX_MESSAGE_BYTES = 16 * 1024;
+  static final long HIGH_WATERMARK_BYTES = 1024 * 1024;
+  static final long LOW_WATERMARK_BYTES = 256 * 1024;
+  static final int MAX_TRANSFER_BYTES = 16 * 1024 * 1024;
+  static final int MAX_PENDING_RECEIVES = 4;
+  // The memory a peer can make the receiver allocate. Two blobs, because on unordered channels
+  // the first chunks of a blob can arrive before the last ones of the blob sent before it.
+  static final int MAX_PENDING_RECEIVE_BYTES = 2 * MAX_TRANSFER_BYTES;
+  // First header byte, telling chunks apart from other binary messages.
+  private static final byte CHUNK_MARKER = (byte) 0xdc;
+  // Marker, transfer id, blob size and chunk index.
+  private static final int HEADER_BYTES = 13;
+  private static final int CHUNK_PAYLOAD_BYTES = MAX_MESSAGE_BYTES - HEADER_BYTES;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Receives the messages that are not transfer chunks, e.g. telemetry. Binary messages that
+   * start with the byte 0xdc are taken to be chunks.
+   */
+  interface MessageConsumer {
+    /**
+     * Called on the data channel observer thread with the buffer of the message, which is only
+     * valid during the call. The consumer may move its position but must not write to it. Use
+     * ByteBufferPool.copy() to keep the message without allocating.
+     */
+    void onMessage(String label, ByteBuffer data, boolean binary);
+  }
+
+  /** Reports completed transfers. */
+  interface Listener {
+    /** Called on the executor once the last chunk of |transferId| is handed to the channel. */
+    void onTransferSent(int transferId, int bytes, long elapsedMs);
+
+    /**
+     * Called on the executor when the channel refuses a chunk of |transferId|, e.g. because it
+     * closed. The rest of the transfer is not sent.
+     */
+    void onTransferFailed(int transferId, int bytes);
+
+    /**
+     * Called on the data channel observer thread with a blob received in |elapsedMs| since its
+     * first chunk arrived.
+     */
+    void onTransferReceived(int transferId, ByteBuffer data, long elapsedMs);
+  }
+
+  private static class OutgoingTransfer {
+    final int id;
+    final ByteBuffer data;
+    final int chunkCount;
+    final long startNs = System.nanoTime();
+    int nextChunk;
+
+    OutgoingTransfer(int id, ByteBuffer data) {
+      this.id = id;
+      this.data = data;
+      chunkCount = getChunkCount(data.remaining());
+    }
+  }
+
+  private static class IncomingTransfer {
+    final ByteBuffer data;
+    final int chunkCount;
+    final BitSet receivedChunks;
+    final long startNs = System.nanoTime();
+
+    IncomingTransfer(int size) {
+      data = ByteBuffer.allocateDirect(size);
+      chunkCount = getChunkCount(size);
+      receivedChunks = new BitSet(chunkCount);
+    }
+  }
+
+  private final DataChannel dataChannel;
+  private final String label;
+  private final ExecutorService executor;
+  @Nullable private final Listener listener;
+  @Nullable private final MessageConsumer consumer;
+
+  // Only used on the executor.
+  private final ArrayDeque<OutgoingTransfer> outgoing = new ArrayDeque<>();
+  // DataChannel.send() is done with a message when it returns, so one buffer serves all chunks.
+  private final ByteBuffer chunkBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_BYTES);
+  private int nextTransferId;
+  private boolean released;
+
+  // Set on the executor when sending waits for the channel buffer to drain.
+  private volatile boolean waitingForDrain;
+
+  // Only used on the data channel observer thread.
+  private final Map<Integer, IncomingTransfer> incoming = new LinkedHashMap<>();
+  // Sum of the sizes of the incoming transfers.
+  private int incomingBytes;
+
+  DataChannelTransfer(DataChannel dataChannel, ExecutorService executor,
+      @Nullable Listener listener, @Nullable MessageConsumer consumer) {
+    this.dataChannel = dataChannel;
+    this.label = dataChannel.label();
+    this.executor = executor;
+    this.listener = listener;
+    this.consumer = consumer;
+  }
+
+  /**
+   * Queues the remaining bytes of |data| to be sent once the channel is open and returns the id of
+   * the transfer, or -1 if |data| is larger than MAX_TRANSFER_BYTES. |data| must not be modified
+   * until the transfer is sent. Called on the executor.
+   */
+  int send(ByteBuffer data) {
+    if (data.remaining() > MAX_TRANSFER_BYTES) {
+      Log.e(TAG, "Transfer of " + data.remaining() + " bytes exceeds " + MAX_TRANSFER_BYTES);
+      return -1;
+    }
+    final OutgoingTransfer transfer = new OutgoingTransfer(nextTransferId++, data.slice());
+    outgoing.add(transfer);
+    sendChunks();
+    return transfer.id;
+  }
+
+  /** Drops the queued transfers. Called on the executor. */
+  void release() {
+    released = true;
+    outgoing.clear();
+  }
+
+  @Override
+  public void onBufferedAmountChange(long previousAmount) {
+    if (waitingForDrain && dataChannel.bufferedAmount() <= LOW_WATERMARK_BYTES) {
+      waitingForDrain = false;
+      postSendChunks();
+    }
+  }
+
+  @Override
+  public void onStateChange() {
+    Log.d(TAG, "Data channel state changed: " + label + ": " + dataChannel.state());
+    if (dataChannel.state() == DataChannel.State.OPEN) {
+      postSendChunks();
+    }
+  }
+
+  @Override
+  public void onMessage(final DataChannel.Buffer buffer) {
+    final ByteBuffer data = buffer.data;
+    if (!buffer.binary || data.remaining() < HEADER_BYTES
+        || data.get(data.position()) != CHUNK_MARKER) {
+      if (consumer != null) {
+        consumer.onMessage(label, data, buffer.binary);
+      } else if (buffer.binary) {
+        Log.d(TAG, "Received binary msg over " + label);
+      } else {
+        // Only decoded for the log when nobody consumes the messages.
+        Log.d(TAG, "Got msg: " + UTF_8.decode(data) + " over " + label);
+      }
+      return;
+    }
+    data.get();
+    final int transferId = data.getInt();
+    final int size = data.getInt();
+    final int chunk = data.getInt();
+    IncomingTransfer transfer = incoming.get(transferId);
+    if (transfer == null) {
+      // Checked before allocating a buffer of the size the peer claims.
+      if (size < 0 || size > MAX_TRANSFER_BYTES) {
+        Log.e(TAG, "Invalid transfer size " + size);
+        return;
+      }
+      dropOldestIncoming(size);
+      transfer = new IncomingTransfer(size);
+      incoming.put(transferId, transfer);
+      incomingBytes += size;
+    }
+    final int offset = chunk * CHUNK_PAYLOAD_BYTES;
+    if (chunk < 0 || chunk >= transfer.chunkCount || transfer.data.capacity() != size
+        || data.remaining() != Math.min(CHUNK_PAYLOAD_BYTES, size - offset)) {
+      Log.e(TAG, "Invalid chunk " + chunk + " of transfer " + transferId);
+      return;
+    }
+    if (transfer.receivedChunks.get(chunk)) {
+      return;
+    }
+    transfer.receivedChunks.set(chunk);
+    final ByteBuffer destination = transfer.data.duplicate();
+    destination.position(offset);
+    destination.put(data);
+    if (transfer.receivedChunks.cardinality() < transfer.chunkCount) {
+      return;
+    }
+    incoming.remove(transferId);
+    incomingBytes -= size;
+    final long elapsedMs = (System.nanoTime() - transfer.startNs) / 1000000;
+    Log.d(TAG, "Received transfer " + transferId + ": " + describe(size, elapsedMs));
+    if (listener != null) {
+      listener.onTransferReceived(transferId, transfer.data, elapsedMs);
+    }
+  }
+
+  private void postSendChunks() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        sendChunks();
+      }
+    });
+  }
+
+  // Sends chunks until the queue is empty or the channel buffers HIGH_WATERMARK_BYTES.
+  private void sendChunks() {
+    if (released || dataChannel.state() != DataChannel.State.OPEN) {
+      return;
+    }
+    while (!outgoing.isEmpty()) {
+      if (dataChannel.bufferedAmount() >= HIGH_WATERMARK_BYTES) {
+        waitingForDrain = true;
+        // Buffered data may have drained before the flag was set.
+        if (dataChannel.bufferedAmount() >= HIGH_WATERMARK_BYTES) {
+          return;
+        }
+        waitingForDrain = false;
+      }
+      final OutgoingTransfer transfer = outgoing.peek();
+      final int offset = transfer.nextChunk * CHUNK_PAYLOAD_BYTES;
+      final ByteBuffer payload = transfer.data.duplicate();
+      payload.position(offset);
+      payload.limit(Math.min(offset + CHUNK_PAYLOAD_BYTES, transfer.data.limit()));
+      chunkBuffer.clear();
+      chunkBuffer.put(CHUNK_MARKER)
+          .putInt(transfer.id)
+          .putInt(transfer.data.remaining())
+          .putInt(transfer.nextChunk)
+          .put(payload);
+      chunkBuffer.flip();
+      if (!dataChannel.send(new DataChannel.Buffer(chunkBuffer, true))) {
+        Log.e(TAG, "Failed to send chunk " + transfer.nextChunk + " of transfer " + transfer.id);
+        outgoing.poll();
+        if (listener != null) {
+          listener.onTransferFailed(transfer.id, transfer.data.remaining());
+        }
+        continue;
+      }
+      if (++transfer.nextChunk < transfer.chunkCount) {
+        continue;
+      }
+      outgoing.poll();
+      final long elapsedMs = (System.nanoTime() - transfer.startNs) / 1000000;
+      Log.d(TAG, "Sent transfer " + transfer.id + ": "
+              + describe(transfer.data.remaining(), elapsedMs));
+      if (listener != null) {
+        listener.onTransferSent(transfer.id, transfer.data.remaining(), elapsedMs);
+      }
+    }
+  }
+
+  // Drops the oldest incoming transfers until one of |size| bytes fits within the limits.
+  private void dropOldestIncoming(int size) {
+    final Iterator<Map.Entry<Integer, IncomingTransfer>> it = incoming.entrySet().iterator();
+    while (incoming.size() >= MAX_PENDING_RECEIVES
+        || incomingBytes + size > MAX_PENDING_RECEIVE_BYTES) {
+      final Map.Entry<Integer, IncomingTransfer> oldest = it.next();
+      it.remove();
+      final IncomingTransfer transfer = oldest.getValue();
+      incomingBytes -= transfer.data.capacity();
+      Log.w(TAG, "Dropped transfer " + oldest.getKey() + " missing "
+              + (transfer.chunkCount - transfer.receivedChunks.cardinality()) + " of "
+              + transfer.chunkCount + " chunks.");
+    }
+  }
+
+  private static int getChunkCount(int size) {
+    // An empty blob is sent as one empty chunk.
+    return Math.max(1, (size + CHUNK_PAYLOAD_BYTES - 1) / CHUNK_PAYLOAD_BYTES);
+  }
+
+  private static String describe(int bytes, long elapsedMs) {
+    return bytes + " bytes in " + elapsedMs + " ms, "
+        + String.format(Locale.US, "%.2f", bytes / 1000.0 / Math.max(1, elapsedMs)) + " MB/s";
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
+import javax.annotation.Nullable;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SessionDescription;
+import org.webrtc.StatsReport;
+import org.webrtc.VideoSink;
+
+/**
+ * Hub that calls every peer connecting to a DirectRTCServer, e.g. a device serving many test
+ * peers in a lab. Each session gets its own PeerConnectionClient, which is closed when either
+ * side hangs up.
+ * <p>
+ * The hub has no UI, so it neither captures nor renders video; calls are audio only. All peer
+ * connection clients share the PeerConnectionClient executor thread, and one factory, so that
+ * their calls share one audio device module and thus the microphone.
+ */
+public class DirectCallHub implements DirectRTCServer.ServerEvents {
+  private static final String TAG = "DirectCallHub";
+
+  private final Context appContext;
+  private final PeerConnectionParameters peerConnectionParameters;
+  private final PeerConnectionClient.SharedFactory sharedFactory;
+  private final DirectRTCServer server;
+  // Guarded by |calls|.
+  private final List<Call> calls = new ArrayList<>();
+
+  /**
+   * @param ip          IP address to listen on.
+   * @param port        Port to listen on.
+   * @param workerCount Number of signaling threads shared by all sessions.
+   * @param maxSessions Maximum number of concurrent calls.
+   */
+  public DirectCallHub(Context appContext, PeerConnectionParameters peerConnectionParameters,
+      @Nullable PeerConnectionFactory.Options options, String ip, int port, int workerCount,
+      int maxSessions) {
+    this.appContext = appContext;
+    this.peerConnectionParameters = peerConnectionParameters;
+    sharedFactory = new PeerConnectionClient.SharedFactory(appContext, peerConnectionParameters,
+        options, new PeerConnectionClient.AudioDeviceErrorHandler() {
+          @Override
+          public void onAudioDeviceError(String errorMessage) {
+            // Ends no call, the audio device module is shared by all of them.
+            Log.e(TAG, "Audio device error: " + errorMessage);
+          }
+        });
+    server = new DirectRTCServer(this, ip, port, workerCount, maxSessions);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /** Stops accepting peers, hangs up all calls and releases the factory. */
+  public void stop() {
+    server.stop();
+    final List<Call> openCalls;
+    synchronized (calls) {
+      openCalls = new ArrayList<>(calls);
+    }
+    for (Call call : openCalls) {
+      call.close("hub stopped.");
+    }
+    // A call of a peer that connected while stopping fails to create its peer connection.
+    sharedFactory.release();
+  }
+
+  public int getCallCount() {
+    synchronized (calls) {
+      return calls.size();
+    }
+  }
+
+  @Override
+  public SignalingEvents onSessionStarted(DirectRTCServer.Session session) {
+    Log.d(TAG, "Call " + session.getId() + " from " + session.getRemoteAddress());
+    final Call call = new Call(session);
+    synchronized (calls) {
+      calls.add(call);
+    }
+    return call;
+  }
+
+  @Override
+  public void onServerError(String description) {
+    Log.e(TAG, "Server error: " + description);
+  }
+
+  /**
+   * Call with one peer. Signaling events arrive on the session worker thread and peer connection
+   * events on the PeerConnectionClient executor thread.
+   */
+  private class Call implements SignalingEvents, PeerConnectionClient.PeerConnectionEvents {
+    private final DirectRTCServer.Session session;
+    private final PeerConnectionClient peerConnectionClient;
+    // Signaling events that race with close() are dropped, the client must not be used after
+    // it has been closed.
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Only accessed on the session worker thread.
+    private boolean initiator;
+
+    Call(DirectRTCServer.Session session) {
+      this.session = session;
+      peerConnectionClient = new PeerConnectionClient(appContext, sharedFactory);
+      peerConnectionClient.createPeerConnectionFactory(peerConnectionParameters, this);
+    }
+
+    /** Hangs up. May be called on any thread, only the first call has an effect. */
+    void close(String reason) {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      Log.d(TAG, "Call " + session.getId() + " closed: " + reason);
+      peerConnectionClient.close();
+      session.close();
+      synchronized (calls) {
+        calls.remove(this);
+      }
+    }
+
+    // -----Implementation of AppRTCClient.SignalingEvents ---------------
+    @Override
+    public void onConnectedToRoom(SignalingParameters params) {
+      if (closed.get()) {
+        return;
+      }
+      initiator = params.initiator;
+      peerConnectionClient.createPeerConnection(null /* localRender */,
+          Collections.<VideoSink>emptyList(), null /* videoCapturer */, params);
+      if (initiator) {
+        peerConnectionClient.createOffer();
+      } else if (params.offerSdp != null) {
+        peerConnectionClient.setRemoteDescription(params.offerSdp);
+        peerConnectionClient.createAnswer();
+      }
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {
+      if (closed.get()) {
+        return;
+      }
+      peerConnectionClient.setRemoteDescription(sdp);
+      if (!initiator) {
+        peerConnectionClient.createAnswer();
+      }
+    }
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {
+      if (closed.get()) {
+        return;
+      }
+      peerConnectionClient.addRemoteIceCandidate(candidate);
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {
+      if (closed.get()) {
+        return;
+      }
+      peerConnectionClient.removeRemoteIceCandidates(candidates);
+    }
+
+    @Override
+    public void onChannelClose() {
+      close("remote end hung up.");
+    }
+
+    @Override
+    public void onChannelError(String description) {
+      close("signaling error: " + description);
+    }
+
+    // -----Implementation of PeerConnectionClient.PeerConnectionEvents.---------
+    @Override
+    public void onLocalDescription(SessionDescription sdp) {
+      final AppRTCClient client = session.getClient();
+      if (client == null) {
+        return;
+      }
+      if (sdp.type == SessionDescription.Type.OFFER) {
+        client.sendOfferSdp(sdp);
+      } else {
+        client.sendAnswerSdp(sdp);
+      }
+    }
+
+    @Override
+    public void onIceCandidate(IceCandidate candidate) {
+      final AppRTCClient client = session.getClient();
+      if (client != null) {
+        client.sendLocalIceCandidate(candidate);
+      }
+    }
+
+    @Override
+    public void onIceCandidatesRemoved(IceCandidate[] candidates) {
+      final AppRTCClient client = session.getClient();
+      if (client != null) {
+        client.sendLocalIceCandidateRemovals(candidates);
+      }
+    }
+
+    @Override
+    public void onIceConnected() {
+      Log.d(TAG, "Call " + session.getId() + ": ICE connected.");
+    }
+
+    @Override
+    public void onIceDisconnected() {
+      close("ICE disconnected.");
+    }
+
+    @Override
+    public void onPeerConnectionClosed() {}
+
+    @Override
+    public void onPeerConnectionStatsReady(StatsReport[] reports) {}
+
+    @Override
+    public void onPeerConnectionError(String description) {
+      close("peer connection error: " + description);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.WindowManager.LayoutParams;
+import android.widget.TextView;
+import android.widget.Toast;
+import java.util.regex.Matcher;
+import javax.annotation.Nullable;
+
+/**
+ * Activity running a DirectCallHub, which calls every peer connecting to the IP address and port
+ * given as the room ID. Started by ConnectActivity instead of CallActivity when the direct call
+ * hub setting is on, with the same intent extras.
+ */
+public class DirectCallHubActivity extends Activity {
+  private static final String TAG = "DirectCallHubActivity";
+
+  // Signaling threads shared by the sessions of the hub.
+  private static final int WORKER_COUNT = 2;
+  private static final int MAX_CALLS = 8;
+  private static final int STATUS_UPDATE_PERIOD_MS = 1000;
+
+  private static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
+      "android.permission.RECORD_AUDIO", "android.permission.INTERNET"};
+
+  private final Handler handler = new Handler();
+  @Nullable
+  private DirectCallHub hub;
+  @Nullable
+  private TextView statusView;
+  private String address = "";
+
+  private final Runnable statusUpdater = new Runnable() {
+    @Override
+    public void run() {
+      if (hub == null || statusView == null) {
+        return;
+      }
+      statusView.setText(
+          getString(R.string.direct_call_hub_status, address, hub.getCallCount(), MAX_CALLS));
+      handler.postDelayed(this, STATUS_UPDATE_PERIOD_MS);
+    }
+  };
+
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // The hub answers calls while the screen is on.
+    getWindow().addFlags(LayoutParams.FLAG_KEEP_SCREEN_ON);
+    statusView = new TextView(this);
+    setContentView(statusView);
+
+    for (String permission : MANDATORY_PERMISSIONS) {
+      if (checkCallingOrSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+        logAndToast("Permission " + permission + " is not granted");
+        setResult(RESULT_CANCELED);
+        finish();
+        return;
+      }
+    }
+
+    final Intent intent = getIntent();
+    final String roomId = intent.getStringExtra(CallActivity.EXTRA_ROOMID);
+    final Matcher matcher = roomId == null ? null : DirectRTCClient.IP_PATTERN.matcher(roomId);
+    if (matcher == null || !matcher.matches()) {
+      logAndToast("Room ID is not an IP address to listen on: " + roomId);
+      setResult(RESULT_CANCELED);
+      finish();
+      return;
+    }
+    final String ip = matcher.group(1);
+    final String portStr = matcher.group(matcher.groupCount());
+    final int port;
+    try {
+      port = portStr != null ? Integer.parseInt(portStr) : DirectRTCClient.DEFAULT_PORT;
+    } catch (NumberFormatException e) {
+      logAndToast("Invalid port number: " + portStr);
+      setResult(RESULT_CANCELED);
+      finish();
+      return;
+    }
+    address = ip + ":" + port;
+
+    // The hub neither captures nor renders video, so the video size is unused.
+    final boolean loopback = intent.getBooleanExtra(CallActivity.EXTRA_LOOPBACK, false);
+    hub = new DirectCallHub(getApplicationContext(),
+        CallActivity.createPeerConnectionParameters(intent, 0, 0),
+        CallActivity.createFactoryOptions(loopback), ip, port, WORKER_COUNT, MAX_CALLS);
+    hub.start();
+    Log.d(TAG, "Direct call hub listening on " + address);
+    statusUpdater.run();
+  }
+
+  @Override
+  protected void onDestroy() {
+    handler.removeCallbacks(statusUpdater);
+    if (hub != null) {
+      hub.stop();
+      hub = null;
+    }
+    super.onDestroy();
+  }
+
+  private void logAndToast(String msg) {
+    Log.d(TAG, msg);
+    Toast.makeText(this, msg, Toast.LENGTH_SHORT).show();
+  }
+}
@@ -20,9 +20,12 @@ import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,7 +36,7 @@ import java.util.regex.Pattern;
  */
 public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
   private static final String TAG = "DirectRTCClient";
-  private static final int DEFAULT_PORT = 8888;
+  static final int DEFAULT_PORT = 8888;
 
   // Regex pattern used for checking if room id looks like an IP.
   static final Pattern IP_PATTERN = Pattern.compile("("
@@ -52,10 +55,16 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       // Optional port number
       + "(:(\\d+))?");
 
-  private final ExecutorService executor;
+  private final ScheduledExecutorService executor;
+  // False if |executor| is shared with other clients and must not be shut down.
+  private final boolean ownsExecutor;
   private final SignalingEvents events;
+  // True to use the framed NioTCPChannelClient transport instead of TCPChannelClient.
+  private final boolean useFramedTransport;
+  // Batches local ICE candidates, or null to send one message per candidate.
+  @Nullable private final IceCandidateBatcher candidateBatcher;
   @Nullable
-  private TCPChannelClient tcpClient;
+  private TCPChannel tcpClient;
   private RoomConnectionParameters connectionParameters;
 
   private enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
@@ -64,12 +73,55 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   private ConnectionState roomState;
 
   public DirectRTCClient(SignalingEvents events) {
+    this(events, false /* useFramedTransport */);
+  }
+
+  public DirectRTCClient(SignalingEvents events, boolean useFramedTransport) {
+    this(events, useFramedTransport, false /* batchIceCandidates */);
+  }
+
+  /**
+   * @param useFramedTransport Use the non-blocking, length-prefixed NioTCPChannelClient transport.
+   *                           Both peers must use the same transport.
+   * @param batchIceCandidates Send local ICE candidates gathered in quick succession as one
+   *                           message. The other peer must understand candidate batches.
+   */
+  public DirectRTCClient(
+      SignalingEvents events, boolean useFramedTransport, boolean batchIceCandidates) {
     this.events = events;
+    this.useFramedTransport = useFramedTransport;
 
-    executor = Executors.newSingleThreadExecutor();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    ownsExecutor = true;
+    candidateBatcher = batchIceCandidates ? createCandidateBatcher() : null;
     roomState = ConnectionState.NEW;
   }
 
+  /**
+   * Creates a client for a session of DirectRTCServer. Runs on |executor|, which is shared with
+   * other sessions and is not shut down on disconnect. Use connectToChannel() instead of
+   * connectToRoom().
+   */
+  DirectRTCClient(SignalingEvents events, ScheduledExecutorService executor) {
+    this.events = events;
+    this.useFramedTransport = true;
+    this.executor = executor;
+    ownsExecutor = false;
+    candidateBatcher = null;
+    roomState = ConnectionState.NEW;
+  }
+
+  /** Starts signaling on a channel accepted by DirectRTCServer. This client acts as the server. */
+  void connectToChannel(final SocketChannel channel) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        roomState = ConnectionState.NEW;
+        tcpClient = new NioTCPChannelClient(executor, DirectRTCClient.this, channel);
+      }
+    });
+  }
+
   /**
    * Connects to the room, roomId in connectionsParameters is required. roomId must be a valid
    * IP address matching IP_PATTERN.
@@ -131,7 +183,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       port = DEFAULT_PORT;
     }
 
-    tcpClient = new TCPChannelClient(executor, this, ip, port);
+    if (useFramedTransport) {
+      tcpClient = new NioTCPChannelClient(executor, this, ip, port);
+    } else {
+      tcpClient = new TCPChannelClient(executor, this, ip, port);
+    }
   }
 
   /**
@@ -142,11 +198,16 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   private void disconnectFromRoomInternal() {
     roomState = ConnectionState.CLOSED;
 
+    if (candidateBatcher != null) {
+      candidateBatcher.clear();
+    }
     if (tcpClient != null) {
       tcpClient.disconnect();
       tcpClient = null;
     }
-    executor.shutdown();
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
   }
 
   @Override
@@ -184,16 +245,19 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
+        if (roomState != ConnectionState.CONNECTED) {
+          reportError("Sending ICE candidate in non connected state.");
+          return;
+        }
+        if (candidateBatcher != null) {
+          candidateBatcher.add(candidate);
+          return;
+        }
         JSONObject json = new JSONObject();
         jsonPut(json, "type", "candidate");
         jsonPut(json, "label", candidate.sdpMLineIndex);
         jsonPut(json, "id", candidate.sdpMid);
         jsonPut(json, "candidate", candidate.sdp);
-
-        if (roomState != ConnectionState.CONNECTED) {
-          reportError("Sending ICE candidate in non connected state.");
-          return;
-        }
         sendMessage(json.toString());
       }
     });
@@ -217,6 +281,10 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           reportError("Sending ICE candidate removals in non connected state.");
           return;
         }
+        if (candidateBatcher != null) {
+          // Removals must not overtake the candidates they remove.
+          candidateBatcher.flush();
+        }
         sendMessage(json.toString());
       }
     });
@@ -254,6 +322,10 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       String type = json.optString("type");
       if (type.equals("candidate")) {
         events.onRemoteIceCandidate(toJavaCandidate(json));
+      } else if (type.equals(IceCandidateBatcher.MESSAGE_TYPE)) {
+        for (IceCandidate candidate : IceCandidateBatcher.fromMessage(json)) {
+          events.onRemoteIceCandidate(candidate);
+        }
       } else if (type.equals("remove-candidates")) {
         JSONArray candidateArray = json.getJSONArray("candidates");
         IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
@@ -314,10 +386,29 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     });
   }
 
+  private IceCandidateBatcher createCandidateBatcher() {
+    return new IceCandidateBatcher(new IceCandidateBatcher.Transport() {
+      @Override
+      public void postDelayed(Runnable task, int delayMs) {
+        @SuppressWarnings("unused") // Prevent downstream linter warnings.
+        Future<?> possiblyIgnoredError = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public void sendCandidates(String message, IceCandidate[] candidates) {
+        sendMessage(message);
+      }
+    }, IceCandidateBatcher.DEFAULT_WINDOW_MS, IceCandidateBatcher.DEFAULT_MAX_CANDIDATES);
+  }
+
   private void sendMessage(final String message) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
+        if (tcpClient == null) {
+          Log.w(TAG, "Dropping message sent after disconnect.");
+          return;
+        }
         tcpClient.send(message);
       }
     });
@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+
+/**
+ * Direct signaling server that keeps accepting peers. Every accepted connection becomes a
+ * {@link Session} with its own DirectRTCClient acting as the server side, i.e. the initiator.
+ * Peers must use the framed direct signaling transport.
+ * <p>
+ * Sessions are multiplexed over a bounded pool of single-threaded workers rather than a thread
+ * per peer; each session is pinned to the least loaded worker when it is accepted, so all of its
+ * signaling runs on one thread. Connections beyond |maxSessions| are closed right away, and each
+ * session stops reading from its peer while its worker is behind.
+ * <p>
+ * A server can be started once. Public methods may be called from any thread.
+ */
+public class DirectRTCServer {
+  private static final String TAG = "DirectRTCServer";
+
+  /** Server callbacks. */
+  public interface ServerEvents {
+    /**
+     * Called on the worker thread of |session| when a peer connects. Returns the listener for
+     * the signaling events of the session, which are delivered on the same thread.
+     */
+    SignalingEvents onSessionStarted(Session session);
+
+    /** Called on the selector thread if the server fails. Must not block. */
+    void onServerError(String description);
+  }
+
+  /** Signaling session with one peer. */
+  public class Session {
+    private final int id;
+    private final String remoteAddress;
+    private final Worker worker;
+    // Guarded by |this|.
+    @Nullable private DirectRTCClient client;
+    private boolean closed;
+
+    private Session(int id, String remoteAddress, Worker worker) {
+      this.id = id;
+      this.remoteAddress = remoteAddress;
+      this.worker = worker;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    public String getRemoteAddress() {
+      return remoteAddress;
+    }
+
+    /**
+     * Returns the signaling client of the session. Set once onSessionStarted has returned, so it
+     * is available from the first signaling event.
+     */
+    // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+    @SuppressWarnings("NoSynchronizedMethodCheck")
+    @Nullable
+    public synchronized AppRTCClient getClient() {
+      return client;
+    }
+
+    /** Disconnects the peer and frees the slot of the session. Does nothing if already closed. */
+    public void close() {
+      final DirectRTCClient sessionClient;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        sessionClient = client;
+      }
+      Log.d(TAG, "Closing session " + id);
+      if (sessionClient != null) {
+        sessionClient.disconnectFromRoom();
+      }
+      removeSession(this);
+    }
+
+    // Runs on the worker thread.
+    private void start(SocketChannel channel) {
+      synchronized (this) {
+        if (closed) {
+          closeChannel(channel);
+          return;
+        }
+      }
+      final SignalingEvents sessionEvents = events.onSessionStarted(this);
+      synchronized (this) {
+        if (!closed) {
+          client = new DirectRTCClient(sessionEvents, worker.executor);
+          client.connectToChannel(channel);
+          return;
+        }
+      }
+      closeChannel(channel);
+    }
+  }
+
+  private static class Worker {
+    final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // Guarded by the server.
+    int sessionCount;
+  }
+
+  private final ServerEvents events;
+  private final String ip;
+  private final int port;
+  private final int maxSessions;
+  private final Worker[] workers;
+  // Guarded by |this|.
+  private final List<Session> sessions = new ArrayList<>();
+  private int nextSessionId;
+  private boolean started;
+  private boolean stopped;
+  @Nullable private NioTCPChannelClient.SelectorLoop loop;
+
+  // Only touched on the selector thread.
+  @Nullable private ServerSocketChannel serverChannel;
+  @Nullable private SelectionKey serverKey;
+
+  /**
+   * @param events      Listener that will receive server and session events.
+   * @param ip          IP address to listen on.
+   * @param port        Port to listen on.
+   * @param workerCount Number of worker threads shared by all sessions.
+   * @param maxSessions Maximum number of concurrent sessions.
+   */
+  public DirectRTCServer(
+      ServerEvents events, String ip, int port, int workerCount, int maxSessions) {
+    this.events = events;
+    this.ip = ip;
+    this.port = port;
+    this.maxSessions = maxSessions;
+    workers = new Worker[Math.max(1, workerCount)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker();
+    }
+  }
+
+  /** Starts listening. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void start() {
+    if (started) {
+      Log.w(TAG, "Server already started.");
+      return;
+    }
+    started = true;
+    final InetSocketAddress address;
+    final NioTCPChannelClient.SelectorLoop selectorLoop;
+    try {
+      address = new InetSocketAddress(InetAddress.getByName(ip), port);
+      selectorLoop = NioTCPChannelClient.getSelectorLoop();
+    } catch (UnknownHostException e) {
+      events.onServerError("Invalid IP address.");
+      return;
+    } catch (IOException e) {
+      events.onServerError("Failed to open selector: " + e.getMessage());
+      return;
+    }
+    loop = selectorLoop;
+    selectorLoop.post(new Runnable() {
+      @Override
+      public void run() {
+        listen(selectorLoop, address);
+      }
+    });
+  }
+
+  /** Stops listening and closes all sessions. */
+  public void stop() {
+    final List<Session> openSessions;
+    final NioTCPChannelClient.SelectorLoop selectorLoop;
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      openSessions = new ArrayList<>(sessions);
+      selectorLoop = loop;
+    }
+    if (selectorLoop != null) {
+      selectorLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          stopListening();
+        }
+      });
+    }
+    for (Session session : openSessions) {
+      session.close();
+    }
+    // Queued disconnects still run before the workers exit.
+    for (Worker worker : workers) {
+      worker.executor.shutdown();
+    }
+  }
+
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getSessionCount() {
+    return sessions.size();
+  }
+
+  // Runs on the selector thread.
+  private void listen(NioTCPChannelClient.SelectorLoop selectorLoop, InetSocketAddress address) {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+    }
+    Log.d(TAG, "Listening on " + address);
+    try {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.socket().bind(address);
+      serverKey = serverChannel.register(
+          selectorLoop.selector, SelectionKey.OP_ACCEPT, new NioTCPChannelClient.ReadyHandler() {
+            @Override
+            public void onReady(SelectionKey key) {
+              acceptAll();
+            }
+          });
+    } catch (IOException e) {
+      events.onServerError("Failed to create server socket: " + e.getMessage());
+      stopListening();
+    }
+  }
+
+  // Runs on the selector thread.
+  private void acceptAll() {
+    try {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        onAccepted(channel);
+      }
+    } catch (IOException e) {
+      events.onServerError("Failed to accept connection: " + e.getMessage());
+      stopListening();
+    }
+  }
+
+  // Runs on the selector thread.
+  private void onAccepted(final SocketChannel channel) {
+    final String remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    final Session session;
+    synchronized (this) {
+      if (stopped || sessions.size() >= maxSessions) {
+        Log.w(TAG, "Refusing " + remoteAddress + ", " + sessions.size() + " sessions open.");
+        closeChannel(channel);
+        return;
+      }
+      Worker worker = workers[0];
+      for (Worker candidate : workers) {
+        if (candidate.sessionCount < worker.sessionCount) {
+          worker = candidate;
+        }
+      }
+      worker.sessionCount++;
+      session = new Session(nextSessionId++, remoteAddress, worker);
+      sessions.add(session);
+    }
+    Log.d(TAG, "Session " + session.id + " accepted from " + remoteAddress);
+    try {
+      session.worker.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          session.start(channel);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The server was stopped concurrently.
+      session.close();
+      closeChannel(channel);
+    }
+  }
+
+  // Runs on the selector thread.
+  private void stopListening() {
+    if (serverKey != null) {
+      serverKey.cancel();
+      serverKey = null;
+    }
+    if (serverChannel != null) {
+      closeChannel(serverChannel);
+      serverChannel = null;
+    }
+  }
+
+  private synchronized void removeSession(Session session) {
+    if (sessions.remove(session)) {
+      session.worker.sessionCount--;
+    }
+  }
+
+  private static void closeChannel(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to close channel: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Delivers each frame to several sinks, e.g. the screen, a file and frame analysis, without
+ * taking locks on the frame path. The targets are an immutable array behind an atomic
+ * reference, so adding and removing targets never blocks the thread delivering frames.
+ *
+ * <p>A target is either direct, called on the delivering thread, which suits sinks that return
+ * right away such as SurfaceViewRenderer, or queued. A queued target has its own thread and a
+ * bounded queue of retained frames; when the queue is full the oldest frame is dropped, so a
+ * slow sink only loses frames itself and never delays the other targets.
+ */
+class FanOutVideoSink implements VideoSink {
+  private static final String TAG = "FanOutVideoSink";
+
+  private static class Target {
+    final VideoSink sink;
+    // Null for direct targets.
+    @Nullable final QueueThread queue;
+
+    Target(VideoSink sink, @Nullable QueueThread queue) {
+      this.sink = sink;
+      this.queue = queue;
+    }
+  }
+
+  // Drains the queue of a queued target into its sink.
+  private static class QueueThread extends Thread {
+    private final VideoSink sink;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<VideoFrame> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger droppedFrames = new AtomicInteger();
+    private volatile boolean running = true;
+
+    QueueThread(VideoSink sink, int capacity) {
+      super(TAG + "-" + sink.getClass().getSimpleName());
+      this.sink = sink;
+      this.capacity = capacity;
+    }
+
+    void offer(VideoFrame frame) {
+      frame.retain();
+      frames.offer(frame);
+      if (size.incrementAndGet() > capacity) {
+        final VideoFrame oldest = frames.poll();
+        if (oldest != null) {
+          size.decrementAndGet();
+          oldest.release();
+          droppedFrames.incrementAndGet();
+        }
+      }
+      if (running) {
+        LockSupport.unpark(this);
+      } else {
+        // Delivered while the target was being removed.
+        releaseFrames();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        final VideoFrame frame = frames.poll();
+        if (frame == null) {
+          LockSupport.park(this);
+          continue;
+        }
+        size.decrementAndGet();
+        try {
+          sink.onFrame(frame);
+        } finally {
+          frame.release();
+        }
+      }
+      releaseFrames();
+    }
+
+    private void releaseFrames() {
+      VideoFrame frame;
+      while ((frame = frames.poll()) != null) {
+        frame.release();
+      }
+    }
+
+    void quit() {
+      running = false;
+      LockSupport.unpark(this);
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private final AtomicReference<Target[]> targets = new AtomicReference<>(new Target[0]);
+
+  @Override
+  public void onFrame(VideoFrame frame) {
+    for (Target target : targets.get()) {
+      if (target.queue != null) {
+        target.queue.offer(frame);
+      } else {
+        target.sink.onFrame(frame);
+      }
+    }
+  }
+
+  /** Adds |sink|, called on the thread delivering the frames. */
+  void addDirectTarget(VideoSink sink) {
+    add(new Target(sink, null));
+  }
+
+  /**
+   * Adds |sink|, called on its own thread with frames from a queue of at most |capacity| frames
+   * that drops the oldest frame when full.
+   */
+  void addQueuedTarget(VideoSink sink, int capacity) {
+    final QueueThread queue = new QueueThread(sink, capacity);
+    queue.start();
+    add(new Target(sink, queue));
+  }
+
+  /**
+   * Removes |sink|. A queued target's thread is stopped and its remaining frames are released, so
+   * its sink is not called after this returns. A direct sink may still get a frame that was being
+   * delivered during the removal.
+   */
+  void removeTarget(VideoSink sink) {
+    Target removed = null;
+    Target[] current;
+    Target[] updated;
+    do {
+      current = targets.get();
+      removed = null;
+      updated = new Target[Math.max(0, current.length - 1)];
+      int count = 0;
+      for (Target target : current) {
+        if (removed == null && target.sink == sink) {
+          removed = target;
+        } else if (count < updated.length) {
+          updated[count++] = target;
+        }
+      }
+      if (removed == null) {
+        return;
+      }
+    } while (!targets.compareAndSet(current, updated));
+    if (removed.queue != null) {
+      removed.queue.quit();
+      Log.d(TAG, "Removed " + sink + ", dropped " + removed.queue.droppedFrames.get()
+              + " frames.");
+    }
+  }
+
+  /** Removes all targets. */
+  void release() {
+    for (Target target : targets.get()) {
+      removeTarget(target.sink);
+    }
+  }
+
+  private void add(Target target) {
+    Target[] current;
+    Target[] updated;
+    do {
+      current = targets.get();
+      updated = new Target[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = target;
+    } while (!targets.compareAndSet(current, updated));
+  }
+}
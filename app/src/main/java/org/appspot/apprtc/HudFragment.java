@@ -19,15 +19,16 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import javax.annotation.Nullable;
 import org.webrtc.StatsReport;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Fragment for HUD statistics display.
  */
 public class HudFragment extends Fragment {
+  // Number of the busiest threads of the process listed under the CPU usage.
+  private static final int HUD_THREAD_COUNT = 3;
+
   private TextView encoderStatView;
   private TextView hudViewBwe;
   private TextView hudViewConnection;
@@ -37,7 +38,39 @@ public class HudFragment extends Fragment {
   private boolean videoCallEnabled;
   private boolean displayHud;
   private volatile boolean isRunning;
+  private volatile boolean hudViewsVisible;
   private CpuMonitor cpuMonitor;
+  @Nullable private RemoteVideoRecorder remoteVideoRecorder;
+  @Nullable private DataChannelScheduler dataChannelScheduler;
+  private final HudStatsDigester statsDigester = new HudStatsDigester();
+  private final StringBuilder encoderStat = new StringBuilder(128);
+  private final TextBuffer encoderStatText = new TextBuffer();
+  private final TextBuffer bweText = new TextBuffer();
+  private final TextBuffer connectionText = new TextBuffer();
+  private final TextBuffer videoSendText = new TextBuffer();
+  private final TextBuffer videoRecvText = new TextBuffer();
+
+  /**
+   * Sets the text of a TextView from a reused StringBuilder without allocating. TextView keeps
+   * the char array it is given, so two arrays take turns and only the one not shown is written.
+   * Only used on the UI thread.
+   */
+  private static class TextBuffer {
+    private char[] shown = new char[256];
+    private char[] spare = new char[256];
+
+    void setText(TextView view, StringBuilder text) {
+      final int length = text.length();
+      if (spare.length < length) {
+        spare = new char[Math.max(length, 2 * spare.length)];
+      }
+      text.getChars(0, length, spare, 0);
+      view.setText(spare, 0, length);
+      final char[] previous = shown;
+      shown = spare;
+      spare = previous;
+    }
+  }
 
   @Override
   public View onCreateView(
@@ -92,7 +125,16 @@ public class HudFragment extends Fragment {
     this.cpuMonitor = cpuMonitor;
   }
 
+  void setRemoteVideoRecorder(@Nullable RemoteVideoRecorder remoteVideoRecorder) {
+    this.remoteVideoRecorder = remoteVideoRecorder;
+  }
+
+  void setDataChannelScheduler(@Nullable DataChannelScheduler dataChannelScheduler) {
+    this.dataChannelScheduler = dataChannelScheduler;
+  }
+
   private void hudViewsSetProperties(int visibility) {
+    hudViewsVisible = visibility == View.VISIBLE;
     hudViewBwe.setVisibility(visibility);
     hudViewConnection.setVisibility(visibility);
     hudViewVideoSend.setVisibility(visibility);
@@ -103,94 +145,62 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
+  /**
+   * Digests |reports| for display. Called on the thread delivering the reports so that the UI
+   * thread only has to set the resulting text. Returns null if the HUD is not shown or the
+   * previous statistics are still waiting for the UI thread. Pass the result to
+   * updateEncoderStatistics() and then release it.
+   */
+  @Nullable
+  public HudStatsDigester.HudStats digestStatistics(final StatsReport[] reports) {
+    if (!isRunning || !displayHud) {
+      return null;
     }
-    return reportMap;
+    return statsDigester.digest(reports, hudViewsVisible);
   }
 
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  public void updateEncoderStatistics(final HudStatsDigester.HudStats stats) {
     if (!isRunning || !displayHud) {
       return;
     }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
+    if (stats.hasDetails) {
+      bweText.setText(hudViewBwe, stats.bwe);
+      connectionText.setText(hudViewConnection, stats.connection);
+      videoSendText.setText(hudViewVideoSend, stats.videoSend);
+      videoRecvText.setText(hudViewVideoRecv, stats.videoRecv);
     }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
 
+    encoderStat.setLength(0);
     if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
+      if (stats.fps != null) {
+        encoderStat.append("Fps:  ").append(stats.fps).append("\n");
+      }
+      if (stats.targetBitrate != null) {
+        encoderStat.append("Target BR: ").append(stats.targetBitrate).append("\n");
+      }
+      if (stats.actualBitrate != null) {
+        encoderStat.append("Actual BR: ").append(stats.actualBitrate).append("\n");
       }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+      if (stats.layers.length() > 0) {
+        encoderStat.append(stats.layers).append("\n");
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      if (remoteVideoRecorder != null) {
+        encoderStat.append("Rec: ")
+            .append(remoteVideoRecorder.getWrittenFrames())
+            .append(" frames, dropped ")
+            .append(remoteVideoRecorder.getDroppedFrames())
+            .append(", queue ")
+            .append(remoteVideoRecorder.getQueueDepth())
+            .append("/")
+            .append(remoteVideoRecorder.getMaxQueueDepth())
+            .append("\n");
       }
     }
 
+    if (dataChannelScheduler != null) {
+      dataChannelScheduler.appendStats(encoderStat);
+    }
+
     if (cpuMonitor != null) {
       encoderStat.append("CPU%: ")
           .append(cpuMonitor.getCpuUsageCurrent())
@@ -198,7 +208,23 @@ public class HudFragment extends Fragment {
           .append(cpuMonitor.getCpuUsageAverage())
           .append(". Freq: ")
           .append(cpuMonitor.getFrequencyScaleAverage());
+      final CpuMonitor.CpuReport report = cpuMonitor.getLatestReport();
+      if (report != null) {
+        encoderStat.append("\nCores%:");
+        for (int percent : report.corePercents) {
+          encoderStat.append(" ");
+          if (percent < 0) {
+            encoderStat.append("off");
+          } else {
+            encoderStat.append(percent);
+          }
+        }
+        for (int i = 0; i < Math.min(HUD_THREAD_COUNT, report.topThreadCount); i++) {
+          final CpuMonitor.ThreadUsage thread = report.topThreads[i];
+          encoderStat.append("\n").append(thread.name).append(": ").append(thread.percent);
+        }
+      }
     }
-    encoderStatView.setText(encoderStat.toString());
+    encoderStatText.setText(encoderStatView, encoderStat);
   }
 }
@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import org.webrtc.StatsReport;
+
+/**
+ * Turns stats reports into the text shown by {@link HudFragment}. Meant to run on the thread
+ * delivering the reports so that only the final text is handed to the UI thread. With simulcast,
+ * each sent video layer is summarized on its own line. Not thread safe; use from a single thread.
+ *
+ * <p>Digesting does not allocate. The stats the HUD reads are looked up through the fixed Stat
+ * table, filled by one pass over each report. Display names are appended with "goog" left out
+ * instead of being built per name. The text goes into one of two reused HudStats, which the UI
+ * thread hands back with release() once it has copied the text.
+ */
+class HudStatsDigester {
+  /** Stats the HUD reads, indexed by ordinal into the values of the current report. */
+  private enum Stat {
+    TRACK_ID("googTrackId"),
+    FRAME_RATE_SENT("googFrameRateSent"),
+    FRAME_WIDTH_SENT("googFrameWidthSent"),
+    FRAME_HEIGHT_SENT("googFrameHeightSent"),
+    BYTES_SENT("bytesSent"),
+    FRAME_WIDTH_RECEIVED("googFrameWidthReceived"),
+    TARGET_ENC_BITRATE("googTargetEncBitrate"),
+    ACTUAL_ENC_BITRATE("googActualEncBitrate"),
+    ACTIVE_CONNECTION("googActiveConnection");
+
+    private static final Map<String, Stat> BY_NAME = new HashMap<>();
+    static {
+      for (Stat stat : values()) {
+        BY_NAME.put(stat.statName, stat);
+      }
+    }
+
+    final String statName;
+
+    Stat(String statName) {
+      this.statName = statName;
+    }
+
+    @Nullable
+    static Stat forName(String name) {
+      return BY_NAME.get(name);
+    }
+  }
+
+  /**
+   * Digested statistics. Filled by the digester and read by the UI thread, which must call
+   * release() when done so that the digester can reuse it.
+   */
+  static class HudStats {
+    @Nullable String fps;
+    @Nullable String targetBitrate;
+    @Nullable String actualBitrate;
+    // Whether the detailed statistics were requested and filled in.
+    boolean hasDetails;
+    final StringBuilder bwe = new StringBuilder(256);
+    final StringBuilder connection = new StringBuilder(512);
+    final StringBuilder videoSend = new StringBuilder(1024);
+    final StringBuilder videoRecv = new StringBuilder(1024);
+    // One line per sent video layer, lowest resolution first, or empty without simulcast.
+    final StringBuilder layers = new StringBuilder(128);
+
+    private final AtomicBoolean inUse = new AtomicBoolean();
+
+    /** Lets the digester reuse this. Call on the UI thread after the text has been copied. */
+    void release() {
+      inUse.set(false);
+    }
+  }
+
+  // Latest statistics of a sent video SSRC.
+  private static class SendLayer {
+    int width;
+    int height;
+    @Nullable String fps;
+    long bytesSent;
+    double timestampMs;
+    int bitrateKbps;
+  }
+
+  private static final Comparator<SendLayer> BY_WIDTH = new Comparator<SendLayer>() {
+    @Override
+    public int compare(SendLayer a, SendLayer b) {
+      return a.width - b.width;
+    }
+  };
+
+  // Two, so one can be digested into while the UI thread shows the other.
+  private final HudStats[] stats = {new HudStats(), new HudStats()};
+  // Values of the current report by Stat ordinal.
+  private final String[] values = new String[Stat.values().length];
+  // Report id -> layer. Only grows with the set of sent SSRCs.
+  private final Map<String, SendLayer> sendLayers = new HashMap<>();
+  private final List<SendLayer> reportLayers = new ArrayList<>();
+
+  /**
+   * Digests |reports|. If |includeDetails| is false only the encoder summary is filled in, which
+   * is all the HUD shows while the detailed views are hidden. Returns null if the UI thread
+   * still holds both HudStats, in which case this update is skipped.
+   */
+  @Nullable
+  HudStats digest(StatsReport[] reports, boolean includeDetails) {
+    final HudStats result = acquire();
+    if (result == null) {
+      return null;
+    }
+    result.fps = null;
+    result.targetBitrate = null;
+    result.actualBitrate = null;
+    result.hasDetails = includeDetails;
+    result.bwe.setLength(0);
+    result.connection.setLength(0);
+    result.videoSend.setLength(0);
+    result.videoRecv.setLength(0);
+    reportLayers.clear();
+
+    for (StatsReport report : reports) {
+      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
+        // Send video statistics.
+        readValues(report);
+        String trackId = values[Stat.TRACK_ID.ordinal()];
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          result.fps = values[Stat.FRAME_RATE_SENT.ordinal()];
+          updateSendLayer(report, result.fps);
+          if (includeDetails) {
+            appendReport(result.videoSend, report, false /* isBwe */);
+          }
+        }
+      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("recv")) {
+        // Receive video statistics. Check if this stat is for video track.
+        if (includeDetails) {
+          readValues(report);
+          if (values[Stat.FRAME_WIDTH_RECEIVED.ordinal()] != null) {
+            appendReport(result.videoRecv, report, false /* isBwe */);
+          }
+        }
+      } else if (report.id.equals("bweforvideo")) {
+        // BWE statistics.
+        readValues(report);
+        result.targetBitrate = values[Stat.TARGET_ENC_BITRATE.ordinal()];
+        result.actualBitrate = values[Stat.ACTUAL_ENC_BITRATE.ordinal()];
+        if (includeDetails) {
+          appendReport(result.bwe, report, true /* isBwe */);
+        }
+      } else if (report.type.equals("googCandidatePair")) {
+        // Connection statistics.
+        if (includeDetails) {
+          readValues(report);
+          if ("true".equals(values[Stat.ACTIVE_CONNECTION.ordinal()])) {
+            appendReport(result.connection, report, false /* isBwe */);
+          }
+        }
+      }
+    }
+
+    digestLayers(result.layers);
+    return result;
+  }
+
+  @Nullable
+  private HudStats acquire() {
+    for (HudStats candidate : stats) {
+      if (candidate.inUse.compareAndSet(false, true)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  // Fills |values| with the stats of |report| the HUD reads, keeping the first of duplicates.
+  private void readValues(StatsReport report) {
+    Arrays.fill(values, null);
+    for (StatsReport.Value value : report.values) {
+      final Stat stat = Stat.forName(value.name);
+      if (stat != null && values[stat.ordinal()] == null) {
+        values[stat.ordinal()] = value.value;
+      }
+    }
+  }
+
+  private void updateSendLayer(StatsReport report, @Nullable String fps) {
+    SendLayer layer = sendLayers.get(report.id);
+    if (layer == null) {
+      layer = new SendLayer();
+      sendLayers.put(report.id, layer);
+    }
+    layer.width = (int) parseLong(values[Stat.FRAME_WIDTH_SENT.ordinal()]);
+    layer.height = (int) parseLong(values[Stat.FRAME_HEIGHT_SENT.ordinal()]);
+    layer.fps = fps;
+    final long bytesSent = parseLong(values[Stat.BYTES_SENT.ordinal()]);
+    final double intervalMs = report.timestamp - layer.timestampMs;
+    if (layer.timestampMs > 0 && intervalMs > 0 && bytesSent >= layer.bytesSent) {
+      layer.bitrateKbps = (int) ((bytesSent - layer.bytesSent) * 8 / intervalMs);
+    }
+    layer.bytesSent = bytesSent;
+    layer.timestampMs = report.timestamp;
+    reportLayers.add(layer);
+  }
+
+  // Writes one line per sent layer to |layerStat|, or nothing without simulcast.
+  private void digestLayers(StringBuilder layerStat) {
+    layerStat.setLength(0);
+    if (reportLayers.size() < 2) {
+      return;
+    }
+    Collections.sort(reportLayers, BY_WIDTH);
+    for (int i = 0; i < reportLayers.size(); i++) {
+      final SendLayer layer = reportLayers.get(i);
+      if (i > 0) {
+        layerStat.append('\n');
+      }
+      layerStat.append('L').append(i).append(": ");
+      if (layer.width == 0) {
+        layerStat.append("off");
+        continue;
+      }
+      layerStat.append(layer.width).append('x').append(layer.height).append('@')
+          .append(layer.fps).append(' ').append(layer.bitrateKbps).append(" kbps");
+    }
+  }
+
+  // Returns |value| as a non-negative number, or 0 if it is missing or malformed.
+  private static long parseLong(@Nullable String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static void appendReport(StringBuilder stat, StatsReport report, boolean isBwe) {
+    stat.append(report.id).append('\n');
+    for (StatsReport.Value value : report.values) {
+      appendDisplayName(stat, value.name, isBwe);
+      stat.append('=').append(value.value).append('\n');
+    }
+  }
+
+  // Appends |name| without "goog", and for BWE statistics without "Available".
+  private static void appendDisplayName(StringBuilder stat, String name, boolean isBwe) {
+    int start = 0;
+    while (start < name.length()) {
+      int skip = 0;
+      if (name.startsWith("goog", start)) {
+        skip = "goog".length();
+      } else if (isBwe && name.startsWith("Available", start)) {
+        skip = "Available".length();
+      }
+      if (skip > 0) {
+        start += skip;
+      } else {
+        stat.append(name.charAt(start++));
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.IceCandidate;
+
+/**
+ * Signaling outbox for local ICE candidates. Candidates gathered within a short window of the
+ * first pending candidate, up to a maximum count, are sent as one message
+ * {"type": "candidates", "candidates": [{"label": ..., "id": ..., "candidate": ...}, ...]}
+ * instead of one message, and one socket write or HTTP request, per candidate. Both peers must
+ * understand the batch message.
+ *
+ * <p>Not thread safe. All methods, and the transport callbacks, run on the signaling thread.
+ */
+class IceCandidateBatcher {
+  private static final String TAG = "IceCandidateBatcher";
+  static final String MESSAGE_TYPE = "candidates";
+  static final int DEFAULT_WINDOW_MS = 20;
+  static final int DEFAULT_MAX_CANDIDATES = 10;
+
+  /** Sends batches for the signaling client. */
+  interface Transport {
+    /** Runs |task| on the signaling thread after |delayMs|. */
+    void postDelayed(Runnable task, int delayMs);
+
+    /** Sends |message| holding |candidates| to the other participant. */
+    void sendCandidates(String message, IceCandidate[] candidates);
+  }
+
+  private final Transport transport;
+  private final int windowMs;
+  private final int maxCandidates;
+  private final List<IceCandidate> pending = new ArrayList<>();
+  // Incremented for every batch, so that a window timer only flushes the batch it was set for.
+  private int batchId;
+  private int sentBatches;
+  private int sentCandidates;
+
+  IceCandidateBatcher(Transport transport, int windowMs, int maxCandidates) {
+    this.transport = transport;
+    this.windowMs = windowMs;
+    this.maxCandidates = maxCandidates;
+  }
+
+  /** Queues |candidate|. Sends the batch once it is full or the window has passed. */
+  void add(IceCandidate candidate) {
+    pending.add(candidate);
+    if (pending.size() >= maxCandidates) {
+      flush();
+    } else if (pending.size() == 1) {
+      final int windowBatchId = batchId;
+      transport.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          if (batchId == windowBatchId) {
+            flush();
+          }
+        }
+      }, windowMs);
+    }
+  }
+
+  /**
+   * Sends pending candidates now. Call before any message that must not overtake them, such as
+   * candidate removals.
+   */
+  void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    final IceCandidate[] candidates = pending.toArray(new IceCandidate[pending.size()]);
+    pending.clear();
+    batchId++;
+    sentBatches++;
+    sentCandidates += candidates.length;
+    Log.d(TAG, "Sending " + candidates.length + " candidates. Total: " + sentCandidates
+            + " candidates in " + sentBatches + " messages.");
+    transport.sendCandidates(toMessage(candidates), candidates);
+  }
+
+  /** Drops pending candidates, e.g. on disconnect. */
+  void clear() {
+    pending.clear();
+    batchId++;
+  }
+
+  /** Returns the batch message for |candidates|. */
+  static String toMessage(IceCandidate[] candidates) {
+    JSONObject json = new JSONObject();
+    jsonPut(json, "type", MESSAGE_TYPE);
+    JSONArray jsonArray = new JSONArray();
+    for (final IceCandidate candidate : candidates) {
+      JSONObject jsonCandidate = new JSONObject();
+      jsonPut(jsonCandidate, "label", candidate.sdpMLineIndex);
+      jsonPut(jsonCandidate, "id", candidate.sdpMid);
+      jsonPut(jsonCandidate, "candidate", candidate.sdp);
+      jsonArray.put(jsonCandidate);
+    }
+    jsonPut(json, "candidates", jsonArray);
+    return json.toString();
+  }
+
+  /** Parses the candidates of a batch message. */
+  static IceCandidate[] fromMessage(JSONObject json) throws JSONException {
+    JSONArray candidateArray = json.getJSONArray("candidates");
+    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
+    for (int i = 0; i < candidateArray.length(); ++i) {
+      JSONObject jsonCandidate = candidateArray.getJSONObject(i);
+      candidates[i] = new IceCandidate(jsonCandidate.getString("id"),
+          jsonCandidate.getInt("label"), jsonCandidate.getString("candidate"));
+    }
+    return candidates;
+  }
+
+  // Put a |key|->|value| mapping in |json|.
+  private static void jsonPut(JSONObject json, String key, Object value) {
+    try {
+      json.put(key, value);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
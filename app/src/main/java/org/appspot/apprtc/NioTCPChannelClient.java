@@ -0,0 +1,567 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.webrtc.ThreadUtils;
+
+/**
+ * Non-blocking alternative to TCPChannelClient. Messages are sent as frames of a 4 byte
+ * big-endian length followed by the UTF-8 encoded message, so this client only talks to peers
+ * that use the same transport.
+ * <p>
+ * All instances share one selector thread. Reads and writes go through per-connection direct
+ * buffers that are reused for the lifetime of the connection, messages sent in a burst are
+ * written with as few syscalls as possible, and all messages read at once are delivered to the
+ * executor in a single task. Reading is paused while more than {@link #MAX_PENDING_MESSAGES}
+ * received messages wait for the executor, so a slow executor pushes back on the peer instead of
+ * queueing an unbounded number of messages. Likewise, a peer that stops reading while messages
+ * are sent to it makes the write buffer reach {@link #MAX_WRITE_BUFFER_BYTES}, at which point the
+ * connection is closed with an error.
+ * <p>
+ * All public methods should be called from a looper executor thread
+ * passed in a constructor, otherwise exception will be thrown.
+ * All events are dispatched on the same thread.
+ */
+public class NioTCPChannelClient implements TCPChannel {
+  private static final String TAG = "NioTCPChannelClient";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int FRAME_HEADER_BYTES = 4;
+  private static final int MAX_FRAME_BYTES = 1024 * 1024;
+  private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+  static final int MAX_PENDING_MESSAGES = 64;
+  // A power of two multiple of INITIAL_BUFFER_BYTES, so the doubling write buffer ends up at it.
+  static final int MAX_WRITE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+  @Nullable private static SelectorLoop selectorLoop;
+
+  private final ExecutorService executor;
+  private final ThreadUtils.ThreadChecker executorThreadCheck;
+  private final TCPChannelEvents eventListener;
+  @Nullable private Connection connection;
+
+  /**
+   * Initializes the client. If IP is a local IP address, starts a listening server on that IP. If
+   * not, instead connects to the IP.
+   *
+   * @param eventListener Listener that will receive events from the client.
+   * @param ip            IP address to listen on or connect to.
+   * @param port          Port to listen on or connect to.
+   */
+  public NioTCPChannelClient(
+      ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+    this.executor = executor;
+    executorThreadCheck = new ThreadUtils.ThreadChecker();
+    executorThreadCheck.detachThread();
+    this.eventListener = eventListener;
+
+    InetAddress address;
+    try {
+      address = InetAddress.getByName(ip);
+    } catch (UnknownHostException e) {
+      reportError("Invalid IP address.");
+      return;
+    }
+
+    final SelectorLoop loop;
+    try {
+      loop = getSelectorLoop();
+    } catch (IOException e) {
+      reportError("Failed to open selector: " + e.getMessage());
+      return;
+    }
+    connection = new Connection(loop, new InetSocketAddress(address, port),
+        address.isAnyLocalAddress(), null /* accepted */);
+    loop.post(connection.openTask);
+  }
+
+  /**
+   * Initializes the client on a channel accepted by a listening server, see DirectRTCServer.
+   * Fires onTCPConnected as the server side.
+   */
+  NioTCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener,
+      SocketChannel accepted) {
+    this.executor = executor;
+    executorThreadCheck = new ThreadUtils.ThreadChecker();
+    executorThreadCheck.detachThread();
+    this.eventListener = eventListener;
+
+    final SelectorLoop loop;
+    try {
+      loop = getSelectorLoop();
+    } catch (IOException e) {
+      reportError("Failed to open selector: " + e.getMessage());
+      return;
+    }
+    connection = new Connection(loop, null /* address */, true /* server */, accepted);
+    loop.post(connection.openTask);
+  }
+
+  /**
+   * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
+   */
+  @Override
+  public void disconnect() {
+    executorThreadCheck.checkIsOnValidThread();
+
+    if (connection != null) {
+      connection.loop.post(connection.closeTask);
+    }
+  }
+
+  /**
+   * Sends a message on the socket.
+   *
+   * @param message Message to be sent.
+   */
+  @Override
+  public void send(String message) {
+    executorThreadCheck.checkIsOnValidThread();
+
+    Log.v(TAG, "Send: " + message);
+    final byte[] bytes = message.getBytes(UTF_8);
+    if (bytes.length > MAX_FRAME_BYTES) {
+      // The peer would drop the connection on the frame.
+      reportError("Message of " + bytes.length + " bytes exceeds " + MAX_FRAME_BYTES);
+      return;
+    }
+    if (connection == null || !connection.enqueue(bytes)) {
+      reportError("Sending data on closed socket.");
+    }
+  }
+
+  /**
+   * Helper method for firing onTCPError events. Calls onTCPError on the executor thread.
+   */
+  private void reportError(final String message) {
+    Log.e(TAG, "TCP Error: " + message);
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        eventListener.onTCPError(message);
+      }
+    });
+  }
+
+  // Runs |event| on the executor. Events fired after the owner of the executor shut it down are
+  // dropped, since they must not take down the shared selector thread.
+  private void dispatch(Runnable event) {
+    try {
+      executor.execute(event);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Executor is shut down, dropping event.");
+    }
+  }
+
+  static synchronized SelectorLoop getSelectorLoop() throws IOException {
+    if (selectorLoop == null) {
+      selectorLoop = new SelectorLoop();
+      selectorLoop.start();
+    }
+    return selectorLoop;
+  }
+
+  /** Handles readiness of a registered channel. Called on the selector thread. */
+  interface ReadyHandler {
+    void onReady(SelectionKey key);
+  }
+
+  /** Selector thread shared by all clients. Runs for the lifetime of the process. */
+  static class SelectorLoop extends Thread {
+    final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    SelectorLoop() throws IOException {
+      super(TAG);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    /** Runs |task| on the selector thread. */
+    void post(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      Log.d(TAG, "Selector thread started.");
+      while (true) {
+        try {
+          selector.select();
+        } catch (IOException e) {
+          Log.e(TAG, "Selector failed", e);
+          return;
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid()) {
+            ((ReadyHandler) key.attachment()).onReady(key);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A single connection. Channels and read state are only touched on the selector thread, the
+   * write buffer is shared with the executor thread under |writeLock|.
+   */
+  private class Connection implements ReadyHandler {
+    private final SelectorLoop loop;
+    @Nullable private final InetSocketAddress address;
+    private final boolean server;
+    private final Object writeLock = new Object();
+    // Received messages not yet delivered by the executor.
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+
+    @Nullable private ServerSocketChannel serverChannel;
+    @Nullable private SocketChannel channel;
+    @Nullable private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+    private byte[] frameBytes = new byte[INITIAL_BUFFER_BYTES];
+    private boolean closed;
+    private boolean readPaused;
+    private boolean writeBlocked;
+
+    // Guarded by writeLock. The buffer is kept in fill mode.
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+    private boolean writable;
+    private boolean flushPending;
+    private boolean writeOverflow;
+
+    final Runnable openTask = new Runnable() {
+      @Override
+      public void run() {
+        open();
+      }
+    };
+    final Runnable closeTask = new Runnable() {
+      @Override
+      public void run() {
+        close();
+      }
+    };
+    private final Runnable flushTask = new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    };
+    private final Runnable writeOverflowTask = new Runnable() {
+      @Override
+      public void run() {
+        if (!closed) {
+          reportError("Peer is not reading, " + MAX_WRITE_BUFFER_BYTES + " bytes are unsent.");
+          close();
+        }
+      }
+    };
+    private final Runnable resumeReadTask = new Runnable() {
+      @Override
+      public void run() {
+        resumeRead();
+      }
+    };
+
+    Connection(SelectorLoop loop, @Nullable InetSocketAddress address, boolean server,
+        @Nullable SocketChannel accepted) {
+      this.loop = loop;
+      this.address = address;
+      this.server = server;
+      this.channel = accepted;
+    }
+
+    /**
+     * Appends a frame to the write buffer. Returns false if the connection is not open or is
+     * being closed since the write buffer is full. The message that fills it is dropped, and the
+     * error reported from the selector thread.
+     */
+    boolean enqueue(byte[] message) {
+      synchronized (writeLock) {
+        if (!writable || writeOverflow) {
+          return false;
+        }
+        final int frameBytes = FRAME_HEADER_BYTES + message.length;
+        if (writeBuffer.position() + frameBytes > MAX_WRITE_BUFFER_BYTES) {
+          writeOverflow = true;
+          loop.post(writeOverflowTask);
+          return true;
+        }
+        if (writeBuffer.remaining() < frameBytes) {
+          writeBuffer = grow(writeBuffer, writeBuffer.position() + frameBytes);
+        }
+        writeBuffer.putInt(message.length).put(message);
+        if (flushPending) {
+          return true;
+        }
+        flushPending = true;
+      }
+      loop.post(flushTask);
+      return true;
+    }
+
+    private void open() {
+      try {
+        if (channel != null) {
+          // Already accepted by a listening server.
+          channel.configureBlocking(false);
+          onConnected();
+        } else if (server) {
+          Log.d(TAG, "Listening on " + address);
+          serverChannel = ServerSocketChannel.open();
+          serverChannel.configureBlocking(false);
+          serverChannel.socket().bind(address);
+          key = serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT, this);
+        } else {
+          Log.d(TAG, "Connecting to " + address);
+          channel = SocketChannel.open();
+          channel.configureBlocking(false);
+          if (channel.connect(address)) {
+            onConnected();
+          } else {
+            key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+          }
+        }
+      } catch (IOException e) {
+        reportError((server ? "Failed to create server socket: " : "Failed to connect: ")
+            + e.getMessage());
+        closeChannels();
+      }
+    }
+
+    @Override
+    public void onReady(SelectionKey readyKey) {
+      try {
+        if (readyKey.isAcceptable()) {
+          accept();
+        } else if (readyKey.isConnectable()) {
+          if (channel.finishConnect()) {
+            onConnected();
+          }
+        } else {
+          if (readyKey.isReadable()) {
+            read();
+          }
+          if (readyKey.isValid() && readyKey.isWritable()) {
+            flush();
+          }
+        }
+      } catch (IOException e) {
+        if (!closed) {
+          reportError("Socket error: " + e.getMessage());
+          close();
+        }
+      }
+    }
+
+    private void accept() throws IOException {
+      final SocketChannel accepted = serverChannel.accept();
+      if (accepted == null) {
+        return;
+      }
+      // Only one peer is served, stop listening.
+      key.cancel();
+      serverChannel.close();
+      serverChannel = null;
+      channel = accepted;
+      channel.configureBlocking(false);
+      onConnected();
+    }
+
+    private void onConnected() throws IOException {
+      Log.d(TAG, "TCP connection established.");
+      channel.socket().setTcpNoDelay(true);
+      key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+      synchronized (writeLock) {
+        writable = true;
+      }
+      dispatch(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onTCPConnected(server);
+        }
+      });
+    }
+
+    private void read() throws IOException {
+      if (channel.read(readBuffer) == -1) {
+        Log.d(TAG, "Connection closed by peer.");
+        close();
+        return;
+      }
+      readBuffer.flip();
+      List<String> messages = null;
+      while (readBuffer.remaining() >= FRAME_HEADER_BYTES) {
+        final int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+          reportError("Invalid frame length: " + length);
+          close();
+          return;
+        }
+        if (readBuffer.remaining() < FRAME_HEADER_BYTES + length) {
+          if (readBuffer.capacity() < FRAME_HEADER_BYTES + length) {
+            // Make room for the whole frame.
+            readBuffer.compact();
+            readBuffer = grow(readBuffer, FRAME_HEADER_BYTES + length);
+            readBuffer.flip();
+          }
+          break;
+        }
+        readBuffer.getInt();
+        if (frameBytes.length < length) {
+          frameBytes = new byte[Math.max(length, 2 * frameBytes.length)];
+        }
+        readBuffer.get(frameBytes, 0, length);
+        if (messages == null) {
+          messages = new ArrayList<>();
+        }
+        messages.add(new String(frameBytes, 0, length, UTF_8));
+      }
+      readBuffer.compact();
+
+      if (messages != null) {
+        final List<String> received = messages;
+        if (pendingMessages.addAndGet(received.size()) > MAX_PENDING_MESSAGES) {
+          Log.d(TAG, "Executor is behind, pause reading.");
+          readPaused = true;
+          updateInterestOps();
+        }
+        dispatch(new Runnable() {
+          @Override
+          public void run() {
+            for (String message : received) {
+              Log.v(TAG, "Receive: " + message);
+              eventListener.onTCPMessage(message);
+            }
+            final int pending = pendingMessages.addAndGet(-received.size());
+            if (pending + received.size() > MAX_PENDING_MESSAGES / 2
+                && pending <= MAX_PENDING_MESSAGES / 2) {
+              loop.post(resumeReadTask);
+            }
+          }
+        });
+      }
+    }
+
+    private void resumeRead() {
+      if (!readPaused || closed || key == null
+          || pendingMessages.get() > MAX_PENDING_MESSAGES / 2) {
+        return;
+      }
+      Log.d(TAG, "Resume reading.");
+      readPaused = false;
+      updateInterestOps();
+    }
+
+    // Reads unless paused, and waits for the socket to become writable if the kernel buffer was
+    // full on the last write.
+    private void updateInterestOps() {
+      key.interestOps((readPaused ? 0 : SelectionKey.OP_READ)
+          | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void flush() {
+      if (closed || channel == null || key == null) {
+        return;
+      }
+      try {
+        synchronized (writeLock) {
+          flushPending = false;
+          writeBuffer.flip();
+          channel.write(writeBuffer);
+          writeBlocked = writeBuffer.hasRemaining();
+          writeBuffer.compact();
+        }
+        updateInterestOps();
+      } catch (IOException e) {
+        reportError("Failed to write to socket: " + e.getMessage());
+        close();
+      }
+    }
+
+    /** Closes the connection if it is still open. Also fires the onTCPClose event. */
+    private void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      final boolean wasConnected;
+      synchronized (writeLock) {
+        wasConnected = writable;
+        writable = false;
+      }
+      closeChannels();
+      if (wasConnected) {
+        dispatch(new Runnable() {
+          @Override
+          public void run() {
+            eventListener.onTCPClose();
+          }
+        });
+      }
+    }
+
+    private void closeChannels() {
+      if (key != null) {
+        key.cancel();
+        key = null;
+      }
+      try {
+        if (serverChannel != null) {
+          serverChannel.close();
+          serverChannel = null;
+        }
+        if (channel != null) {
+          channel.close();
+          channel = null;
+        }
+      } catch (IOException e) {
+        reportError("Failed to close socket: " + e.getMessage());
+      }
+    }
+  }
+
+  // Returns a direct buffer with room for at least |minCapacity| bytes holding the contents of
+  // |buffer|, which must be in fill mode. The returned buffer is in fill mode.
+  private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+    final ByteBuffer grown =
+        ByteBuffer.allocateDirect(Math.max(minCapacity, 2 * buffer.capacity()));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+}
@@ -11,6 +11,8 @@
 package org.appspot.apprtc;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
@@ -18,22 +20,15 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.RecordedAudioToFileController;
@@ -66,7 +61,6 @@ import org.webrtc.StatsReport;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoDecoderFactory;
 import org.webrtc.VideoEncoderFactory;
-import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSink;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
@@ -102,7 +96,6 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
@@ -110,7 +103,6 @@ public class PeerConnectionClient {
       "WebRTC-H264HighProfile/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL =
       "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -119,17 +111,47 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_WIDTH = 1280;
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
+  private static final String DATA_CHANNEL_LABEL = "ApprtcDemo data";
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
+  private static final String METRICS_JOURNAL_OUTPUT_DIR_NAME = "metrics_journal";
+  // How much call metrics history to keep, in ms.
+  private static final long CALL_METRICS_HISTORY_MS = 5 * 60 * 1000;
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
   // created on the same thread as previously destroyed factory.
   private static final ExecutorService executor = Executors.newSingleThreadExecutor();
 
+  // Factory kept for the process by warm started clients, see prewarm().
+  private static final WarmFactoryCache<PeerConnectionFactory, PeerConnectionClient> warmFactory =
+      new WarmFactoryCache<>();
+  // The audio device module of the warm factory outlives the calls, so its errors go to the
+  // client whose call uses it.
+  private static final AudioDeviceErrorHandler warmAudioDeviceErrorHandler =
+      new AudioDeviceErrorHandler() {
+        @Override
+        public void onAudioDeviceError(String errorMessage) {
+          final PeerConnectionClient client = warmFactory.getClient();
+          if (client != null) {
+            client.reportError(errorMessage);
+          }
+        }
+      };
+  // EglBase of the warm factory, guarded by the class.
+  @Nullable
+  private static EglBase warmEglBase;
+
   private final PCObserver pcObserver = new PCObserver();
   private final SDPObserver sdpObserver = new SDPObserver();
+  private final DataChannelScheduler dataChannelScheduler = new DataChannelScheduler(executor);
+  // Data channels besides the one of PeerConnectionParameters, sent through the scheduler.
+  private final List<DataChannelParameters> scheduledDataChannels = new ArrayList<>();
 
   private final EglBase rootEglBase;
+  private final boolean warmStart;
+  // Factory shared with other clients, see SharedFactory.
+  @Nullable
+  private final SharedFactory sharedFactory;
   private final Context appContext;
   @Nullable
   private PeerConnectionFactory factory;
@@ -144,13 +166,24 @@ public class PeerConnectionClient {
   private boolean videoCallEnabled;
   private boolean preferIsac;
   private String preferredVideoCodec;
+  // SDP rewrites applied to local and remote descriptions.
+  @Nullable
+  private SdpMunger localSdpMunger;
+  @Nullable
+  private SdpMunger remoteSdpMunger;
   private boolean videoCapturerStopped;
   private boolean isError;
-  private Timer statsTimer;
+  private final StatsSampler statsSampler =
+      new StatsSampler(executor, new StatsSampler.StatsSource() {
+        @Override
+        public boolean requestStats(int generation) {
+          return getStats(generation);
+        }
+      });
   @Nullable
   private VideoSink localRender;
   @Nullable
-  private List<VideoRenderer.Callbacks> remoteRenders;
+  private List<VideoSink> remoteSinks;
   private SignalingParameters signalingParameters;
   private int videoWidth;
   private int videoHeight;
@@ -184,21 +217,63 @@ public class PeerConnectionClient {
   private boolean enableAudio;
   @Nullable
   private AudioTrack localAudioTrack;
-  @Nullable
-  private DataChannel dataChannel;
   private boolean dataChannelEnabled;
+  @Nullable
+  private DataChannelTransfer dataTransfer;
+  // Read on the signaling thread when the remote peer opens a data channel.
+  @Nullable
+  private volatile DataChannelTransfer.Listener dataTransferListener;
+  @Nullable
+  private volatile DataChannelTransfer.MessageConsumer dataChannelMessageConsumer;
   // Enable RtcEventLog.
   @Nullable
   private RtcEventLog rtcEventLog;
+  // Written on the executor thread, read on the stats callback thread.
+  @Nullable
+  private volatile CallMetricsJournal metricsJournal;
+  @Nullable
+  private CallMetricsRecorder callMetrics;
+  // Capture degradation under CPU stress. Only accessed on the executor thread.
+  private boolean cpuAdaptationEnabled;
+  @Nullable
+  private CpuAdaptationController cpuAdaptation;
+  // Capture format selection from the bandwidth estimate. Only accessed on the executor thread.
+  private boolean bandwidthAdaptationEnabled;
+  @Nullable
+  private BandwidthCaptureController bandwidthAdaptation;
+  // Runtime maximum video bitrate. Only accessed on the executor thread.
+  @Nullable
+  private BitrateGovernor bitrateGovernor;
+  // Whether bandwidth adaptation or the bitrate governor needs stats samples. Written on the
+  // executor thread, read on the stats callback thread.
+  private volatile boolean statsAdaptationActive;
+  // Bitrate governor inputs recorded since the last available bandwidth sample, or NaN. Only
+  // accessed on the stats callback thread.
+  private double pendingSendLossPercent = Double.NaN;
+  private double pendingRttMs = Double.NaN;
+  // Maximum video bitrate last requested, or null if unlimited. Only accessed on the executor
+  // thread.
+  @Nullable
+  private Integer videoMaxBitrateBps;
+  // Number of video layers sent, and their settings if more than one. Only accessed on the
+  // executor thread.
+  private int simulcastLayers = 1;
+  @Nullable
+  private SimulcastEncodings simulcastEncodings;
   // Implements the WebRtcAudioRecordSamplesReadyCallback interface and writes
   // recorded audio samples to an output file.
   @Nullable
   private RecordedAudioToFileController saveRecordedAudioToFile = null;
+  private int inputAudioSegmentDurationSec;
+  private int inputAudioMaxTotalMb;
 
   /**
    * Peer connection parameters.
    */
   public static class DataChannelParameters {
+    public final String label;
+    // 0 for the highest, see DataChannelScheduler.
+    public final int priority;
     public final boolean ordered;
     public final int maxRetransmitTimeMs;
     public final int maxRetransmits;
@@ -208,6 +283,14 @@ public class PeerConnectionClient {
 
     public DataChannelParameters(boolean ordered, int maxRetransmitTimeMs, int maxRetransmits,
         String protocol, boolean negotiated, int id) {
+      this(DATA_CHANNEL_LABEL, 0, ordered, maxRetransmitTimeMs, maxRetransmits, protocol,
+          negotiated, id);
+    }
+
+    public DataChannelParameters(String label, int priority, boolean ordered,
+        int maxRetransmitTimeMs, int maxRetransmits, String protocol, boolean negotiated, int id) {
+      this.label = label;
+      this.priority = priority;
       this.ordered = ordered;
       this.maxRetransmitTimeMs = maxRetransmitTimeMs;
       this.maxRetransmits = maxRetransmits;
@@ -231,6 +314,8 @@ public class PeerConnectionClient {
     public final String videoCodec;
     public final boolean videoCodecHwAcceleration;
     public final boolean videoFlexfecEnabled;
+    // Number of spatial layers sent, 1 for no simulcast.
+    public final int videoSimulcastLayers;
     public final int audioStartBitrate;
     public final String audioCodec;
     public final boolean noAudioProcessing;
@@ -242,16 +327,18 @@ public class PeerConnectionClient {
     public final boolean disableBuiltInNS;
     public final boolean disableWebRtcAGCAndHPF;
     public final boolean enableRtcEventLog;
+    public final boolean enableMetricsJournal;
     public final boolean useLegacyAudioDevice;
     private final DataChannelParameters dataChannelParameters;
 
     public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
         int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
-        boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, int audioStartBitrate,
-        String audioCodec, boolean noAudioProcessing, boolean aecDump, boolean saveInputAudioToFile,
-        boolean useOpenSLES, boolean disableBuiltInAEC, boolean disableBuiltInAGC,
-        boolean disableBuiltInNS, boolean disableWebRtcAGCAndHPF, boolean enableRtcEventLog,
-        boolean useLegacyAudioDevice, DataChannelParameters dataChannelParameters) {
+        boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, int videoSimulcastLayers,
+        int audioStartBitrate, String audioCodec, boolean noAudioProcessing, boolean aecDump,
+        boolean saveInputAudioToFile, boolean useOpenSLES, boolean disableBuiltInAEC,
+        boolean disableBuiltInAGC, boolean disableBuiltInNS, boolean disableWebRtcAGCAndHPF,
+        boolean enableRtcEventLog, boolean enableMetricsJournal, boolean useLegacyAudioDevice,
+        DataChannelParameters dataChannelParameters) {
       this.videoCallEnabled = videoCallEnabled;
       this.loopback = loopback;
       this.tracing = tracing;
@@ -261,6 +348,7 @@ public class PeerConnectionClient {
       this.videoMaxBitrate = videoMaxBitrate;
       this.videoCodec = videoCodec;
       this.videoFlexfecEnabled = videoFlexfecEnabled;
+      this.videoSimulcastLayers = videoSimulcastLayers;
       this.videoCodecHwAcceleration = videoCodecHwAcceleration;
       this.audioStartBitrate = audioStartBitrate;
       this.audioCodec = audioCodec;
@@ -273,6 +361,7 @@ public class PeerConnectionClient {
       this.disableBuiltInNS = disableBuiltInNS;
       this.disableWebRtcAGCAndHPF = disableWebRtcAGCAndHPF;
       this.enableRtcEventLog = enableRtcEventLog;
+      this.enableMetricsJournal = enableMetricsJournal;
       this.useLegacyAudioDevice = useLegacyAudioDevice;
       this.dataChannelParameters = dataChannelParameters;
     }
@@ -326,13 +415,134 @@ public class PeerConnectionClient {
   }
 
   public PeerConnectionClient(Context appContext) {
+    this(appContext, false /* warmStart */);
+  }
+
+  /**
+   * @param warmStart Whether to use the factory, EglBase and audio device module kept for the
+   *                  process, which prewarm() can create ahead of the call, instead of creating and
+   *                  releasing them for this call. A call still creates its own factory while
+   *                  another call uses the kept one.
+   */
+  public PeerConnectionClient(Context appContext, boolean warmStart) {
+    if (appContext == null) {
+      throw new NullPointerException("The application context is null");
+    }
+    this.warmStart = warmStart;
+    sharedFactory = null;
+    rootEglBase = warmStart ? getWarmEglBase() : EglBase.create();
+    this.appContext = appContext;
+  }
+
+  /**
+   * Creates a client whose calls use |sharedFactory|, its EglBase and its audio device module,
+   * which stay alive when the client is closed.
+   */
+  PeerConnectionClient(Context appContext, SharedFactory sharedFactory) {
     if (appContext == null) {
       throw new NullPointerException("The application context is null");
     }
-    rootEglBase = EglBase.create();
+    warmStart = false;
+    this.sharedFactory = sharedFactory;
+    rootEglBase = sharedFactory.eglBase;
     this.appContext = appContext;
   }
 
+  /**
+   * Factory, EglBase and audio device module for many clients in a call at the same time, e.g.
+   * the calls of a DirectCallHub. Their calls then share one audio record instead of each
+   * opening the microphone. The factory is created for the first call with the parameters and
+   * options given here, which override the ones of the calls. Input audio cannot be saved to a
+   * file, since the audio device module has no samples callback.
+   */
+  static class SharedFactory {
+    private final Context appContext;
+    private final PeerConnectionParameters peerConnectionParameters;
+    @Nullable
+    private final PeerConnectionFactory.Options options;
+    private final AudioDeviceErrorHandler errorHandler;
+    private final EglBase eglBase = EglBase.create();
+    // Only accessed on the executor.
+    @Nullable
+    private PeerConnectionFactory factory;
+    private boolean released;
+
+    /** |errorHandler| receives the errors of the audio device module on any thread. */
+    SharedFactory(Context appContext, PeerConnectionParameters peerConnectionParameters,
+        @Nullable PeerConnectionFactory.Options options, AudioDeviceErrorHandler errorHandler) {
+      this.appContext = appContext;
+      this.peerConnectionParameters = peerConnectionParameters;
+      this.options = options;
+      this.errorHandler = errorHandler;
+    }
+
+    // Returns the factory, first creating it, or null once released. Called on the executor.
+    @Nullable
+    private PeerConnectionFactory get() {
+      if (released) {
+        return null;
+      }
+      if (factory == null) {
+        factory = createFactory(appContext, peerConnectionParameters, options,
+            getFieldTrials(peerConnectionParameters, peerConnectionParameters.videoCallEnabled),
+            eglBase, null /* samplesReadyCallback */, errorHandler);
+      }
+      return factory;
+    }
+
+    /**
+     * Disposes the factory and the EglBase. Call after closing the clients using them, which
+     * the executor runs first. Can be called on any thread.
+     */
+    void release() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (released) {
+            return;
+          }
+          released = true;
+          if (factory != null) {
+            factory.dispose();
+            factory = null;
+          }
+          eglBase.release();
+          PeerConnectionFactory.shutdownInternalTracer();
+        }
+      });
+    }
+  }
+
+  /**
+   * Creates the factory warm started clients use for calls with |peerConnectionParameters| and
+   * |options|, so their calls start without creating one. Can be called on any thread.
+   */
+  public static void prewarm(final Context appContext,
+      final PeerConnectionParameters peerConnectionParameters,
+      @Nullable final PeerConnectionFactory.Options options) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final long startMs = System.currentTimeMillis();
+        final String fieldTrials =
+            getFieldTrials(peerConnectionParameters, peerConnectionParameters.videoCallEnabled);
+        if (warmFactory.prewarm(
+                getWarmFactoryKey(peerConnectionParameters, options, fieldTrials),
+                createWarmFactoryCreator(
+                    appContext, peerConnectionParameters, options, fieldTrials))) {
+          Log.d(TAG, "Prewarmed in " + (System.currentTimeMillis() - startMs) + " ms.");
+        }
+      }
+    });
+  }
+
+  private static synchronized EglBase getWarmEglBase() {
+    if (warmEglBase == null) {
+      warmEglBase = EglBase.create();
+    }
+    return warmEglBase;
+  }
+
   public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
     this.options = options;
   }
@@ -359,7 +569,6 @@ public class PeerConnectionClient {
     localVideoSender = null;
     enableAudio = true;
     localAudioTrack = null;
-    statsTimer = new Timer();
 
     executor.execute(new Runnable() {
       @Override
@@ -369,22 +578,21 @@ public class PeerConnectionClient {
     });
   }
 
-  public void createPeerConnection(final VideoSink localRender,
-      final VideoRenderer.Callbacks remoteRender, final VideoCapturer videoCapturer,
-      final SignalingParameters signalingParameters) {
+  public void createPeerConnection(final VideoSink localRender, final VideoSink remoteSink,
+      final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
     createPeerConnection(
-        localRender, Collections.singletonList(remoteRender), videoCapturer, signalingParameters);
+        localRender, Collections.singletonList(remoteSink), videoCapturer, signalingParameters);
   }
 
   public void createPeerConnection(final VideoSink localRender,
-      final List<VideoRenderer.Callbacks> remoteRenders, final VideoCapturer videoCapturer,
+      final List<VideoSink> remoteSinks, final VideoCapturer videoCapturer,
       final SignalingParameters signalingParameters) {
     if (peerConnectionParameters == null) {
       Log.e(TAG, "Creating peer connection without initializing factory.");
       return;
     }
     this.localRender = localRender;
-    this.remoteRenders = remoteRenders;
+    this.remoteSinks = remoteSinks;
     this.videoCapturer = videoCapturer;
     this.signalingParameters = signalingParameters;
     executor.execute(new Runnable() {
@@ -394,6 +602,7 @@ public class PeerConnectionClient {
           createMediaConstraintsInternal();
           createPeerConnectionInternal();
           maybeCreateAndStartRtcEventLog();
+          maybeCreateMetricsJournal();
         } catch (Exception e) {
           reportError("Failed to create peer connection: " + e.getMessage());
           throw e;
@@ -418,21 +627,6 @@ public class PeerConnectionClient {
   private void createPeerConnectionFactoryInternal() {
     isError = false;
 
-    // Initialize field trials.
-    String fieldTrials = "";
-    if (peerConnectionParameters.videoFlexfecEnabled) {
-      fieldTrials += VIDEO_FLEXFEC_FIELDTRIAL;
-      Log.d(TAG, "Enable FlexFEC field trial.");
-    }
-    fieldTrials += VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
-    if (peerConnectionParameters.disableWebRtcAGCAndHPF) {
-      fieldTrials += DISABLE_WEBRTC_AGC_FIELDTRIAL;
-      Log.d(TAG, "Disable WebRTC AGC field trial.");
-    }
-    if (!peerConnectionParameters.useLegacyAudioDevice) {
-      Log.d(TAG, "Enable WebRTC external Android audio device field trial.");
-    }
-
     // Check preferred video codec.
     preferredVideoCodec = VIDEO_CODEC_VP8;
     if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
@@ -447,8 +641,6 @@ public class PeerConnectionClient {
           preferredVideoCodec = VIDEO_CODEC_H264;
           break;
         case VIDEO_CODEC_H264_HIGH:
-          // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field trial.
-          fieldTrials += VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
           preferredVideoCodec = VIDEO_CODEC_H264;
           break;
         default:
@@ -456,36 +648,36 @@ public class PeerConnectionClient {
       }
     }
     Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
-
-    // Initialize WebRTC
-    Log.d(TAG,
-        "Initialize WebRTC. Field trials: " + fieldTrials + " Enable video HW acceleration: "
-            + peerConnectionParameters.videoCodecHwAcceleration);
-    PeerConnectionFactory.initialize(
-        PeerConnectionFactory.InitializationOptions.builder(appContext)
-            .setFieldTrials(fieldTrials)
-            .setEnableVideoHwAcceleration(peerConnectionParameters.videoCodecHwAcceleration)
-            .setEnableInternalTracer(true)
-            .createInitializationOptions());
-    if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
+    simulcastLayers = Math.max(1,
+        Math.min(SimulcastEncodings.MAX_LAYERS, peerConnectionParameters.videoSimulcastLayers));
+    if (simulcastLayers > 1 && !preferredVideoCodec.equals(VIDEO_CODEC_VP8)) {
+      Log.w(TAG, "Simulcast needs " + VIDEO_CODEC_VP8 + ", sending a single layer.");
+      simulcastLayers = 1;
     }
 
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
-
-    // It is possible to save a copy in raw PCM format on a file by checking
+    final String preferredAudioCodec = preferIsac ? AUDIO_CODEC_ISAC : null;
+    final String preferredVideoCodecForSdp = videoCallEnabled ? preferredVideoCodec : null;
+    localSdpMunger =
+        new SdpMunger(preferredAudioCodec, preferredVideoCodecForSdp, null, 0, null, 0,
+            videoCallEnabled ? simulcastLayers : 1);
+    remoteSdpMunger = new SdpMunger(preferredAudioCodec, preferredVideoCodecForSdp,
+        AUDIO_CODEC_OPUS, peerConnectionParameters.audioStartBitrate, null, 0, 1);
+
+    // It is possible to save a copy in WAV format on rotating files by checking
     // the "Save input audio to file" checkbox in the Settings UI. A callback
     // interface is set when this flag is enabled. As a result, a copy of recorded
     // audio samples are provided to this client directly from the native audio
     // layer in Java.
     if (peerConnectionParameters.saveInputAudioToFile) {
-      if (!peerConnectionParameters.useOpenSLES) {
+      if (sharedFactory != null) {
+        Log.w(TAG, "Recording of input audio is not supported with a shared factory");
+      } else if (!peerConnectionParameters.useOpenSLES) {
         Log.d(TAG, "Enable recording of microphone input audio to file");
-        saveRecordedAudioToFile = new RecordedAudioToFileController(executor);
+        saveRecordedAudioToFile = new RecordedAudioToFileController(
+            inputAudioSegmentDurationSec, inputAudioMaxTotalMb);
       } else {
         // TODO(henrika): ensure that the UI reflects that if OpenSL ES is selected,
         // then the "Save inut audio to file" option shall be grayed out.
@@ -493,9 +685,112 @@ public class PeerConnectionClient {
       }
     }
 
+    final String fieldTrials = getFieldTrials(peerConnectionParameters, videoCallEnabled);
+    if (sharedFactory != null) {
+      factory = sharedFactory.get();
+      if (factory == null) {
+        reportError("The shared peer connection factory is released.");
+        return;
+      }
+    } else if (warmStart && saveRecordedAudioToFile != null) {
+      // The audio device module of a warm factory has no samples callback.
+      Log.w(TAG, "Saving input audio needs its own factory, not using the warm factory.");
+    } else if (warmStart) {
+      factory = warmFactory.acquire(
+          getWarmFactoryKey(peerConnectionParameters, options, fieldTrials),
+          createWarmFactoryCreator(appContext, peerConnectionParameters, options, fieldTrials),
+          this);
+    }
+    if (factory == null) {
+      factory = createFactory(appContext, peerConnectionParameters, options, fieldTrials,
+          rootEglBase, saveRecordedAudioToFile, new AudioDeviceErrorHandler() {
+            @Override
+            public void onAudioDeviceError(String errorMessage) {
+              reportError(errorMessage);
+            }
+          });
+    }
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
+    }
+  }
+
+  // Returns the field trials of the factory for |peerConnectionParameters|.
+  private static String getFieldTrials(
+      PeerConnectionParameters peerConnectionParameters, boolean videoCallEnabled) {
+    String fieldTrials = "";
+    if (peerConnectionParameters.videoFlexfecEnabled) {
+      fieldTrials += VIDEO_FLEXFEC_FIELDTRIAL;
+      Log.d(TAG, "Enable FlexFEC field trial.");
+    }
+    fieldTrials += VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
+    if (peerConnectionParameters.disableWebRtcAGCAndHPF) {
+      fieldTrials += DISABLE_WEBRTC_AGC_FIELDTRIAL;
+      Log.d(TAG, "Disable WebRTC AGC field trial.");
+    }
+    if (!peerConnectionParameters.useLegacyAudioDevice) {
+      Log.d(TAG, "Enable WebRTC external Android audio device field trial.");
+    }
+    if (videoCallEnabled && VIDEO_CODEC_H264_HIGH.equals(peerConnectionParameters.videoCodec)) {
+      // TODO(magjed): Strip High from SDP when selecting Baseline instead of using field trial.
+      fieldTrials += VIDEO_H264_HIGH_PROFILE_FIELDTRIAL;
+    }
+    return fieldTrials;
+  }
+
+  // Returns the key of the warm factory, everything createFactory() depends on.
+  private static String getWarmFactoryKey(PeerConnectionParameters peerConnectionParameters,
+      @Nullable PeerConnectionFactory.Options options, String fieldTrials) {
+    return fieldTrials + "|" + peerConnectionParameters.videoCodecHwAcceleration + "|"
+        + peerConnectionParameters.videoCodec + "|" + peerConnectionParameters.useLegacyAudioDevice
+        + "|" + peerConnectionParameters.useOpenSLES + "|"
+        + peerConnectionParameters.disableBuiltInAEC + "|"
+        + peerConnectionParameters.disableBuiltInAGC + "|"
+        + peerConnectionParameters.disableBuiltInNS + "|"
+        + (options != null ? options.networkIgnoreMask : -1);
+  }
+
+  // Returns a creator of warm factories, which use the warm EglBase and report audio device
+  // errors to the client using them. Called on the executor.
+  private static WarmFactoryCache.Creator<PeerConnectionFactory> createWarmFactoryCreator(
+      final Context appContext, final PeerConnectionParameters peerConnectionParameters,
+      @Nullable final PeerConnectionFactory.Options options, final String fieldTrials) {
+    return new WarmFactoryCache.Creator<PeerConnectionFactory>() {
+      @Override
+      public PeerConnectionFactory create() {
+        return createFactory(appContext, peerConnectionParameters, options, fieldTrials,
+            getWarmEglBase(), null /* samplesReadyCallback */, warmAudioDeviceErrorHandler);
+      }
+
+      @Override
+      public void dispose(PeerConnectionFactory factory) {
+        factory.dispose();
+      }
+    };
+  }
+
+  private static PeerConnectionFactory createFactory(Context appContext,
+      PeerConnectionParameters peerConnectionParameters,
+      @Nullable PeerConnectionFactory.Options options, String fieldTrials, EglBase eglBase,
+      @Nullable RecordedAudioToFileController samplesReadyCallback,
+      AudioDeviceErrorHandler errorHandler) {
+    // Initialize WebRTC
+    Log.d(TAG,
+        "Initialize WebRTC. Field trials: " + fieldTrials + " Enable video HW acceleration: "
+            + peerConnectionParameters.videoCodecHwAcceleration);
+    PeerConnectionFactory.initialize(
+        PeerConnectionFactory.InitializationOptions.builder(appContext)
+            .setFieldTrials(fieldTrials)
+            .setEnableVideoHwAcceleration(peerConnectionParameters.videoCodecHwAcceleration)
+            .setEnableInternalTracer(true)
+            .createInitializationOptions());
+
     final AudioDeviceModule adm = peerConnectionParameters.useLegacyAudioDevice
-        ? createLegacyAudioDevice()
-        : createJavaAudioDevice();
+        ? createLegacyAudioDevice(peerConnectionParameters, samplesReadyCallback, errorHandler)
+        : createJavaAudioDevice(
+              appContext, peerConnectionParameters, samplesReadyCallback, errorHandler);
 
     // Create peer connection factory.
     if (options != null) {
@@ -508,23 +803,32 @@ public class PeerConnectionClient {
 
     if (peerConnectionParameters.videoCodecHwAcceleration) {
       encoderFactory = new DefaultVideoEncoderFactory(
-          rootEglBase.getEglBaseContext(), true /* enableIntelVp8Encoder */, enableH264HighProfile);
-      decoderFactory = new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext());
+          eglBase.getEglBaseContext(), true /* enableIntelVp8Encoder */, enableH264HighProfile);
+      decoderFactory = new DefaultVideoDecoderFactory(eglBase.getEglBaseContext());
     } else {
       encoderFactory = new SoftwareVideoEncoderFactory();
       decoderFactory = new SoftwareVideoDecoderFactory();
     }
 
-    factory = PeerConnectionFactory.builder()
-                  .setOptions(options)
-                  .setAudioDeviceModule(adm)
-                  .setVideoEncoderFactory(encoderFactory)
-                  .setVideoDecoderFactory(decoderFactory)
-                  .createPeerConnectionFactory();
+    final PeerConnectionFactory factory = PeerConnectionFactory.builder()
+                                              .setOptions(options)
+                                              .setAudioDeviceModule(adm)
+                                              .setVideoEncoderFactory(encoderFactory)
+                                              .setVideoDecoderFactory(decoderFactory)
+                                              .createPeerConnectionFactory();
     Log.d(TAG, "Peer connection factory created.");
+    return factory;
+  }
+
+  // Receives the errors of an audio device module.
+  interface AudioDeviceErrorHandler {
+    void onAudioDeviceError(String errorMessage);
   }
 
-  AudioDeviceModule createLegacyAudioDevice() {
+  private static AudioDeviceModule createLegacyAudioDevice(
+      PeerConnectionParameters peerConnectionParameters,
+      @Nullable RecordedAudioToFileController samplesReadyCallback,
+      final AudioDeviceErrorHandler errorHandler) {
     // Enable/disable OpenSL ES playback.
     if (!peerConnectionParameters.useOpenSLES) {
       Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
@@ -550,27 +854,27 @@ public class PeerConnectionClient {
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
     }
 
-    WebRtcAudioRecord.setOnAudioSamplesReady(saveRecordedAudioToFile);
+    WebRtcAudioRecord.setOnAudioSamplesReady(samplesReadyCallback);
 
     // Set audio record error callbacks.
     WebRtcAudioRecord.setErrorCallback(new WebRtcAudioRecordErrorCallback() {
       @Override
       public void onWebRtcAudioRecordInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordInitError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioRecordStartError(
           AudioRecordStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordStartError: " + errorCode + ". " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioRecordError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
     });
 
@@ -578,27 +882,30 @@ public class PeerConnectionClient {
       @Override
       public void onWebRtcAudioTrackInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackInitError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioTrackStartError(
           AudioTrackStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackStartError: " + errorCode + ". " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioTrackError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
     });
 
     return new LegacyAudioDeviceModule();
   }
 
-  AudioDeviceModule createJavaAudioDevice() {
+  private static AudioDeviceModule createJavaAudioDevice(Context appContext,
+      PeerConnectionParameters peerConnectionParameters,
+      @Nullable RecordedAudioToFileController samplesReadyCallback,
+      final AudioDeviceErrorHandler errorHandler) {
     // Enable/disable OpenSL ES playback.
     if (!peerConnectionParameters.useOpenSLES) {
       Log.w(TAG, "External OpenSLES ADM not implemented yet.");
@@ -610,20 +917,20 @@ public class PeerConnectionClient {
       @Override
       public void onWebRtcAudioRecordInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordInitError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioRecordStartError(
           JavaAudioDeviceModule.AudioRecordStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordStartError: " + errorCode + ". " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioRecordError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
     };
 
@@ -631,30 +938,30 @@ public class PeerConnectionClient {
       @Override
       public void onWebRtcAudioTrackInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackInitError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioTrackStartError(
           JavaAudioDeviceModule.AudioTrackStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackStartError: " + errorCode + ". " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioTrackError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackError: " + errorMessage);
-        reportError(errorMessage);
+        errorHandler.onAudioDeviceError(errorMessage);
       }
     };
 
     return JavaAudioDeviceModule.builder(appContext)
-        .setSamplesReadyCallback(saveRecordedAudioToFile)
+        .setSamplesReadyCallback(samplesReadyCallback)
         .setUseHardwareAcousticEchoCanceler(peerConnectionParameters.disableBuiltInAEC)
         .setUseHardwareNoiseSuppressor(peerConnectionParameters.disableBuiltInNS)
         .setAudioRecordErrorCallback(audioRecordErrorCallback)
         .setAudioTrackErrorCallback(audioTrackErrorCallback)
-        .setSamplesReadyCallback(saveRecordedAudioToFile)
+        .setSamplesReadyCallback(samplesReadyCallback)
         .createAudioDeviceModule();
   }
 
@@ -681,6 +988,10 @@ public class PeerConnectionClient {
         videoFps = 30;
       }
       Logging.d(TAG, "Capturing format: " + videoWidth + "x" + videoHeight + "@" + videoFps);
+      if (simulcastLayers > 1) {
+        Log.d(TAG, "Sending " + simulcastLayers + " simulcast layers.");
+        simulcastEncodings = new SimulcastEncodings(simulcastLayers, videoWidth, videoHeight);
+      }
     }
 
     // Create audio constraints.
@@ -741,14 +1052,18 @@ public class PeerConnectionClient {
     peerConnection = factory.createPeerConnection(rtcConfig, pcObserver);
 
     if (dataChannelEnabled) {
-      DataChannel.Init init = new DataChannel.Init();
-      init.ordered = peerConnectionParameters.dataChannelParameters.ordered;
-      init.negotiated = peerConnectionParameters.dataChannelParameters.negotiated;
-      init.maxRetransmits = peerConnectionParameters.dataChannelParameters.maxRetransmits;
-      init.maxRetransmitTimeMs = peerConnectionParameters.dataChannelParameters.maxRetransmitTimeMs;
-      init.id = peerConnectionParameters.dataChannelParameters.id;
-      init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
-      dataChannel = peerConnection.createDataChannel("ApprtcDemo data", init);
+      final DataChannel dataChannel =
+          createDataChannel(peerConnectionParameters.dataChannelParameters);
+      dataTransfer = new DataChannelTransfer(
+          dataChannel, executor, dataTransferListener, dataChannelMessageConsumer);
+      // Disposed by the scheduler, which holds back the other lanes while blobs are sent.
+      dataChannelScheduler.addTransferLane(dataChannel, dataTransfer);
+    }
+    for (DataChannelParameters parameters : scheduledDataChannels) {
+      final boolean reliable =
+          parameters.maxRetransmits < 0 && parameters.maxRetransmitTimeMs < 0;
+      dataChannelScheduler.addLane(parameters.label, parameters.priority, reliable,
+          createDataChannel(parameters), dataChannelMessageConsumer);
     }
     isInitiator = false;
 
@@ -759,12 +1074,12 @@ public class PeerConnectionClient {
     List<String> mediaStreamLabels = Collections.singletonList("ARDAMS");
     if (videoCallEnabled) {
       peerConnection.addTrack(createVideoTrack(videoCapturer), mediaStreamLabels);
-      // We can add the renderers right away because we don't need to wait for an
+      // We can add the sinks right away because we don't need to wait for an
       // answer to get the remote track.
       remoteVideoTrack = getRemoteVideoTrack();
       remoteVideoTrack.setEnabled(renderVideo);
-      for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
-        remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+      for (VideoSink remoteSink : remoteSinks) {
+        remoteVideoTrack.addSink(remoteSink);
       }
     }
     peerConnection.addTrack(createAudioTrack(), mediaStreamLabels);
@@ -793,6 +1108,17 @@ public class PeerConnectionClient {
     Log.d(TAG, "Peer connection created.");
   }
 
+  private DataChannel createDataChannel(DataChannelParameters parameters) {
+    DataChannel.Init init = new DataChannel.Init();
+    init.ordered = parameters.ordered;
+    init.negotiated = parameters.negotiated;
+    init.maxRetransmits = parameters.maxRetransmits;
+    init.maxRetransmitTimeMs = parameters.maxRetransmitTimeMs;
+    init.id = parameters.id;
+    init.protocol = parameters.protocol;
+    return peerConnection.createDataChannel(parameters.label, init);
+  }
+
   private File createRtcEventLogOutputFile() {
     DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_hhmm_ss", Locale.getDefault());
     Date date = new Date();
@@ -813,15 +1139,41 @@ public class PeerConnectionClient {
     rtcEventLog.start(createRtcEventLogOutputFile());
   }
 
+  private File createMetricsJournalOutputFile() {
+    DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_hhmm_ss", Locale.getDefault());
+    Date date = new Date();
+    final String outputFileName = "metrics_" + dateFormat.format(date) + ".bin";
+    return new File(
+        appContext.getDir(METRICS_JOURNAL_OUTPUT_DIR_NAME, Context.MODE_PRIVATE), outputFileName);
+  }
+
+  private void maybeCreateMetricsJournal() {
+    if (appContext == null || !peerConnectionParameters.enableMetricsJournal) {
+      return;
+    }
+    metricsJournal = CallMetricsJournal.create(createMetricsJournalOutputFile());
+  }
+
+  private void writeJournal(CallMetricsJournal.RecordType type, int code, double value) {
+    final CallMetricsJournal journal = metricsJournal;
+    if (journal != null) {
+      journal.write(type, code, value);
+    }
+  }
+
   private void closeInternal() {
     if (factory != null && peerConnectionParameters.aecDump) {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
-    if (dataChannel != null) {
-      dataChannel.dispose();
-      dataChannel = null;
+    statsSampler.stop();
+    if (callMetrics != null) {
+      callMetrics.logSummary(CALL_METRICS_HISTORY_MS);
+    }
+    dataChannelScheduler.release();
+    if (dataTransfer != null) {
+      dataTransfer.release();
+      dataTransfer = null;
     }
     if (rtcEventLog != null) {
       // RtcEventLog should stop before the peer connection is disposed.
@@ -859,18 +1211,28 @@ public class PeerConnectionClient {
       saveRecordedAudioToFile = null;
     }
     localRender = null;
-    remoteRenders = null;
+    remoteSinks = null;
     Log.d(TAG, "Closing peer connection factory.");
-    if (factory != null) {
+    // The warm factory is kept for the next call, the shared one for the other clients.
+    if (factory != null && sharedFactory == null && !warmFactory.release(this)) {
       factory.dispose();
-      factory = null;
     }
+    factory = null;
     options = null;
-    rootEglBase.release();
+    if (!warmStart && sharedFactory == null) {
+      rootEglBase.release();
+    }
     Log.d(TAG, "Closing peer connection done.");
+    writeJournal(CallMetricsJournal.RecordType.PEER_CONNECTION_CLOSED, 0, 0);
+    if (metricsJournal != null) {
+      metricsJournal.close();
+      metricsJournal = null;
+    }
     events.onPeerConnectionClosed();
     PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
+    if (!warmFactory.hasFactory() && sharedFactory == null) {
+      PeerConnectionFactory.shutdownInternalTracer();
+    }
     events = null;
   }
 
@@ -883,41 +1245,355 @@ public class PeerConnectionClient {
   }
 
   @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
-  private void getStats() {
+  private boolean getStats(final int generation) {
     if (peerConnection == null || isError) {
-      return;
+      return false;
     }
     boolean success = peerConnection.getStats(new StatsObserver() {
       @Override
       public void onComplete(final StatsReport[] reports) {
+        statsSampler.onSampleComplete(generation);
+        if (callMetrics != null) {
+          callMetrics.record(reports);
+        }
         events.onPeerConnectionStatsReady(reports);
       }
     }, null);
     if (!success) {
       Log.e(TAG, "getStats() returns false!");
     }
+    return success;
   }
 
+  /**
+   * Enables periodic stats events every |periodMs|. While ICE is reconnecting stats are sampled
+   * twice as often. At most one stats request is outstanding at any time.
+   */
   public void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
+      if (callMetrics == null) {
+        // Stats are sampled twice as often while ICE reconnects.
+        callMetrics = new CallMetricsRecorder(CALL_METRICS_HISTORY_MS, periodMs / 2);
+        callMetrics.setSampleListener(new CallMetricsRecorder.SampleListener() {
           @Override
-          public void run() {
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                getStats();
-              }
-            });
+          public void onSample(CallMetricsRecorder.Metric metric, long timeMs, double value) {
+            final CallMetricsJournal journal = metricsJournal;
+            if (journal != null) {
+              journal.writeAt(timeMs, CallMetricsJournal.RecordType.STATS_SAMPLE,
+                  metric.ordinal(), value);
+            }
+            onStatsSample(metric, timeMs, value);
           }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+        });
       }
+      statsSampler.start(periodMs);
     } else {
-      statsTimer.cancel();
+      statsSampler.stop();
+    }
+  }
+
+  // Collects the bitrate governor inputs of a stats report and posts them to the executor
+  // together with the available bandwidth, once per report and only if anything adapts to them.
+  // CPU usage is recorded by onCpuReport(), on the executor thread.
+  private void onStatsSample(CallMetricsRecorder.Metric metric, long timeMs, double value) {
+    switch (metric) {
+      case SEND_PACKET_LOSS_PERCENT:
+        pendingSendLossPercent = value;
+        break;
+      case RTT_MS:
+        pendingRttMs = value;
+        break;
+      case CPU_USAGE_PERCENT:
+        governBitrate(metric, timeMs, value);
+        break;
+      case AVAILABLE_SEND_BANDWIDTH_BPS:
+        if (statsAdaptationActive) {
+          adaptToStats(timeMs, value, pendingSendLossPercent, pendingRttMs);
+        }
+        pendingSendLossPercent = Double.NaN;
+        pendingRttMs = Double.NaN;
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void adaptToStats(final long timeMs, final double availableSendBps,
+      final double sendLossPercent, final double rttMs) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!Double.isNaN(sendLossPercent)) {
+          governBitrate(
+              CallMetricsRecorder.Metric.SEND_PACKET_LOSS_PERCENT, timeMs, sendLossPercent);
+        }
+        if (!Double.isNaN(rttMs)) {
+          governBitrate(CallMetricsRecorder.Metric.RTT_MS, timeMs, rttMs);
+        }
+        adaptToBandwidth(timeMs, availableSendBps);
+        governBitrate(
+            CallMetricsRecorder.Metric.AVAILABLE_SEND_BANDWIDTH_BPS, timeMs, availableSendBps);
+      }
+    });
+  }
+
+  // Called on the executor thread whenever a stats consumer is enabled or disabled.
+  private void updateStatsAdaptationActive() {
+    statsAdaptationActive = bandwidthAdaptationEnabled || bitrateGovernor != null;
+  }
+
+  // Samples faster while ICE is (re)connecting and falls back to the requested period once the
+  // connection is established.
+  private void updateStatsPeriod(IceConnectionState state) {
+    if (state == IceConnectionState.CHECKING || state == IceConnectionState.DISCONNECTED) {
+      statsSampler.setFastSampling(true);
+    } else if (state == IceConnectionState.CONNECTED || state == IceConnectionState.COMPLETED) {
+      statsSampler.setFastSampling(false);
+    }
+  }
+
+  /**
+   * Enables capture degradation under CPU or thermal stress, driven by the reports passed to
+   * onCpuReport(), see CpuAdaptationController.
+   */
+  public void enableCpuAdaptation(final boolean enable) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        cpuAdaptationEnabled = enable;
+        if (!enable && cpuAdaptation != null && cpuAdaptation.getLevel() != 0) {
+          Log.d(TAG, "CPU adaptation disabled, restoring the capture format.");
+          adaptOutputFormat(cpuAdaptation.getBaseWidth(), cpuAdaptation.getBaseHeight(),
+              cpuAdaptation.getBaseFramerate());
+        }
+        cpuAdaptation = null;
+      }
+    });
+  }
+
+  /**
+   * Handles a CpuMonitor sample. Adds it to the call metrics and the journal: the total usage,
+   * the usage of each core and the busiest threads. Adapts the capture format if enabled. Called
+   * on the monitor thread.
+   */
+  public void onCpuReport(CpuMonitor.CpuReport monitorReport) {
+    // The monitor refills its report while the executor may still be behind.
+    final CpuMonitor.CpuReport report = monitorReport.copy();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        adaptToCpuReport(report);
+        if (callMetrics != null) {
+          callMetrics.recordCpuUsage(report.timeMs, report.totalPercent);
+        }
+        for (int i = 0; i < report.corePercents.length; i++) {
+          writeJournal(CallMetricsJournal.RecordType.CPU_CORE_USAGE, i, report.corePercents[i]);
+        }
+        for (int i = 0; i < report.topThreadCount; i++) {
+          final CpuMonitor.ThreadUsage thread = report.topThreads[i];
+          writeJournal(CallMetricsJournal.RecordType.THREAD_CPU_USAGE, thread.tid, thread.percent);
+        }
+      }
+    });
+  }
+
+  private void adaptToCpuReport(CpuMonitor.CpuReport report) {
+    if (!cpuAdaptationEnabled || !videoCallEnabled || isError || videoSource == null) {
+      return;
+    }
+    if (cpuAdaptation == null) {
+      cpuAdaptation = bandwidthAdaptation == null
+          ? new CpuAdaptationController(videoWidth, videoHeight, videoFps)
+          : new CpuAdaptationController(bandwidthAdaptation.getWidth(),
+                bandwidthAdaptation.getHeight(), bandwidthAdaptation.getFramerate());
+    }
+    if (cpuAdaptation.onCpuReport(report)) {
+      writeJournal(CallMetricsJournal.RecordType.CPU_ADAPTATION, cpuAdaptation.getLevel(),
+          report.averagePercent);
+      adaptOutputFormat(
+          cpuAdaptation.getWidth(), cpuAdaptation.getHeight(), cpuAdaptation.getFramerate());
+    }
+  }
+
+  /**
+   * Enables capture format selection from the available send bandwidth estimate, see
+   * BandwidthCaptureController. Needs stats events. A manual capture format change disables it.
+   */
+  public void enableBandwidthAdaptation(final boolean enable) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        bandwidthAdaptationEnabled = enable;
+        updateStatsAdaptationActive();
+        if (!enable && bandwidthAdaptation != null) {
+          Log.d(TAG, "Bandwidth adaptation disabled, restoring the capture format.");
+          bandwidthAdaptation = null;
+          setAdaptationBaseFormat(videoWidth, videoHeight, videoFps);
+        }
+      }
+    });
+  }
+
+  private void adaptToBandwidth(long timeMs, double bps) {
+    if (!bandwidthAdaptationEnabled || !videoCallEnabled || isError || videoSource == null) {
+      return;
+    }
+    if (bandwidthAdaptation == null) {
+      bandwidthAdaptation = new BandwidthCaptureController(
+          videoWidth, videoHeight, videoFps, peerConnectionParameters.videoMaxBitrate);
+    }
+    if (bandwidthAdaptation.onAvailableBandwidth(timeMs, bps)) {
+      writeJournal(CallMetricsJournal.RecordType.BANDWIDTH_ADAPTATION,
+          bandwidthAdaptation.getHeight(), bps);
+      setAdaptationBaseFormat(bandwidthAdaptation.getWidth(), bandwidthAdaptation.getHeight(),
+          bandwidthAdaptation.getFramerate());
+    }
+  }
+
+  // Applies a new format before CPU adaptation, which keeps its degradation level.
+  private void setAdaptationBaseFormat(int width, int height, int framerate) {
+    if (cpuAdaptation == null) {
+      adaptOutputFormat(width, height, framerate);
+      return;
+    }
+    cpuAdaptation.updateBaseFormat(width, height, framerate);
+    adaptOutputFormat(
+        cpuAdaptation.getWidth(), cpuAdaptation.getHeight(), cpuAdaptation.getFramerate());
+  }
+
+  /**
+   * Sets the listener told about the blobs sent with sendData() and received from the remote
+   * peer. Has to be called before createPeerConnection.
+   */
+  public void setDataTransferListener(@Nullable DataChannelTransfer.Listener listener) {
+    dataTransferListener = listener;
+  }
+
+  /**
+   * Sets the consumer of the messages received over the data channel that are not sendData()
+   * chunks. Has to be called before createPeerConnection.
+   */
+  public void setDataChannelMessageConsumer(
+      @Nullable DataChannelTransfer.MessageConsumer consumer) {
+    dataChannelMessageConsumer = consumer;
+  }
+
+  /**
+   * Adds a data channel with its own label, reliability and priority, for messages sent with
+   * sendDataChannelMessage(). Has to be called before createPeerConnection.
+   */
+  public void addDataChannel(final DataChannelParameters parameters) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        scheduledDataChannels.add(parameters);
+      }
+    });
+  }
+
+  /**
+   * Sends the remaining bytes of |data| as one message over the data channel added with
+   * addDataChannel() as |label|. |data| can be reused when this returns.
+   */
+  public void sendDataChannelMessage(String label, ByteBuffer data, boolean binary) {
+    dataChannelScheduler.send(label, data, binary);
+  }
+
+  /** Returns the scheduler of the channels added with addDataChannel(), e.g. for its stats. */
+  public DataChannelScheduler getDataChannelScheduler() {
+    return dataChannelScheduler;
+  }
+
+  /**
+   * Sends the remaining bytes of |data| over the data channel in chunks, once it is open. |data|
+   * must not be modified until DataChannelTransfer.Listener.onTransferSent is called.
+   */
+  public void sendData(final ByteBuffer data) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (dataTransfer == null) {
+          Log.e(TAG, "Cannot send data without a data channel.");
+          return;
+        }
+        dataTransfer.send(data);
+      }
+    });
+  }
+
+  /**
+   * Sets the duration of the files input audio is saved to and the disk space all saved input
+   * audio may use, or 0 for the defaults. Has to be called before createPeerConnectionFactory.
+   */
+  public void setInputAudioSegments(final int segmentDurationSec, final int maxTotalMb) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inputAudioSegmentDurationSec = segmentDurationSec;
+        inputAudioMaxTotalMb = maxTotalMb;
+      }
+    });
+  }
+
+  /**
+   * Adjusts the maximum video bitrate at runtime with the BitrateGovernor policy named
+   * |policyName|, or stops adjusting it if null. Needs stats events. The maximum video bitrate
+   * parameter is the ceiling.
+   */
+  public void setBitrateGovernorPolicy(@Nullable final String policyName) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final BitrateGovernor.Policy policy = BitrateGovernor.createPolicy(policyName);
+        if (policy == null) {
+          bitrateGovernor = null;
+          updateStatsAdaptationActive();
+          return;
+        }
+        Log.d(TAG, "Bitrate governor policy: " + policyName);
+        bitrateGovernor = new BitrateGovernor(policy, peerConnectionParameters.videoMaxBitrate);
+        updateStatsAdaptationActive();
+        updateNetworkType();
+      }
+    });
+  }
+
+  private void governBitrate(CallMetricsRecorder.Metric metric, long timeMs, double value) {
+    if (bitrateGovernor == null || !bitrateGovernor.onSample(metric, timeMs, value)) {
+      return;
+    }
+    final int maxBitrateBps = bitrateGovernor.getMaxBitrateBps();
+    final BitrateGovernor.Conditions conditions = bitrateGovernor.getLastConditions();
+    Log.d(TAG, "Bitrate governor: max video bitrate " + maxBitrateBps / BPS_IN_KBPS
+            + " kbps. Send loss: " + conditions.sendLossPercent + "%, RTT: " + conditions.rttMs
+            + " ms, CPU: " + conditions.cpuPercent + "%, available: "
+            + (int) conditions.availableSendBps / BPS_IN_KBPS + " kbps, network: "
+            + conditions.networkType);
+    writeJournal(CallMetricsJournal.RecordType.MAX_VIDEO_BITRATE, 0, maxBitrateBps);
+    setVideoMaxBitrateInternal(maxBitrateBps);
+  }
+
+  // Network types only change with the ICE connection, so they are read when it (re)connects.
+  private void updateNetworkType() {
+    if (bitrateGovernor == null) {
+      return;
     }
+    final ConnectivityManager connectivityManager =
+        (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    final NetworkInfo networkInfo =
+        connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+    final BitrateGovernor.NetworkType networkType = networkInfo == null
+        ? BitrateGovernor.NetworkType.UNKNOWN
+        : BitrateGovernor.toNetworkType(networkInfo.getType(), networkInfo.getSubtype());
+    Log.d(TAG, "Network type: " + networkType);
+    writeJournal(CallMetricsJournal.RecordType.NETWORK_TYPE, networkType.ordinal(), 0);
+    bitrateGovernor.setNetworkType(networkType);
+  }
+
+  /** Returns the recent call quality history, or null if stats events were never enabled. */
+  @Nullable
+  public CallMetricsRecorder getCallMetrics() {
+    return callMetrics;
   }
 
   public void setAudioEnabled(final boolean enable) {
@@ -978,6 +1654,8 @@ public class PeerConnectionClient {
       @Override
       public void run() {
         if (peerConnection != null && !isError) {
+          writeJournal(CallMetricsJournal.RecordType.REMOTE_ICE_CANDIDATE,
+              candidate.sdpMLineIndex, 0);
           if (queuedRemoteCandidates != null) {
             queuedRemoteCandidates.add(candidate);
           } else {
@@ -1010,18 +1688,10 @@ public class PeerConnectionClient {
         if (peerConnection == null || isError) {
           return;
         }
-        String sdpDescription = sdp.description;
-        if (preferIsac) {
-          sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-        }
-        if (videoCallEnabled) {
-          sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-        }
-        if (peerConnectionParameters.audioStartBitrate > 0) {
-          sdpDescription = setStartBitrate(
-              AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-        }
+        String sdpDescription = remoteSdpMunger.munge(sdp.description);
         Log.d(TAG, "Set remote SDP.");
+        writeJournal(CallMetricsJournal.RecordType.REMOTE_DESCRIPTION, sdp.type.ordinal(),
+            sdpDescription.length());
         SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
         peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
       }
@@ -1065,35 +1735,76 @@ public class PeerConnectionClient {
           return;
         }
         Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
-        if (localVideoSender == null) {
-          Log.w(TAG, "Sender is not ready.");
-          return;
+        if (setVideoMaxBitrateInternal(
+                maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS)) {
+          Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
         }
+      }
+    });
+  }
 
-        RtpParameters parameters = localVideoSender.getParameters();
-        if (parameters.encodings.size() == 0) {
-          Log.w(TAG, "RtpParameters are not ready.");
+  /**
+   * Sets whether simulcast layer |layer| is sent and its maximum bitrate, or null for the default.
+   * Layer 0 has the lowest resolution. The maximum video bitrate still applies to all layers
+   * together.
+   */
+  public void setVideoLayer(
+      final int layer, final boolean active, @Nullable final Integer maxBitrateKbps) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (simulcastEncodings == null
+            || !simulcastEncodings.setLayer(
+                   layer, active, maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS)) {
+          Log.w(TAG, "No simulcast layer " + layer + ".");
           return;
         }
-
-        for (RtpParameters.Encoding encoding : parameters.encodings) {
-          // Null value means no limit.
-          encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
-        }
-        if (!localVideoSender.setParameters(parameters)) {
-          Log.e(TAG, "RtpSender.setParameters failed.");
-        }
-        Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
+        Log.d(TAG, "Simulcast layer " + layer + (active ? " on" : " off") + ", max bitrate: "
+                + maxBitrateKbps);
+        setVideoMaxBitrateInternal(videoMaxBitrateBps);
       }
     });
   }
 
+  // Returns true if the maximum bitrate was set. With simulcast, the bitrate is shared by the
+  // layers.
+  private boolean setVideoMaxBitrateInternal(@Nullable Integer maxBitrateBps) {
+    videoMaxBitrateBps = maxBitrateBps;
+    if (peerConnection == null || localVideoSender == null || isError) {
+      Log.w(TAG, "Sender is not ready.");
+      return false;
+    }
+
+    RtpParameters parameters = localVideoSender.getParameters();
+    if (parameters.encodings.size() == 0) {
+      Log.w(TAG, "RtpParameters are not ready.");
+      return false;
+    }
+
+    if (simulcastEncodings != null) {
+      simulcastEncodings.apply(parameters.encodings, maxBitrateBps);
+    } else {
+      for (RtpParameters.Encoding encoding : parameters.encodings) {
+        // Null value means no limit.
+        encoding.maxBitrateBps = maxBitrateBps;
+      }
+    }
+    if (!localVideoSender.setParameters(parameters)) {
+      Log.e(TAG, "RtpSender.setParameters failed.");
+      return false;
+    }
+    return true;
+  }
+
   private void reportError(final String errorMessage) {
     Log.e(TAG, "Peerconnection error: " + errorMessage);
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (!isError) {
+        // The legacy audio device error callbacks are set for the process, so they can report to
+        // a client that is closed already.
+        if (!isError && events != null) {
+          writeJournal(CallMetricsJournal.RecordType.PEER_CONNECTION_ERROR, 0, 0);
           events.onPeerConnectionError(errorMessage);
           isError = true;
         }
@@ -1120,6 +1831,13 @@ public class PeerConnectionClient {
     return localVideoTrack;
   }
 
+  // The sender has an encoding per layer once the local description is set.
+  private void applySimulcastLayers() {
+    if (simulcastEncodings != null) {
+      setVideoMaxBitrateInternal(videoMaxBitrateBps);
+    }
+  }
+
   private void findVideoSender() {
     for (RtpSender sender : peerConnection.getSenders()) {
       if (sender.track() != null) {
@@ -1143,150 +1861,6 @@ public class PeerConnectionClient {
     return null;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-    }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
-    }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
-    }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
-  }
-
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
-      }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
-    }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
-    }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
-  }
-
   private void drainCandidates() {
     if (queuedRemoteCandidates != null) {
       Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
@@ -1336,7 +1910,23 @@ public class PeerConnectionClient {
       return;
     }
     Log.d(TAG, "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
-    videoSource.adaptOutputFormat(width, height, framerate);
+    if (bandwidthAdaptationEnabled) {
+      Log.d(TAG, "Manual capture format change, bandwidth adaptation disabled.");
+      bandwidthAdaptationEnabled = false;
+      bandwidthAdaptation = null;
+      updateStatsAdaptationActive();
+    }
+    if (cpuAdaptation != null) {
+      // Adapt relative to the requested format from now on.
+      cpuAdaptation.setBaseFormat(width, height, framerate);
+    }
+    adaptOutputFormat(width, height, framerate);
+  }
+
+  private void adaptOutputFormat(int width, int height, int framerate) {
+    if (videoSource != null) {
+      videoSource.adaptOutputFormat(width, height, framerate);
+    }
   }
 
   // Implementation detail: observe ICE & stream changes and react accordingly.
@@ -1346,6 +1936,8 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
+          writeJournal(CallMetricsJournal.RecordType.LOCAL_ICE_CANDIDATE,
+              candidate.sdpMLineIndex, 0);
           events.onIceCandidate(candidate);
         }
       });
@@ -1356,6 +1948,8 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
+          writeJournal(
+              CallMetricsJournal.RecordType.ICE_CANDIDATES_REMOVED, 0, candidates.length);
           events.onIceCandidatesRemoved(candidates);
         }
       });
@@ -1372,7 +1966,11 @@ public class PeerConnectionClient {
         @Override
         public void run() {
           Log.d(TAG, "IceConnectionState: " + newState);
+          updateStatsPeriod(newState);
+          writeJournal(
+              CallMetricsJournal.RecordType.ICE_CONNECTION_STATE, newState.ordinal(), 0);
           if (newState == IceConnectionState.CONNECTED) {
+            updateNetworkType();
             events.onIceConnected();
           } else if (newState == IceConnectionState.DISCONNECTED) {
             events.onIceDisconnected();
@@ -1403,33 +2001,17 @@ public class PeerConnectionClient {
     public void onDataChannel(final DataChannel dc) {
       Log.d(TAG, "New Data channel " + dc.label());
 
-      if (!dataChannelEnabled)
+      final DataChannel.Observer laneObserver = dataChannelScheduler.createReceiveObserver(dc);
+      if (laneObserver != null) {
+        dc.registerObserver(laneObserver);
         return;
+      }
 
-      dc.registerObserver(new DataChannel.Observer() {
-        @Override
-        public void onBufferedAmountChange(long previousAmount) {
-          Log.d(TAG, "Data channel buffered amount changed: " + dc.label() + ": " + dc.state());
-        }
-
-        @Override
-        public void onStateChange() {
-          Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
-        }
+      if (!dataChannelEnabled)
+        return;
 
-        @Override
-        public void onMessage(final DataChannel.Buffer buffer) {
-          if (buffer.binary) {
-            Log.d(TAG, "Received binary msg over " + dc);
-            return;
-          }
-          ByteBuffer data = buffer.data;
-          final byte[] bytes = new byte[data.capacity()];
-          data.get(bytes);
-          String strData = new String(bytes, Charset.forName("UTF-8"));
-          Log.d(TAG, "Got msg: " + strData + " over " + dc);
-        }
-      });
+      dc.registerObserver(new DataChannelTransfer(
+          dc, executor, dataTransferListener, dataChannelMessageConsumer));
     }
 
     @Override
@@ -1451,13 +2033,7 @@ public class PeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-      }
+      String sdpDescription = localSdpMunger.munge(origSdp.description);
       final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
       localSdp = sdp;
       executor.execute(new Runnable() {
@@ -1485,6 +2061,9 @@ public class PeerConnectionClient {
             if (peerConnection.getRemoteDescription() == null) {
               // We've just set our local SDP so time to send it.
               Log.d(TAG, "Local SDP set succesfully");
+              applySimulcastLayers();
+              writeJournal(CallMetricsJournal.RecordType.LOCAL_DESCRIPTION,
+                  localSdp.type.ordinal(), localSdp.description.length());
               events.onLocalDescription(localSdp);
             } else {
               // We've just set remote description, so drain remote
@@ -1499,6 +2078,9 @@ public class PeerConnectionClient {
               // We've just set our local SDP so time to send it, drain
               // remote and send local ICE candidates.
               Log.d(TAG, "Local SDP set succesfully");
+              applySimulcastLayers();
+              writeJournal(CallMetricsJournal.RecordType.LOCAL_DESCRIPTION,
+                  localSdp.type.ordinal(), localSdp.description.length());
               events.onLocalDescription(localSdp);
               drainCandidates();
             } else {
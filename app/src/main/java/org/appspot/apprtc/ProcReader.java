@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Reads small /proc and /sys files without allocating. Files are kept open between reads and
+ * re-read from offset 0, which makes the kernel regenerate their contents. Every read goes into
+ * one preallocated buffer, and numbers are parsed from the bytes in place through a cursor.
+ * Contents beyond the buffer size are ignored.
+ *
+ * <p>Opening a missing file, e.g. the cpufreq files of an offline core, fails with an exception
+ * and is retried on the next read.
+ *
+ * <p>Not thread safe.
+ */
+class ProcReader {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** A file that stays open between reads. */
+  static class Handle {
+    final String path;
+    @Nullable private RandomAccessFile file;
+    @Nullable private FileChannel channel;
+
+    private Handle(String path) {
+      this.path = path;
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final byte[] bytes;
+  private final List<Handle> handles = new ArrayList<>();
+  // Cursor and end of the valid bytes of the last read.
+  private int position;
+  private int limit;
+
+  ProcReader(int bufferBytes) {
+    buffer = ByteBuffer.allocate(bufferBytes);
+    bytes = buffer.array();
+  }
+
+  /** Returns a handle for |path|. The file is opened on the first read. */
+  Handle handle(String path) {
+    final Handle handle = new Handle(path);
+    handles.add(handle);
+    return handle;
+  }
+
+  /**
+   * Reads the current contents of |handle| and moves the cursor to the start. Returns false if
+   * the file could not be read; the cursor is then at the end of empty contents.
+   */
+  boolean read(Handle handle) {
+    position = 0;
+    limit = 0;
+    buffer.clear();
+    try {
+      if (handle.channel == null) {
+        handle.file = new RandomAccessFile(handle.path, "r");
+        handle.channel = handle.file.getChannel();
+      }
+      // procfs may return less than a full buffer before the end, so read until end of file.
+      while (buffer.hasRemaining()) {
+        if (handle.channel.read(buffer, buffer.position()) <= 0) {
+          break;
+        }
+      }
+      limit = buffer.position();
+      return true;
+    } catch (IOException e) {
+      close(handle);
+      return false;
+    }
+  }
+
+  /** Closes the file of |handle| and forgets it. */
+  void remove(Handle handle) {
+    close(handle);
+    handles.remove(handle);
+  }
+
+  /** Closes all files. They are reopened on the next read. */
+  void closeAll() {
+    for (Handle handle : handles) {
+      close(handle);
+    }
+  }
+
+  /** Returns true if the bytes at the cursor equal |prefix|. Does not move the cursor. */
+  boolean startsWith(byte[] prefix) {
+    if (limit - position < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[position + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Moves the cursor past the next line break. Returns false at the end of the contents. */
+  boolean nextLine() {
+    while (position < limit) {
+      if (bytes[position++] == '\n') {
+        return position < limit;
+      }
+    }
+    return false;
+  }
+
+  /** Moves the cursor forward by |count| bytes. */
+  void skip(int count) {
+    position = Math.min(position + count, limit);
+  }
+
+  /**
+   * Moves the cursor past the last |b| in the contents, e.g. past the command name in
+   * /proc/[pid]/stat, which may itself contain spaces and parentheses. Returns false if there is
+   * none.
+   */
+  boolean skipPastLast(byte b) {
+    for (int i = limit - 1; i >= position; i--) {
+      if (bytes[i] == b) {
+        position = i + 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the contents between the first |open| and the last |close| and moves the cursor past
+   * |close|, or returns null if they are not found. Allocates the returned string.
+   */
+  @Nullable
+  String stringBetween(byte open, byte close) {
+    int start = position;
+    while (start < limit && bytes[start] != open) {
+      start++;
+    }
+    if (start == limit || !skipPastLast(close) || position - 1 <= start) {
+      return null;
+    }
+    return new String(bytes, start + 1, position - start - 2, UTF_8);
+  }
+
+  /** Moves the cursor past the next non-space token on the current line. */
+  void skipToken() {
+    skipSpaces();
+    while (position < limit && !isSpace(bytes[position])) {
+      position++;
+    }
+  }
+
+  /**
+   * Parses the next non-negative decimal number on the current line and moves the cursor past
+   * it. Returns -1 if the next token is not a number or the line has ended.
+   */
+  long nextLong() {
+    skipSpaces();
+    long value = 0;
+    int digits = 0;
+    while (position < limit) {
+      final int digit = bytes[position] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = value * 10 + digit;
+      position++;
+      digits++;
+    }
+    if (digits == 0 || (position < limit && !isSpace(bytes[position]))) {
+      return -1;
+    }
+    return value;
+  }
+
+  private void skipSpaces() {
+    while (position < limit && (bytes[position] == ' ' || bytes[position] == '\t')) {
+      position++;
+    }
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n';
+  }
+
+  /** Closes the file of |handle|. It is reopened on the next read. */
+  void close(Handle handle) {
+    if (handle.file != null) {
+      try {
+        handle.file.close();
+      } catch (IOException e) {
+        // Ignore, the file is read only.
+      }
+    }
+    handle.file = null;
+    handle.channel = null;
+  }
+}
@@ -15,11 +15,22 @@ import android.os.Environment;
 import javax.annotation.Nullable;
 import android.util.Log;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.concurrent.ExecutorService;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 import org.webrtc.voiceengine.WebRtcAudioRecord;
@@ -27,59 +38,162 @@ import org.webrtc.voiceengine.WebRtcAudioRecord.WebRtcAudioRecordSamplesReadyCal
 
 /**
  * Implements the AudioRecordSamplesReadyCallback interface and writes
- * recorded raw audio samples to an output file.
+ * recorded raw audio samples to a series of WAV files.
+ *
+ * <p>The audio thread only copies each 10 ms buffer into a preallocated ring. A dedicated writer
+ * thread drains the ring every FLUSH_PERIOD_MS with one gathering write through a FileChannel.
+ * Buffers that find the ring full are dropped and counted as overruns.
+ *
+ * <p>Each call is recorded into its own directory, recorded_audio/call_<start time>, as segments
+ * of a configurable duration. A segment is a playable WAV file whose header sizes are filled in
+ * when it is closed. The directory also has an index file with a line per segment that gives
+ * the wall clock time of its first sample, so a long call can be seeked into. Before a segment is
+ * opened, the oldest segments of this and earlier calls are deleted until the new segment fits in
+ * the total disk budget.
  */
 public class RecordedAudioToFileController
     implements SamplesReadyCallback, WebRtcAudioRecordSamplesReadyCallback {
   private static final String TAG = "RecordedAudioToFile";
-  private static final long MAX_FILE_SIZE_IN_BYTES = 58348800L;
+  public static final int DEFAULT_SEGMENT_DURATION_SEC = 60;
+  public static final int DEFAULT_MAX_TOTAL_MB = 200;
+  private static final String ROOT_DIR_NAME = "recorded_audio";
+  private static final String CALL_DIR_PREFIX = "call_";
+  private static final String SEGMENT_PREFIX = "segment_";
+  private static final String SEGMENT_SUFFIX = ".wav";
+  private static final String INDEX_FILE_NAME = "index.txt";
+  private static final long FLUSH_PERIOD_MS = 200;
+  // 10 ms buffers the ring holds, i.e. how far the writer may fall behind.
+  private static final int RING_BUFFERS = 200;
+  private static final int WAV_HEADER_BYTES = 44;
+  private static final int RIFF_SIZE_OFFSET = 4;
+  private static final int DATA_SIZE_OFFSET = 40;
+  private static final int BITS_PER_SAMPLE = 16;
+
+  private final int segmentDurationSec;
+  private final long maxTotalBytes;
+  private final File rootDir;
+  private final boolean externalStorage;
+
+  // Ring of copied buffers. Slot i % RING_BUFFERS is written by the audio thread while
+  // i < writeCount and read by the writer thread while i >= readCount.
+  private final byte[][] ringData = new byte[RING_BUFFERS][];
+  private final ByteBuffer[] ringBuffers = new ByteBuffer[RING_BUFFERS];
+  // Wall clock time each buffer was captured at.
+  private final long[] ringTimesMs = new long[RING_BUFFERS];
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong readCount = new AtomicLong();
+  private final AtomicInteger overruns = new AtomicInteger();
+  private final AtomicInteger droppedBuffers = new AtomicInteger();
+  // Format of the first buffer, published to the writer thread by writeCount.
+  private int sampleRate;
+  private int channelCount;
+  private volatile boolean isRunning;
+  @Nullable
+  private Thread writerThread;
+  @Nullable
+  private File callDir;
 
-  private final Object lock = new Object();
-  private final ExecutorService executor;
+  // Only used on the writer thread.
+  // Closed segments of this and earlier calls, oldest first, and their total size.
+  private final ArrayDeque<File> segments = new ArrayDeque<>();
+  private long segmentsBytes;
   @Nullable
-  private OutputStream rawAudioFileOutputStream = null;
-  private boolean isRunning;
-  private long fileSizeInBytes = 0;
+  private RandomAccessFile segmentFile;
+  @Nullable
+  private File segment;
+  private long segmentDataBytes;
+  private int segmentCount;
+  // Bytes of audio in a segment of segmentDurationSec.
+  private long segmentBytes;
+  // Bytes of audio written to all segments of this call.
+  private long callDataBytes;
+  @Nullable
+  private Writer index;
+
+  /**
+   * @param segmentDurationSec Duration of each file, or 0 for DEFAULT_SEGMENT_DURATION_SEC.
+   * @param maxTotalMb Disk budget for the recordings of all calls, or 0 for DEFAULT_MAX_TOTAL_MB.
+   */
+  public RecordedAudioToFileController(int segmentDurationSec, int maxTotalMb) {
+    this(segmentDurationSec, maxTotalMb,
+        new File(Environment.getExternalStorageDirectory(), ROOT_DIR_NAME), true);
+  }
 
-  public RecordedAudioToFileController(ExecutorService executor) {
+  /** Records into call directories in |rootDir| instead of external storage, e.g. in tests. */
+  RecordedAudioToFileController(int segmentDurationSec, int maxTotalMb, File rootDir) {
+    this(segmentDurationSec, maxTotalMb, rootDir, false);
+  }
+
+  private RecordedAudioToFileController(
+      int segmentDurationSec, int maxTotalMb, File rootDir, boolean externalStorage) {
     Log.d(TAG, "ctor");
-    this.executor = executor;
+    this.segmentDurationSec =
+        segmentDurationSec > 0 ? segmentDurationSec : DEFAULT_SEGMENT_DURATION_SEC;
+    this.maxTotalBytes = (maxTotalMb > 0 ? maxTotalMb : DEFAULT_MAX_TOTAL_MB) * 1024L * 1024L;
+    this.rootDir = rootDir;
+    this.externalStorage = externalStorage;
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Should be called on the same thread as stop().
    */
   public boolean start() {
     Log.d(TAG, "start");
-    if (!isExternalStorageWritable()) {
+    if (externalStorage && !isExternalStorageWritable()) {
       Log.e(TAG, "Writing to external media is not possible");
       return false;
     }
-    synchronized (lock) {
-      isRunning = true;
+    final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+    callDir = new File(rootDir, CALL_DIR_PREFIX + dateFormat.format(new Date()));
+    if (!callDir.mkdirs()) {
+      Log.e(TAG, "Failed to create " + callDir);
+      return false;
     }
+    isRunning = true;
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeSamples();
+      }
+    }, TAG);
+    writerThread.start();
     return true;
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Stops recording after writing the buffered samples. Should be called on the same thread as
+   * start().
    */
   public void stop() {
     Log.d(TAG, "stop");
-    synchronized (lock) {
-      isRunning = false;
-      if (rawAudioFileOutputStream != null) {
-        try {
-          rawAudioFileOutputStream.close();
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to close file with saved input audio: " + e);
-        }
-        rawAudioFileOutputStream = null;
-      }
-      fileSizeInBytes = 0;
+    isRunning = false;
+    if (writerThread == null) {
+      return;
+    }
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    writerThread = null;
+    Log.d(TAG, "Overruns: " + overruns.get() + ", dropped buffers: " + droppedBuffers.get());
+  }
+
+  /** Returns the directory the current call is recorded into, or null if not started. */
+  @Nullable
+  public File getCallDirectory() {
+    return callDir;
+  }
+
+  /** Returns the number of buffers dropped because the writer fell behind. */
+  public int getOverruns() {
+    return overruns.get();
+  }
+
+  /** Returns the number of buffers dropped because a file could not be written. */
+  public int getDroppedBuffers() {
+    return droppedBuffers.get();
   }
 
   // Checks if external storage is available for read and write.
@@ -91,64 +205,241 @@ public class RecordedAudioToFileController
     return false;
   }
 
-  // Utilizes audio parameters to create a file name which contains sufficient
-  // information so that the file can be played using an external file player.
-  // Example: /sdcard/recorded_audio_16bits_48000Hz_mono.pcm.
-  private void openRawAudioOutputFile(int sampleRate, int channelCount) {
-    final String fileName = Environment.getExternalStorageDirectory().getPath() + File.separator
-        + "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
-        + ((channelCount == 1) ? "_mono" : "_stereo") + ".pcm";
-    final File outputFile = new File(fileName);
-    try {
-      rawAudioFileOutputStream = new FileOutputStream(outputFile);
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
-    }
-    Log.d(TAG, "Opened file for recording: " + fileName);
-  }
-
   // Called when new audio samples are ready.
   @Override
   public void onWebRtcAudioRecordSamplesReady(WebRtcAudioRecord.AudioSamples samples) {
-    onWebRtcAudioRecordSamplesReady(new JavaAudioDeviceModule.AudioSamples(samples.getAudioFormat(),
-        samples.getChannelCount(), samples.getSampleRate(), samples.getData()));
+    onSamplesReady(samples.getAudioFormat(), samples.getChannelCount(), samples.getSampleRate(),
+        samples.getData());
   }
 
   // Called when new audio samples are ready.
   @Override
   public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+    onSamplesReady(samples.getAudioFormat(), samples.getChannelCount(), samples.getSampleRate(),
+        samples.getData());
+  }
+
+  // Copies |data| into the ring. Called on the audio thread.
+  private void onSamplesReady(int audioFormat, int channelCount, int sampleRate, byte[] data) {
     // The native audio layer on Android should use 16-bit PCM format.
-    if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
+    if (audioFormat != AudioFormat.ENCODING_PCM_16BIT) {
       Log.e(TAG, "Invalid audio format");
       return;
     }
-    synchronized (lock) {
-      // Abort early if stop() has been called.
-      if (!isRunning) {
-        return;
-      }
-      // Open a new file for the first callback only since it allows us to add audio parameters to
-      // the file name.
-      if (rawAudioFileOutputStream == null) {
-        openRawAudioOutputFile(samples.getSampleRate(), samples.getChannelCount());
-        fileSizeInBytes = 0;
-      }
+    // Abort early if stop() has been called.
+    if (!isRunning) {
+      return;
+    }
+    final long index = writeCount.get();
+    if (index == 0) {
+      this.sampleRate = sampleRate;
+      this.channelCount = channelCount;
     }
-    // Append the recorded 16-bit audio samples to the open output file.
-    executor.execute(() -> {
-      if (rawAudioFileOutputStream != null) {
+    if (index - readCount.get() == RING_BUFFERS) {
+      overruns.incrementAndGet();
+      return;
+    }
+    final int slot = (int) (index % RING_BUFFERS);
+    if (ringData[slot] == null || ringData[slot].length < data.length) {
+      ringData[slot] = new byte[data.length];
+      ringBuffers[slot] = ByteBuffer.wrap(ringData[slot]);
+    }
+    System.arraycopy(data, 0, ringData[slot], 0, data.length);
+    ringBuffers[slot].clear();
+    ringBuffers[slot].limit(data.length);
+    ringTimesMs[slot] = System.currentTimeMillis();
+    writeCount.lazySet(index + 1);
+  }
+
+  private void writeSamples() {
+    findSegments();
+    boolean failed = false;
+    final ByteBuffer[] batch = new ByteBuffer[RING_BUFFERS];
+    while (true) {
+      final boolean running = isRunning;
+      final long available = writeCount.get();
+      long read = readCount.get();
+      while (!failed && read < available) {
+        final int firstSlot = (int) (read % RING_BUFFERS);
+        if (segmentFile == null) {
+          try {
+            openSegment(ringTimesMs[firstSlot]);
+          } catch (IOException e) {
+            Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+            failed = true;
+            break;
+          }
+        }
+        // Gather the buffers up to the end of the segment.
+        int count = 0;
+        long batchBytes = 0;
+        while (read + count < available && segmentDataBytes + batchBytes < segmentBytes) {
+          final ByteBuffer buffer = ringBuffers[(int) ((read + count) % RING_BUFFERS)];
+          batchBytes += buffer.remaining();
+          batch[count++] = buffer;
+        }
         try {
-          // Set a limit on max file size. 58348800 bytes corresponds to
-          // approximately 10 minutes of recording in mono at 48kHz.
-          if (fileSizeInBytes < MAX_FILE_SIZE_IN_BYTES) {
-            // Writes samples.getData().length bytes to output stream.
-            rawAudioFileOutputStream.write(samples.getData());
-            fileSizeInBytes += samples.getData().length;
+          long remaining = batchBytes;
+          while (remaining > 0) {
+            remaining -= segmentFile.getChannel().write(batch, 0, count);
           }
         } catch (IOException e) {
           Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+          failed = true;
+          break;
         }
+        segmentDataBytes += batchBytes;
+        read += count;
+        if (segmentDataBytes >= segmentBytes) {
+          closeSegment();
+        }
+      }
+      // Buffers that could not be written are dropped.
+      if (available > read) {
+        droppedBuffers.addAndGet((int) (available - read));
+      }
+      readCount.set(available);
+      if (!running) {
+        break;
       }
-    });
+      LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_PERIOD_MS));
+    }
+    closeSegment();
+    if (index != null) {
+      try {
+        index.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close index: " + e.getMessage());
+      }
+    }
+  }
+
+  // Lists the segments left by earlier calls, oldest first.
+  private void findSegments() {
+    final File[] callDirs = rootDir.listFiles();
+    if (callDirs == null) {
+      return;
+    }
+    // Call directory names sort by start time and segment names by number.
+    Arrays.sort(callDirs);
+    for (File dir : callDirs) {
+      if (!dir.getName().startsWith(CALL_DIR_PREFIX) || dir.equals(callDir)) {
+        continue;
+      }
+      final File[] files = dir.listFiles();
+      if (files == null) {
+        continue;
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.getName().startsWith(SEGMENT_PREFIX)) {
+          segments.add(file);
+          segmentsBytes += file.length();
+        }
+      }
+    }
+    Log.d(TAG, "Found " + segments.size() + " segments, " + segmentsBytes + " bytes.");
+  }
+
+  // Opens the next segment, whose first sample was captured at |startTimeMs|, after deleting
+  // the oldest segments that keep it from fitting into the disk budget.
+  private void openSegment(long startTimeMs) throws IOException {
+    if (segmentBytes == 0) {
+      segmentBytes = (long) sampleRate * channelCount * BITS_PER_SAMPLE / 8 * segmentDurationSec;
+    }
+    while (!segments.isEmpty()
+        && segmentsBytes + WAV_HEADER_BYTES + segmentBytes > maxTotalBytes) {
+      deleteSegment(segments.poll());
+    }
+    segmentCount++;
+    segment = new File(callDir, String.format(Locale.US, "%s%05d%s", SEGMENT_PREFIX,
+        segmentCount, SEGMENT_SUFFIX));
+    segmentFile = new RandomAccessFile(segment, "rw");
+    segmentFile.setLength(0);
+    segmentFile.getChannel().write(wavHeader(sampleRate, channelCount));
+    segmentDataBytes = 0;
+    Log.d(TAG, "Opened file for recording: " + segment);
+
+    if (index == null) {
+      index = new FileWriter(new File(callDir, INDEX_FILE_NAME));
+      index.write("# segment, wall clock time of first sample (ms), offset into call (ms)\n");
+    }
+    final long offsetMs =
+        callDataBytes * 1000 / ((long) sampleRate * channelCount * BITS_PER_SAMPLE / 8);
+    index.write(segment.getName() + " " + startTimeMs + " " + offsetMs + "\n");
+    index.flush();
+  }
+
+  // Fills in the sizes of the WAV header and closes the current segment, if any.
+  private void closeSegment() {
+    if (segmentFile == null) {
+      return;
+    }
+    final ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      size.putInt(0, (int) (WAV_HEADER_BYTES - 8 + segmentDataBytes));
+      segmentFile.getChannel().write(size, RIFF_SIZE_OFFSET);
+      size.clear();
+      size.putInt(0, (int) segmentDataBytes);
+      segmentFile.getChannel().write(size, DATA_SIZE_OFFSET);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write WAV header: " + e.getMessage());
+    }
+    try {
+      segmentFile.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close file with saved input audio: " + e);
+    }
+    segments.add(segment);
+    segmentsBytes += WAV_HEADER_BYTES + segmentDataBytes;
+    callDataBytes += segmentDataBytes;
+    segmentFile = null;
+    segment = null;
+  }
+
+  // Deletes |file|, and its call directory once no segments are left in it.
+  private void deleteSegment(File file) {
+    segmentsBytes -= file.length();
+    if (!file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+    final File dir = file.getParentFile();
+    if (dir.equals(callDir)) {
+      return;
+    }
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File remaining : files) {
+      if (remaining.getName().startsWith(SEGMENT_PREFIX)) {
+        return;
+      }
+    }
+    for (File remaining : files) {
+      remaining.delete();
+    }
+    dir.delete();
+    Log.d(TAG, "Deleted " + dir);
+  }
+
+  // Returns a canonical 44 byte WAV header for 16-bit PCM, with zero sizes.
+  private static ByteBuffer wavHeader(int sampleRate, int channelCount) {
+    final ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    final int blockAlign = channelCount * BITS_PER_SAMPLE / 8;
+    header.put(new byte[] {'R', 'I', 'F', 'F'})
+        .putInt(0)
+        .put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '})
+        .putInt(16)
+        .putShort((short) 1) // PCM.
+        .putShort((short) channelCount)
+        .putInt(sampleRate)
+        .putInt(sampleRate * blockAlign)
+        .putShort((short) blockAlign)
+        .putShort((short) BITS_PER_SAMPLE)
+        .put(new byte[] {'d', 'a', 't', 'a'})
+        .putInt(0);
+    header.flip();
+    return header;
   }
 }
@@ -0,0 +1,552 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Records video frames at a fixed output size without doing any file I/O on the thread delivering
+ * the frames. Each frame is converted to I420, rotated upright, scaled and copied into one of a
+ * few pooled buffers, and a writer thread writes the buffers either as raw Y4M, optionally split
+ * into segments of at most a maximum size of which only the newest are kept, or as H.264 in an
+ * MP4 file, encoded with the platform encoder.
+ *
+ * <p>Scaling samples the nearest pixel and stretches frames whose rotated aspect ratio differs
+ * from the output size. If all buffers are taken the oldest frame waiting for the writer is
+ * dropped. The dropped frames and the queue depth show whether the writer keeps up.
+ */
+class RemoteVideoRecorder implements VideoSink {
+  private static final String TAG = "RemoteVideoRecorder";
+  // Nominal frame rate written to the Y4M header and given to the encoder.
+  private static final int FRAMERATE = 30;
+  private static final double H264_BITS_PER_PIXEL = 0.1;
+  private static final int H264_KEY_FRAME_INTERVAL_S = 2;
+
+  enum Format { Y4M, H264 }
+
+  // Writes I420 frames of the output size. Only called on the writer thread.
+  interface FrameWriter {
+    void write(byte[] i420, long timestampNs) throws IOException;
+
+    void close();
+  }
+
+  private static class Frame {
+    final byte[] data;
+    long timestampNs;
+
+    Frame(int bytes) {
+      data = new byte[bytes];
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final int maxBufferedFrames;
+  private final FrameWriter writer;
+  private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Frame> pendingFrames = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicInteger droppedFrames = new AtomicInteger();
+  private final AtomicInteger writtenFrames = new AtomicInteger();
+  private final Thread writerThread;
+  private volatile boolean running = true;
+  // Set by the writer thread once a write has failed; later frames are dropped.
+  private volatile boolean failed;
+  // Only used on the thread delivering the frames: the number of buffers in the pool, and the
+  // source column of each output column for the luma and the chroma planes.
+  private int allocatedFrames;
+  @Nullable private int[] lumaColumns;
+  @Nullable private int[] chromaColumns;
+  private int scaledFromWidth;
+
+  /**
+   * @param path              Output file. Further Y4M segments get the segment number inserted
+   *                          before the extension.
+   * @param width             Output width, positive and even.
+   * @param height            Output height, positive and even.
+   * @param format            Output format. H264 needs API level 18.
+   * @param maxFileBytes      Maximum size of a Y4M segment, or 0 for a single file.
+   * @param maxFiles          Number of newest Y4M segments kept, or 0 to keep all.
+   * @param maxBufferedFrames Number of pooled frame buffers.
+   */
+  RemoteVideoRecorder(String path, int width, int height, Format format, long maxFileBytes,
+      int maxFiles, int maxBufferedFrames) throws IOException {
+    this(createWriter(path, width, height, format, maxFileBytes, maxFiles), width, height,
+        maxBufferedFrames);
+    Log.d(TAG, "Recording " + width + "x" + height + " " + format + " to " + path);
+  }
+
+  /** Records to |writer|, e.g. one that blocks in tests. */
+  RemoteVideoRecorder(FrameWriter writer, int width, int height, int maxBufferedFrames) {
+    checkSize(width, height);
+    this.width = width;
+    this.height = height;
+    this.maxBufferedFrames = maxBufferedFrames;
+    this.writer = writer;
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeFrames();
+      }
+    }, TAG);
+    writerThread.start();
+  }
+
+  private static FrameWriter createWriter(String path, int width, int height, Format format,
+      long maxFileBytes, int maxFiles) throws IOException {
+    checkSize(width, height);
+    return format == Format.H264 ? new H264Writer(path, width, height)
+                                 : new Y4mWriter(path, width, height, maxFileBytes, maxFiles);
+  }
+
+  private static void checkSize(int width, int height) {
+    if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+      throw new IllegalArgumentException("Unsupported output size " + width + "x" + height);
+    }
+  }
+
+  @Override
+  public void onFrame(VideoFrame videoFrame) {
+    if (!running) {
+      return;
+    }
+    if (failed) {
+      droppedFrames.incrementAndGet();
+      return;
+    }
+    Frame frame = freeFrames.poll();
+    if (frame == null && allocatedFrames < maxBufferedFrames) {
+      frame = new Frame(width * height * 3 / 2);
+      allocatedFrames++;
+    }
+    if (frame == null) {
+      // All buffers are taken, reuse the oldest one waiting for the writer.
+      droppedFrames.incrementAndGet();
+      frame = pendingFrames.poll();
+      if (frame == null) {
+        return;
+      }
+      queueDepth.decrementAndGet();
+    }
+
+    final VideoFrame.I420Buffer i420 = videoFrame.getBuffer().toI420();
+    try {
+      copyScaled(i420, videoFrame.getRotation(), frame.data);
+    } finally {
+      i420.release();
+    }
+    frame.timestampNs = videoFrame.getTimestampNs();
+    pendingFrames.offer(frame);
+    final int depth = queueDepth.incrementAndGet();
+    if (depth > maxQueueDepth.get()) {
+      maxQueueDepth.set(depth);
+    }
+    LockSupport.unpark(writerThread);
+  }
+
+  /** Stops recording, writes the frames still queued and closes the output. */
+  void release() {
+    running = false;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Log.d(TAG, "Wrote " + writtenFrames.get() + " frames, dropped " + droppedFrames.get()
+            + ", max queue depth " + maxQueueDepth.get() + ".");
+  }
+
+  int getWrittenFrames() {
+    return writtenFrames.get();
+  }
+
+  /** Returns the frames dropped because the writer fell behind or failed. */
+  int getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  /** Returns the number of frames waiting for the writer. */
+  int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  private void writeFrames() {
+    try {
+      while (true) {
+        final Frame frame = pendingFrames.poll();
+        if (frame == null) {
+          if (!running) {
+            break;
+          }
+          LockSupport.park(this);
+          continue;
+        }
+        queueDepth.decrementAndGet();
+        if (failed) {
+          droppedFrames.incrementAndGet();
+        } else {
+          try {
+            writer.write(frame.data, frame.timestampNs);
+            writtenFrames.incrementAndGet();
+          } catch (IOException | RuntimeException e) {
+            // MediaCodec and MediaMuxer fail with IllegalStateException, e.g. CodecException.
+            Log.e(TAG, "Failed to write frame, dropping the rest.", e);
+            droppedFrames.incrementAndGet();
+            failed = true;
+          }
+        }
+        freeFrames.offer(frame);
+      }
+    } finally {
+      try {
+        writer.close();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Failed to close the output.", e);
+      }
+    }
+  }
+
+  // Rotates |i420| clockwise by |rotation| degrees and scales it to the output size with nearest
+  // neighbor sampling into the planes of |data|.
+  private void copyScaled(VideoFrame.I420Buffer i420, int rotation, byte[] data) {
+    final int srcWidth = i420.getWidth();
+    final int srcHeight = i420.getHeight();
+    final int chromaBytes = (width / 2) * (height / 2);
+    if (rotation != 0) {
+      copyPlaneRotated(i420.getDataY(), i420.getStrideY(), srcWidth, srcHeight, rotation, data,
+          0, width, height);
+      copyPlaneRotated(i420.getDataU(), i420.getStrideU(), (srcWidth + 1) / 2,
+          (srcHeight + 1) / 2, rotation, data, width * height, width / 2, height / 2);
+      copyPlaneRotated(i420.getDataV(), i420.getStrideV(), (srcWidth + 1) / 2,
+          (srcHeight + 1) / 2, rotation, data, width * height + chromaBytes, width / 2,
+          height / 2);
+      return;
+    }
+    if (lumaColumns == null || scaledFromWidth != srcWidth) {
+      lumaColumns = columnMap(srcWidth, width);
+      chromaColumns = columnMap((srcWidth + 1) / 2, width / 2);
+      scaledFromWidth = srcWidth;
+    }
+    copyPlane(i420.getDataY(), i420.getStrideY(), srcHeight, lumaColumns, data, 0, width, height);
+    copyPlane(i420.getDataU(), i420.getStrideU(), (srcHeight + 1) / 2, chromaColumns, data,
+        width * height, width / 2, height / 2);
+    copyPlane(i420.getDataV(), i420.getStrideV(), (srcHeight + 1) / 2, chromaColumns, data,
+        width * height + chromaBytes, width / 2, height / 2);
+  }
+
+  private static void copyPlane(ByteBuffer src, int srcStride, int srcRows, int[] columns,
+      byte[] dst, int dstOffset, int dstWidth, int dstRows) {
+    final boolean sameWidth = columns.length == dstWidth && columns[dstWidth - 1] == dstWidth - 1;
+    for (int y = 0; y < dstRows; y++) {
+      final int srcRowStart = (int) ((long) y * srcRows / dstRows) * srcStride;
+      final int dstRowStart = dstOffset + y * dstWidth;
+      if (sameWidth) {
+        src.position(srcRowStart);
+        src.get(dst, dstRowStart, dstWidth);
+      } else {
+        for (int x = 0; x < dstWidth; x++) {
+          dst[dstRowStart + x] = src.get(srcRowStart + columns[x]);
+        }
+      }
+    }
+  }
+
+  // Samples the pixel of |src| that lands on each output pixel once rotated by |rotation|.
+  private static void copyPlaneRotated(ByteBuffer src, int srcStride, int srcWidth, int srcRows,
+      int rotation, byte[] dst, int dstOffset, int dstWidth, int dstRows) {
+    final boolean transposed = rotation == 90 || rotation == 270;
+    final int rotatedWidth = transposed ? srcRows : srcWidth;
+    final int rotatedRows = transposed ? srcWidth : srcRows;
+    for (int y = 0; y < dstRows; y++) {
+      final int rotatedY = (int) ((long) y * rotatedRows / dstRows);
+      final int dstRowStart = dstOffset + y * dstWidth;
+      for (int x = 0; x < dstWidth; x++) {
+        final int rotatedX = (int) ((long) x * rotatedWidth / dstWidth);
+        final int srcX;
+        final int srcY;
+        if (rotation == 90) {
+          srcX = rotatedY;
+          srcY = srcRows - 1 - rotatedX;
+        } else if (rotation == 180) {
+          srcX = srcWidth - 1 - rotatedX;
+          srcY = srcRows - 1 - rotatedY;
+        } else {
+          srcX = srcWidth - 1 - rotatedY;
+          srcY = rotatedX;
+        }
+        dst[dstRowStart + x] = src.get(srcY * srcStride + srcX);
+      }
+    }
+  }
+
+  private static int[] columnMap(int srcWidth, int dstWidth) {
+    final int[] columns = new int[dstWidth];
+    for (int x = 0; x < dstWidth; x++) {
+      columns[x] = (int) ((long) x * srcWidth / dstWidth);
+    }
+    return columns;
+  }
+
+  // Raw frames in YUV4MPEG2 files, started over in a new segment file at the size limit.
+  private static class Y4mWriter implements FrameWriter {
+    private static final byte[] FRAME_HEADER = "FRAME\n".getBytes(Charset.forName("US-ASCII"));
+
+    private final String path;
+    private final byte[] header;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    @Nullable private FileOutputStream output;
+    private long fileBytes;
+    private int segment = -1;
+
+    Y4mWriter(String path, int width, int height, long maxFileBytes, int maxFiles)
+        throws IOException {
+      this.path = path;
+      this.maxFileBytes = maxFileBytes;
+      this.maxFiles = maxFiles;
+      header = ("YUV4MPEG2 C420 W" + width + " H" + height + " Ip F" + FRAMERATE + ":1 A1:1\n")
+                   .getBytes(Charset.forName("US-ASCII"));
+      openNextSegment();
+    }
+
+    @Override
+    public void write(byte[] i420, long timestampNs) throws IOException {
+      final int frameBytes = FRAME_HEADER.length + i420.length;
+      if (maxFileBytes > 0 && fileBytes > header.length
+          && fileBytes + frameBytes > maxFileBytes) {
+        openNextSegment();
+      }
+      output.write(FRAME_HEADER);
+      output.write(i420);
+      fileBytes += frameBytes;
+    }
+
+    @Override
+    public void close() {
+      if (output == null) {
+        return;
+      }
+      try {
+        output.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close " + segmentPath(segment), e);
+      }
+      output = null;
+    }
+
+    private void openNextSegment() throws IOException {
+      close();
+      segment++;
+      if (maxFiles > 0 && segment >= maxFiles) {
+        final File oldest = new File(segmentPath(segment - maxFiles));
+        if (!oldest.delete()) {
+          Log.w(TAG, "Failed to delete " + oldest);
+        }
+      }
+      output = new FileOutputStream(segmentPath(segment));
+      output.write(header);
+      fileBytes = header.length;
+    }
+
+    // Segment 0 is |path|, the next ones get their number before the extension.
+    private String segmentPath(int index) {
+      if (index == 0) {
+        return path;
+      }
+      final int dot = path.lastIndexOf('.');
+      if (dot <= path.lastIndexOf(File.separatorChar)) {
+        return path + "." + index;
+      }
+      return path.substring(0, dot) + "." + index + path.substring(dot);
+    }
+  }
+
+  // H.264 from the platform encoder, muxed into an MP4 file.
+  @TargetApi(18)
+  private static class H264Writer implements FrameWriter {
+    private static final String MIME_TYPE = "video/avc";
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+    private static final long END_OF_STREAM_TIMEOUT_US = 500_000;
+
+    private final MediaCodec encoder;
+    private final MediaMuxer muxer;
+    private final boolean semiPlanar;
+    private final int lumaBytes;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    @Nullable private byte[] semiPlanarFrame;
+    private ByteBuffer[] outputBuffers;
+    private int track = -1;
+    private long firstTimestampNs = -1;
+    private long lastPresentationTimeUs = -1;
+
+    H264Writer(String path, int width, int height) throws IOException {
+      lumaBytes = width * height;
+      encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+      final int colorFormat = selectColorFormat(
+          encoder.getCodecInfo().getCapabilitiesForType(MIME_TYPE).colorFormats);
+      if (colorFormat == -1) {
+        encoder.release();
+        throw new IOException("No I420 or NV12 input for " + encoder.getCodecInfo().getName());
+      }
+      semiPlanar = colorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+      final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+      format.setInteger(
+          MediaFormat.KEY_BIT_RATE, (int) (lumaBytes * FRAMERATE * H264_BITS_PER_PIXEL));
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAMERATE);
+      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, H264_KEY_FRAME_INTERVAL_S);
+      try {
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        encoder.start();
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      } catch (IllegalStateException | IOException e) {
+        encoder.release();
+        throw new IOException("Failed to start H.264 recording: " + e.getMessage(), e);
+      }
+      outputBuffers = encoder.getOutputBuffers();
+    }
+
+    @Override
+    public void write(byte[] i420, long timestampNs) throws IOException {
+      final int index = encoder.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+      if (index < 0) {
+        throw new IOException("Encoder has no input buffer.");
+      }
+      final ByteBuffer input = encoder.getInputBuffers()[index];
+      input.clear();
+      if (input.remaining() < i420.length) {
+        throw new IOException("Encoder input buffer of " + input.remaining()
+            + " bytes is too small for a frame of " + i420.length + " bytes.");
+      }
+      input.put(semiPlanar ? toSemiPlanar(i420) : i420);
+      encoder.queueInputBuffer(index, 0, i420.length, presentationTimeUs(timestampNs), 0);
+      drain(false);
+    }
+
+    @Override
+    public void close() {
+      try {
+        try {
+          final int index = encoder.dequeueInputBuffer(END_OF_STREAM_TIMEOUT_US);
+          if (index >= 0) {
+            encoder.queueInputBuffer(index, 0, 0, lastPresentationTimeUs + 1,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+          }
+          encoder.stop();
+        } catch (IllegalStateException e) {
+          Log.e(TAG, "Failed to finish the H.264 stream.", e);
+        }
+        // Finalize the samples written so far even if the encoder has failed.
+        if (track != -1) {
+          muxer.stop();
+        }
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Failed to finish H.264 recording.", e);
+      } finally {
+        encoder.release();
+        muxer.release();
+      }
+    }
+
+    // Moves encoded output to the muxer, until the end of the stream if |endOfStream|.
+    private void drain(boolean endOfStream) {
+      while (true) {
+        final int index =
+            encoder.dequeueOutputBuffer(info, endOfStream ? END_OF_STREAM_TIMEOUT_US : 0);
+        if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+          if (!endOfStream) {
+            return;
+          }
+          Log.w(TAG, "Timed out waiting for the end of the H.264 stream.");
+          return;
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+          outputBuffers = encoder.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          track = muxer.addTrack(encoder.getOutputFormat());
+          muxer.start();
+        } else if (index >= 0) {
+          // Codec config is part of the output format given to the muxer.
+          if (track != -1 && info.size > 0
+              && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            final ByteBuffer output = outputBuffers[index];
+            output.position(info.offset);
+            output.limit(info.offset + info.size);
+            muxer.writeSampleData(track, output, info);
+          }
+          encoder.releaseOutputBuffer(index, false);
+          if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            return;
+          }
+        }
+      }
+    }
+
+    // The muxer needs increasing presentation times, starting at 0.
+    private long presentationTimeUs(long timestampNs) {
+      if (firstTimestampNs == -1) {
+        firstTimestampNs = timestampNs;
+      }
+      lastPresentationTimeUs =
+          Math.max(lastPresentationTimeUs + 1, (timestampNs - firstTimestampNs) / 1000);
+      return lastPresentationTimeUs;
+    }
+
+    // Interleaves the chroma planes of |i420| into NV12.
+    private byte[] toSemiPlanar(byte[] i420) {
+      if (semiPlanarFrame == null) {
+        semiPlanarFrame = new byte[i420.length];
+      }
+      System.arraycopy(i420, 0, semiPlanarFrame, 0, lumaBytes);
+      final int chromaBytes = lumaBytes / 4;
+      for (int i = 0; i < chromaBytes; i++) {
+        semiPlanarFrame[lumaBytes + 2 * i] = i420[lumaBytes + i];
+        semiPlanarFrame[lumaBytes + 2 * i + 1] = i420[lumaBytes + chromaBytes + i];
+      }
+      return semiPlanarFrame;
+    }
+
+    private static int selectColorFormat(int[] colorFormats) {
+      int selected = -1;
+      for (int colorFormat : colorFormats) {
+        if (colorFormat == CodecCapabilities.COLOR_FormatYUV420Planar) {
+          return colorFormat;
+        } else if (colorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+          selected = colorFormat;
+        }
+      }
+      return selected;
+    }
+  }
+}
@@ -10,14 +10,28 @@
 
 package org.appspot.apprtc;
 
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
@@ -31,13 +45,42 @@ import org.webrtc.SessionDescription;
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
  * parameters to use with that room.
+ *
+ * <p>The TURN servers are requested from the ice_server_url of the room response. As that URL
+ * rarely changes, the one of the previous join to the same room server is requested while the
+ * room is joined, and the room response waits for it instead of requesting it afterwards. TURN
+ * servers are reused until half of the lifetime of their credentials has passed.
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
   private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  private static final int MAX_TURN_THREADS = 2;
+  private static final int TURN_THREAD_KEEP_ALIVE_MS = 30000;
+
+  // TURN servers by request URL. Guarded by the class.
+  private static final Map<String, CachedTurnServers> turnServerCache = new HashMap<>();
+  // Last ice_server_url by room server. Guarded by the class.
+  private static final Map<String, String> iceServerUrls = new HashMap<>();
+  // Runs the TURN requests that overlap with room requests. Not the pool of
+  // AsyncHttpURLConnection, as room responses wait for these requests on that pool.
+  private static final ThreadPoolExecutor turnExecutor = createTurnExecutor();
+
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
+  // TURN request started by makeRequest(), and its URL.
+  @Nullable private Future<List<PeerConnection.IceServer>> turnRequest;
+  @Nullable private String turnRequestUrl;
+
+  private static class CachedTurnServers {
+    final List<PeerConnection.IceServer> servers;
+    final long expiresMs;
+
+    CachedTurnServers(List<PeerConnection.IceServer> servers, long expiresMs) {
+      this.servers = servers;
+      this.expiresMs = expiresMs;
+    }
+  }
 
   /**
    * Room parameters fetcher callbacks.
@@ -64,11 +107,23 @@ public class RoomParametersFetcher {
 
   public void makeRequest() {
     Log.d(TAG, "Connecting to room: " + roomUrl);
+    final String iceServerUrl = getIceServerUrl(roomUrl);
+    if (iceServerUrl != null) {
+      Log.d(TAG, "Request TURN from " + iceServerUrl + " while joining the room.");
+      turnRequestUrl = iceServerUrl;
+      turnRequest = turnExecutor.submit(new Callable<List<PeerConnection.IceServer>>() {
+        @Override
+        public List<PeerConnection.IceServer> call() throws IOException, JSONException {
+          return requestTurnServers(iceServerUrl);
+        }
+      });
+    }
     AsyncHttpURLConnection httpConnection =
         new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
           @Override
           public void onHttpError(String errorMessage) {
             Log.e(TAG, "Room connection error: " + errorMessage);
+            cancelTurnRequest();
             events.onSignalingParametersError(errorMessage);
           }
 
@@ -80,6 +135,33 @@ public class RoomParametersFetcher {
     httpConnection.send();
   }
 
+  private static ThreadPoolExecutor createTurnExecutor() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_TURN_THREADS, MAX_TURN_THREADS,
+        TURN_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread =
+                new Thread(runnable, "TurnRequest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // Let an idle app run without TURN threads.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  // Cancels the TURN request started by makeRequest(), if any.
+  private void cancelTurnRequest() {
+    if (turnRequest != null) {
+      turnRequest.cancel(true /* mayInterruptIfRunning */);
+      turnRequest = null;
+      turnRequestUrl = null;
+    }
+  }
+
   private void roomHttpResponseParse(String response) {
     Log.d(TAG, "Room response: " + response);
     try {
@@ -89,6 +171,7 @@ public class RoomParametersFetcher {
 
       String result = roomJson.getString("result");
       if (!result.equals("SUCCESS")) {
+        cancelTurnRequest();
         events.onSignalingParametersError("Room response error: " + result);
         return;
       }
@@ -101,24 +184,7 @@ public class RoomParametersFetcher {
       boolean initiator = (roomJson.getBoolean("is_initiator"));
       if (!initiator) {
         iceCandidates = new ArrayList<>();
-        String messagesString = roomJson.getString("messages");
-        JSONArray messages = new JSONArray(messagesString);
-        for (int i = 0; i < messages.length(); ++i) {
-          String messageString = messages.getString(i);
-          JSONObject message = new JSONObject(messageString);
-          String messageType = message.getString("type");
-          Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-          if (messageType.equals("offer")) {
-            offerSdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-          } else if (messageType.equals("candidate")) {
-            IceCandidate candidate = new IceCandidate(
-                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-            iceCandidates.add(candidate);
-          } else {
-            Log.e(TAG, "Unknown message: " + messageString);
-          }
-        }
+        offerSdp = parseRoomMessages(new JSONArray(roomJson.getString("messages")), iceCandidates);
       }
       Log.d(TAG, "RoomId: " + roomId + ". ClientId: " + clientId);
       Log.d(TAG, "Initiator: " + initiator);
@@ -138,29 +204,70 @@ public class RoomParametersFetcher {
         }
       }
       // Request TURN servers.
-      if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-        List<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
+      String iceServerUrl = roomJson.optString("ice_server_url");
+      if (!iceServerUrl.isEmpty()) {
+        setIceServerUrl(roomUrl, iceServerUrl);
+      }
+      if (!isTurnPresent && !iceServerUrl.isEmpty()) {
+        List<PeerConnection.IceServer> turnServers = getTurnServers(iceServerUrl);
         for (PeerConnection.IceServer turnServer : turnServers) {
           Log.d(TAG, "TurnServer: " + turnServer);
           iceServers.add(turnServer);
         }
+      } else {
+        cancelTurnRequest();
       }
 
       SignalingParameters params = new SignalingParameters(
           iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
       events.onSignalingParametersReady(params);
     } catch (JSONException e) {
+      cancelTurnRequest();
       events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
     } catch (IOException e) {
+      cancelTurnRequest();
       events.onSignalingParametersError("Room IO error: " + e.toString());
     }
   }
 
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private List<PeerConnection.IceServer> requestTurnServers(String url)
+  // Returns the TURN ICE Servers from |url|, waiting for the request started by makeRequest()
+  // if it was for the same URL. Must be run off the main thread!
+  private List<PeerConnection.IceServer> getTurnServers(String url)
       throws IOException, JSONException {
+    if (turnRequest == null || !url.equals(turnRequestUrl)) {
+      if (turnRequest != null) {
+        Log.d(TAG, "ICE server URL changed from " + turnRequestUrl);
+        cancelTurnRequest();
+      }
+      return requestTurnServers(url);
+    }
+    try {
+      return turnRequest.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while requesting TURN server from " + url);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof JSONException) {
+        throw (JSONException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  // Requests & returns a TURN ICE Server based on a request URL, or the cached servers of an
+  // earlier request.  Must be run off the main thread!
+  private static List<PeerConnection.IceServer> requestTurnServers(String url)
+      throws IOException, JSONException {
+    final List<PeerConnection.IceServer> cachedServers =
+        getCachedTurnServers(url, SystemClock.elapsedRealtime());
+    if (cachedServers != null) {
+      Log.d(TAG, "Using cached TURN from: " + url);
+      return cachedServers;
+    }
     List<PeerConnection.IceServer> turnServers = new ArrayList<>();
     Log.d(TAG, "Request TURN from: " + url);
     HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
@@ -194,9 +301,104 @@ public class RoomParametersFetcher {
         turnServers.add(turnServer);
       }
     }
+    putCachedTurnServers(
+        url, turnServers, getLifetimeMs(responseJSON), SystemClock.elapsedRealtime());
     return turnServers;
   }
 
+  // Adds the candidates of |messages|, which the other participant left in the room, to
+  // |iceCandidates| and returns its offer, or null if there is none.
+  @Nullable
+  static SessionDescription parseRoomMessages(JSONArray messages, List<IceCandidate> iceCandidates)
+      throws JSONException {
+    SessionDescription offerSdp = null;
+    for (int i = 0; i < messages.length(); ++i) {
+      String messageString = messages.getString(i);
+      JSONObject message = new JSONObject(messageString);
+      String messageType = message.getString("type");
+      Log.d(TAG, "GAE->C #" + i + " : " + messageString);
+      if (messageType.equals("offer")) {
+        offerSdp = new SessionDescription(
+            SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
+      } else if (messageType.equals("candidate")) {
+        IceCandidate candidate = new IceCandidate(
+            message.getString("id"), message.getInt("label"), message.getString("candidate"));
+        iceCandidates.add(candidate);
+      } else if (messageType.equals(IceCandidateBatcher.MESSAGE_TYPE)) {
+        Collections.addAll(iceCandidates, IceCandidateBatcher.fromMessage(message));
+      } else {
+        Log.e(TAG, "Unknown message: " + messageString);
+      }
+    }
+    return offerSdp;
+  }
+
+  // Returns how long the credentials of a TURN response are valid, or 0 if it does not say.
+  static long getLifetimeMs(JSONObject response) {
+    // E.g. "lifetimeDuration": "86400s".
+    final String lifetime = response.optString("lifetimeDuration");
+    if (lifetime.endsWith("s")) {
+      try {
+        return (long) (Double.parseDouble(lifetime.substring(0, lifetime.length() - 1)) * 1000);
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Invalid TURN lifetime: " + lifetime);
+        return 0;
+      }
+    }
+    return response.optLong("ttl", 0) * 1000;
+  }
+
+  // Returns the TURN servers cached for |url| that have not expired at |nowMs|, or null.
+  @Nullable
+  static synchronized List<PeerConnection.IceServer> getCachedTurnServers(
+      String url, long nowMs) {
+    final CachedTurnServers cached = turnServerCache.get(url);
+    if (cached == null) {
+      return null;
+    }
+    if (nowMs >= cached.expiresMs) {
+      turnServerCache.remove(url);
+      return null;
+    }
+    return cached.servers;
+  }
+
+  // Caches the TURN servers requested from |url| at |nowMs|, unless their credentials have no
+  // lifetime.
+  static synchronized void putCachedTurnServers(
+      String url, List<PeerConnection.IceServer> servers, long lifetimeMs, long nowMs) {
+    if (lifetimeMs <= 0) {
+      return;
+    }
+    // Leave the call that uses them time before the credentials expire.
+    turnServerCache.put(url,
+        new CachedTurnServers(Collections.unmodifiableList(servers), nowMs + lifetimeMs / 2));
+  }
+
+  @Nullable
+  private static synchronized String getIceServerUrl(String roomUrl) {
+    final String server = getRoomServer(roomUrl);
+    return server != null ? iceServerUrls.get(server) : null;
+  }
+
+  private static synchronized void setIceServerUrl(String roomUrl, String iceServerUrl) {
+    final String server = getRoomServer(roomUrl);
+    if (server != null) {
+      iceServerUrls.put(server, iceServerUrl);
+    }
+  }
+
+  // Returns the scheme, host and port of |roomUrl|.
+  @Nullable
+  private static String getRoomServer(String roomUrl) {
+    try {
+      final URL url = new URL(roomUrl);
+      return url.getProtocol() + "://" + url.getAuthority();
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
   // Return the list of ICE servers described by a WebRTCPeerConnection
   // configuration string.
   private List<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
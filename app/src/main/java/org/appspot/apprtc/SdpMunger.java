@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Rewrites a session description in a single pass. Supported rewrites are codec preference for
+ * the first audio and video media descriptions, the Opus "maxaveragebitrate" parameter, the
+ * video "x-google-start-bitrate" parameter and simulcast SSRCs for the first video media
+ * description.
+ *
+ * <p>All rewrites share one {@link SessionDescriptionModel}, so the description is parsed once
+ * and only rebuilt if a rewrite applies. Instances are immutable and may be shared between
+ * threads.
+ */
+class SdpMunger {
+  private static final String TAG = "SdpMunger";
+  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+  private static final int BPS_IN_KBPS = 1000;
+  // a=fmtp:<payload type> <parameter>=<value>[; ...]
+  private static final Pattern FMTP_PARAMETERS_PATTERN =
+      Pattern.compile("^a=fmtp:\\d+ \\w+=\\d+.*$");
+  private static final String SSRC_PREFIX = "a=ssrc:";
+  private static final String SIMULCAST_GROUP_PREFIX = "a=ssrc-group:SIM";
+  // a=ssrc:<ssrc> <attribute>
+  private static final Pattern SSRC_PATTERN = Pattern.compile("^a=ssrc:(\\d+) (.*)$");
+  // a=ssrc-group:FID <media ssrc> <retransmission ssrc>
+  private static final Pattern FID_GROUP_PATTERN =
+      Pattern.compile("^a=ssrc-group:FID (\\d+) (\\d+)$");
+  private static final Random random = new Random();
+
+  @Nullable private final String preferredAudioCodec;
+  @Nullable private final String preferredVideoCodec;
+  @Nullable private final String audioBitrateCodec;
+  private final int audioBitrateKbps;
+  @Nullable private final String videoBitrateCodec;
+  private final int videoBitrateKbps;
+  private final int simulcastLayers;
+
+  /**
+   * @param preferredAudioCodec Codec moved to the front of the first m=audio line, or null.
+   * @param preferredVideoCodec Codec moved to the front of the first m=video line, or null.
+   * @param audioBitrateCodec   Audio codec that gets a maxaveragebitrate parameter, or null.
+   * @param audioBitrateKbps    Value of the maxaveragebitrate parameter. Ignored if not positive.
+   * @param videoBitrateCodec   Video codec that gets a x-google-start-bitrate parameter, or null.
+   * @param videoBitrateKbps    Value of the x-google-start-bitrate parameter. Ignored if not
+   *                            positive.
+   * @param simulcastLayers     Number of video layers to send, or 1 for no simulcast.
+   */
+  SdpMunger(@Nullable String preferredAudioCodec, @Nullable String preferredVideoCodec,
+      @Nullable String audioBitrateCodec, int audioBitrateKbps,
+      @Nullable String videoBitrateCodec, int videoBitrateKbps, int simulcastLayers) {
+    this.preferredAudioCodec = preferredAudioCodec;
+    this.preferredVideoCodec = preferredVideoCodec;
+    this.audioBitrateCodec = audioBitrateKbps > 0 ? audioBitrateCodec : null;
+    this.audioBitrateKbps = audioBitrateKbps;
+    this.videoBitrateCodec = videoBitrateKbps > 0 ? videoBitrateCodec : null;
+    this.videoBitrateKbps = videoBitrateKbps;
+    this.simulcastLayers = simulcastLayers;
+  }
+
+  /** Returns true if munge() can change a description. */
+  boolean hasRewrites() {
+    return preferredAudioCodec != null || preferredVideoCodec != null || audioBitrateCodec != null
+        || videoBitrateCodec != null || simulcastLayers > 1;
+  }
+
+  /** Applies all configured rewrites to |sdpDescription| and returns the result. */
+  String munge(String sdpDescription) {
+    if (!hasRewrites()) {
+      return sdpDescription;
+    }
+    final SessionDescriptionModel sdp = new SessionDescriptionModel(sdpDescription);
+    munge(sdp);
+    return sdp.toString();
+  }
+
+  /** Applies all configured rewrites to |sdp|. */
+  void munge(SessionDescriptionModel sdp) {
+    preferCodec(sdp, "audio", preferredAudioCodec);
+    preferCodec(sdp, "video", preferredVideoCodec);
+    setCodecParameter(sdp, audioBitrateCodec, AUDIO_CODEC_PARAM_BITRATE,
+        audioBitrateKbps * BPS_IN_KBPS);
+    setCodecParameter(sdp, videoBitrateCodec, VIDEO_CODEC_PARAM_START_BITRATE, videoBitrateKbps);
+    addSimulcastLayers(sdp, simulcastLayers);
+  }
+
+  // Moves all payload types with name |codec| to the front of the format list of the first
+  // media description of type |media|.
+  private static void preferCodec(
+      SessionDescriptionModel sdp, String media, @Nullable String codec) {
+    if (codec == null) {
+      return;
+    }
+    final int mLineIndex = sdp.findMediaDescriptionLine(media);
+    if (mLineIndex == -1) {
+      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
+      return;
+    }
+    // A list with all the payload types with name |codec|. The payload types are integers in the
+    // range 96-127, but they are stored as strings here.
+    final List<String> payloadTypes = sdp.getPayloadTypes(codec);
+    if (payloadTypes.isEmpty()) {
+      Log.w(TAG, "No payload types with name " + codec);
+      return;
+    }
+    final String mLine = sdp.getLine(mLineIndex);
+    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
+    final String[] origLineParts = mLine.split(" ");
+    if (origLineParts.length <= 3) {
+      Log.e(TAG, "Wrong SDP media description format: " + mLine);
+      return;
+    }
+    final StringBuilder newMLine = new StringBuilder(mLine.length() + 4 * payloadTypes.size());
+    newMLine.append(origLineParts[0]).append(' ').append(origLineParts[1]).append(' ').append(
+        origLineParts[2]);
+    for (String payloadType : payloadTypes) {
+      newMLine.append(' ').append(payloadType);
+    }
+    for (int i = 3; i < origLineParts.length; i++) {
+      if (!payloadTypes.contains(origLineParts[i])) {
+        newMLine.append(' ').append(origLineParts[i]);
+      }
+    }
+    final String result = newMLine.toString();
+    Log.d(TAG, "Change media description from: " + mLine + " to " + result);
+    sdp.replaceLine(mLineIndex, result);
+  }
+
+  // Adds |parameter|=|value| to the fmtp line of the first payload type with name |codec|, or
+  // adds a new fmtp line if that payload type has no parameters yet.
+  private static void setCodecParameter(
+      SessionDescriptionModel sdp, @Nullable String codec, String parameter, int value) {
+    if (codec == null) {
+      return;
+    }
+    final List<String> payloadTypes = sdp.getPayloadTypes(codec);
+    if (payloadTypes.isEmpty()) {
+      Log.w(TAG, "No rtpmap for " + codec + " codec");
+      return;
+    }
+    final String payloadType = payloadTypes.get(0);
+    final int rtpmapLineIndex = sdp.findRtpmapLine(payloadType);
+    Log.d(TAG, "Found " + codec + " rtpmap " + payloadType + " at "
+            + sdp.getLine(rtpmapLineIndex));
+
+    final int fmtpLineIndex = sdp.findFmtpLine(payloadType);
+    if (fmtpLineIndex != -1) {
+      final String fmtpLine = sdp.getLine(fmtpLineIndex);
+      if (FMTP_PARAMETERS_PATTERN.matcher(fmtpLine).matches()) {
+        final String newFmtpLine = fmtpLine + "; " + parameter + "=" + value;
+        Log.d(TAG, "Update remote SDP line: " + newFmtpLine);
+        sdp.replaceLine(fmtpLineIndex, newFmtpLine);
+        return;
+      }
+    }
+    final String newFmtpLine = "a=fmtp:" + payloadType + " " + parameter + "=" + value;
+    Log.d(TAG, "Add remote SDP line: " + newFmtpLine);
+    sdp.insertLineAfter(rtpmapLineIndex, newFmtpLine);
+  }
+
+  // Adds SSRCs for |layers| - 1 more layers to the first video media description and lists them
+  // in an a=ssrc-group:SIM line, lowest resolution first, which makes the encoder send simulcast.
+  // The new SSRCs copy the attributes of the existing one and get retransmission SSRCs if it has
+  // one.
+  private static void addSimulcastLayers(SessionDescriptionModel sdp, int layers) {
+    if (layers <= 1) {
+      return;
+    }
+    final int mLineIndex = sdp.findMediaDescriptionLine("video");
+    if (mLineIndex == -1) {
+      Log.w(TAG, "No video mediaDescription line, so can't add simulcast layers");
+      return;
+    }
+    int endIndex = sdp.getLineCount();
+    for (int index : sdp.getMediaDescriptionLines()) {
+      if (index > mLineIndex) {
+        endIndex = index;
+        break;
+      }
+    }
+
+    final Set<Long> ssrcs = new HashSet<>();
+    String mediaSsrc = null;
+    String rtxSsrc = null;
+    int lastSsrcLineIndex = -1;
+    for (int i = mLineIndex + 1; i < endIndex; i++) {
+      final String line = sdp.getLine(i);
+      if (line.startsWith(SIMULCAST_GROUP_PREFIX)) {
+        Log.w(TAG, "Video already has simulcast layers: " + line);
+        return;
+      }
+      final Matcher fidMatcher = FID_GROUP_PATTERN.matcher(line);
+      final Matcher ssrcMatcher = SSRC_PATTERN.matcher(line);
+      if (fidMatcher.matches()) {
+        mediaSsrc = fidMatcher.group(1);
+        rtxSsrc = fidMatcher.group(2);
+      } else if (ssrcMatcher.matches()) {
+        ssrcs.add(Long.parseLong(ssrcMatcher.group(1)));
+        if (mediaSsrc == null) {
+          mediaSsrc = ssrcMatcher.group(1);
+        }
+        lastSsrcLineIndex = i;
+      }
+    }
+    if (lastSsrcLineIndex == -1) {
+      Log.w(TAG, "No video SSRC, so can't add simulcast layers");
+      return;
+    }
+
+    final List<String> mediaAttributes = new ArrayList<>();
+    final List<String> rtxAttributes = new ArrayList<>();
+    for (int i = mLineIndex + 1; i <= lastSsrcLineIndex; i++) {
+      final Matcher ssrcMatcher = SSRC_PATTERN.matcher(sdp.getLine(i));
+      if (!ssrcMatcher.matches()) {
+        continue;
+      }
+      if (ssrcMatcher.group(1).equals(mediaSsrc)) {
+        mediaAttributes.add(ssrcMatcher.group(2));
+      } else if (ssrcMatcher.group(1).equals(rtxSsrc)) {
+        rtxAttributes.add(ssrcMatcher.group(2));
+      }
+    }
+
+    final StringBuilder simulcastGroup = new StringBuilder(SIMULCAST_GROUP_PREFIX);
+    simulcastGroup.append(' ').append(mediaSsrc);
+    for (int layer = 1; layer < layers; layer++) {
+      final long layerSsrc = newSsrc(ssrcs);
+      for (String attribute : mediaAttributes) {
+        sdp.insertLineAfter(lastSsrcLineIndex, SSRC_PREFIX + layerSsrc + " " + attribute);
+      }
+      if (rtxSsrc != null) {
+        final long layerRtxSsrc = newSsrc(ssrcs);
+        for (String attribute : rtxAttributes) {
+          sdp.insertLineAfter(lastSsrcLineIndex, SSRC_PREFIX + layerRtxSsrc + " " + attribute);
+        }
+        sdp.insertLineAfter(
+            lastSsrcLineIndex, "a=ssrc-group:FID " + layerSsrc + " " + layerRtxSsrc);
+      }
+      simulcastGroup.append(' ').append(layerSsrc);
+    }
+    final String simulcastLine = simulcastGroup.toString();
+    Log.d(TAG, "Add local SDP line: " + simulcastLine);
+    sdp.insertLineAfter(lastSsrcLineIndex, simulcastLine);
+  }
+
+  // Returns a random SSRC that is not in |ssrcs| and adds it.
+  private static long newSsrc(Set<Long> ssrcs) {
+    long ssrc;
+    do {
+      ssrc = random.nextInt() & 0xFFFFFFFFL;
+    } while (ssrc == 0 || !ssrcs.add(ssrc));
+    return ssrc;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Editable view of a session description. Line boundaries are found on first access, and the
+ * media descriptions, rtpmap and fmtp lines are indexed the first time one of them is looked up,
+ * so callers only pay for what they use. Edits are recorded per line and toString() only
+ * rebuilds the description if something was changed.
+ *
+ * <p>Lines are addressed by their index in the original description. This class is not thread
+ * safe.
+ */
+class SessionDescriptionModel {
+  private static final String LINE_SEPARATOR = "\r\n";
+  private static final String MEDIA_DESCRIPTION_PREFIX = "m=";
+  private static final String RTPMAP_PREFIX = "a=rtpmap:";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+  // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+  private static final Pattern RTPMAP_PATTERN =
+      Pattern.compile("^a=rtpmap:(\\d+) ([^/ ]+)(/\\d+)+[\r]?$");
+  // a=fmtp:<payload type> <format specific parameters>
+  private static final Pattern FMTP_PATTERN = Pattern.compile("^a=fmtp:(\\d+) .*$");
+
+  private final String description;
+
+  // Start and end offsets of each line, filled in by splitLines().
+  @Nullable private int[] lineBounds;
+  private int lineCount;
+
+  // Filled in by buildIndex().
+  private boolean indexed;
+  private final List<Integer> mediaDescriptionLines = new ArrayList<>();
+  private final Map<String, Integer> rtpmapLineByPayloadType = new HashMap<>();
+  private final Map<String, Integer> fmtpLineByPayloadType = new HashMap<>();
+  private final Map<String, List<String>> payloadTypesByCodec = new HashMap<>();
+
+  // Sparse edits, allocated on first change.
+  @Nullable private String[] replacedLines;
+  @Nullable private StringBuilder[] insertedLines;
+
+  SessionDescriptionModel(String description) {
+    this.description = description;
+  }
+
+  /** Returns the number of lines. Like String.split(), trailing empty lines are not counted. */
+  int getLineCount() {
+    splitLines();
+    return lineCount;
+  }
+
+  /** Returns line |index| without its line separator, including any replacement. */
+  String getLine(int index) {
+    checkLineIndex(index);
+    if (replacedLines != null && replacedLines[index] != null) {
+      return replacedLines[index];
+    }
+    return description.substring(lineStart(index), lineEnd(index));
+  }
+
+  /** Returns the line indices of all media descriptions (m= lines) in order. */
+  List<Integer> getMediaDescriptionLines() {
+    buildIndex();
+    return Collections.unmodifiableList(mediaDescriptionLines);
+  }
+
+  /**
+   * Returns the line index of the first media description of type |media| ("audio", "video",
+   * ...), or -1 if there is none.
+   */
+  int findMediaDescriptionLine(String media) {
+    buildIndex();
+    for (int index : mediaDescriptionLines) {
+      final int start = lineStart(index) + MEDIA_DESCRIPTION_PREFIX.length();
+      if (description.startsWith(media, start)
+          && description.startsWith(" ", start + media.length())) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the payload types of all rtpmap lines with encoding name |codec|, in order. */
+  List<String> getPayloadTypes(String codec) {
+    buildIndex();
+    final List<String> payloadTypes = payloadTypesByCodec.get(codec);
+    return payloadTypes == null ? Collections.<String>emptyList()
+                                : Collections.unmodifiableList(payloadTypes);
+  }
+
+  /** Returns the line index of the first rtpmap line for |payloadType|, or -1. */
+  int findRtpmapLine(String payloadType) {
+    buildIndex();
+    final Integer index = rtpmapLineByPayloadType.get(payloadType);
+    return index == null ? -1 : index;
+  }
+
+  /** Returns the line index of the first fmtp line for |payloadType|, or -1. */
+  int findFmtpLine(String payloadType) {
+    buildIndex();
+    final Integer index = fmtpLineByPayloadType.get(payloadType);
+    return index == null ? -1 : index;
+  }
+
+  /** Replaces line |index|. |line| must not contain a line separator. */
+  void replaceLine(int index, String line) {
+    checkLineIndex(index);
+    if (replacedLines == null) {
+      replacedLines = new String[lineCount];
+    }
+    replacedLines[index] = line;
+  }
+
+  /** Inserts |line| after line |index|, after any lines inserted there before. */
+  void insertLineAfter(int index, String line) {
+    checkLineIndex(index);
+    if (insertedLines == null) {
+      insertedLines = new StringBuilder[lineCount];
+    }
+    if (insertedLines[index] == null) {
+      insertedLines[index] = new StringBuilder();
+    }
+    insertedLines[index].append(line).append(LINE_SEPARATOR);
+  }
+
+  boolean isModified() {
+    return replacedLines != null || insertedLines != null;
+  }
+
+  /** Returns the description with all edits applied, or the original one if there are none. */
+  @Override
+  public String toString() {
+    if (!isModified()) {
+      return description;
+    }
+    final StringBuilder sdp = new StringBuilder(description.length() + 128);
+    for (int i = 0; i < lineCount; i++) {
+      if (replacedLines != null && replacedLines[i] != null) {
+        sdp.append(replacedLines[i]);
+      } else {
+        sdp.append(description, lineStart(i), lineEnd(i));
+      }
+      sdp.append(LINE_SEPARATOR);
+      if (insertedLines != null && insertedLines[i] != null) {
+        sdp.append(insertedLines[i]);
+      }
+    }
+    return sdp.toString();
+  }
+
+  private void checkLineIndex(int index) {
+    splitLines();
+    if (index < 0 || index >= lineCount) {
+      throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+    }
+  }
+
+  private int lineStart(int index) {
+    return lineBounds[2 * index];
+  }
+
+  private int lineEnd(int index) {
+    return lineBounds[2 * index + 1];
+  }
+
+  private void splitLines() {
+    if (lineBounds != null) {
+      return;
+    }
+    int[] bounds = new int[2 * 64];
+    int count = 0;
+    int nonEmptyCount = 0;
+    int start = 0;
+    final int length = description.length();
+    while (start <= length) {
+      int end = description.indexOf(LINE_SEPARATOR, start);
+      if (end == -1) {
+        end = length;
+      }
+      if (2 * count == bounds.length) {
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      }
+      bounds[2 * count] = start;
+      bounds[2 * count + 1] = end;
+      count++;
+      if (end > start) {
+        nonEmptyCount = count;
+      }
+      start = end + LINE_SEPARATOR.length();
+    }
+    lineBounds = bounds;
+    lineCount = nonEmptyCount;
+  }
+
+  private void buildIndex() {
+    if (indexed) {
+      return;
+    }
+    splitLines();
+    final Matcher rtpmapMatcher = RTPMAP_PATTERN.matcher(description);
+    final Matcher fmtpMatcher = FMTP_PATTERN.matcher(description);
+    for (int i = 0; i < lineCount; i++) {
+      final int start = lineStart(i);
+      if (description.startsWith(MEDIA_DESCRIPTION_PREFIX, start)) {
+        mediaDescriptionLines.add(i);
+      } else if (description.startsWith(RTPMAP_PREFIX, start)) {
+        rtpmapMatcher.region(start, lineEnd(i));
+        if (!rtpmapMatcher.matches()) {
+          continue;
+        }
+        final String payloadType = rtpmapMatcher.group(1);
+        final String codec = rtpmapMatcher.group(2);
+        if (!rtpmapLineByPayloadType.containsKey(payloadType)) {
+          rtpmapLineByPayloadType.put(payloadType, i);
+        }
+        List<String> payloadTypes = payloadTypesByCodec.get(codec);
+        if (payloadTypes == null) {
+          payloadTypes = new ArrayList<>();
+          payloadTypesByCodec.put(codec, payloadTypes);
+        }
+        payloadTypes.add(payloadType);
+      } else if (description.startsWith(FMTP_PREFIX, start)) {
+        fmtpMatcher.region(start, lineEnd(i));
+        if (fmtpMatcher.matches() && !fmtpLineByPayloadType.containsKey(fmtpMatcher.group(1))) {
+          fmtpLineByPayloadType.put(fmtpMatcher.group(1), i);
+        }
+      }
+    }
+    indexed = true;
+  }
+}
@@ -30,8 +30,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefResolution;
   private String keyprefFps;
   private String keyprefCaptureQualitySlider;
+  private String keyprefCpuAdaptation;
+  private String keyprefBandwidthAdaptation;
   private String keyprefMaxVideoBitrateType;
   private String keyprefMaxVideoBitrateValue;
+  private String keyprefBitrateGovernor;
+  private String keyprefSimulcastLayers;
   private String keyPrefVideoCodec;
   private String keyprefHwCodec;
   private String keyprefCaptureToTexture;
@@ -54,6 +58,11 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
   private String keyprefEnabledRtcEventLog;
+  private String keyprefEnabledMetricsJournal;
+  private String keyprefFramedDirectSignaling;
+  private String keyprefBatchIceCandidates;
+  private String keyprefWarmStart;
+  private String keyprefDirectCallHub;
 
   private String keyprefEnableDataChannel;
   private String keyprefOrdered;
@@ -73,8 +82,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
+    keyprefCpuAdaptation = getString(R.string.pref_cpu_adaptation_key);
+    keyprefBandwidthAdaptation = getString(R.string.pref_bandwidth_adaptation_key);
     keyprefMaxVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
     keyprefMaxVideoBitrateValue = getString(R.string.pref_maxvideobitratevalue_key);
+    keyprefBitrateGovernor = getString(R.string.pref_bitrate_governor_key);
+    keyprefSimulcastLayers = getString(R.string.pref_simulcast_layers_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
     keyprefHwCodec = getString(R.string.pref_hwcodec_key);
     keyprefCaptureToTexture = getString(R.string.pref_capturetotexture_key);
@@ -106,6 +119,11 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
     keyprefEnabledRtcEventLog = getString(R.string.pref_enable_rtceventlog_key);
+    keyprefEnabledMetricsJournal = getString(R.string.pref_enable_metrics_journal_key);
+    keyprefFramedDirectSignaling = getString(R.string.pref_framed_direct_signaling_key);
+    keyprefBatchIceCandidates = getString(R.string.pref_batch_ice_candidates_key);
+    keyprefWarmStart = getString(R.string.pref_warm_start_key);
+    keyprefDirectCallHub = getString(R.string.pref_direct_call_hub_key);
     keyprefUseLegacyAudioDevice = getString(R.string.pref_use_legacy_audio_device_key);
 
     // Display the fragment as the main content.
@@ -129,9 +147,13 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyprefResolution);
     updateSummary(sharedPreferences, keyprefFps);
     updateSummaryB(sharedPreferences, keyprefCaptureQualitySlider);
+    updateSummaryB(sharedPreferences, keyprefCpuAdaptation);
+    updateSummaryB(sharedPreferences, keyprefBandwidthAdaptation);
     updateSummary(sharedPreferences, keyprefMaxVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefMaxVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
+    updateSummary(sharedPreferences, keyprefBitrateGovernor);
+    updateSummary(sharedPreferences, keyprefSimulcastLayers);
     updateSummary(sharedPreferences, keyPrefVideoCodec);
     updateSummaryB(sharedPreferences, keyprefHwCodec);
     updateSummaryB(sharedPreferences, keyprefCaptureToTexture);
@@ -164,6 +186,11 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
     updateSummaryB(sharedPreferences, keyprefEnabledRtcEventLog);
+    updateSummaryB(sharedPreferences, keyprefEnabledMetricsJournal);
+    updateSummaryB(sharedPreferences, keyprefFramedDirectSignaling);
+    updateSummaryB(sharedPreferences, keyprefBatchIceCandidates);
+    updateSummaryB(sharedPreferences, keyprefWarmStart);
+    updateSummaryB(sharedPreferences, keyprefDirectCallHub);
     updateSummaryB(sharedPreferences, keyprefUseLegacyAudioDevice);
 
     if (!Camera2Enumerator.isSupported(this)) {
@@ -210,6 +237,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     if (key.equals(keyprefResolution)
         || key.equals(keyprefFps)
         || key.equals(keyprefMaxVideoBitrateType)
+        || key.equals(keyprefBitrateGovernor)
+        || key.equals(keyprefSimulcastLayers)
         || key.equals(keyPrefVideoCodec)
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
@@ -227,6 +256,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefCamera2)
         || key.equals(keyPrefTracing)
         || key.equals(keyprefCaptureQualitySlider)
+        || key.equals(keyprefCpuAdaptation)
+        || key.equals(keyprefBandwidthAdaptation)
         || key.equals(keyprefHwCodec)
         || key.equals(keyprefCaptureToTexture)
         || key.equals(keyprefFlexfec)
@@ -243,6 +274,11 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefOrdered)
         || key.equals(keyprefNegotiated)
         || key.equals(keyprefEnabledRtcEventLog)
+        || key.equals(keyprefEnabledMetricsJournal)
+        || key.equals(keyprefFramedDirectSignaling)
+        || key.equals(keyprefBatchIceCandidates)
+        || key.equals(keyprefWarmStart)
+        || key.equals(keyprefDirectCallHub)
         || key.equals(keyprefUseLegacyAudioDevice)) {
       updateSummaryB(sharedPreferences, key);
     } else if (key.equals(keyprefSpeakerphone)) {
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.webrtc.RtpParameters;
+
+/**
+ * Runtime settings of the simulcast layers of the video sender, applied to the encodings of its
+ * RtpParameters. Layer 0 has the lowest resolution and each layer has half the width and height
+ * of the next one, which is how the encoder scales the layers listed in an a=ssrc-group:SIM line.
+ *
+ * <p>Each layer can be switched off and given a maximum bitrate. Layers below the top one
+ * default to a maximum for their pixel count. A total maximum, e.g. from the bitrate governor, is
+ * handed out from the lowest layer up, and layers above the lowest that would get less than
+ * MIN_LAYER_BITRATE_BPS are suspended, so a receiver can always be given some layer.
+ *
+ * <p>Not thread safe.
+ */
+class SimulcastEncodings {
+  private static final String TAG = "SimulcastEncodings";
+  static final int MAX_LAYERS = 3;
+  private static final int MIN_LAYER_BITRATE_BPS = 50_000;
+  // Default maximum of the lower layers, e.g. 700 kbps for 640x360.
+  private static final int DEFAULT_BPS_PER_PIXEL = 3;
+
+  private final int layerCount;
+  private final int width;
+  private final int height;
+  private final boolean[] active;
+  private final Integer[] maxBitrateBps;
+
+  /**
+   * @param layerCount Number of layers, at most MAX_LAYERS.
+   * @param width      Capture width, the width of the top layer.
+   * @param height     Capture height.
+   */
+  SimulcastEncodings(int layerCount, int width, int height) {
+    this.layerCount = layerCount;
+    this.width = width;
+    this.height = height;
+    active = new boolean[layerCount];
+    maxBitrateBps = new Integer[layerCount];
+    for (int layer = 0; layer < layerCount; layer++) {
+      active[layer] = true;
+    }
+  }
+
+  /** Returns the factor the capture resolution is scaled down by for |layer|. */
+  int getScaleResolutionDownBy(int layer) {
+    return 1 << (layerCount - 1 - layer);
+  }
+
+  /**
+   * Sets whether |layer| is sent and its maximum bitrate, or null for the default. Returns false
+   * if there is no such layer.
+   */
+  boolean setLayer(int layer, boolean active, @Nullable Integer maxBitrateBps) {
+    if (layer < 0 || layer >= layerCount) {
+      return false;
+    }
+    this.active[layer] = active;
+    this.maxBitrateBps[layer] = maxBitrateBps;
+    return true;
+  }
+
+  /**
+   * Applies the layer settings and the total maximum bitrate |totalMaxBitrateBps|, or null if
+   * unlimited, to |encodings|, which are in layer order.
+   */
+  void apply(List<RtpParameters.Encoding> encodings, @Nullable Integer totalMaxBitrateBps) {
+    if (encodings.size() != layerCount) {
+      Log.w(TAG, "Sender has " + encodings.size() + " encodings for " + layerCount + " layers.");
+    }
+    Integer remainingBps = totalMaxBitrateBps;
+    boolean lowestActive = true;
+    for (int layer = 0; layer < Math.min(layerCount, encodings.size()); layer++) {
+      final RtpParameters.Encoding encoding = encodings.get(layer);
+      final Integer layerMaxBitrateBps = getMaxBitrateBps(layer);
+      if (!active[layer]) {
+        encoding.active = false;
+        encoding.maxBitrateBps = layerMaxBitrateBps;
+        continue;
+      }
+      if (remainingBps == null) {
+        encoding.active = true;
+        encoding.maxBitrateBps = layerMaxBitrateBps;
+        lowestActive = false;
+        continue;
+      }
+      if (!lowestActive && remainingBps < MIN_LAYER_BITRATE_BPS) {
+        Log.d(TAG, "Suspending layer " + layer + ", " + remainingBps + " bps left.");
+        encoding.active = false;
+        encoding.maxBitrateBps = layerMaxBitrateBps;
+        continue;
+      }
+      final int bps =
+          layerMaxBitrateBps == null ? remainingBps : Math.min(layerMaxBitrateBps, remainingBps);
+      encoding.active = true;
+      encoding.maxBitrateBps = bps;
+      remainingBps = Math.max(0, remainingBps - bps);
+      lowestActive = false;
+    }
+  }
+
+  // Maximum bitrate of |layer| if it has all the bitrate it needs, or null if unlimited.
+  @Nullable
+  private Integer getMaxBitrateBps(int layer) {
+    if (maxBitrateBps[layer] != null || layer == layerCount - 1) {
+      return maxBitrateBps[layer];
+    }
+    final int scale = getScaleResolutionDownBy(layer);
+    return DEFAULT_BPS_PER_PIXEL * (width / scale) * (height / scale);
+  }
+}
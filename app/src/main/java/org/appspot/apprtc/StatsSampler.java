@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Periodically requests statistics with at most one request outstanding. Ticks run on a private
+ * scheduler thread and only post to the work executor if the previous request has completed, so
+ * a slow stats source can never queue up more than one task behind signaling work. Ticks that
+ * find a request outstanding are dropped and counted as skipped; requests that complete after
+ * more than one period are counted as late. Each start() begins a new generation, and requests
+ * and completions of earlier generations are ignored.
+ *
+ * <p>Fast sampling halves the period, e.g. while a connection is being established. Changes take
+ * effect from the next tick.
+ */
+class StatsSampler {
+  private static final String TAG = "StatsSampler";
+
+  /** Source of statistics. */
+  interface StatsSource {
+    /**
+     * Called on the work executor. Returns false if no request was started. Otherwise the
+     * source must call {@link StatsSampler#onSampleComplete(int)} with |generation| once the
+     * request completes, on any thread.
+     */
+    boolean requestStats(int generation);
+  }
+
+  /** Creates the scheduler thread of each start(). */
+  interface SchedulerFactory {
+    ScheduledExecutorService create();
+  }
+
+  private static final SchedulerFactory DEFAULT_SCHEDULER_FACTORY = new SchedulerFactory() {
+    @Override
+    public ScheduledExecutorService create() {
+      return Executors.newSingleThreadScheduledExecutor();
+    }
+  };
+
+  private final Executor workExecutor;
+  private final StatsSource source;
+  private final SchedulerFactory schedulerFactory;
+  private final Runnable requestTask = new Runnable() {
+    @Override
+    public void run() {
+      requestSample();
+    }
+  };
+  private final Runnable tickTask = new Runnable() {
+    @Override
+    public void run() {
+      tick();
+    }
+  };
+
+  @Nullable private ScheduledExecutorService scheduler;
+  private int periodMs;
+  private boolean fastSampling;
+  private int generation;
+  // Set by a tick that posts a request, until the request completes or fails to start.
+  private boolean sampleInFlight;
+  // Set once the posted request has been started by the work executor.
+  private boolean sampleRequested;
+  private long sampleStartTimeMs;
+  private int completedSamples;
+  private int skippedSamples;
+  private int lateSamples;
+
+  StatsSampler(Executor workExecutor, StatsSource source) {
+    this(workExecutor, source, DEFAULT_SCHEDULER_FACTORY);
+  }
+
+  StatsSampler(Executor workExecutor, StatsSource source, SchedulerFactory schedulerFactory) {
+    this.workExecutor = workExecutor;
+    this.source = source;
+    this.schedulerFactory = schedulerFactory;
+  }
+
+  /** Starts sampling every |periodMs|, beginning immediately. Restarts if already running. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void start(int periodMs) {
+    stop();
+    Log.d(TAG, "Start sampling every " + periodMs + " ms");
+    this.periodMs = periodMs;
+    generation++;
+    scheduler = schedulerFactory.create();
+    scheduleTick(0);
+  }
+
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdownNow();
+    scheduler = null;
+    // An outstanding request belongs to the stopped generation.
+    generation++;
+    sampleInFlight = false;
+    sampleRequested = false;
+    Log.d(TAG, "Stopped. Samples completed: " + completedSamples + ", skipped: " + skippedSamples
+            + ", late: " + lateSamples);
+  }
+
+  /** Samples at half the period while |fastSampling| is true. Takes effect from the next tick. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void setFastSampling(boolean fastSampling) {
+    if (this.fastSampling != fastSampling) {
+      Log.d(TAG, "Fast sampling: " + fastSampling);
+      this.fastSampling = fastSampling;
+    }
+  }
+
+  /**
+   * Must be called by the source when a request started by requestStats(|generation|) has
+   * completed.
+   */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized void onSampleComplete(int generation) {
+    if (generation != this.generation || !sampleRequested) {
+      return;
+    }
+    sampleInFlight = false;
+    sampleRequested = false;
+    completedSamples++;
+    if (SystemClock.elapsedRealtime() - sampleStartTimeMs > currentPeriodMs()) {
+      lateSamples++;
+    }
+  }
+
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getCompletedSamples() {
+    return completedSamples;
+  }
+
+  /** Returns the number of ticks dropped because a request was still outstanding. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getSkippedSamples() {
+    return skippedSamples;
+  }
+
+  /** Returns the number of requests that took longer than the sampling period. */
+  // TODO(bugs.webrtc.org/8491): Remove NoSynchronizedMethodCheck suppression.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public synchronized int getLateSamples() {
+    return lateSamples;
+  }
+
+  private synchronized void tick() {
+    if (scheduler == null) {
+      return;
+    }
+    if (sampleInFlight) {
+      skippedSamples++;
+    } else {
+      sampleInFlight = true;
+      sampleStartTimeMs = SystemClock.elapsedRealtime();
+      workExecutor.execute(requestTask);
+    }
+    scheduleTick(currentPeriodMs());
+  }
+
+  private int currentPeriodMs() {
+    return fastSampling ? Math.max(periodMs / 2, 1) : periodMs;
+  }
+
+  private void requestSample() {
+    final int requestGeneration;
+    synchronized (this) {
+      // A request posted before a restart may run after the one posted by the new generation.
+      if (!sampleInFlight || sampleRequested) {
+        return;
+      }
+      sampleRequested = true;
+      requestGeneration = generation;
+    }
+    if (!source.requestStats(requestGeneration)) {
+      synchronized (this) {
+        if (requestGeneration == generation) {
+          sampleInFlight = false;
+          sampleRequested = false;
+        }
+      }
+    }
+  }
+
+  private void scheduleTick(int delayMs) {
+    @SuppressWarnings("unused") // Prevent downstream linter warnings.
+    Future<?> possiblyIgnoredError = scheduler.schedule(tickTask, delayMs, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * TCP signaling channel to a peer. Events are delivered through
+ * {@link TCPChannelClient.TCPChannelEvents}.
+ */
+public interface TCPChannel {
+  /**
+   * Sends a message on the channel.
+   *
+   * @param message Message to be sent.
+   */
+  void send(String message);
+
+  /**
+   * Disconnects the channel if not already disconnected. This will fire the onTCPClose event.
+   */
+  void disconnect();
+}
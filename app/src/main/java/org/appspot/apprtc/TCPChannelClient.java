@@ -33,7 +33,7 @@ import org.webrtc.ThreadUtils;
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
  */
-public class TCPChannelClient {
+public class TCPChannelClient implements TCPChannel {
   private static final String TAG = "TCPChannelClient";
 
   private final ExecutorService executor;
@@ -87,6 +87,7 @@ public class TCPChannelClient {
   /**
    * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
    */
+  @Override
   public void disconnect() {
     executorThreadCheck.checkIsOnValidThread();
 
@@ -98,6 +99,7 @@ public class TCPChannelClient {
    *
    * @param message Message to be sent.
    */
+  @Override
   public void send(String message) {
     executorThreadCheck.checkIsOnValidThread();
 
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps one factory of type F for the process so that calls can start without creating one. The
+ * factory is created for a key describing everything it depends on, and is used by at most one
+ * client of type C at a time. A factory for another key replaces it only while no client uses it,
+ * since disposing it would end that client's call. Thread safe.
+ */
+class WarmFactoryCache<F, C> {
+  private static final String TAG = "WarmFactoryCache";
+
+  /** Creates and disposes the factories of the cache. */
+  interface Creator<F> {
+    F create();
+
+    void dispose(F factory);
+  }
+
+  @Nullable private F factory;
+  @Nullable private String key;
+  // Creator of |factory|, which disposes it.
+  @Nullable private Creator<F> creator;
+  @Nullable private C client;
+
+  /**
+   * Creates the factory for |key| unless the cache has it already, replacing the factory for
+   * another key if no client uses it. Returns whether the cache has the factory for |key|.
+   */
+  synchronized boolean prewarm(String key, Creator<F> creator) {
+    if (client != null && !key.equals(this.key)) {
+      Log.w(TAG, "Factory in use, not replacing it.");
+      return false;
+    }
+    getOrCreate(key, creator);
+    return true;
+  }
+
+  /**
+   * Returns the factory for |key| for |client| to use until release(), first creating it if
+   * needed. Returns null if another client uses the factory, in which case |client| has to
+   * create its own.
+   */
+  @Nullable
+  synchronized F acquire(String key, Creator<F> creator, C client) {
+    if (this.client != null && this.client != client) {
+      Log.w(TAG, "Factory in use by another client.");
+      return null;
+    }
+    final F factory = getOrCreate(key, creator);
+    this.client = client;
+    return factory;
+  }
+
+  /**
+   * Ends the use of the factory by |client|, which keeps it for the next call. Returns whether
+   * |client| used the factory.
+   */
+  synchronized boolean release(C client) {
+    if (this.client != client) {
+      return false;
+    }
+    this.client = null;
+    return true;
+  }
+
+  /** Returns the client using the factory, or null if there is none. */
+  @Nullable
+  synchronized C getClient() {
+    return client;
+  }
+
+  /** Returns whether the cache has a factory. */
+  synchronized boolean hasFactory() {
+    return factory != null;
+  }
+
+  private F getOrCreate(String key, Creator<F> creator) {
+    if (factory != null && key.equals(this.key)) {
+      Log.d(TAG, "Using the warm factory.");
+      return factory;
+    }
+    if (factory != null) {
+      Log.d(TAG, "Parameters changed, replacing the warm factory.");
+      this.creator.dispose(factory);
+      factory = null;
+      this.key = null;
+    }
+    factory = creator.create();
+    this.key = key;
+    this.creator = creator;
+    return factory;
+  }
+}
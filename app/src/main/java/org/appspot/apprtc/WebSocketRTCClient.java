@@ -55,13 +55,24 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private RoomConnectionParameters connectionParameters;
   private String messageUrl;
   private String leaveUrl;
+  // Batches local ICE candidates, or null to send one message per candidate.
+  @Nullable private final IceCandidateBatcher candidateBatcher;
 
   public WebSocketRTCClient(SignalingEvents events) {
+    this(events, false /* batchIceCandidates */);
+  }
+
+  /**
+   * @param batchIceCandidates Send local ICE candidates gathered in quick succession as one
+   *                           message. The other peer must understand candidate batches.
+   */
+  public WebSocketRTCClient(SignalingEvents events, boolean batchIceCandidates) {
     this.events = events;
     roomState = ConnectionState.NEW;
     final HandlerThread handlerThread = new HandlerThread(TAG);
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+    candidateBatcher = batchIceCandidates ? createCandidateBatcher() : null;
   }
 
   // --------------------------------------------------------------------
@@ -125,6 +136,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       sendPostMessage(MessageType.LEAVE, leaveUrl, null);
     }
     roomState = ConnectionState.CLOSED;
+    if (candidateBatcher != null) {
+      candidateBatcher.clear();
+    }
     if (wsClient != null) {
       wsClient.disconnect(true);
     }
@@ -232,6 +246,14 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
+        if (candidateBatcher != null) {
+          if (initiator && roomState != ConnectionState.CONNECTED) {
+            reportError("Sending ICE candidate in non connected state.");
+            return;
+          }
+          candidateBatcher.add(candidate);
+          return;
+        }
         JSONObject json = new JSONObject();
         jsonPut(json, "type", "candidate");
         jsonPut(json, "label", candidate.sdpMLineIndex);
@@ -261,6 +283,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
+        if (candidateBatcher != null) {
+          // Removals must not overtake the candidates they remove.
+          candidateBatcher.flush();
+        }
         JSONObject json = new JSONObject();
         jsonPut(json, "type", "remove-candidates");
         JSONArray jsonArray = new JSONArray();
@@ -305,6 +331,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         String type = json.optString("type");
         if (type.equals("candidate")) {
           events.onRemoteIceCandidate(toJavaCandidate(json));
+        } else if (type.equals(IceCandidateBatcher.MESSAGE_TYPE)) {
+          for (IceCandidate candidate : IceCandidateBatcher.fromMessage(json)) {
+            events.onRemoteIceCandidate(candidate);
+          }
         } else if (type.equals("remove-candidates")) {
           JSONArray candidateArray = json.getJSONArray("candidates");
           IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
@@ -370,6 +400,35 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     });
   }
 
+  private IceCandidateBatcher createCandidateBatcher() {
+    return new IceCandidateBatcher(new IceCandidateBatcher.Transport() {
+      @Override
+      public void postDelayed(Runnable task, int delayMs) {
+        handler.postDelayed(task, delayMs);
+      }
+
+      @Override
+      public void sendCandidates(String message, IceCandidate[] candidates) {
+        if (initiator) {
+          // Call initiator sends ice candidates to GAE server.
+          if (roomState != ConnectionState.CONNECTED) {
+            reportError("Sending ICE candidates in non connected state.");
+            return;
+          }
+          sendPostMessage(MessageType.MESSAGE, messageUrl, message);
+          if (connectionParameters.loopback) {
+            for (IceCandidate candidate : candidates) {
+              events.onRemoteIceCandidate(candidate);
+            }
+          }
+        } else {
+          // Call receiver sends ice candidates to websocket server.
+          wsClient.send(message);
+        }
+      }
+    }, IceCandidateBatcher.DEFAULT_WINDOW_MS, IceCandidateBatcher.DEFAULT_MAX_CANDIDATES);
+  }
+
   // Put a |key|->|value| mapping in |json|.
   private static void jsonPut(JSONObject json, String key, Object value) {
     try {
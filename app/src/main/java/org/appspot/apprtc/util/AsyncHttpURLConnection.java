@@ -16,14 +16,43 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.nio.charset.Charset;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>Requests run on a small pool of threads shared by all instances. Responses are read to the
+ * end and the connection is left open, so that the platform can reuse kept-alive connections to
+ * the same host for later requests instead of paying for a new TCP and TLS handshake each time.
+ * Connections are only dropped after errors. Each pool thread decodes responses through its own
+ * reused buffer.
  */
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://appr.tc";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final int MAX_THREADS = 4;
+  private static final int THREAD_KEEP_ALIVE_MS = 30000;
+  // Requests waiting for a pool thread. A room server that stops answering holds each thread for
+  // up to two timeouts, so without a bound a burst of candidate POSTs would pile up behind them.
+  static final int MAX_QUEUED_REQUESTS = 64;
+  private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+  private static final ThreadPoolExecutor executor = createExecutor();
+  private static final ThreadLocal<ResponseBuffer> responseBuffer =
+      new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+          return new ResponseBuffer();
+        }
+      };
+
   private final String method;
   private final String url;
   private final String message;
@@ -50,15 +79,26 @@ public class AsyncHttpURLConnection {
   }
 
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          sendHttpMessage();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Reported on the calling thread; callers already hand errors over to their own thread.
+      events.onHttpError("HTTP " + method + " to " + url + " rejected: too many pending requests");
+    }
   }
 
   private void sendHttpMessage() {
+    HttpURLConnection connection = null;
     try {
-      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection = (HttpURLConnection) new URL(url).openConnection();
       byte[] postData = new byte[0];
       if (message != null) {
-        postData = message.getBytes("UTF-8");
+        postData = message.getBytes(UTF_8);
       }
       connection.setRequestMethod(method);
       connection.setUseCaches(false);
@@ -71,7 +111,6 @@ public class AsyncHttpURLConnection {
       if (method.equals("POST")) {
         doOutput = true;
         connection.setDoOutput(true);
-        connection.setFixedLengthStreamingMode(postData.length);
       }
       if (contentType == null) {
         connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
@@ -89,26 +128,75 @@ public class AsyncHttpURLConnection {
       // Get response.
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
-            + connection.getHeaderField(null));
-        connection.disconnect();
+        final String statusLine = connection.getHeaderField(null);
+        // Consume the error body so that the connection can still be reused.
+        final InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+          responseBuffer.get().drain(errorStream);
+        }
+        events.onHttpError(
+            "Non-200 response to " + method + " to URL: " + url + " : " + statusLine);
         return;
       }
-      InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
-      responseStream.close();
-      connection.disconnect();
+      // Reading the response to the end and closing the stream, without disconnect(), returns
+      // the connection to the keep-alive pool.
+      String response = responseBuffer.get().drain(connection.getInputStream());
       events.onHttpComplete(response);
     } catch (SocketTimeoutException e) {
+      dropConnection(connection);
       events.onHttpError("HTTP " + method + " to " + url + " timeout");
     } catch (IOException e) {
+      dropConnection(connection);
       events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
     }
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private static void dropConnection(HttpURLConnection connection) {
+    if (connection != null) {
+      connection.disconnect();
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+        THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread =
+                new Thread(runnable, "AsyncHttpURLConnection-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // Let an idle app run without HTTP threads.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Growable buffer that decodes a whole response. Reused by one pool thread. */
+  private static class ResponseBuffer {
+    private byte[] bytes = new byte[READ_BUFFER_BYTES];
+
+    // Returns the contents of |in| as a String and closes it.
+    String drain(InputStream in) throws IOException {
+      try {
+        int length = 0;
+        int read;
+        while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+          length += read;
+          if (length == bytes.length) {
+            final byte[] grown = new byte[2 * bytes.length];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+          }
+        }
+        return new String(bytes, 0, length, UTF_8);
+      } finally {
+        in.close();
+      }
+    }
   }
 }
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/** Tests the format selection from bandwidth and the hysteresis of switching formats. */
+public class BandwidthCaptureControllerTest {
+  private static final double LOW_BPS = 300000;
+  private static final double HIGH_BPS = 3000000;
+  // Enough for 1280x720@30, not enough to switch up to it from below.
+  private static final double STEADY_BPS = 2000000;
+
+  private static void assertFormat(int width, int height, int framerate, CaptureFormat format) {
+    assertEquals(width, format.width);
+    assertEquals(height, format.height);
+    assertEquals(framerate * 1000, format.framerate.min);
+    assertEquals(framerate * 1000, format.framerate.max);
+  }
+
+  private static void assertFormat(
+      int width, int height, int framerate, BandwidthCaptureController controller) {
+    assertEquals(width, controller.getWidth());
+    assertEquals(height, controller.getHeight());
+    assertEquals(framerate, controller.getFramerate());
+  }
+
+  // Returns the target bandwidth of |width|x|height| at |framerate| in millipixels / second.
+  private static double millipixelRate(int width, int height, int framerate) {
+    return (double) width * height * framerate * 1000;
+  }
+
+  @Test
+  public void testSelectFormat() {
+    // The largest format at full frame rate.
+    assertFormat(1280, 720, 30, CaptureQualityController.selectFormat(
+        CaptureQualityController.FORMATS, millipixelRate(1280, 720, 30)));
+    // 960x540 gets 18 fps, above the threshold where resolution wins over frame rate.
+    assertFormat(960, 540, 18, CaptureQualityController.selectFormat(
+        CaptureQualityController.FORMATS, millipixelRate(640, 480, 30)));
+    // Below the threshold the frame rate wins: 640x480 would only get 7 fps.
+    assertFormat(320, 240, 30, CaptureQualityController.selectFormat(
+        CaptureQualityController.FORMATS, millipixelRate(320, 240, 30)));
+    // Nothing fits, the smallest format gets what frame rate there is.
+    assertFormat(256, 144, 2, CaptureQualityController.selectFormat(
+        CaptureQualityController.FORMATS, millipixelRate(256, 144, 2)));
+  }
+
+  @Test
+  public void testSwitchesDownAfterHold() {
+    final BandwidthCaptureController controller =
+        new BandwidthCaptureController(1280, 720, 30, 0);
+    assertFalse(controller.onAvailableBandwidth(0, LOW_BPS));
+    assertFalse(controller.onAvailableBandwidth(1999, LOW_BPS));
+    assertFormat(1280, 720, 30, controller);
+    assertTrue(controller.onAvailableBandwidth(2000, LOW_BPS));
+    // 300 kbps at 0.07 bits per pixel.
+    assertFormat(480, 360, 25, controller);
+  }
+
+  @Test
+  public void testRecoveredBandwidthCancelsPendingSwitch() {
+    final BandwidthCaptureController controller =
+        new BandwidthCaptureController(1280, 720, 30, 0);
+    assertFalse(controller.onAvailableBandwidth(0, LOW_BPS));
+    assertFalse(controller.onAvailableBandwidth(1000, STEADY_BPS));
+    // The hold starts over.
+    assertFalse(controller.onAvailableBandwidth(2000, LOW_BPS));
+    assertFalse(controller.onAvailableBandwidth(3999, LOW_BPS));
+    assertTrue(controller.onAvailableBandwidth(4000, LOW_BPS));
+  }
+
+  @Test
+  public void testSwitchesUpWithMarginAfterLongerHold() {
+    final BandwidthCaptureController controller =
+        new BandwidthCaptureController(1280, 720, 30, 0);
+    controller.onAvailableBandwidth(0, LOW_BPS);
+    assertTrue(controller.onAvailableBandwidth(2000, LOW_BPS));
+
+    // Without the margin of spare bandwidth there is no switch up.
+    final double currentBps = 480 * 360 * 25 * 0.07;
+    assertFalse(controller.onAvailableBandwidth(3000, 1.1 * currentBps));
+    assertFalse(controller.onAvailableBandwidth(20000, 1.1 * currentBps));
+    assertFormat(480, 360, 25, controller);
+
+    assertFalse(controller.onAvailableBandwidth(21000, HIGH_BPS));
+    assertFalse(controller.onAvailableBandwidth(30999, HIGH_BPS));
+    assertTrue(controller.onAvailableBandwidth(31000, HIGH_BPS));
+    assertFormat(1280, 720, 30, controller);
+  }
+
+  @Test
+  public void testSwitchesAreRateLimited() {
+    final BandwidthCaptureController controller =
+        new BandwidthCaptureController(1280, 720, 30, 0);
+    controller.onAvailableBandwidth(0, LOW_BPS);
+    assertTrue(controller.onAvailableBandwidth(2000, LOW_BPS));
+    controller.onAvailableBandwidth(2000, HIGH_BPS);
+    assertTrue(controller.onAvailableBandwidth(12000, HIGH_BPS));
+
+    // The drop is held long enough at 14000 ms, but only 2 s after the last switch.
+    controller.onAvailableBandwidth(12000, LOW_BPS);
+    assertFalse(controller.onAvailableBandwidth(14000, LOW_BPS));
+    assertFalse(controller.onAvailableBandwidth(15999, LOW_BPS));
+    assertTrue(controller.onAvailableBandwidth(16000, LOW_BPS));
+  }
+
+  @Test
+  public void testStaysWithinCaptureFormatAndMaxBitrate() {
+    // Nothing above the capture format, however much bandwidth there is.
+    final BandwidthCaptureController capped = new BandwidthCaptureController(640, 480, 15, 0);
+    for (int i = 0; i <= 20; i++) {
+      assertFalse(capped.onAvailableBandwidth(i * 1000, 10 * HIGH_BPS));
+    }
+    assertFormat(640, 480, 15, capped);
+
+    // The estimate is capped by the maximum bitrate.
+    final BandwidthCaptureController limited =
+        new BandwidthCaptureController(1280, 720, 30, 300 /* maxBitrateKbps */);
+    limited.onAvailableBandwidth(0, HIGH_BPS);
+    assertTrue(limited.onAvailableBandwidth(2000, HIGH_BPS));
+    assertFormat(480, 360, 25, limited);
+  }
+}
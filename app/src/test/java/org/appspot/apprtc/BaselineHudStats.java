@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.webrtc.StatsReport;
+
+/**
+ * The HUD text HudFragment.updateEncoderStatistics() built on the UI thread before
+ * HudStatsDigester, copied without the views. Tests check the digester against it and benchmarks
+ * compare the two.
+ */
+final class BaselineHudStats {
+  final String encoderStat;
+  final String bweStat;
+  final String connectionStat;
+  final String videoSendStat;
+  final String videoRecvStat;
+
+  private BaselineHudStats(String encoderStat, String bweStat, String connectionStat,
+      String videoSendStat, String videoRecvStat) {
+    this.encoderStat = encoderStat;
+    this.bweStat = bweStat;
+    this.connectionStat = connectionStat;
+    this.videoSendStat = videoSendStat;
+    this.videoRecvStat = videoRecvStat;
+  }
+
+  private static Map<String, String> getReportMap(StatsReport report) {
+    Map<String, String> reportMap = new HashMap<>();
+    for (StatsReport.Value value : report.values) {
+      reportMap.put(value.name, value.value);
+    }
+    return reportMap;
+  }
+
+  static BaselineHudStats digest(final StatsReport[] reports) {
+    StringBuilder encoderStat = new StringBuilder(128);
+    StringBuilder bweStat = new StringBuilder();
+    StringBuilder connectionStat = new StringBuilder();
+    StringBuilder videoSendStat = new StringBuilder();
+    StringBuilder videoRecvStat = new StringBuilder();
+    String fps = null;
+    String targetBitrate = null;
+    String actualBitrate = null;
+
+    for (StatsReport report : reports) {
+      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
+        // Send video statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        String trackId = reportMap.get("googTrackId");
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          fps = reportMap.get("googFrameRateSent");
+          videoSendStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoSendStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("recv")) {
+        // Receive video statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        // Check if this stat is for video track.
+        String frameWidth = reportMap.get("googFrameWidthReceived");
+        if (frameWidth != null) {
+          videoRecvStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoRecvStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.id.equals("bweforvideo")) {
+        // BWE statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        targetBitrate = reportMap.get("googTargetEncBitrate");
+        actualBitrate = reportMap.get("googActualEncBitrate");
+
+        bweStat.append(report.id).append("\n");
+        for (StatsReport.Value value : report.values) {
+          String name = value.name.replace("goog", "").replace("Available", "");
+          bweStat.append(name).append("=").append(value.value).append("\n");
+        }
+      } else if (report.type.equals("googCandidatePair")) {
+        // Connection statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        String activeConnection = reportMap.get("googActiveConnection");
+        if (activeConnection != null && activeConnection.equals("true")) {
+          connectionStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            connectionStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      }
+    }
+
+    if (fps != null) {
+      encoderStat.append("Fps:  ").append(fps).append("\n");
+    }
+    if (targetBitrate != null) {
+      encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+    }
+    if (actualBitrate != null) {
+      encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+    }
+    return new BaselineHudStats(encoderStat.toString(), bweStat.toString(),
+        connectionStat.toString(), videoSendStat.toString(), videoRecvStat.toString());
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Copy of the /proc/stat and cpufreq readers that CpuMonitor used before ProcReader, kept as the
+ * reference for ProcReaderBenchmark. Each read opens the file and allocates readers and strings.
+ */
+final class BaselineProcReaders {
+  private BaselineProcReaders() {}
+
+  static long readFreqFromFile(String fileName) {
+    long number = 0;
+    try (FileInputStream stream = new FileInputStream(fileName);
+         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
+         BufferedReader reader = new BufferedReader(streamReader)) {
+      String line = reader.readLine();
+      number = parseLong(line);
+    } catch (FileNotFoundException e) {
+      // CPU core is off.
+    } catch (IOException e) {
+      // CPU core is off.
+    }
+    return number;
+  }
+
+  private static long parseLong(String value) {
+    long number = 0;
+    try {
+      number = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      // Logged by the original.
+    }
+    return number;
+  }
+
+  /** Returns {user, system, idle} from the first line of |fileName|, or null. */
+  @SuppressWarnings("StringSplitter")
+  static long[] readProcStat(String fileName) {
+    long userTime = 0;
+    long systemTime = 0;
+    long idleTime = 0;
+    try (FileInputStream stream = new FileInputStream(fileName);
+         InputStreamReader streamReader = new InputStreamReader(stream, Charset.forName("UTF-8"));
+         BufferedReader reader = new BufferedReader(streamReader)) {
+      String line = reader.readLine();
+      String[] lines = line.split("\\s+");
+      int length = lines.length;
+      if (length >= 5) {
+        userTime = parseLong(lines[1]); // user
+        userTime += parseLong(lines[2]); // nice
+        systemTime = parseLong(lines[3]); // system
+        idleTime = parseLong(lines[4]); // idle
+      }
+      if (length >= 8) {
+        userTime += parseLong(lines[5]); // iowait
+        systemTime += parseLong(lines[6]); // irq
+        systemTime += parseLong(lines[7]); // softirq
+      }
+    } catch (Exception e) {
+      return null;
+    }
+    return new long[] {userTime, systemTime, idleTime};
+  }
+}
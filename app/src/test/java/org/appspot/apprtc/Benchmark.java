@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the time and the heap allocations per call of an operation on the calling thread.
+ * Allocations are read from the HotSpot thread MXBean and are -1 on JVMs without it.
+ */
+final class Benchmark {
+  private static final int WARMUP_ITERATIONS = 2000;
+
+  /** Time and allocations per call of an operation. */
+  static final class Result {
+    final String name;
+    final double nsPerOp;
+    final double bytesPerOp;
+
+    Result(String name, double nsPerOp, double bytesPerOp) {
+      this.name = name;
+      this.nsPerOp = nsPerOp;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-40s %10.0f ns/op %10.1f B/op", name, nsPerOp, bytesPerOp);
+    }
+  }
+
+  private Benchmark() {}
+
+  /** Runs |op| WARMUP_ITERATIONS times, then |iterations| measured times, and prints the result. */
+  static Result run(String name, int iterations, Runnable op) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      op.run();
+    }
+    final long startBytes = allocatedBytes();
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      op.run();
+    }
+    final long elapsedNs = System.nanoTime() - startNs;
+    final long endBytes = allocatedBytes();
+    final Result result = new Result(name, (double) elapsedNs / iterations,
+        startBytes < 0 ? -1 : (double) (endBytes - startBytes) / iterations);
+    System.out.println(result);
+    return result;
+  }
+
+  /** Returns the bytes allocated by the calling thread so far, or -1 if unknown. */
+  static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) bean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Replays recorded or synthetic call metrics through a BitrateGovernor, e.g. journals of calls
+ * over real networks, to compare policies.
+ */
+final class BitrateGovernorSimulator {
+  /** One recorded or synthetic input of the governor. */
+  static final class Sample {
+    final long timeMs;
+    // Metric and value of a metrics sample, or null for a network type change.
+    @Nullable final CallMetricsRecorder.Metric metric;
+    final double value;
+    @Nullable final BitrateGovernor.NetworkType networkType;
+
+    Sample(long timeMs, CallMetricsRecorder.Metric metric, double value) {
+      this.timeMs = timeMs;
+      this.metric = metric;
+      this.value = value;
+      this.networkType = null;
+    }
+
+    Sample(long timeMs, BitrateGovernor.NetworkType networkType) {
+      this.timeMs = timeMs;
+      this.metric = null;
+      this.value = 0;
+      this.networkType = networkType;
+    }
+  }
+
+  /** A change of the maximum bitrate. */
+  static final class Decision {
+    final long timeMs;
+    final int maxBitrateBps;
+
+    Decision(long timeMs, int maxBitrateBps) {
+      this.timeMs = timeMs;
+      this.maxBitrateBps = maxBitrateBps;
+    }
+  }
+
+  /** Replays |samples| through a governor with |policy|. Returns the decisions in order. */
+  static List<Decision> replay(
+      List<Sample> samples, BitrateGovernor.Policy policy, int maxBitrateKbps) {
+    final BitrateGovernor governor = new BitrateGovernor(policy, maxBitrateKbps);
+    final List<Decision> decisions = new ArrayList<>();
+    for (Sample sample : samples) {
+      if (sample.metric == null) {
+        governor.setNetworkType(sample.networkType);
+      } else if (governor.onSample(sample.metric, sample.timeMs, sample.value)) {
+        decisions.add(new Decision(sample.timeMs, governor.getMaxBitrateBps()));
+      }
+    }
+    return decisions;
+  }
+
+  /** Reads the governor inputs recorded in a CallMetricsJournal. */
+  static List<Sample> readJournal(File journal) throws IOException {
+    final CallMetricsRecorder.Metric[] metrics = CallMetricsRecorder.Metric.values();
+    final BitrateGovernor.NetworkType[] networkTypes = BitrateGovernor.NetworkType.values();
+    final List<Sample> samples = new ArrayList<>();
+    CallMetricsJournal.read(journal, new CallMetricsJournal.RecordVisitor() {
+      @Override
+      public void onRecord(
+          long timeMs, CallMetricsJournal.RecordType type, int code, double value) {
+        if (type == CallMetricsJournal.RecordType.STATS_SAMPLE && code >= 0
+            && code < metrics.length) {
+          samples.add(new Sample(timeMs, metrics[code], value));
+        } else if (type == CallMetricsJournal.RecordType.NETWORK_TYPE && code >= 0
+            && code < networkTypes.length) {
+          samples.add(new Sample(timeMs, networkTypes[code]));
+        }
+      }
+    });
+    return samples;
+  }
+}
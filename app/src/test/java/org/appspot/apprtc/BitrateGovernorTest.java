@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.appspot.apprtc.BitrateGovernor.AimdPolicy;
+import org.appspot.apprtc.BitrateGovernor.Conditions;
+import org.appspot.apprtc.BitrateGovernor.NetworkType;
+import org.appspot.apprtc.BitrateGovernorSimulator.Decision;
+import org.appspot.apprtc.BitrateGovernorSimulator.Sample;
+import org.appspot.apprtc.CallMetricsRecorder.Metric;
+import org.junit.Test;
+
+public class BitrateGovernorTest {
+  private static final int MAX_BITRATE_KBPS = 1000;
+  private static final double CLEAN_LOSS_PERCENT = 0;
+  private static final double CLEAN_RTT_MS = 50;
+  private static final double CLEAN_CPU_PERCENT = 20;
+  private static final double AVAILABLE_SEND_BPS = 5000000;
+
+  // Adds the samples of one stats report, the available bandwidth last as in a call.
+  private static void addReport(
+      List<Sample> samples, long timeMs, double lossPercent, double rttMs, double cpuPercent) {
+    samples.add(new Sample(timeMs, Metric.SEND_PACKET_LOSS_PERCENT, lossPercent));
+    samples.add(new Sample(timeMs, Metric.RTT_MS, rttMs));
+    samples.add(new Sample(timeMs, Metric.CPU_USAGE_PERCENT, cpuPercent));
+    samples.add(new Sample(timeMs, Metric.AVAILABLE_SEND_BANDWIDTH_BPS, AVAILABLE_SEND_BPS));
+  }
+
+  private static void addCleanReport(List<Sample> samples, long timeMs) {
+    addReport(samples, timeMs, CLEAN_LOSS_PERCENT, CLEAN_RTT_MS, CLEAN_CPU_PERCENT);
+  }
+
+  // A call of |reports| seconds over a varying network, always the same for a seed.
+  private static List<Sample> createTrace(int reports, long seed) {
+    final Random random = new Random(seed);
+    final List<Sample> samples = new ArrayList<>();
+    for (int i = 0; i < reports; i++) {
+      final long timeMs = i * 1000L;
+      if (i % 100 == 0) {
+        samples.add(new Sample(
+            timeMs, NetworkType.values()[random.nextInt(NetworkType.values().length)]));
+      }
+      // Bursts of loss and delay every 30 s.
+      final boolean congested = i % 30 >= 20 && i % 30 < 24;
+      addReport(samples, timeMs, congested ? 8 + random.nextDouble() * 10 : random.nextDouble(),
+          congested ? 250 + random.nextInt(300) : 40 + random.nextInt(60),
+          30 + random.nextInt(40));
+    }
+    return samples;
+  }
+
+  private static void assertDecisions(long[] timesMs, int[] bitratesBps, List<Decision> actual) {
+    assertEquals(timesMs.length, actual.size());
+    for (int i = 0; i < timesMs.length; i++) {
+      assertEquals(timesMs[i], actual.get(i).timeMs);
+      assertEquals(bitratesBps[i], actual.get(i).maxBitrateBps);
+    }
+  }
+
+  @Test
+  public void testBackOffAndRecovery() {
+    final List<Sample> samples = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      addCleanReport(samples, i * 1000);
+    }
+    addReport(samples, 5000, 10 /* lossPercent */, CLEAN_RTT_MS, CLEAN_CPU_PERCENT);
+    addReport(samples, 6000, CLEAN_LOSS_PERCENT, 400 /* rttMs */, CLEAN_CPU_PERCENT);
+    for (int i = 7; i <= 12; i++) {
+      addCleanReport(samples, i * 1000);
+    }
+
+    // Already at the ceiling until the loss, then cut twice and raised every third clean report.
+    assertDecisions(new long[] {5000, 6000, 9000, 12000},
+        new int[] {800000, 640000, 691200, 746496},
+        BitrateGovernorSimulator.replay(samples, AimdPolicy.conservative(), MAX_BITRATE_KBPS));
+  }
+
+  @Test
+  public void testSuppressedIncreaseKeepsCleanSamples() {
+    final List<Sample> samples = new ArrayList<>();
+    addReport(samples, 0, 10 /* lossPercent */, CLEAN_RTT_MS, CLEAN_CPU_PERCENT);
+    for (int i = 1; i <= 5; i++) {
+      addCleanReport(samples, i * 700);
+    }
+
+    // The increase proposed at 2800 ms is too soon after the one at 1400 ms. The clean samples
+    // still count, so it is applied with the next report instead of two reports later.
+    assertDecisions(new long[] {0, 1400, 3500}, new int[] {800000, 864000, 933120},
+        BitrateGovernorSimulator.replay(
+            samples, new AimdPolicy(5, 300, 85, 0.8, 1.08, 2, 1.25), MAX_BITRATE_KBPS));
+  }
+
+  @Test
+  public void testUnknownSignalsHold() {
+    final AimdPolicy policy = AimdPolicy.aggressive();
+    final double nan = Double.NaN;
+
+    assertEquals(800000, policy.getMaxBitrateBps(
+        new Conditions(0, nan, CLEAN_RTT_MS, CLEAN_CPU_PERCENT, AVAILABLE_SEND_BPS,
+            NetworkType.WIFI), 800000, 1000000));
+    assertEquals(800000, policy.getMaxBitrateBps(
+        new Conditions(1000, CLEAN_LOSS_PERCENT, nan, CLEAN_CPU_PERCENT, AVAILABLE_SEND_BPS,
+            NetworkType.WIFI), 800000, 1000000));
+    assertEquals(800000, policy.getMaxBitrateBps(
+        new Conditions(2000, CLEAN_LOSS_PERCENT, CLEAN_RTT_MS, nan, AVAILABLE_SEND_BPS,
+            NetworkType.WIFI), 800000, 1000000));
+    // A known signal over its limit still cuts.
+    assertEquals(720000, policy.getMaxBitrateBps(
+        new Conditions(3000, 20, nan, nan, AVAILABLE_SEND_BPS, NetworkType.WIFI), 800000,
+        1000000));
+    // Raised once all signals are known and clean.
+    assertEquals((int) (720000 * 1.15), policy.getMaxBitrateBps(
+        new Conditions(4000, CLEAN_LOSS_PERCENT, CLEAN_RTT_MS, CLEAN_CPU_PERCENT,
+            AVAILABLE_SEND_BPS, NetworkType.WIFI), 720000, 1000000));
+  }
+
+  @Test
+  public void testReplayIsDeterministic() {
+    final List<Sample> samples = createTrace(600, 1234);
+    for (String name : new String[] {"conservative", "aggressive", "network"}) {
+      final List<Decision> first = BitrateGovernorSimulator.replay(
+          samples, BitrateGovernor.createPolicy(name), MAX_BITRATE_KBPS);
+      final List<Decision> second = BitrateGovernorSimulator.replay(
+          samples, BitrateGovernor.createPolicy(name), MAX_BITRATE_KBPS);
+
+      assertFalse(name, first.isEmpty());
+      assertEquals(name, first.size(), second.size());
+      for (int i = 0; i < first.size(); i++) {
+        assertEquals(name, first.get(i).timeMs, second.get(i).timeMs);
+        assertEquals(name, first.get(i).maxBitrateBps, second.get(i).maxBitrateBps);
+        assertTrue(name, first.get(i).maxBitrateBps >= BitrateGovernor.MIN_BITRATE_BPS);
+        assertTrue(name, first.get(i).maxBitrateBps <= MAX_BITRATE_KBPS * 1000);
+      }
+    }
+  }
+
+  @Test
+  public void testReplayFromJournal() throws Exception {
+    final List<Sample> samples = createTrace(300, 5678);
+    final File file = File.createTempFile("governor", ".journal");
+    try {
+      final CallMetricsJournal journal = CallMetricsJournal.create(file);
+      for (Sample sample : samples) {
+        if (sample.metric == null) {
+          journal.writeAt(sample.timeMs, CallMetricsJournal.RecordType.NETWORK_TYPE,
+              sample.networkType.ordinal(), 0);
+        } else {
+          journal.writeAt(sample.timeMs, CallMetricsJournal.RecordType.STATS_SAMPLE,
+              sample.metric.ordinal(), sample.value);
+        }
+      }
+      journal.close();
+
+      final List<Sample> readSamples = BitrateGovernorSimulator.readJournal(file);
+      assertEquals(samples.size(), readSamples.size());
+      final List<Decision> expected = BitrateGovernorSimulator.replay(
+          samples, AimdPolicy.conservative(), MAX_BITRATE_KBPS);
+      final List<Decision> actual = BitrateGovernorSimulator.replay(
+          readSamples, AimdPolicy.conservative(), MAX_BITRATE_KBPS);
+      // Journal times are wall clock times.
+      final long offsetMs = readSamples.get(0).timeMs - samples.get(0).timeMs;
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).timeMs + offsetMs, actual.get(i).timeMs);
+        assertEquals(expected.get(i).maxBitrateBps, actual.get(i).maxBitrateBps);
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+  @Test
+  public void copiesRemainingBytesWithoutMovingTheSource() {
+    final ByteBufferPool pool = new ByteBufferPool(16, 2);
+    final ByteBuffer source = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5});
+    source.position(2);
+    final ByteBuffer copy = pool.copy(source);
+    assertEquals(2, source.position());
+    assertTrue(copy.isDirect());
+    assertEquals(0, copy.position());
+    assertEquals(3, copy.remaining());
+    assertEquals(ByteBuffer.wrap(new byte[] {3, 4, 5}), copy);
+  }
+
+  @Test
+  public void reusesReleasedBuffers() {
+    final ByteBufferPool pool = new ByteBufferPool(16, 2);
+    final ByteBuffer first = pool.copy(ByteBuffer.wrap(new byte[16]));
+    pool.release(first);
+    final ByteBuffer second = pool.copy(ByteBuffer.wrap(new byte[] {7}));
+    assertSame(first, second);
+    // Cleared before reuse.
+    assertEquals(1, second.remaining());
+    assertEquals(7, second.get(0));
+  }
+
+  @Test
+  public void doesNotPoolLargerMessagesOrMoreThanMaxBuffers() {
+    final ByteBufferPool pool = new ByteBufferPool(16, 1);
+    final ByteBuffer large = pool.copy(ByteBuffer.wrap(new byte[17]));
+    assertEquals(17, large.capacity());
+    pool.release(large);
+    assertNotSame(large, pool.copy(ByteBuffer.wrap(new byte[17])));
+
+    final ByteBuffer a = pool.copy(ByteBuffer.allocate(1));
+    final ByteBuffer b = pool.copy(ByteBuffer.allocate(1));
+    pool.release(a);
+    // The pool is full, |b| is left to the garbage collector.
+    pool.release(b);
+    assertSame(a, pool.copy(ByteBuffer.allocate(1)));
+    assertNotSame(b, pool.copy(ByteBuffer.allocate(1)));
+  }
+
+  @Test
+  public void neverHandsOutABufferTwiceAcrossThreads() throws InterruptedException {
+    final ByteBufferPool pool = new ByteBufferPool(64, 4);
+    final BlockingQueue<ByteBuffer> inFlight = new ArrayBlockingQueue<>(8);
+    final Set<ByteBuffer> held =
+        Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    final AtomicReference<String> error = new AtomicReference<>();
+    final int messages = 200000;
+    final ByteBuffer message = ByteBuffer.allocate(32);
+
+    // Copies on the test thread, like the observer thread, and releases on a consumer thread.
+    final Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < messages; i++) {
+            final ByteBuffer buffer = inFlight.take();
+            if (buffer.getInt(0) != i) {
+              error.set("Buffer " + i + " was overwritten while held");
+            }
+            synchronized (held) {
+              held.remove(buffer);
+            }
+            pool.release(buffer);
+          }
+        } catch (InterruptedException e) {
+          error.set(e.toString());
+        }
+      }
+    });
+    consumer.start();
+    for (int i = 0; i < messages; i++) {
+      message.putInt(0, i);
+      final ByteBuffer copy = pool.copy(message);
+      synchronized (held) {
+        if (!held.add(copy)) {
+          error.set("Buffer handed out twice");
+        }
+      }
+      inFlight.put(copy);
+    }
+    consumer.join();
+    assertNull(error.get());
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Scans a journal of a ten minute call with CallMetricsJournal.read(): a stats sample of every
+ * metric, the usage of four cores and five threads each second. Prints the time and bytes
+ * allocated per scan and the time per record.
+ */
+public class CallMetricsJournalBenchmark {
+  private static final int CALL_SECONDS = 600;
+  private static final int ITERATIONS = 200;
+
+  @Test
+  public void scan() throws IOException {
+    final File file = File.createTempFile("call-metrics", ".journal");
+    try {
+      final CallMetricsJournal journal = CallMetricsJournal.create(file);
+      final CallMetricsRecorder.Metric[] metrics = CallMetricsRecorder.Metric.values();
+      int written = 0;
+      for (int second = 0; second < CALL_SECONDS; second++) {
+        final long timeMs = second * 1000L;
+        for (CallMetricsRecorder.Metric metric : metrics) {
+          journal.writeAt(timeMs, CallMetricsJournal.RecordType.STATS_SAMPLE, metric.ordinal(),
+              second % 100);
+        }
+        for (int core = 0; core < 4; core++) {
+          journal.writeAt(timeMs, CallMetricsJournal.RecordType.CPU_CORE_USAGE, core, 40);
+        }
+        for (int thread = 0; thread < 5; thread++) {
+          journal.writeAt(timeMs, CallMetricsJournal.RecordType.THREAD_CPU_USAGE, 1000 + thread,
+              8);
+        }
+        written += metrics.length + 9;
+      }
+      journal.close();
+      final int records = written;
+
+      final double[] sum = new double[1];
+      final CallMetricsJournal.RecordVisitor visitor = new CallMetricsJournal.RecordVisitor() {
+        @Override
+        public void onRecord(
+            long timeMs, CallMetricsJournal.RecordType type, int code, double value) {
+          sum[0] += value;
+        }
+      };
+      final Benchmark.Result result = Benchmark.run("CallMetricsJournal.read", ITERATIONS,
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                assertEquals(records, CallMetricsJournal.read(file, visitor));
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+      System.out.println(String.format("CallMetricsJournal: %d records, %.1f ns per record",
+          records, result.nsPerOp / records));
+      // Mapping the file allocates per scan, not per record.
+      assertTrue(result.bytesPerOp < records);
+    } finally {
+      file.delete();
+    }
+  }
+}
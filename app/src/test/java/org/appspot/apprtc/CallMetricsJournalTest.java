@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.appspot.apprtc.CallMetricsJournal.RecordType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallMetricsJournalTest {
+  // Records of one memory-mapped window of the writer.
+  private static final int WINDOW_RECORDS = 4096;
+  private static final int MAX_RECORDS =
+      (CallMetricsJournal.OUTPUT_FILE_MAX_BYTES - CallMetricsJournal.HEADER_BYTES)
+      / CallMetricsJournal.RECORD_BYTES;
+
+  /** Records read back from a journal. */
+  private static class Records implements CallMetricsJournal.RecordVisitor {
+    final List<Long> timesMs = new ArrayList<>();
+    final List<RecordType> types = new ArrayList<>();
+    final List<Integer> codes = new ArrayList<>();
+    final List<Double> values = new ArrayList<>();
+
+    @Override
+    public void onRecord(long timeMs, RecordType type, int code, double value) {
+      timesMs.add(timeMs);
+      types.add(type);
+      codes.add(code);
+      values.add(value);
+    }
+  }
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("call-metrics", ".journal");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  // Writes |count| records whose fields are derived from their index.
+  private static void writeRecords(CallMetricsJournal journal, int count) {
+    final RecordType[] types = RecordType.values();
+    for (int i = 0; i < count; i++) {
+      journal.writeAt(i * 10L, types[1 + i % (types.length - 1)], i % 1000, i * 0.5);
+    }
+  }
+
+  private static void assertRecords(int count, Records records) {
+    assertEquals(count, records.types.size());
+    final RecordType[] types = RecordType.values();
+    // Journal times are wall clock times.
+    final long startTimeMs = count == 0 ? 0 : records.timesMs.get(0);
+    for (int i = 0; i < count; i++) {
+      assertEquals(startTimeMs + i * 10L, (long) records.timesMs.get(i));
+      assertEquals(types[1 + i % (types.length - 1)], records.types.get(i));
+      assertEquals(i % 1000, (int) records.codes.get(i));
+      assertEquals(i * 0.5, records.values.get(i), 0);
+    }
+  }
+
+  private Records read(int expectedCount) throws Exception {
+    final Records records = new Records();
+    assertEquals(expectedCount, CallMetricsJournal.read(file, records));
+    return records;
+  }
+
+  @Test
+  public void testRoundTripOverWindows() throws Exception {
+    final int count = 2 * WINDOW_RECORDS + 100;
+    final CallMetricsJournal journal = CallMetricsJournal.create(file);
+    assertNotNull(journal);
+    writeRecords(journal, count);
+    journal.close();
+
+    assertEquals(CallMetricsJournal.HEADER_BYTES + count * CallMetricsJournal.RECORD_BYTES,
+        file.length());
+    assertRecords(count, read(count));
+  }
+
+  @Test
+  public void testUnclosedJournalEndsAtUnwrittenSpace() throws Exception {
+    final CallMetricsJournal journal = CallMetricsJournal.create(file);
+    writeRecords(journal, WINDOW_RECORDS + 10);
+    try {
+      // The mapped window past the last record reads as zero.
+      assertRecords(WINDOW_RECORDS + 10, read(WINDOW_RECORDS + 10));
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  public void testTruncatedTailIsDropped() throws Exception {
+    final CallMetricsJournal journal = CallMetricsJournal.create(file);
+    writeRecords(journal, 100);
+    journal.close();
+    final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+    try {
+      truncated.setLength(file.length() - CallMetricsJournal.RECORD_BYTES / 2);
+    } finally {
+      truncated.close();
+    }
+
+    assertRecords(99, read(99));
+  }
+
+  @Test
+  public void testFullJournalDropsFurtherRecords() throws Exception {
+    final CallMetricsJournal journal = CallMetricsJournal.create(file);
+    writeRecords(journal, MAX_RECORDS + 1000);
+    journal.close();
+
+    assertEquals(CallMetricsJournal.HEADER_BYTES + (long) MAX_RECORDS
+        * CallMetricsJournal.RECORD_BYTES, file.length());
+    assertRecords(MAX_RECORDS, read(MAX_RECORDS));
+  }
+
+  @Test(expected = java.io.IOException.class)
+  public void testOtherFileIsRejected() throws Exception {
+    final RandomAccessFile other = new RandomAccessFile(file, "rw");
+    try {
+      other.write(new byte[64]);
+    } finally {
+      other.close();
+    }
+    CallMetricsJournal.read(file, new Records());
+  }
+}
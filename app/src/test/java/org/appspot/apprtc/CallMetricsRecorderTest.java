@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.appspot.apprtc.CallMetricsRecorder.Metric;
+import org.appspot.apprtc.CallMetricsRecorder.Series;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class CallMetricsRecorderTest {
+  private final CallMetricsRecorder recorder = new CallMetricsRecorder(60000, 1000);
+  private final Map<Metric, Integer> sampleCounts = new EnumMap<>(Metric.class);
+
+  public CallMetricsRecorderTest() {
+    recorder.setSampleListener(new CallMetricsRecorder.SampleListener() {
+      @Override
+      public void onSample(Metric metric, long timeMs, double value) {
+        final Integer count = sampleCounts.get(metric);
+        sampleCounts.put(metric, count == null ? 1 : count + 1);
+      }
+    });
+  }
+
+  private int getSampleCount(Metric metric) {
+    final Integer count = sampleCounts.get(metric);
+    return count == null ? 0 : count;
+  }
+
+  // Returns the report of a sent video layer.
+  private static StatsReport layer(int ssrc, int width, int fps, long sent, long lost) {
+    return StatsReports.report("ssrc_" + ssrc + "_send", "ssrc", 0,
+        "googFrameRateSent", String.valueOf(fps),
+        "googFrameWidthSent", String.valueOf(width),
+        "googTrackId", PeerConnectionClient.VIDEO_TRACK_ID,
+        "packetsLost", String.valueOf(lost),
+        "packetsSent", String.valueOf(sent));
+  }
+
+  @Test
+  public void testSendPacketLossSumsSimulcastLayers() {
+    recorder.record(new StatsReport[] {
+        layer(1, 320, 15, 100, 0), layer(2, 640, 30, 1000, 0), layer(3, 1280, 30, 5000, 0)});
+    assertEquals(0, getSampleCount(Metric.SEND_PACKET_LOSS_PERCENT));
+
+    recorder.record(new StatsReport[] {
+        layer(1, 320, 15, 200, 0), layer(2, 640, 30, 2000, 10), layer(3, 1280, 30, 7000, 90)});
+    assertEquals(1, getSampleCount(Metric.SEND_PACKET_LOSS_PERCENT));
+    // 100 of the 3100 packets sent by all layers were lost.
+    assertEquals(100.0 * 100 / 3100,
+        recorder.getSeries(Metric.SEND_PACKET_LOSS_PERCENT).getLatest(), 1e-9);
+  }
+
+  @Test
+  public void testLayerAddedBetweenSamples() {
+    recorder.record(new StatsReport[] {layer(1, 320, 30, 100, 0)});
+    recorder.record(new StatsReport[] {layer(1, 320, 30, 200, 10), layer(2, 640, 30, 9000, 0)});
+
+    // The new layer only counts from its second sample.
+    assertEquals(10.0, recorder.getSeries(Metric.SEND_PACKET_LOSS_PERCENT).getLatest(), 1e-9);
+  }
+
+  @Test
+  public void testOneSentFpsSamplePerRecord() {
+    recorder.record(new StatsReport[] {
+        layer(1, 320, 10, 100, 0), layer(2, 1280, 25, 5000, 0), layer(3, 640, 20, 1000, 0)});
+
+    assertEquals(1, getSampleCount(Metric.FPS_SENT));
+    // The widest layer's frame rate.
+    assertEquals(25.0, recorder.getSeries(Metric.FPS_SENT).getLatest(), 0);
+  }
+
+  @Test
+  public void testCallReports() {
+    for (int second = 1; second <= 5; second++) {
+      recorder.record(StatsReports.createCallReports(second, 3));
+    }
+
+    assertEquals(5, getSampleCount(Metric.FPS_SENT));
+    assertEquals(4, getSampleCount(Metric.SEND_PACKET_LOSS_PERCENT));
+    assertEquals(0.0, recorder.getSeries(Metric.SEND_PACKET_LOSS_PERCENT).getMax(60000), 0);
+  }
+
+  @Test
+  public void testSeriesWindow() {
+    final Series series = new Series(10);
+    assertTrue(Double.isNaN(series.getLatest()));
+    assertTrue(Double.isNaN(series.getAverage(1000)));
+    for (int i = 1; i <= 5; i++) {
+      series.append(i * 1000, i);
+    }
+
+    // The window reaches back |windowMs| from the latest sample, excluding its start.
+    assertEquals(5.0, series.getLatest(), 0);
+    assertEquals(5.0, series.getAverage(1000), 0);
+    assertEquals(4.5, series.getAverage(1500), 1e-9);
+    assertEquals(4.0, series.getMin(1500), 0);
+    assertEquals(3.0, series.getMin(2500), 0);
+    assertEquals(5.0, series.getMax(1000), 0);
+    assertEquals(3.0, series.getAverage(60000), 1e-9);
+  }
+
+  @Test
+  public void testSeriesOverwritesOldestSample() {
+    final Series series = new Series(3);
+    for (int i = 1; i <= 5; i++) {
+      series.append(i * 1000, i * 10);
+    }
+
+    assertEquals(3, series.size());
+    assertEquals(30.0, series.getMin(60000), 0);
+    assertEquals(50.0, series.getMax(60000), 0);
+    assertEquals(40.0, series.getAverage(60000), 1e-9);
+    series.clear();
+    assertEquals(0, series.size());
+    assertTrue(Double.isNaN(series.getMax(60000)));
+  }
+
+  @Test
+  public void testSeriesPercentile() {
+    final Series series = new Series(100);
+    // Appended out of order, percentiles sort a copy.
+    for (int i = 0; i < 20; i++) {
+      series.append(i, (i * 7) % 20 + 1);
+    }
+
+    // Nearest rank of the values 1 to 20.
+    assertEquals(1.0, series.getPercentile(60000, 0), 0);
+    assertEquals(10.0, series.getPercentile(60000, 50), 0);
+    assertEquals(19.0, series.getPercentile(60000, 95), 0);
+    assertEquals(20.0, series.getPercentile(60000, 100), 0);
+    // Over the last two samples, 7 and 14.
+    assertEquals(7.0, series.getPercentile(2, 50), 0);
+    assertEquals(14.0, series.getPercentile(2, 100), 0);
+    // Queries leave the series in order.
+    assertEquals(14.0, series.getLatest(), 0);
+  }
+
+  @Test
+  public void testCpuUsageAndStatsAreRecordedOneAtATime() throws Exception {
+    final AtomicBoolean inListener = new AtomicBoolean();
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    recorder.setSampleListener(new CallMetricsRecorder.SampleListener() {
+      @Override
+      public void onSample(Metric metric, long timeMs, double value) {
+        if (!inListener.compareAndSet(false, true)) {
+          overlapped.set(true);
+        }
+        Thread.yield();
+        inListener.set(false);
+      }
+    });
+    final Thread cpuThread = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 20000; i++) {
+          recorder.recordCpuUsage(i, i % 100);
+        }
+      }
+    };
+    cpuThread.start();
+    for (int second = 1; second <= 2000; second++) {
+      recorder.record(StatsReports.createCallReports(second, 1));
+    }
+    cpuThread.join();
+
+    assertFalse(overlapped.get());
+    assertEquals(99.0, recorder.getSeries(Metric.CPU_USAGE_PERCENT).getLatest(), 0);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CpuAdaptationControllerTest {
+  private static final int STRESS_REPORTS = 5;
+  private static final int HEADROOM_REPORTS = 10;
+
+  private final CpuAdaptationController controller = new CpuAdaptationController(1280, 720, 30);
+
+  private static CpuMonitor.CpuReport createReport(
+      int averagePercent, boolean overuse, int batteryLevel, int batteryTemperature) {
+    final CpuMonitor.CpuReport report = new CpuMonitor.CpuReport(4);
+    report.averagePercent = averagePercent;
+    report.overuse = overuse;
+    report.batteryLevel = batteryLevel;
+    report.batteryTemperature = batteryTemperature;
+    return report;
+  }
+
+  private static CpuMonitor.CpuReport stress() {
+    return createReport(90, true, 80, 300);
+  }
+
+  private static CpuMonitor.CpuReport headroom() {
+    return createReport(30, false, 80, 300);
+  }
+
+  // Neither stress nor headroom.
+  private static CpuMonitor.CpuReport busy() {
+    return createReport(60, false, 80, 300);
+  }
+
+  // Feeds |count| copies of |report| and returns how many of them changed the format.
+  private int feed(CpuMonitor.CpuReport report, int count) {
+    int changes = 0;
+    for (int i = 0; i < count; i++) {
+      if (controller.onCpuReport(report)) {
+        changes++;
+      }
+    }
+    return changes;
+  }
+
+  @Test
+  public void testStepsDownAfterSustainedStress() {
+    assertEquals(0, feed(stress(), STRESS_REPORTS - 1));
+    assertTrue(controller.onCpuReport(stress()));
+    assertEquals(1, controller.getLevel());
+    assertEquals(1280, controller.getWidth());
+    assertEquals(720, controller.getHeight());
+    assertEquals(20, controller.getFramerate());
+
+    // A report without stress restarts the count.
+    assertEquals(0, feed(stress(), STRESS_REPORTS - 1));
+    assertFalse(controller.onCpuReport(busy()));
+    assertEquals(0, feed(stress(), STRESS_REPORTS - 1));
+    assertEquals(1, controller.getLevel());
+  }
+
+  @Test
+  public void testHotBatteryIsStress() {
+    assertEquals(1, feed(createReport(10, false, 80, 450), STRESS_REPORTS));
+    assertEquals(1, controller.getLevel());
+  }
+
+  @Test
+  public void testStopsAtTheLowestLevel() {
+    assertEquals(6, feed(stress(), 10 * STRESS_REPORTS));
+    assertEquals(6, controller.getLevel());
+    assertEquals(320, controller.getWidth());
+    assertEquals(180, controller.getHeight());
+    assertEquals(10, controller.getFramerate());
+  }
+
+  @Test
+  public void testStepsUpAfterLongerHeadroom() {
+    feed(stress(), 2 * STRESS_REPORTS);
+    assertEquals(2, controller.getLevel());
+
+    assertEquals(0, feed(headroom(), HEADROOM_REPORTS - 1));
+    // Headroom has to be consecutive.
+    assertFalse(controller.onCpuReport(busy()));
+    assertEquals(0, feed(headroom(), HEADROOM_REPORTS - 1));
+    assertTrue(controller.onCpuReport(headroom()));
+    assertEquals(1, controller.getLevel());
+    assertEquals(1, feed(headroom(), HEADROOM_REPORTS));
+    assertEquals(0, controller.getLevel());
+    // Nothing to restore at the base format.
+    assertEquals(0, feed(headroom(), 2 * HEADROOM_REPORTS));
+  }
+
+  @Test
+  public void testLowBatteryIsNoHeadroomUnlessCharging() {
+    feed(stress(), STRESS_REPORTS);
+    final CpuMonitor.CpuReport lowBattery = createReport(30, false, 10, 300);
+    assertEquals(0, feed(lowBattery, 2 * HEADROOM_REPORTS));
+    lowBattery.batteryCharging = true;
+    assertEquals(1, feed(lowBattery, HEADROOM_REPORTS));
+    assertEquals(0, controller.getLevel());
+  }
+
+  @Test
+  public void testStepDownAfterStepUpDoublesHeadroomNeeded() {
+    feed(stress(), STRESS_REPORTS);
+    feed(headroom(), HEADROOM_REPORTS);
+    assertEquals(0, controller.getLevel());
+
+    // Oscillating: each step down right after a step up doubles the headroom needed.
+    int needed = HEADROOM_REPORTS;
+    for (int i = 0; i < 4; i++) {
+      feed(stress(), STRESS_REPORTS);
+      assertEquals(1, controller.getLevel());
+      needed = Math.min(2 * needed, 8 * HEADROOM_REPORTS);
+      assertEquals(0, feed(headroom(), needed - 1));
+      assertTrue(controller.onCpuReport(headroom()));
+      assertEquals(0, controller.getLevel());
+    }
+    assertEquals(8 * HEADROOM_REPORTS, needed);
+
+    // A new base format starts over.
+    controller.setBaseFormat(640, 480, 30);
+    feed(stress(), STRESS_REPORTS);
+    assertEquals(1, feed(headroom(), HEADROOM_REPORTS));
+  }
+
+  @Test
+  public void testStoppedCaptureIsNotAdapted() {
+    controller.setBaseFormat(0, 0, 0);
+    assertEquals(0, feed(stress(), 10 * STRESS_REPORTS));
+    assertEquals(0, controller.getLevel());
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+public class DataChannelSchedulerTest {
+  private static final int MESSAGES = 100;
+
+  private final QueueExecutor executor = new QueueExecutor();
+  private final DataChannelScheduler scheduler = new DataChannelScheduler(executor);
+  private final FakeDataChannel control =
+      new FakeDataChannel("control", FakeDataChannel.createInit(true, -1), 0, 1);
+
+  /** Records the first int of every message delivered to the remote end. */
+  private static class Recorder implements DataChannel.Observer {
+    final List<Integer> values = new ArrayList<>();
+
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {}
+
+    @Override
+    public void onStateChange() {}
+
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+      values.add(buffer.data.getInt(buffer.data.position()));
+    }
+  }
+
+  private FakeDataChannel addLane(String label, int priority, int maxRetransmits) {
+    final FakeDataChannel channel = new FakeDataChannel(
+        label, FakeDataChannel.createInit(true, maxRetransmits), 0, priority);
+    scheduler.addLane(label, priority, maxRetransmits < 0, channel, null);
+    channel.open();
+    return channel;
+  }
+
+  // Makes the control lane buffer more than the high watermark.
+  private void fillControlLane() {
+    scheduler.send("control", ByteBuffer.allocate(
+        (int) DataChannelScheduler.HIGH_WATERMARK_BYTES + 1), true);
+    executor.runAll();
+    assertEquals(1, control.getSentMessages());
+  }
+
+  private void sendNumbered(String label, int count) {
+    final ByteBuffer message = ByteBuffer.allocate(64);
+    for (int i = 0; i < count; i++) {
+      message.putInt(0, i);
+      scheduler.send(label, message, true);
+    }
+    executor.runAll();
+  }
+
+  private void deliverAll(FakeDataChannel... channels) {
+    boolean delivered = true;
+    while (delivered) {
+      delivered = false;
+      for (FakeDataChannel channel : channels) {
+        delivered |= channel.deliver(16) > 0;
+      }
+      executor.runAll();
+    }
+  }
+
+  private String getStats() {
+    final StringBuilder stats = new StringBuilder();
+    scheduler.appendStats(stats);
+    return stats.toString();
+  }
+
+  @Test
+  public void lossyLaneDropsOldestWhileHeldBack() {
+    scheduler.addLane("control", 0, true, control, null);
+    control.open();
+    final FakeDataChannel telemetry = addLane("telemetry", 1, 0);
+    final Recorder recorder = new Recorder();
+    telemetry.setRemote(recorder);
+    fillControlLane();
+
+    sendNumbered("telemetry", MESSAGES);
+    assertEquals(0, telemetry.getSentMessages());
+    deliverAll(control, telemetry);
+
+    // Only the newest messages are sent.
+    final int dropped = MESSAGES - recorder.values.size();
+    assertTrue(dropped > 0);
+    for (int i = 0; i < recorder.values.size(); i++) {
+      assertEquals(dropped + i, (int) recorder.values.get(i));
+    }
+    assertTrue(getStats(), getStats().contains("drop " + dropped));
+  }
+
+  @Test
+  public void reliableLaneKeepsAllMessagesWhileHeldBack() {
+    scheduler.addLane("control", 0, true, control, null);
+    control.open();
+    final FakeDataChannel bulk = addLane("bulk", 1, -1);
+    final Recorder recorder = new Recorder();
+    bulk.setRemote(recorder);
+    fillControlLane();
+
+    sendNumbered("bulk", MESSAGES);
+    assertEquals(0, bulk.getSentMessages());
+    deliverAll(control, bulk);
+
+    assertEquals(MESSAGES, recorder.values.size());
+    for (int i = 0; i < MESSAGES; i++) {
+      assertEquals(i, (int) recorder.values.get(i));
+    }
+    assertTrue(getStats(), getStats().contains("drop 0"));
+  }
+
+  @Test
+  public void priorityZeroLaneKeepsAllMessagesUntilOpen() {
+    // Lossy, but of the highest priority: queued while connecting, never dropped.
+    final FakeDataChannel urgent = new FakeDataChannel(
+        "urgent", FakeDataChannel.createInit(false, 0), 0, 2);
+    scheduler.addLane("urgent", 0, false, urgent, null);
+    final Recorder recorder = new Recorder();
+    urgent.setRemote(recorder);
+
+    sendNumbered("urgent", MESSAGES);
+    assertEquals(0, urgent.getSentMessages());
+    urgent.open();
+    executor.runAll();
+    assertEquals(MESSAGES, urgent.getSentMessages());
+    assertTrue(getStats(), getStats().contains("drop 0"));
+  }
+
+  @Test
+  public void priorityZeroLaneIsNotHeldBack() {
+    scheduler.addLane("control", 0, true, control, null);
+    control.open();
+    fillControlLane();
+    sendNumbered("control", 3);
+    assertEquals(4, control.getSentMessages());
+  }
+
+  @Test
+  public void lanesWaitWhileTheTransferLaneBuffers() {
+    final FakeDataChannel transferChannel =
+        new FakeDataChannel("data", FakeDataChannel.createInit(true, -1), 0, 3);
+    final DataChannelTransfer transfer =
+        new DataChannelTransfer(transferChannel, executor, null, null);
+    scheduler.addTransferLane(transferChannel, transfer);
+    final FakeDataChannel telemetry = addLane("telemetry", 1, 0);
+    final Recorder recorder = new Recorder();
+    telemetry.setRemote(recorder);
+    // Events of the channel reach the transfer, which starts sending once it is open.
+    transfer.send(ByteBuffer.allocate(4 * DataChannelTransfer.MAX_MESSAGE_BYTES));
+    transferChannel.open();
+    executor.runAll();
+    assertTrue(transferChannel.bufferedAmount() >= DataChannelScheduler.HIGH_WATERMARK_BYTES);
+
+    sendNumbered("telemetry", 3);
+    assertEquals(0, telemetry.getSentMessages());
+    assertTrue(getStats(), getStats().contains("DC data p" + Integer.MAX_VALUE + ": tx 0/0kB"));
+
+    // Sent once the blob drains.
+    deliverAll(transferChannel, telemetry);
+    assertEquals(3, recorder.values.size());
+    // The remote end of the transfer lane needs its own DataChannelTransfer.
+    assertNull(scheduler.createReceiveObserver(transferChannel));
+  }
+}
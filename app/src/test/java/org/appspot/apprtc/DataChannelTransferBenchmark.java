@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Sends blobs from one DataChannelTransfer to another over a loopback FakeDataChannel, like the
+ * data transfer benchmark of CallActivity, and prints the throughput from the first blob queued
+ * to the last one received. The fake channel copies each message once, so this measures the
+ * chunking and reassembly, not SCTP.
+ */
+public class DataChannelTransferBenchmark {
+  private static final int BLOB_BYTES = 4 * 1024 * 1024;
+  private static final int TRANSFERS = 10;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  /** Counts the received bytes. */
+  private static class Counter implements DataChannelTransfer.Listener {
+    int receivedTransfers;
+    long receivedBytes;
+
+    @Override
+    public void onTransferSent(int transferId, int bytes, long elapsedMs) {}
+
+    @Override
+    public void onTransferFailed(int transferId, int bytes) {}
+
+    @Override
+    public void onTransferReceived(int transferId, ByteBuffer data, long elapsedMs) {
+      receivedTransfers++;
+      receivedBytes += data.capacity();
+    }
+  }
+
+  @Test
+  public void loopback() {
+    final byte[] bytes = new byte[BLOB_BYTES];
+    new Random(1).nextBytes(bytes);
+    final ByteBuffer blob = ByteBuffer.wrap(bytes);
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      runRound(blob);
+    }
+    long totalNs = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      totalNs += runRound(blob);
+    }
+    final double totalBytes = (double) BLOB_BYTES * TRANSFERS * ROUNDS;
+    System.out.println(String.format(Locale.US, "DataChannelTransfer loopback: %.1f MB/s",
+        totalBytes / 1000.0 / (totalNs / 1000000.0)));
+  }
+
+  // Returns the time to send TRANSFERS blobs and receive them.
+  private static long runRound(ByteBuffer blob) {
+    final QueueExecutor executor = new QueueExecutor();
+    final Counter counter = new Counter();
+    final FakeDataChannel channel =
+        new FakeDataChannel("transfer", FakeDataChannel.createInit(true, -1), 0, 1);
+    final DataChannelTransfer sender = new DataChannelTransfer(channel, executor, null, null);
+    channel.registerObserver(sender);
+    final FakeDataChannel remoteChannel =
+        new FakeDataChannel("transfer", FakeDataChannel.createInit(true, -1), 0, 2);
+    channel.setRemote(new DataChannelTransfer(remoteChannel, executor, counter, null));
+    channel.open();
+    executor.runAll();
+
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < TRANSFERS; i++) {
+      sender.send(blob);
+    }
+    executor.runAll();
+    while (channel.deliver(64) > 0) {
+      executor.runAll();
+    }
+    final long elapsedNs = System.nanoTime() - startNs;
+    assertEquals(TRANSFERS, counter.receivedTransfers);
+    assertEquals((long) BLOB_BYTES * TRANSFERS, counter.receivedBytes);
+    return elapsedNs;
+  }
+}
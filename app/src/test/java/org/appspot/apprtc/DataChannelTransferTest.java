@@ -0,0 +1,282 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+/**
+ * Sends blobs between two DataChannelTransfers over FakeDataChannels with the orderings and
+ * retransmission limits a data channel can be created with.
+ */
+public class DataChannelTransferTest {
+  private static final int CHUNK_PAYLOAD_BYTES = DataChannelTransfer.MAX_MESSAGE_BYTES - 13;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final QueueExecutor executor = new QueueExecutor();
+  private final Map<Integer, ByteBuffer> received = new LinkedHashMap<>();
+  private final List<Integer> sent = new ArrayList<>();
+  private final List<Integer> failed = new ArrayList<>();
+  private final List<String> messages = new ArrayList<>();
+  private FakeDataChannel channel;
+  private DataChannelTransfer sender;
+  private DataChannelTransfer receiver;
+
+  private final DataChannelTransfer.Listener listener = new DataChannelTransfer.Listener() {
+    @Override
+    public void onTransferSent(int transferId, int bytes, long elapsedMs) {
+      sent.add(transferId);
+    }
+
+    @Override
+    public void onTransferFailed(int transferId, int bytes) {
+      failed.add(transferId);
+    }
+
+    @Override
+    public void onTransferReceived(int transferId, ByteBuffer data, long elapsedMs) {
+      received.put(transferId, data);
+    }
+  };
+
+  private final DataChannelTransfer.MessageConsumer consumer =
+      new DataChannelTransfer.MessageConsumer() {
+        @Override
+        public void onMessage(String label, ByteBuffer data, boolean binary) {
+          final byte[] bytes = new byte[data.remaining()];
+          data.get(bytes);
+          messages.add(label + ":" + binary + ":" + new String(bytes, UTF_8));
+        }
+      };
+
+  private void connect(boolean ordered, int maxRetransmits, double lossRate) {
+    channel = new FakeDataChannel(
+        "transfer", FakeDataChannel.createInit(ordered, maxRetransmits), lossRate, 42);
+    sender = new DataChannelTransfer(channel, executor, listener, null);
+    channel.registerObserver(sender);
+    final FakeDataChannel remoteChannel = new FakeDataChannel(
+        "transfer", FakeDataChannel.createInit(ordered, maxRetransmits), 0, 43);
+    receiver = new DataChannelTransfer(remoteChannel, executor, listener, consumer);
+    channel.setRemote(receiver);
+  }
+
+  // Delivers a few messages at a time, like a link slower than the sender, until all are sent.
+  private void deliverAll() {
+    executor.runAll();
+    while (channel.deliver(8) > 0) {
+      executor.runAll();
+    }
+  }
+
+  private static ByteBuffer createBlob(int size, long seed) {
+    final byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  @Test
+  public void orderedReliableChannelReassemblesBlobs() {
+    connect(true, -1, 0);
+    final int[] sizes = {0, 1, CHUNK_PAYLOAD_BYTES, CHUNK_PAYLOAD_BYTES + 1, 3 * 1024 * 1024};
+    // Queued until the channel opens.
+    for (int i = 0; i < sizes.length; i++) {
+      assertEquals(i, sender.send(createBlob(sizes[i], i)));
+    }
+    assertEquals(0, channel.getSentMessages());
+    channel.open();
+    deliverAll();
+
+    assertEquals(sizes.length, sent.size());
+    assertEquals(sizes.length, received.size());
+    for (int i = 0; i < sizes.length; i++) {
+      assertEquals(createBlob(sizes[i], i), received.get(i));
+    }
+  }
+
+  @Test
+  public void sendingPausesAtTheHighWatermark() {
+    connect(true, -1, 0);
+    channel.open();
+    executor.runAll();
+    final int size = 4 * 1024 * 1024;
+    sender.send(createBlob(size, 1));
+    executor.runAll();
+    // Sending stops once the channel buffers the high watermark.
+    assertTrue(channel.bufferedAmount() >= DataChannelTransfer.HIGH_WATERMARK_BYTES);
+    final int sentBeforeDrain = channel.getSentMessages();
+    assertTrue(sentBeforeDrain < size / CHUNK_PAYLOAD_BYTES);
+
+    // Draining to just above the low watermark does not resume sending.
+    while (channel.bufferedAmount() - DataChannelTransfer.MAX_MESSAGE_BYTES
+        > DataChannelTransfer.LOW_WATERMARK_BYTES) {
+      channel.deliver(1);
+    }
+    assertEquals(0, executor.runAll());
+    assertEquals(sentBeforeDrain, channel.getSentMessages());
+
+    // Reaching it does.
+    channel.deliver(1);
+    assertEquals(1, executor.runAll());
+    assertTrue(channel.getSentMessages() > sentBeforeDrain);
+
+    deliverAll();
+    assertEquals(createBlob(size, 1), received.get(0));
+    assertTrue(channel.getMaxBufferedAmount()
+        < DataChannelTransfer.HIGH_WATERMARK_BYTES + DataChannelTransfer.MAX_MESSAGE_BYTES);
+  }
+
+  @Test
+  public void unorderedChannelReassemblesBlobs() {
+    connect(false, -1, 0);
+    channel.open();
+    for (int i = 0; i < 3; i++) {
+      sender.send(createBlob(1024 * 1024 + i, i));
+    }
+    deliverAll();
+    assertEquals(3, received.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(createBlob(1024 * 1024 + i, i), received.get(i));
+    }
+  }
+
+  @Test
+  public void lossyChannelDropsIncompleteBlobs() {
+    connect(false, 0, 0.02);
+    channel.open();
+    final int transfers = 12;
+    for (int i = 0; i < transfers; i++) {
+      sender.send(createBlob(20 * CHUNK_PAYLOAD_BYTES, i));
+    }
+    deliverAll();
+    assertEquals(transfers, sent.size());
+    assertTrue(channel.getLostMessages() > 0);
+    assertTrue(received.size() < transfers);
+    // The blobs that did arrive are intact.
+    for (Map.Entry<Integer, ByteBuffer> entry : received.entrySet()) {
+      assertEquals(createBlob(20 * CHUNK_PAYLOAD_BYTES, entry.getKey()), entry.getValue());
+    }
+
+    // At most MAX_PENDING_RECEIVES incomplete blobs are kept; the oldest are evicted.
+    final int pending = DataChannelTransfer.MAX_PENDING_RECEIVES;
+    for (int i = 0; i <= pending; i++) {
+      receiver.onMessage(createChunk(200 + i, 2 * CHUNK_PAYLOAD_BYTES, 0,
+          ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    }
+    // The evicted blob starts over, the newest one completes.
+    receiver.onMessage(createChunk(200, 2 * CHUNK_PAYLOAD_BYTES, 1,
+        ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    assertFalse(received.containsKey(200));
+    receiver.onMessage(createChunk(200 + pending, 2 * CHUNK_PAYLOAD_BYTES, 1,
+        ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    assertTrue(received.containsKey(200 + pending));
+  }
+
+  @Test
+  public void rejectsTransferSizesAboveTheMaximum() {
+    connect(true, -1, 0);
+    receiver.onMessage(createChunk(7, DataChannelTransfer.MAX_TRANSFER_BYTES + 1, 0,
+        ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    receiver.onMessage(createChunk(8, Integer.MAX_VALUE, 0,
+        ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    receiver.onMessage(createChunk(9, -1, 0, ByteBuffer.allocate(0)));
+    assertTrue(received.isEmpty());
+
+    // A valid transfer with the same id still arrives.
+    receiver.onMessage(createChunk(7, 3, 0, ByteBuffer.wrap(new byte[] {1, 2, 3})));
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), received.get(7));
+
+    channel.open();
+    assertEquals(-1, sender.send(ByteBuffer.allocate(DataChannelTransfer.MAX_TRANSFER_BYTES + 1)));
+    executor.runAll();
+    assertEquals(0, channel.getSentMessages());
+  }
+
+  @Test
+  public void pendingBlobsAreLimitedInBytes() {
+    connect(false, 0, 0);
+    final int small = 2 * CHUNK_PAYLOAD_BYTES;
+    final int large = DataChannelTransfer.MAX_TRANSFER_BYTES;
+    final ByteBuffer payload = ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES);
+    receiver.onMessage(createChunk(1, small, 0, payload.duplicate()));
+    receiver.onMessage(createChunk(2, large, 0, payload.duplicate()));
+    // Fewer than MAX_PENDING_RECEIVES blobs, but two large ones leave no room for the small one.
+    receiver.onMessage(createChunk(3, large, 0, payload.duplicate()));
+    receiver.onMessage(createChunk(1, small, 1, payload.duplicate()));
+    assertFalse(received.containsKey(1));
+
+    // The dropped blob starts over.
+    receiver.onMessage(createChunk(1, small, 0, payload.duplicate()));
+    assertEquals(small, received.get(1).capacity());
+  }
+
+  @Test
+  public void failedChunkIsReportedAndSkipsTheTransfer() {
+    connect(true, -1, 0);
+    channel.open();
+    executor.runAll();
+    channel.failNextSends(1);
+    sender.send(createBlob(3 * CHUNK_PAYLOAD_BYTES, 0));
+    sender.send(createBlob(10, 1));
+    deliverAll();
+
+    assertEquals(1, failed.size());
+    assertEquals(0, (int) failed.get(0));
+    assertEquals(1, sent.size());
+    assertEquals(1, (int) sent.get(0));
+    assertEquals(createBlob(10, 1), received.get(1));
+    assertFalse(received.containsKey(0));
+  }
+
+  @Test
+  public void rejectsChunksThatDoNotMatchTheirTransfer() {
+    connect(true, -1, 0);
+    final int size = CHUNK_PAYLOAD_BYTES + 10;
+    receiver.onMessage(createChunk(1, size, 1, ByteBuffer.allocate(10)));
+    // Out of range index, wrong payload length and a different size for the same transfer.
+    receiver.onMessage(createChunk(1, size, 2, ByteBuffer.allocate(10)));
+    receiver.onMessage(createChunk(1, size, 0, ByteBuffer.allocate(10)));
+    receiver.onMessage(createChunk(1, size + 1, 0, ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    assertFalse(received.containsKey(1));
+
+    receiver.onMessage(createChunk(1, size, 0, ByteBuffer.allocate(CHUNK_PAYLOAD_BYTES)));
+    assertEquals(size, received.get(1).capacity());
+  }
+
+  @Test
+  public void passesOtherMessagesToTheConsumer() {
+    connect(true, -1, 0);
+    receiver.onMessage(new DataChannel.Buffer(ByteBuffer.wrap("hello".getBytes(UTF_8)), false));
+    // Binary, but shorter than a chunk header.
+    receiver.onMessage(new DataChannel.Buffer(ByteBuffer.wrap(new byte[] {(byte) 0xdc}), true));
+    assertEquals(2, messages.size());
+    assertEquals("transfer:false:hello", messages.get(0));
+    assertTrue(received.isEmpty());
+  }
+
+  private static DataChannel.Buffer createChunk(
+      int transferId, int size, int chunk, ByteBuffer payload) {
+    final ByteBuffer data = ByteBuffer.allocate(13 + payload.remaining());
+    data.put((byte) 0xdc).putInt(transferId).putInt(size).putInt(chunk).put(payload);
+    data.flip();
+    return new DataChannel.Buffer(data, true);
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Connects several NioTCPChannelClient peers to a DirectRTCServer over localhost. The server
+ * sends each session an offer naming it, and each peer answers with the offer it got.
+ */
+public class DirectRTCServerTest {
+  private static final int PEERS = 3;
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final Map<Integer, DirectRTCServer.Session> sessions = new ConcurrentHashMap<>();
+  // Answer SDP received by each session.
+  private final Map<Integer, String> answers = new ConcurrentHashMap<>();
+  private final List<Peer> peers = new ArrayList<>();
+  private volatile CountDownLatch answered = new CountDownLatch(PEERS);
+  private volatile CountDownLatch channelClosed = new CountDownLatch(1);
+  private volatile String serverError;
+  private int port;
+  private DirectRTCServer server;
+
+  /** Signaling events of one session, which offers as soon as the peer has connected. */
+  private class SessionEvents implements SignalingEvents {
+    private final DirectRTCServer.Session session;
+
+    SessionEvents(DirectRTCServer.Session session) {
+      this.session = session;
+    }
+
+    @Override
+    public void onConnectedToRoom(SignalingParameters params) {
+      assertTrue(params.initiator);
+      session.getClient().sendOfferSdp(new SessionDescription(
+          SessionDescription.Type.OFFER, "offer " + session.getId()));
+    }
+
+    @Override
+    public void onRemoteDescription(SessionDescription sdp) {
+      answers.put(session.getId(), sdp.description);
+      answered.countDown();
+    }
+
+    @Override
+    public void onRemoteIceCandidate(IceCandidate candidate) {}
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {}
+
+    @Override
+    public void onChannelClose() {
+      session.close();
+      channelClosed.countDown();
+    }
+
+    @Override
+    public void onChannelError(String description) {
+      serverError = description;
+      session.close();
+    }
+  }
+
+  /** Peer answering the offer of its session. */
+  private static class Peer implements TCPChannelEvents {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile String error;
+    private NioTCPChannelClient channel;
+
+    void connect(final int port) throws Exception {
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          channel = new NioTCPChannelClient(executor, Peer.this, "127.0.0.1", port);
+        }
+      }).get();
+    }
+
+    void disconnect() throws Exception {
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          channel.disconnect();
+        }
+      }).get();
+    }
+
+    @Override
+    public void onTCPConnected(boolean server) {}
+
+    @Override
+    public void onTCPMessage(String message) {
+      try {
+        final JSONObject offer = new JSONObject(message);
+        final JSONObject answer = new JSONObject();
+        answer.put("type", "answer");
+        answer.put("sdp", "answer to " + offer.getString("sdp"));
+        channel.send(answer.toString());
+      } catch (JSONException e) {
+        error = e.getMessage();
+      }
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      error = description;
+      closed.countDown();
+    }
+
+    @Override
+    public void onTCPClose() {
+      closed.countDown();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    port = findFreePort();
+    server = new DirectRTCServer(new DirectRTCServer.ServerEvents() {
+      @Override
+      public SignalingEvents onSessionStarted(DirectRTCServer.Session session) {
+        sessions.put(session.getId(), session);
+        return new SessionEvents(session);
+      }
+
+      @Override
+      public void onServerError(String description) {
+        serverError = description;
+      }
+    }, "127.0.0.1", port, 2 /* workerCount */, PEERS);
+    server.start();
+    // The server does not report when it listens.
+    Thread.sleep(300);
+    for (int i = 0; i < PEERS; i++) {
+      final Peer peer = new Peer();
+      peers.add(peer);
+      peer.connect(port);
+    }
+    assertTrue(answered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+    for (Peer peer : peers) {
+      peer.executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testEverySessionGetsItsAnswer() {
+    assertNull(serverError);
+    assertEquals(PEERS, server.getSessionCount());
+    assertEquals(PEERS, answers.size());
+    for (Map.Entry<Integer, String> answer : answers.entrySet()) {
+      assertEquals("answer to offer " + answer.getKey(), answer.getValue());
+    }
+    for (Peer peer : peers) {
+      assertNull(peer.error);
+    }
+  }
+
+  @Test
+  public void testPeersBeyondMaxSessionsAreRefused() throws Exception {
+    final Peer extraPeer = new Peer();
+    peers.add(extraPeer);
+    extraPeer.connect(port);
+
+    assertTrue(extraPeer.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(PEERS, server.getSessionCount());
+    assertEquals(PEERS, sessions.size());
+  }
+
+  @Test
+  public void testHangUpFreesTheSession() throws Exception {
+    peers.get(0).disconnect();
+
+    assertTrue(channelClosed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(PEERS - 1, server.getSessionCount());
+
+    // The slot takes a new peer.
+    answered = new CountDownLatch(1);
+    final Peer newPeer = new Peer();
+    peers.add(newPeer);
+    newPeer.connect(port);
+    assertTrue(answered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(PEERS, server.getSessionCount());
+    assertEquals(PEERS + 1, answers.size());
+  }
+
+  @Test
+  public void testStopClosesSessions() throws Exception {
+    server.stop();
+
+    for (Peer peer : peers) {
+      assertTrue(peer.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    assertEquals(0, server.getSessionCount());
+  }
+
+  private static int findFreePort() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
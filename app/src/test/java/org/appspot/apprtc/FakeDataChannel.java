@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.annotation.Nullable;
+import org.webrtc.DataChannel;
+
+/**
+ * DataChannel that buffers sent messages until the test delivers them to a remote observer. Like
+ * SCTP, unordered channels deliver the buffered messages in any order, and channels with limited
+ * retransmissions may lose them. Not thread safe.
+ */
+class FakeDataChannel extends DataChannel {
+  private static class Message {
+    final ByteBuffer data;
+    final boolean binary;
+
+    Message(ByteBuffer data, boolean binary) {
+      this.data = data;
+      this.binary = binary;
+    }
+  }
+
+  private final String label;
+  private final boolean ordered;
+  private final double lossRate;
+  private final Random random;
+  private final List<Message> buffered = new ArrayList<>();
+  private State state = State.CONNECTING;
+  private long bufferedAmount;
+  private long maxBufferedAmount;
+  private int sentMessages;
+  private int lostMessages;
+  private int failingSends;
+  @Nullable private Observer observer;
+  @Nullable private Observer remote;
+
+  /**
+   * @param lossRate Probability that a delivered message is lost. Needs maxRetransmits or
+   *                 maxRetransmitTimeMs in |init|.
+   */
+  FakeDataChannel(String label, Init init, double lossRate, long seed) {
+    super(0);
+    if (lossRate > 0 && init.maxRetransmits < 0 && init.maxRetransmitTimeMs < 0) {
+      throw new IllegalArgumentException("Reliable channels do not lose messages.");
+    }
+    this.label = label;
+    this.ordered = init.ordered;
+    this.lossRate = lossRate;
+    this.random = new Random(seed);
+  }
+
+  static Init createInit(boolean ordered, int maxRetransmits) {
+    final Init init = new Init();
+    init.ordered = ordered;
+    init.maxRetransmits = maxRetransmits;
+    return init;
+  }
+
+  /** Sets the observer of the remote end, which receives the delivered messages. */
+  void setRemote(Observer remote) {
+    this.remote = remote;
+  }
+
+  void open() {
+    state = State.OPEN;
+    if (observer != null) {
+      observer.onStateChange();
+    }
+  }
+
+  /**
+   * Delivers up to |count| buffered messages to the remote observer, then reports the new
+   * buffered amount to the observer. Returns the number of messages taken from the buffer.
+   */
+  int deliver(int count) {
+    final long previousAmount = bufferedAmount;
+    int delivered = 0;
+    while (delivered < count && !buffered.isEmpty()) {
+      final Message message = buffered.remove(ordered ? 0 : random.nextInt(buffered.size()));
+      bufferedAmount -= message.data.remaining();
+      delivered++;
+      if (lossRate > 0 && random.nextDouble() < lossRate) {
+        lostMessages++;
+        continue;
+      }
+      if (remote != null) {
+        remote.onMessage(new Buffer(message.data, message.binary));
+      }
+    }
+    if (delivered > 0 && observer != null) {
+      observer.onBufferedAmountChange(previousAmount);
+    }
+    return delivered;
+  }
+
+  /** Makes the next |count| calls to send() fail as if the channel had closed. */
+  void failNextSends(int count) {
+    failingSends = count;
+  }
+
+  int getBufferedMessages() {
+    return buffered.size();
+  }
+
+  long getMaxBufferedAmount() {
+    return maxBufferedAmount;
+  }
+
+  int getSentMessages() {
+    return sentMessages;
+  }
+
+  int getLostMessages() {
+    return lostMessages;
+  }
+
+  @Override
+  public void registerObserver(Observer observer) {
+    this.observer = observer;
+  }
+
+  @Override
+  public void unregisterObserver() {
+    observer = null;
+  }
+
+  @Override
+  public String label() {
+    return label;
+  }
+
+  @Override
+  public State state() {
+    return state;
+  }
+
+  @Override
+  public long bufferedAmount() {
+    return bufferedAmount;
+  }
+
+  @Override
+  public boolean send(Buffer buffer) {
+    if (state != State.OPEN) {
+      return false;
+    }
+    if (failingSends > 0) {
+      failingSends--;
+      return false;
+    }
+    // The native channel copies the message before send() returns.
+    final ByteBuffer copy = ByteBuffer.allocate(buffer.data.remaining());
+    copy.put(buffer.data.duplicate());
+    copy.flip();
+    buffered.add(new Message(copy, buffer.binary));
+    bufferedAmount += copy.remaining();
+    maxBufferedAmount = Math.max(maxBufferedAmount, bufferedAmount);
+    sentMessages++;
+    return true;
+  }
+
+  @Override
+  public void close() {
+    state = State.CLOSED;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+public class FanOutVideoSinkTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final FanOutVideoSink fanOut = new FanOutVideoSink();
+  private final AtomicInteger createdFrames = new AtomicInteger();
+  private final AtomicInteger freedFrames = new AtomicInteger();
+
+  // A 2x2 frame whose buffer counts as freed once all references are released.
+  private VideoFrame createFrame(long timestampNs) {
+    createdFrames.incrementAndGet();
+    final JavaI420Buffer buffer = JavaI420Buffer.wrap(2, 2, ByteBuffer.allocateDirect(4), 2,
+        ByteBuffer.allocateDirect(1), 1, ByteBuffer.allocateDirect(1), 1, new Runnable() {
+          @Override
+          public void run() {
+            freedFrames.incrementAndGet();
+          }
+        });
+    return new VideoFrame(buffer, 0, timestampNs);
+  }
+
+  // Delivers a new frame and releases the reference of the caller, as the decoder does.
+  private void deliver(long timestampNs) {
+    final VideoFrame frame = createFrame(timestampNs);
+    fanOut.onFrame(frame);
+    frame.release();
+  }
+
+  /** Records the timestamps of the frames it gets. */
+  private static class RecordingSink implements VideoSink {
+    final List<Long> timestamps = new ArrayList<>();
+
+    @Override
+    public synchronized void onFrame(VideoFrame frame) {
+      timestamps.add(frame.getTimestampNs());
+    }
+
+    synchronized List<Long> getTimestamps() {
+      return new ArrayList<>(timestamps);
+    }
+  }
+
+  @Test
+  public void testTargetsChangedDuringDeliveryApplyToTheNextFrame() {
+    final RecordingSink added = new RecordingSink();
+    final RecordingSink other = new RecordingSink();
+    final VideoSink selfRemoving = new VideoSink() {
+      @Override
+      public void onFrame(VideoFrame frame) {
+        fanOut.removeTarget(this);
+        fanOut.addDirectTarget(added);
+      }
+    };
+    fanOut.addDirectTarget(selfRemoving);
+    fanOut.addDirectTarget(other);
+
+    deliver(1);
+    deliver(2);
+
+    // The frame being delivered still reaches the targets it started with.
+    assertEquals(2, other.getTimestamps().size());
+    assertEquals(1, added.getTimestamps().size());
+    assertEquals(2L, (long) added.getTimestamps().get(0));
+    fanOut.release();
+    assertEquals(createdFrames.get(), freedFrames.get());
+  }
+
+  @Test
+  public void testFullQueueDropsOldestFrames() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final RecordingSink recorder = new RecordingSink();
+    final VideoSink slowSink = new VideoSink() {
+      @Override
+      public void onFrame(VideoFrame frame) {
+        blocked.countDown();
+        try {
+          unblock.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        recorder.onFrame(frame);
+      }
+    };
+    final RecordingSink direct = new RecordingSink();
+    fanOut.addQueuedTarget(slowSink, 2 /* capacity */);
+    fanOut.addDirectTarget(direct);
+
+    deliver(0);
+    assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    for (int i = 1; i <= 5; i++) {
+      deliver(i);
+    }
+    // The direct target is not held up by the slow one.
+    assertEquals(6, direct.getTimestamps().size());
+    // Frames 1 to 3 were dropped and freed.
+    assertEquals(3, freedFrames.get());
+
+    unblock.countDown();
+    while (recorder.getTimestamps().size() < 3) {
+      Thread.sleep(1);
+    }
+    fanOut.release();
+    final List<Long> expected = new ArrayList<>();
+    expected.add(0L);
+    expected.add(4L);
+    expected.add(5L);
+    assertEquals(expected, recorder.getTimestamps());
+    assertEquals(createdFrames.get(), freedFrames.get());
+  }
+
+  @Test
+  public void testAddAndRemoveWhileDelivering() throws Exception {
+    final AtomicBoolean delivering = new AtomicBoolean(true);
+    final Thread decoder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (long i = 0; delivering.get(); i++) {
+          deliver(i);
+        }
+      }
+    });
+    decoder.start();
+
+    final AtomicInteger lateFrames = new AtomicInteger();
+    final RecordingSink steady = new RecordingSink();
+    fanOut.addDirectTarget(steady);
+    for (int i = 0; i < 200; i++) {
+      final AtomicBoolean removed = new AtomicBoolean();
+      final VideoSink queued = new VideoSink() {
+        @Override
+        public void onFrame(VideoFrame frame) {
+          if (removed.get()) {
+            lateFrames.incrementAndGet();
+          }
+        }
+      };
+      final RecordingSink direct = new RecordingSink();
+      fanOut.addQueuedTarget(queued, 3);
+      fanOut.addDirectTarget(direct);
+      Thread.sleep(0, 100000);
+      fanOut.removeTarget(queued);
+      removed.set(true);
+      fanOut.removeTarget(direct);
+    }
+    delivering.set(false);
+    decoder.join();
+    fanOut.release();
+
+    // A queued sink is not called once removeTarget() has returned.
+    assertEquals(0, lateFrames.get());
+    assertTrue(steady.getTimestamps().size() > 0);
+    // Every reference taken for a queue has been released.
+    assertEquals(createdFrames.get(), freedFrames.get());
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+/** Reads the files under src/test/resources. */
+final class Fixtures {
+  private Fixtures() {}
+
+  /** Returns the contents of resource |name| as UTF-8 text. */
+  static String readString(String name) throws IOException {
+    final InputStream in = open(name);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), Charset.forName("UTF-8"));
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns resource |name|, which must be a file or directory on disk. */
+  static File getFile(String name) throws IOException {
+    final URL url = Fixtures.class.getClassLoader().getResource(name);
+    if (url == null) {
+      throw new IOException("Missing test resource " + name);
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static InputStream open(String name) throws IOException {
+    final InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name);
+    if (in == null) {
+      throw new IOException("Missing test resource " + name);
+    }
+    return in;
+  }
+}
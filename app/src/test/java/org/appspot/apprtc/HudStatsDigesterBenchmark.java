@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+/**
+ * Compares the bytes allocated per HUD update by the text building HudFragment did before
+ * HudStatsDigester with the digester, which should allocate nothing once warmed up. The
+ * allocations of the reports themselves, which come from native code, are not counted.
+ */
+public class HudStatsDigesterBenchmark {
+  private static final int ITERATIONS = 20000;
+
+  @Test
+  public void bytesPerUpdate() {
+    benchmark("detailed", true);
+    benchmark("summary", false);
+  }
+
+  private static void benchmark(String name, final boolean includeDetails) {
+    final StatsReport[] reports = StatsReports.createCallReports(5, 3);
+    final HudStatsDigester digester = new HudStatsDigester();
+    Benchmark.run("baseline " + name, ITERATIONS, new Runnable() {
+      @Override
+      public void run() {
+        BaselineHudStats.digest(reports);
+      }
+    });
+    final Benchmark.Result digested = Benchmark.run("digester " + name, ITERATIONS,
+        new Runnable() {
+          @Override
+          public void run() {
+            digester.digest(reports, includeDetails).release();
+          }
+        });
+    if (digested.bytesPerOp >= 0) {
+      assertEquals(0, digested.bytesPerOp, 1.0);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class HudStatsDigesterTest {
+  @Test
+  public void matchesBaselineText() {
+    final HudStatsDigester digester = new HudStatsDigester();
+    for (int second = 1; second <= 3; second++) {
+      final StatsReport[] reports = StatsReports.createCallReports(second, 1);
+      final BaselineHudStats expected = BaselineHudStats.digest(reports);
+      final HudStatsDigester.HudStats stats = digester.digest(reports, true);
+      assertEquals(expected.bweStat, stats.bwe.toString());
+      assertEquals(expected.connectionStat, stats.connection.toString());
+      assertEquals(expected.videoSendStat, stats.videoSend.toString());
+      assertEquals(expected.videoRecvStat, stats.videoRecv.toString());
+      assertEquals("Fps:  " + stats.fps + "\nTarget BR: " + stats.targetBitrate
+              + "\nActual BR: " + stats.actualBitrate + "\n",
+          expected.encoderStat);
+      assertEquals(0, stats.layers.length());
+      stats.release();
+    }
+  }
+
+  @Test
+  public void leavesOutDetailsWhenHidden() {
+    final HudStatsDigester digester = new HudStatsDigester();
+    final HudStatsDigester.HudStats stats =
+        digester.digest(StatsReports.createCallReports(1, 1), false);
+    assertFalse(stats.hasDetails);
+    assertEquals("30", stats.fps);
+    assertEquals("1000000", stats.targetBitrate);
+    assertEquals(0, stats.bwe.length() + stats.connection.length() + stats.videoSend.length()
+            + stats.videoRecv.length());
+  }
+
+  @Test
+  public void summarizesSimulcastLayers() {
+    final HudStatsDigester digester = new HudStatsDigester();
+    digester.digest(StatsReports.createCallReports(1, 3), false).release();
+    final HudStatsDigester.HudStats stats =
+        digester.digest(StatsReports.createCallReports(2, 3), false);
+    // bytesSent grows by 40000 << layer bytes per second.
+    assertEquals("L0: 320x180@30 320 kbps\nL1: 640x360@30 640 kbps\nL2: 1280x720@30 1280 kbps",
+        stats.layers.toString());
+  }
+
+  @Test
+  public void skipsUpdatesUntilStatsAreReleased() {
+    final HudStatsDigester digester = new HudStatsDigester();
+    final StatsReport[] reports = StatsReports.createCallReports(1, 1);
+    final HudStatsDigester.HudStats first = digester.digest(reports, true);
+    final HudStatsDigester.HudStats second = digester.digest(reports, true);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNotSame(first, second);
+    assertNull(digester.digest(reports, true));
+    first.release();
+    final HudStatsDigester.HudStats third = digester.digest(reports, true);
+    assertSame(first, third);
+    assertTrue(third.hasDetails);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+public class IceCandidateBatcherTest {
+  private static final int WINDOW_MS = 20;
+  private static final int MAX_CANDIDATES = 3;
+
+  /** Keeps the window timers until the test runs them and records the sent messages. */
+  private static class FakeTransport implements IceCandidateBatcher.Transport {
+    final ArrayDeque<Runnable> timers = new ArrayDeque<>();
+    final List<Integer> timerDelaysMs = new ArrayList<>();
+    // Sent messages, and the removals the test sends the way the clients do.
+    final List<String> messages = new ArrayList<>();
+    final List<IceCandidate[]> batches = new ArrayList<>();
+
+    @Override
+    public void postDelayed(Runnable task, int delayMs) {
+      timers.add(task);
+      timerDelaysMs.add(delayMs);
+    }
+
+    @Override
+    public void sendCandidates(String message, IceCandidate[] candidates) {
+      messages.add(message);
+      batches.add(candidates);
+    }
+
+    void runTimers() {
+      Runnable timer;
+      while ((timer = timers.poll()) != null) {
+        timer.run();
+      }
+    }
+  }
+
+  private final FakeTransport transport = new FakeTransport();
+  private final IceCandidateBatcher batcher =
+      new IceCandidateBatcher(transport, WINDOW_MS, MAX_CANDIDATES);
+
+  private static IceCandidate createCandidate(int i) {
+    return new IceCandidate("mid" + (i % 2), i % 2,
+        "candidate:" + i + " 1 udp 2122260223 192.168.1." + i + " 5000" + i + " typ host");
+  }
+
+  private static void assertCandidatesEqual(IceCandidate[] expected, IceCandidate[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i].sdpMid, actual[i].sdpMid);
+      assertEquals(expected[i].sdpMLineIndex, actual[i].sdpMLineIndex);
+      assertEquals(expected[i].sdp, actual[i].sdp);
+    }
+  }
+
+  @Test
+  public void testWindowFlushesPendingCandidates() {
+    batcher.add(createCandidate(0));
+    batcher.add(createCandidate(1));
+    assertEquals(0, transport.batches.size());
+    // One timer for the window of the first pending candidate.
+    assertEquals(1, transport.timers.size());
+    assertEquals(WINDOW_MS, (int) transport.timerDelaysMs.get(0));
+
+    transport.runTimers();
+    assertEquals(1, transport.batches.size());
+    assertCandidatesEqual(new IceCandidate[] {createCandidate(0), createCandidate(1)},
+        transport.batches.get(0));
+  }
+
+  @Test
+  public void testFullBatchIsSentAtOnce() {
+    for (int i = 0; i < MAX_CANDIDATES + 1; i++) {
+      batcher.add(createCandidate(i));
+    }
+    assertEquals(1, transport.batches.size());
+    assertEquals(MAX_CANDIDATES, transport.batches.get(0).length);
+
+    // The timer of the full batch does not cut the window of the next one short.
+    final Runnable staleTimer = transport.timers.poll();
+    staleTimer.run();
+    assertEquals(1, transport.batches.size());
+    transport.runTimers();
+    assertEquals(2, transport.batches.size());
+    assertCandidatesEqual(new IceCandidate[] {createCandidate(MAX_CANDIDATES)},
+        transport.batches.get(1));
+  }
+
+  @Test
+  public void testFlushKeepsCandidatesAheadOfRemovals() {
+    batcher.add(createCandidate(0));
+    batcher.add(createCandidate(1));
+    // As the clients do before sending removals.
+    batcher.flush();
+    transport.messages.add("remove-candidates");
+    transport.runTimers();
+
+    assertEquals(2, transport.messages.size());
+    assertEquals(IceCandidateBatcher.toMessage(
+        new IceCandidate[] {createCandidate(0), createCandidate(1)}), transport.messages.get(0));
+    assertEquals("remove-candidates", transport.messages.get(1));
+  }
+
+  @Test
+  public void testClearDropsPendingCandidates() {
+    batcher.add(createCandidate(0));
+    batcher.clear();
+    transport.runTimers();
+    batcher.flush();
+    assertEquals(0, transport.batches.size());
+  }
+
+  @Test
+  public void testMessageRoundTrip() throws Exception {
+    final IceCandidate[] candidates = new IceCandidate[] {createCandidate(0),
+        createCandidate(1), new IceCandidate("", 0, "candidate:\"quoted\" \\ \u00e9")};
+    final JSONObject json = new JSONObject(IceCandidateBatcher.toMessage(candidates));
+    assertEquals(IceCandidateBatcher.MESSAGE_TYPE, json.getString("type"));
+    assertCandidatesEqual(candidates, IceCandidateBatcher.fromMessage(json));
+
+    assertEquals(0, IceCandidateBatcher.fromMessage(
+        new JSONObject(IceCandidateBatcher.toMessage(new IceCandidate[0]))).length);
+  }
+
+  @Test
+  public void testRoomMessagesWithBatches() throws Exception {
+    final JSONObject offer = new JSONObject();
+    offer.put("type", "offer");
+    offer.put("sdp", "v=0");
+    final JSONObject candidate = new JSONObject();
+    candidate.put("type", "candidate");
+    candidate.put("label", 1);
+    candidate.put("id", "mid1");
+    candidate.put("candidate", createCandidate(1).sdp);
+    // The room server stores the messages as strings.
+    final JSONArray messages = new JSONArray();
+    messages.put(offer.toString());
+    messages.put(IceCandidateBatcher.toMessage(
+        new IceCandidate[] {createCandidate(2), createCandidate(3)}));
+    messages.put(candidate.toString());
+    messages.put("{\"type\": \"bye\"}");
+
+    final List<IceCandidate> candidates = new ArrayList<>();
+    final SessionDescription offerSdp =
+        RoomParametersFetcher.parseRoomMessages(messages, candidates);
+    assertEquals(SessionDescription.Type.OFFER, offerSdp.type);
+    assertEquals("v=0", offerSdp.description);
+    assertCandidatesEqual(
+        new IceCandidate[] {createCandidate(2), createCandidate(3), createCandidate(1)},
+        candidates.toArray(new IceCandidate[candidates.size()]));
+
+    assertNull(RoomParametersFetcher.parseRoomMessages(new JSONArray(), candidates));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Connects a NioTCPChannelClient to a plain socket that accepts but never reads. */
+public class NioTCPChannelClientTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final CountDownLatch connected = new CountDownLatch(1);
+  private final CountDownLatch closed = new CountDownLatch(1);
+  // Only used on the executor.
+  private final List<String> errors = new ArrayList<>();
+  private ServerSocket serverSocket;
+  private Socket peer;
+  private NioTCPChannelClient client;
+
+  private final TCPChannelEvents events = new TCPChannelEvents() {
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {}
+
+    @Override
+    public void onTCPError(String description) {
+      errors.add(description);
+    }
+
+    @Override
+    public void onTCPClose() {
+      closed.countDown();
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    serverSocket = new ServerSocket();
+    // Keeps the kernel from buffering much of what the peer does not read.
+    serverSocket.setReceiveBufferSize(4096);
+    serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        client = new NioTCPChannelClient(
+            executor, events, "127.0.0.1", serverSocket.getLocalPort());
+      }
+    }).get();
+    peer = serverSocket.accept();
+    assertTrue(connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    peer.close();
+    serverSocket.close();
+  }
+
+  // Returns the errors reported so far, read on the executor.
+  private List<String> getErrors() throws Exception {
+    return executor.submit(new java.util.concurrent.Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        return new ArrayList<>(errors);
+      }
+    }).get();
+  }
+
+  @Test
+  public void testPeerThatDoesNotReadIsDisconnected() throws Exception {
+    final char[] chars = new char[64 * 1024];
+    Arrays.fill(chars, 'x');
+    final String message = new String(chars);
+    // More than the write buffer and the socket buffers hold.
+    final int messages = 4 * NioTCPChannelClient.MAX_WRITE_BUFFER_BYTES / message.length();
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < messages; i++) {
+          client.send(message);
+        }
+      }
+    }).get();
+
+    assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // Messages sent after the buffer filled up are refused, and the overflow is reported once.
+    int overflowErrors = 0;
+    for (String error : getErrors()) {
+      if (error.startsWith("Peer is not reading")) {
+        overflowErrors++;
+      } else {
+        assertEquals("Sending data on closed socket.", error);
+      }
+    }
+    assertEquals(1, overflowErrors);
+  }
+
+  @Test
+  public void testOversizedMessageIsRefused() throws Exception {
+    final char[] chars = new char[1024 * 1024 + 1];
+    Arrays.fill(chars, 'x');
+    final String message = new String(chars);
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        client.send(message);
+      }
+    }).get();
+
+    final List<String> errors = getErrors();
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0), errors.get(0).startsWith("Message of 1048577 bytes exceeds"));
+    assertEquals(1, closed.getCount());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Compares ProcReader with the readers it replaced on the files CpuMonitor reads per sample of a
+ * three-core device: /proc/stat and the current frequency of each core. Prints the time and bytes
+ * allocated per sample.
+ */
+public class ProcReaderBenchmark {
+  private static final int ITERATIONS = 20000;
+  private static final byte[] CPU_LINE_PREFIX = {'c', 'p', 'u', ' '};
+
+  @Test
+  public void sampleFiles() throws IOException {
+    final String stat = Fixtures.getFile("proc/stat").getPath();
+    final String[] curFreqs = new String[3];
+    for (int i = 0; i < curFreqs.length; i++) {
+      curFreqs[i] = Fixtures.getFile("proc/cpu/cpu" + i + "/cpufreq/scaling_cur_freq").getPath();
+    }
+    final ProcReader reader = new ProcReader(4096);
+    final ProcReader.Handle statHandle = reader.handle(stat);
+    final ProcReader.Handle[] curFreqHandles = new ProcReader.Handle[curFreqs.length];
+    for (int i = 0; i < curFreqs.length; i++) {
+      curFreqHandles[i] = reader.handle(curFreqs[i]);
+    }
+    final long[] baselineTimes = BaselineProcReaders.readProcStat(stat);
+    final long[] times = new long[3];
+    final long[] sink = new long[1];
+
+    final Runnable readerSample = new Runnable() {
+      @Override
+      public void run() {
+        long sum = 0;
+        for (ProcReader.Handle handle : curFreqHandles) {
+          reader.read(handle);
+          sum += reader.nextLong();
+        }
+        reader.read(statHandle);
+        assertTrue(reader.startsWith(CPU_LINE_PREFIX));
+        reader.skipToken();
+        final long user = reader.nextLong();
+        final long nice = reader.nextLong();
+        final long system = reader.nextLong();
+        final long idle = reader.nextLong();
+        times[0] = user + nice + reader.nextLong();
+        times[1] = system + reader.nextLong() + reader.nextLong();
+        times[2] = idle;
+        sink[0] = sum;
+      }
+    };
+    readerSample.run();
+    assertArrayEquals(baselineTimes, times);
+    assertEquals(1401600 + 300000 + 2457600, sink[0]);
+
+    final Benchmark.Result baseline =
+        Benchmark.run("baseline readers", ITERATIONS, new Runnable() {
+          @Override
+          public void run() {
+            long sum = 0;
+            for (String curFreq : curFreqs) {
+              sum += BaselineProcReaders.readFreqFromFile(curFreq);
+            }
+            sink[0] = sum + BaselineProcReaders.readProcStat(stat)[0];
+          }
+        });
+    final Benchmark.Result procReader = Benchmark.run("ProcReader", ITERATIONS, readerSample);
+    System.out.println(String.format("ProcReader: %.1fx faster, %.0f vs %.0f bytes per sample",
+        baseline.nsPerOp / procReader.nsPerOp, baseline.bytesPerOp, procReader.bytesPerOp));
+    assertEquals(0, procReader.bytesPerOp, 1);
+  }
+}
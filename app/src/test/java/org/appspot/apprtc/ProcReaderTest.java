@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Parses the /proc and cpufreq fixtures under src/test/resources/proc with ProcReader. */
+public class ProcReaderTest {
+  private static final byte[] CPU_LINE_PREFIX = {'c', 'p', 'u', ' '};
+  private static final byte[] CORE_LINE_PREFIX = {'c', 'p', 'u'};
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ProcReader reader = new ProcReader(4096);
+
+  @Test
+  public void readsCpuLinesOfProcStat() throws IOException {
+    assertTrue(reader.read(reader.handle(Fixtures.getFile("proc/stat").getPath())));
+    assertTrue(reader.startsWith(CPU_LINE_PREFIX));
+    reader.skipToken();
+    final long[] expected = {2255346, 60718, 1532875, 26043869, 35127, 219838, 98431, 0, 0, 0};
+    for (long value : expected) {
+      assertEquals(value, reader.nextLong());
+    }
+    // End of the line.
+    assertEquals(-1, reader.nextLong());
+
+    // Core 3 is offline and not listed.
+    final long[] cores = {0, 1, 2, 4};
+    final long[] userTimes = {691230, 611083, 512478, 440555};
+    for (int i = 0; i < cores.length; i++) {
+      assertTrue(reader.nextLine());
+      assertTrue(reader.startsWith(CORE_LINE_PREFIX));
+      reader.skip(CORE_LINE_PREFIX.length);
+      assertEquals(cores[i], reader.nextLong());
+      assertEquals(userTimes[i], reader.nextLong());
+    }
+    assertTrue(reader.nextLine());
+    assertFalse(reader.startsWith(CORE_LINE_PREFIX));
+  }
+
+  @Test
+  public void readsCpufreqFiles() throws IOException {
+    final ProcReader.Handle max =
+        reader.handle(Fixtures.getFile("proc/cpu/cpu2/cpufreq/cpuinfo_max_freq").getPath());
+    final ProcReader.Handle cur =
+        reader.handle(Fixtures.getFile("proc/cpu/cpu1/cpufreq/scaling_cur_freq").getPath());
+    assertTrue(reader.read(max));
+    assertEquals(2457600, reader.nextLong());
+    assertTrue(reader.read(cur));
+    assertEquals(300000, reader.nextLong());
+    // Re-reads from the start of the open file.
+    assertTrue(reader.read(max));
+    assertEquals(2457600, reader.nextLong());
+    assertFalse(reader.nextLine());
+  }
+
+  @Test
+  public void readsThreadStat() throws IOException {
+    assertTrue(reader.read(reader.handle(Fixtures.getFile("proc/task/4321/stat").getPath())));
+    // The name runs to the last parenthesis, even if it contains parentheses itself.
+    assertEquals("Binder:123_2) (x)", reader.stringBetween((byte) '(', (byte) ')'));
+    // Fields 3 (state) to 13 (cmajflt), including a negative tpgid.
+    for (int field = 3; field <= 13; field++) {
+      reader.skipToken();
+    }
+    assertEquals(1739, reader.nextLong());
+    assertEquals(412, reader.nextLong());
+  }
+
+  @Test
+  public void rejectsTokensThatAreNotNumbers() throws IOException {
+    final ProcReader.Handle handle = reader.handle(write("value", "12 -1 3x 4\n5\n").getPath());
+    assertTrue(reader.read(handle));
+    assertEquals(12, reader.nextLong());
+    assertEquals(-1, reader.nextLong());
+    reader.skipToken();
+    assertEquals(-1, reader.nextLong());
+    reader.skipToken();
+    assertEquals(4, reader.nextLong());
+    assertEquals(-1, reader.nextLong());
+    assertFalse(reader.nextLine() && reader.nextLine());
+  }
+
+  @Test
+  public void readsChangedContentsAndRetriesMissingFiles() throws IOException {
+    final File file = new File(folder.getRoot(), "scaling_cur_freq");
+    final ProcReader.Handle handle = reader.handle(file.getPath());
+    // An offline core has no cpufreq files.
+    assertFalse(reader.read(handle));
+    assertEquals(-1, reader.nextLong());
+
+    write("scaling_cur_freq", "1401600\n");
+    assertTrue(reader.read(handle));
+    assertEquals(1401600, reader.nextLong());
+
+    // Shorter contents replace the longer ones completely.
+    write("scaling_cur_freq", "300000\n");
+    assertTrue(reader.read(handle));
+    assertEquals(300000, reader.nextLong());
+    assertFalse(reader.nextLine());
+
+    // Closed files are reopened on the next read.
+    reader.closeAll();
+    assertTrue(reader.read(handle));
+    assertEquals(300000, reader.nextLong());
+  }
+
+  @Test
+  public void ignoresContentsBeyondTheBuffer() throws IOException {
+    final ProcReader small = new ProcReader(12);
+    assertTrue(small.read(small.handle(Fixtures.getFile("proc/stat").getPath())));
+    small.skipToken();
+    assertEquals(2255346, small.nextLong());
+    // Only "cpu  2255346" fits into 12 bytes.
+    assertEquals(-1, small.nextLong());
+    assertNull(small.stringBetween((byte) '(', (byte) ')'));
+  }
+
+  private File write(String name, String contents) throws IOException {
+    final File file = new File(folder.getRoot(), name);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes(Charset.forName("UTF-8")));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Executor that queues tasks until the test runs them on its own thread. Not thread safe. */
+class QueueExecutor extends AbstractExecutorService {
+  private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+  private boolean shutdown;
+
+  /** Runs the queued tasks, including those they queue, and returns how many ran. */
+  int runAll() {
+    int count = 0;
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (shutdown) {
+      throw new IllegalStateException("Executor is shut down.");
+    }
+    tasks.add(task);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    final List<Runnable> pending = new ArrayList<>(tasks);
+    tasks.clear();
+    return pending;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && tasks.isEmpty();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return isTerminated();
+  }
+}
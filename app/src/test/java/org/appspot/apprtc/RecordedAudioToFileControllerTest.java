@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
+
+/** Records synthetic samples into a temporary directory and reads the segments back. */
+public class RecordedAudioToFileControllerTest {
+  private static final int WAV_HEADER_BYTES = 44;
+
+  private File rootDir;
+
+  @Before
+  public void setUp() throws IOException {
+    rootDir = File.createTempFile("recorded_audio", "");
+    assertTrue(rootDir.delete());
+    assertTrue(rootDir.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    delete(rootDir);
+  }
+
+  private static void delete(File file) {
+    final File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  // Records |buffers| buffers of |bufferBytes| bytes, whose bytes are their buffer index, and
+  // returns the call directory.
+  private File record(RecordedAudioToFileController controller, int sampleRate,
+      int channelCount, int buffers, int bufferBytes) {
+    assertTrue(controller.start());
+    for (int i = 0; i < buffers; i++) {
+      final byte[] data = new byte[bufferBytes];
+      Arrays.fill(data, (byte) i);
+      controller.onWebRtcAudioRecordSamplesReady(
+          new AudioSamples(AudioFormat.ENCODING_PCM_16BIT, channelCount, sampleRate, data));
+    }
+    controller.stop();
+    assertEquals(0, controller.getOverruns());
+    assertEquals(0, controller.getDroppedBuffers());
+    return controller.getCallDirectory();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final byte[] bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static String ascii(byte[] bytes, int offset) {
+    return new String(bytes, offset, 4, Charset.forName("US-ASCII"));
+  }
+
+  private static File segmentFile(File callDir, int number) {
+    return new File(callDir, String.format(Locale.US, "segment_%05d.wav", number));
+  }
+
+  // Checks the header of the WAV file |file| and returns its samples.
+  private static byte[] readWav(File file, int sampleRate, int channelCount) throws IOException {
+    final byte[] bytes = readFile(file);
+    final ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    final int dataBytes = bytes.length - WAV_HEADER_BYTES;
+    assertEquals("RIFF", ascii(bytes, 0));
+    // Patched in when the segment is closed.
+    assertEquals(36 + dataBytes, header.getInt(4));
+    assertEquals("WAVE", ascii(bytes, 8));
+    assertEquals("fmt ", ascii(bytes, 12));
+    assertEquals(16, header.getInt(16));
+    assertEquals(1, header.getShort(20));
+    assertEquals(channelCount, header.getShort(22));
+    assertEquals(sampleRate, header.getInt(24));
+    assertEquals(sampleRate * channelCount * 2, header.getInt(28));
+    assertEquals(channelCount * 2, header.getShort(32));
+    assertEquals(16, header.getShort(34));
+    assertEquals("data", ascii(bytes, 36));
+    assertEquals(dataBytes, header.getInt(40));
+    return Arrays.copyOfRange(bytes, WAV_HEADER_BYTES, bytes.length);
+  }
+
+  @Test
+  public void testWavHeaderIsPatchedOnStop() throws IOException {
+    // Less than one segment of 16 kHz stereo.
+    final File callDir =
+        record(new RecordedAudioToFileController(0, 0, rootDir), 16000, 2, 30, 640);
+
+    final byte[] samples = readWav(segmentFile(callDir, 1), 16000, 2);
+    assertEquals(30 * 640, samples.length);
+    for (int i = 0; i < samples.length; i++) {
+      assertEquals(i / 640, samples[i]);
+    }
+    assertFalse(segmentFile(callDir, 2).exists());
+  }
+
+  @Test
+  public void testSegmentsAndIndex() throws IOException {
+    // One second of 1 kHz mono is 2000 bytes, five buffers of 400 bytes.
+    final File callDir =
+        record(new RecordedAudioToFileController(1, 0, rootDir), 1000, 1, 12, 400);
+
+    final int[] segmentBuffers = {5, 5, 2};
+    int buffer = 0;
+    for (int segment = 0; segment < segmentBuffers.length; segment++) {
+      final byte[] samples = readWav(segmentFile(callDir, segment + 1), 1000, 1);
+      assertEquals(segmentBuffers[segment] * 400, samples.length);
+      for (int i = 0; i < samples.length; i++) {
+        assertEquals(buffer + i / 400, samples[i]);
+      }
+      buffer += segmentBuffers[segment];
+    }
+    assertFalse(segmentFile(callDir, 4).exists());
+
+    final String[] lines =
+        new String(readFile(new File(callDir, "index.txt")), "UTF-8").split("\n");
+    assertEquals(1 + segmentBuffers.length, lines.length);
+    assertTrue(lines[0].startsWith("#"));
+    long previousTimeMs = 0;
+    for (int segment = 0; segment < segmentBuffers.length; segment++) {
+      final String[] fields = lines[1 + segment].split(" ");
+      assertEquals(segmentFile(callDir, segment + 1).getName(), fields[0]);
+      final long timeMs = Long.parseLong(fields[1]);
+      assertTrue(timeMs >= previousTimeMs);
+      previousTimeMs = timeMs;
+      // Offset into the call.
+      assertEquals(segment * 1000, Long.parseLong(fields[2]));
+    }
+  }
+
+  @Test
+  public void testOldestSegmentsAreEvictedFirst() throws IOException {
+    // A segment left by an earlier call, which sorts before the new call.
+    final File oldCallDir = new File(rootDir, "call_20000101_000000_000");
+    assertTrue(oldCallDir.mkdir());
+    final FileOutputStream oldSegment =
+        new FileOutputStream(new File(oldCallDir, "segment_00001.wav"));
+    try {
+      oldSegment.write(new byte[100 * 1024]);
+    } finally {
+      oldSegment.close();
+    }
+    assertTrue(new File(oldCallDir, "index.txt").createNewFile());
+
+    // One second of 48 kHz stereo is 192000 bytes, so five segments fit into 1 MB.
+    final File callDir =
+        record(new RecordedAudioToFileController(1, 1, rootDir), 48000, 2, 80, 19200);
+
+    // The earlier call goes first, along with its directory, then the oldest segments of this
+    // call.
+    assertFalse(oldCallDir.exists());
+    for (int segment = 1; segment <= 3; segment++) {
+      assertFalse(segmentFile(callDir, segment).exists());
+    }
+    long totalBytes = 0;
+    for (int segment = 4; segment <= 8; segment++) {
+      final byte[] samples = readWav(segmentFile(callDir, segment), 48000, 2);
+      assertEquals(192000, samples.length);
+      assertEquals((segment - 1) * 10, samples[0]);
+      totalBytes += WAV_HEADER_BYTES + samples.length;
+    }
+    assertTrue(totalBytes <= 1024 * 1024);
+    assertArrayEquals(new String[] {callDir.getName()}, rootDir.list());
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoFrame;
+
+public class RemoteVideoRecorderTest {
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 2;
+  // Bytes of an I420 frame of the output size.
+  private static final int FRAME_BYTES = WIDTH * HEIGHT * 3 / 2;
+  private static final byte[] HEADER =
+      ("YUV4MPEG2 C420 W4 H2 Ip F30:1 A1:1\n").getBytes(US_ASCII);
+  private static final byte[] FRAME_HEADER = "FRAME\n".getBytes(US_ASCII);
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("recorder", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  // A frame of |width|x|height| whose luma bytes count up from |first| and whose chroma bytes
+  // count up from 100 and 200.
+  private static VideoFrame createFrame(int width, int height, int first, int rotation) {
+    final JavaI420Buffer buffer = JavaI420Buffer.allocate(width, height);
+    fill(buffer.getDataY(), first);
+    fill(buffer.getDataU(), 100);
+    fill(buffer.getDataV(), 200);
+    return new VideoFrame(buffer, rotation, first * 1000L);
+  }
+
+  private static void fill(ByteBuffer plane, int first) {
+    for (int i = 0; plane.hasRemaining(); i++) {
+      plane.put((byte) (first + i));
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final byte[] bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static byte[] bytes(int... values) {
+    final byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  // Returns the frames of the Y4M file |file| after checking its header.
+  private static List<byte[]> readY4m(File file) throws IOException {
+    final byte[] data = readFile(file);
+    assertArrayEquals(HEADER, Arrays.copyOf(data, HEADER.length));
+    final int frameRecordBytes = FRAME_HEADER.length + FRAME_BYTES;
+    assertEquals(0, (data.length - HEADER.length) % frameRecordBytes);
+    final List<byte[]> frames = new ArrayList<>();
+    for (int offset = HEADER.length; offset < data.length; offset += frameRecordBytes) {
+      assertArrayEquals(FRAME_HEADER,
+          Arrays.copyOfRange(data, offset, offset + FRAME_HEADER.length));
+      frames.add(Arrays.copyOfRange(data, offset + FRAME_HEADER.length, offset + frameRecordBytes));
+    }
+    return frames;
+  }
+
+  private RemoteVideoRecorder createY4mRecorder(long maxFileBytes, int maxFiles)
+      throws IOException {
+    return new RemoteVideoRecorder(new File(dir, "remote.y4m").getPath(), WIDTH, HEIGHT,
+        RemoteVideoRecorder.Format.Y4M, maxFileBytes, maxFiles, 16 /* maxBufferedFrames */);
+  }
+
+  @Test
+  public void testY4mHeaderAndFrames() throws IOException {
+    final RemoteVideoRecorder recorder = createY4mRecorder(0, 0);
+    recorder.onFrame(createFrame(WIDTH, HEIGHT, 0, 0));
+    // Twice as wide: every other column.
+    recorder.onFrame(createFrame(2 * WIDTH, HEIGHT, 10, 0));
+    recorder.release();
+
+    final List<byte[]> frames = readY4m(new File(dir, "remote.y4m"));
+    assertEquals(2, frames.size());
+    assertArrayEquals(bytes(0, 1, 2, 3, 4, 5, 6, 7, 100, 101, 200, 201), frames.get(0));
+    assertArrayEquals(bytes(10, 12, 14, 16, 18, 20, 22, 24, 100, 102, 200, 202), frames.get(1));
+    assertEquals(2, recorder.getWrittenFrames());
+    assertEquals(0, recorder.getDroppedFrames());
+  }
+
+  @Test
+  public void testRotationIsApplied() throws IOException {
+    final RemoteVideoRecorder recorder = createY4mRecorder(0, 0);
+    // 2x4 frames rotated to the 4x2 output.
+    recorder.onFrame(createFrame(HEIGHT, WIDTH, 0, 90));
+    recorder.onFrame(createFrame(HEIGHT, WIDTH, 0, 270));
+    recorder.onFrame(createFrame(WIDTH, HEIGHT, 0, 180));
+    recorder.release();
+
+    // Luma rows of the source: 0 1 / 2 3 / 4 5 / 6 7, chroma 100 / 101 and 200 / 201.
+    final List<byte[]> frames = readY4m(new File(dir, "remote.y4m"));
+    assertArrayEquals(bytes(6, 4, 2, 0, 7, 5, 3, 1, 101, 100, 201, 200), frames.get(0));
+    assertArrayEquals(bytes(1, 3, 5, 7, 0, 2, 4, 6, 100, 101, 200, 201), frames.get(1));
+    assertArrayEquals(bytes(7, 6, 5, 4, 3, 2, 1, 0, 101, 100, 201, 200), frames.get(2));
+  }
+
+  @Test
+  public void testSegmentsRotateAndOldestAreDeleted() throws IOException {
+    // Two frames per segment, two newest segments kept.
+    final RemoteVideoRecorder recorder = createY4mRecorder(
+        HEADER.length + 2 * (FRAME_HEADER.length + FRAME_BYTES), 2 /* maxFiles */);
+    for (int i = 0; i < 5; i++) {
+      recorder.onFrame(createFrame(WIDTH, HEIGHT, 10 * i, 0));
+    }
+    recorder.release();
+
+    assertFalse(new File(dir, "remote.y4m").exists());
+    final List<byte[]> second = readY4m(new File(dir, "remote.1.y4m"));
+    final List<byte[]> third = readY4m(new File(dir, "remote.2.y4m"));
+    assertEquals(2, second.size());
+    assertEquals(1, third.size());
+    assertEquals(20, second.get(0)[0]);
+    assertEquals(30, second.get(1)[0]);
+    assertEquals(40, third.get(0)[0]);
+    assertEquals(2, dir.listFiles().length);
+  }
+
+  @Test
+  public void testFullPoolDropsOldestPendingFrame() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final List<Integer> written = new ArrayList<>();
+    final RemoteVideoRecorder.FrameWriter writer = new RemoteVideoRecorder.FrameWriter() {
+      @Override
+      public void write(byte[] i420, long timestampNs) {
+        writing.countDown();
+        try {
+          unblock.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        written.add((int) i420[0]);
+      }
+
+      @Override
+      public void close() {}
+    };
+    final RemoteVideoRecorder recorder = new RemoteVideoRecorder(writer, WIDTH, HEIGHT, 3);
+
+    recorder.onFrame(createFrame(WIDTH, HEIGHT, 0, 0));
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    // The writer holds frame 0, frames 10 and 20 take the other buffers, frame 30 reuses the
+    // buffer of frame 10.
+    for (int i = 1; i <= 3; i++) {
+      recorder.onFrame(createFrame(WIDTH, HEIGHT, 10 * i, 0));
+    }
+    assertEquals(1, recorder.getDroppedFrames());
+    assertEquals(2, recorder.getQueueDepth());
+    unblock.countDown();
+    recorder.release();
+
+    assertEquals(Arrays.asList(0, 20, 30), written);
+    assertEquals(3, recorder.getWrittenFrames());
+    assertEquals(2, recorder.getMaxQueueDepth());
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+public class RoomParametersFetcherTest {
+  private static final long NOW_MS = 1000000;
+
+  private static long getLifetimeMs(String response) throws Exception {
+    return RoomParametersFetcher.getLifetimeMs(new JSONObject(response));
+  }
+
+  private static List<PeerConnection.IceServer> createServers(String url) {
+    final List<PeerConnection.IceServer> servers = new ArrayList<>();
+    servers.add(PeerConnection.IceServer.builder(url).createIceServer());
+    return servers;
+  }
+
+  @Test
+  public void testLifetimeDuration() throws Exception {
+    assertEquals(86400000, getLifetimeMs("{\"lifetimeDuration\": \"86400s\"}"));
+    assertEquals(1500, getLifetimeMs("{\"lifetimeDuration\": \"1.5s\"}"));
+    // Preferred over the ttl.
+    assertEquals(60000, getLifetimeMs("{\"lifetimeDuration\": \"60s\", \"ttl\": 30}"));
+  }
+
+  @Test
+  public void testTtl() throws Exception {
+    assertEquals(3600000, getLifetimeMs("{\"ttl\": 3600}"));
+    assertEquals(3600000, getLifetimeMs("{\"ttl\": \"3600\"}"));
+  }
+
+  @Test
+  public void testMissingOrInvalidLifetime() throws Exception {
+    assertEquals(0, getLifetimeMs("{\"iceServers\": []}"));
+    assertEquals(0, getLifetimeMs("{\"lifetimeDuration\": \"ages\"}"));
+    assertEquals(0, getLifetimeMs("{\"lifetimeDuration\": \"s\"}"));
+  }
+
+  @Test
+  public void testCachedUntilHalfTheLifetime() {
+    final String url = "https://turn.test/expiry";
+    final List<PeerConnection.IceServer> servers = createServers("turn:expiry.test");
+    RoomParametersFetcher.putCachedTurnServers(url, servers, 10000, NOW_MS);
+
+    assertEquals(servers, RoomParametersFetcher.getCachedTurnServers(url, NOW_MS));
+    assertEquals(servers, RoomParametersFetcher.getCachedTurnServers(url, NOW_MS + 4999));
+    assertNull(RoomParametersFetcher.getCachedTurnServers(url, NOW_MS + 5000));
+    // Expired servers are dropped, not only hidden.
+    assertNull(RoomParametersFetcher.getCachedTurnServers(url, NOW_MS));
+  }
+
+  @Test
+  public void testNotCachedWithoutLifetime() {
+    final String url = "https://turn.test/no-lifetime";
+    RoomParametersFetcher.putCachedTurnServers(url, createServers("turn:a.test"), 0, NOW_MS);
+
+    assertNull(RoomParametersFetcher.getCachedTurnServers(url, NOW_MS));
+  }
+
+  @Test
+  public void testCacheIsKeyedByUrl() {
+    final String urlA = "https://turn.test/a";
+    final String urlB = "https://turn.test/b";
+    final List<PeerConnection.IceServer> serversA = createServers("turn:a.test");
+    final List<PeerConnection.IceServer> serversB = createServers("turn:b.test");
+    RoomParametersFetcher.putCachedTurnServers(urlA, serversA, 10000, NOW_MS);
+    assertNull(RoomParametersFetcher.getCachedTurnServers(urlB, NOW_MS));
+
+    RoomParametersFetcher.putCachedTurnServers(urlB, serversB, 20000, NOW_MS);
+    assertEquals(serversA, RoomParametersFetcher.getCachedTurnServers(urlA, NOW_MS));
+    assertEquals(serversB, RoomParametersFetcher.getCachedTurnServers(urlB, NOW_MS));
+
+    // Each URL expires on its own.
+    assertNull(RoomParametersFetcher.getCachedTurnServers(urlA, NOW_MS + 5000));
+    assertEquals(serversB, RoomParametersFetcher.getCachedTurnServers(urlB, NOW_MS + 5000));
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Compares SdpMunger with the helpers it replaced on the remote description rewrites of a call
+ * with ISAC, H264 and an Opus start bitrate. Prints the time and bytes allocated per description.
+ */
+public class SdpMungerBenchmark {
+  private static final int ITERATIONS = 20000;
+
+  @Test
+  public void remoteDescriptionRewrites() throws IOException {
+    for (String fixture : SdpMungerTest.SDP_FIXTURES) {
+      final String sdp = Fixtures.readString(fixture);
+      final SdpMunger munger = new SdpMunger("ISAC", "H264", "opus", 32, null, 0, 1);
+      assertEquals(BaselineSdpHelpers.munge(sdp, "ISAC", "H264", "opus", 32, null, 0),
+          munger.munge(sdp));
+
+      final Benchmark.Result baseline =
+          Benchmark.run("baseline helpers " + fixture, ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+              BaselineSdpHelpers.munge(sdp, "ISAC", "H264", "opus", 32, null, 0);
+            }
+          });
+      final Benchmark.Result single =
+          Benchmark.run("SdpMunger " + fixture, ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+              munger.munge(sdp);
+            }
+          });
+      System.out.println(String.format("%s: %.1fx faster, %.1fx fewer bytes", fixture,
+          baseline.nsPerOp / single.nsPerOp, baseline.bytesPerOp / single.bytesPerOp));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class SdpMungerTest {
+  static final String[] SDP_FIXTURES = {
+      "sdp/android_offer.sdp", "sdp/chrome_answer.sdp", "sdp/audio_only_offer.sdp"};
+  private static final String[] AUDIO_CODECS = {null, "ISAC", "opus", "G722", "AMR"};
+  private static final String[] VIDEO_CODECS = {null, "VP8", "VP9", "H264", "AV1"};
+  private static final int[] BITRATES_KBPS = {0, 32, 1700};
+
+  @Test
+  public void matchesBaselineHelpersForAllRewrites() throws IOException {
+    int combinations = 0;
+    for (String fixture : SDP_FIXTURES) {
+      final String sdp = Fixtures.readString(fixture);
+      for (String audioCodec : AUDIO_CODECS) {
+        for (String videoCodec : VIDEO_CODECS) {
+          for (int audioKbps : BITRATES_KBPS) {
+            for (int videoKbps : BITRATES_KBPS) {
+              final String expected = BaselineSdpHelpers.munge(
+                  sdp, audioCodec, videoCodec, "opus", audioKbps, videoCodec, videoKbps);
+              final String actual =
+                  new SdpMunger(audioCodec, videoCodec, "opus", audioKbps, videoCodec, videoKbps, 1)
+                      .munge(sdp);
+              assertEquals(fixture + " audio " + audioCodec + " video " + videoCodec + " "
+                      + audioKbps + "/" + videoKbps + " kbps",
+                  expected, actual);
+              combinations++;
+            }
+          }
+        }
+      }
+    }
+    assertEquals(SDP_FIXTURES.length * 5 * 5 * 3 * 3, combinations);
+  }
+
+  @Test
+  public void returnsSameDescriptionWithoutRewrites() throws IOException {
+    final String sdp = Fixtures.readString("sdp/android_offer.sdp");
+    final SdpMunger munger = new SdpMunger(null, null, null, 0, null, 0, 1);
+    assertFalse(munger.hasRewrites());
+    assertSame(sdp, munger.munge(sdp));
+  }
+
+  @Test
+  public void appendsToExistingFmtpLine() throws IOException {
+    final String sdp = Fixtures.readString("sdp/android_offer.sdp");
+    final String munged = new SdpMunger(null, null, "opus", 32, null, 0, 1).munge(sdp);
+    assertTrue(munged.contains(
+        "a=rtpmap:111 opus/48000/2\r\na=rtcp-fb:111 transport-cc\r\n"
+        + "a=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=32000\r\n"));
+  }
+
+  @Test
+  public void addsFmtpLineAfterRtpmap() throws IOException {
+    final String sdp = Fixtures.readString("sdp/audio_only_offer.sdp");
+    final String munged = new SdpMunger(null, null, "opus", 32, null, 0, 1).munge(sdp);
+    assertTrue(munged.contains(
+        "a=rtpmap:111 opus/48000/2\r\na=fmtp:111 maxaveragebitrate=32000\r\n"));
+  }
+
+  @Test
+  public void movesAllPayloadTypesOfCodecToFront() throws IOException {
+    final String sdp = Fixtures.readString("sdp/chrome_answer.sdp");
+    final String munged = new SdpMunger(null, "H264", null, 0, null, 0, 1).munge(sdp);
+    assertTrue(munged.contains("\r\nm=video 9 UDP/TLS/RTP/SAVPF 102 127 125 108 114 96 97 98 99 "
+        + "100 101 122 121 107 109 124 120 123 119\r\n"));
+  }
+
+  @Test
+  public void addsSimulcastLayers() throws IOException {
+    final String sdp = Fixtures.readString("sdp/android_offer.sdp");
+    final String munged = new SdpMunger(null, null, null, 0, null, 0, 3).munge(sdp);
+    final SessionDescriptionModel model = new SessionDescriptionModel(munged);
+    int simulcastGroups = 0;
+    int fidGroups = 0;
+    for (int i = 0; i < model.getLineCount(); i++) {
+      if (model.getLine(i).startsWith("a=ssrc-group:SIM ")) {
+        simulcastGroups++;
+        assertEquals(4, model.getLine(i).split(" ").length);
+      } else if (model.getLine(i).startsWith("a=ssrc-group:FID ")) {
+        fidGroups++;
+      }
+    }
+    assertEquals(1, simulcastGroups);
+    assertEquals(3, fidGroups);
+  }
+}
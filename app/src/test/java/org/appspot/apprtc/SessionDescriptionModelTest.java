@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class SessionDescriptionModelTest {
+  @Test
+  public void indexesLinesLikeSplit() throws IOException {
+    for (String fixture : SdpMungerTest.SDP_FIXTURES) {
+      final String sdp = Fixtures.readString(fixture);
+      final String[] lines = sdp.split("\r\n");
+      final SessionDescriptionModel model = new SessionDescriptionModel(sdp);
+      assertEquals(lines.length, model.getLineCount());
+      for (int i = 0; i < lines.length; i++) {
+        assertEquals(lines[i], model.getLine(i));
+      }
+      assertFalse(model.isModified());
+      assertSame(sdp, model.toString());
+    }
+  }
+
+  @Test
+  public void findsMediaDescriptionsAndPayloadTypes() throws IOException {
+    final SessionDescriptionModel model =
+        new SessionDescriptionModel(Fixtures.readString("sdp/chrome_answer.sdp"));
+    assertEquals(2, model.getMediaDescriptionLines().size());
+    final int audio = model.findMediaDescriptionLine("audio");
+    final int video = model.findMediaDescriptionLine("video");
+    assertTrue(model.getLine(audio).startsWith("m=audio "));
+    assertTrue(model.getLine(video).startsWith("m=video "));
+    assertEquals(-1, model.findMediaDescriptionLine("application"));
+    assertEquals(Arrays.asList("98", "100"), model.getPayloadTypes("VP9"));
+    assertEquals("a=rtpmap:100 VP9/90000", model.getLine(model.findRtpmapLine("100")));
+    assertEquals("a=fmtp:100 profile-id=2", model.getLine(model.findFmtpLine("100")));
+    assertEquals(-1, model.findFmtpLine("96"));
+  }
+
+  @Test
+  public void appliesReplacementsAndInsertionsInOrder() {
+    final SessionDescriptionModel model =
+        new SessionDescriptionModel("v=0\r\nm=audio 9 RTP 0\r\na=rtpmap:0 PCMU/8000\r\n");
+    model.replaceLine(1, "m=audio 9 RTP 8 0");
+    model.insertLineAfter(2, "a=first");
+    model.insertLineAfter(2, "a=second");
+    model.insertLineAfter(0, "s=-");
+    assertTrue(model.isModified());
+    assertEquals("m=audio 9 RTP 8 0", model.getLine(1));
+    assertEquals("v=0\r\ns=-\r\nm=audio 9 RTP 8 0\r\na=rtpmap:0 PCMU/8000\r\na=first\r\n"
+            + "a=second\r\n",
+        model.toString());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.webrtc.StatsReport;
+
+/** Builds legacy stats reports like the ones of a video call with one or three sent layers. */
+final class StatsReports {
+  private StatsReports() {}
+
+  /** Returns the reports of second |second| of a call sending |layers| video layers. */
+  static StatsReport[] createCallReports(int second, int layers) {
+    final double timestampMs = 1530000000000.0 + second * 1000.0;
+    final List<StatsReport> reports = new ArrayList<>();
+    reports.add(report("googLibjingleSession_4611731400430051336", "googLibjingleSession",
+        timestampMs, "googInitiator", "true"));
+    reports.add(report("bweforvideo", "VideoBwe", timestampMs,
+        "googActualEncBitrate", String.valueOf(980000 + second),
+        "googAvailableReceiveBandwidth", "2473124",
+        "googAvailableSendBandwidth", "1700000",
+        "googBucketDelay", "5",
+        "googRetransmitBitrate", "0",
+        "googTargetEncBitrate", "1000000",
+        "googTransmitBitrate", String.valueOf(1012000 + second)));
+    for (int i = 0; i < 3; i++) {
+      reports.add(report("Conn-audio-1-" + i, "googCandidatePair", timestampMs,
+          "googActiveConnection", i == 0 ? "true" : "false",
+          "bytesReceived", String.valueOf(1200000 * second),
+          "bytesSent", String.valueOf(1250000 * second),
+          "googChannelId", "Channel-audio-1",
+          "googLocalAddress", "192.168.1.23:4" + i + "512",
+          "googLocalCandidateType", "local",
+          "googReadable", "true",
+          "googRemoteAddress", "192.168.1.42:5" + i + "811",
+          "googRemoteCandidateType", "local",
+          "googRtt", "12",
+          "googTransportType", "udp",
+          "googWritable", "true",
+          "packetsDiscardedOnSend", "0",
+          "packetsSent", String.valueOf(1100 * second),
+          "requestsSent", "4",
+          "responsesReceived", "4"));
+    }
+    reports.add(report("ssrc_3466207406_send", "ssrc", timestampMs,
+        "audioInputLevel", "2113",
+        "bytesSent", String.valueOf(4200 * second),
+        "codecImplementationName", "unknown",
+        "googCodecName", "opus",
+        "googTrackId", "ARDAMSa0",
+        "packetsLost", "0",
+        "packetsSent", String.valueOf(50 * second),
+        "ssrc", "3466207406",
+        "transportId", "Channel-audio-1"));
+    final int[] widths = {320, 640, 1280};
+    for (int i = 0; i < layers; i++) {
+      final int width = widths[3 - layers + i];
+      reports.add(report("ssrc_" + (1932576419 + i) + "_send", "ssrc", timestampMs,
+          "bytesSent", String.valueOf((40000 << i) * second),
+          "codecImplementationName", "MediaCodec",
+          "framesEncoded", String.valueOf(30 * second),
+          "googAdaptationChanges", "0",
+          "googAvgEncodeMs", "4",
+          "googCodecName", "VP8",
+          "googContentType", "realtime",
+          "googCpuLimitedResolution", "false",
+          "googEncodeUsagePercent", "21",
+          "googFirsReceived", "0",
+          "googFrameHeightInput", "720",
+          "googFrameHeightSent", String.valueOf(width * 9 / 16),
+          "googFrameRateInput", "30",
+          "googFrameRateSent", "30",
+          "googFrameWidthInput", "1280",
+          "googFrameWidthSent", String.valueOf(width),
+          "googNacksReceived", "3",
+          "googPlisReceived", "1",
+          "googRtt", "12",
+          "googTrackId", "ARDAMSv0",
+          "packetsLost", "0",
+          "packetsSent", String.valueOf(90 * second),
+          "qpSum", String.valueOf(800 * second),
+          "ssrc", String.valueOf(1932576419 + i),
+          "transportId", "Channel-audio-1"));
+    }
+    reports.add(report("ssrc_2214372395_recv", "ssrc", timestampMs,
+        "audioOutputLevel", "1520",
+        "bytesReceived", String.valueOf(4100 * second),
+        "googCodecName", "opus",
+        "googCurrentDelayMs", "80",
+        "googJitterBufferMs", "40",
+        "googTrackId", "0d8a3b2c-7a83-4d3f-9a39-ea4a7f8f3a1b",
+        "packetsLost", "0",
+        "packetsReceived", String.valueOf(50 * second),
+        "ssrc", "2214372395"));
+    reports.add(report("ssrc_3091552937_recv", "ssrc", timestampMs,
+        "bytesReceived", String.valueOf(120000 * second),
+        "codecImplementationName", "MediaCodec",
+        "framesDecoded", String.valueOf(30 * second),
+        "googCodecName", "VP8",
+        "googCurrentDelayMs", "95",
+        "googDecodeMs", "6",
+        "googFirsSent", "0",
+        "googFrameHeightReceived", "720",
+        "googFrameRateDecoded", "30",
+        "googFrameRateOutput", "30",
+        "googFrameRateReceived", "30",
+        "googFrameWidthReceived", "1280",
+        "googJitterBufferMs", "55",
+        "googNacksSent", "2",
+        "googPlisSent", "0",
+        "googTargetDelayMs", "95",
+        "googTrackId", "5e1b4cd7-2e30-4e8c-9b77-3a4f2ae0c9b5",
+        "packetsLost", "1",
+        "packetsReceived", String.valueOf(110 * second),
+        "qpSum", String.valueOf(900 * second),
+        "ssrc", "3091552937"));
+    reports.add(report("googTrack_ARDAMSv0", "googTrack", timestampMs,
+        "googTrackId", "ARDAMSv0"));
+    return reports.toArray(new StatsReport[0]);
+  }
+
+  static StatsReport report(String id, String type, double timestampMs, String... pairs) {
+    final StatsReport.Value[] values = new StatsReport.Value[pairs.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      // Like the native code, which creates new strings for every report.
+      values[i] = new StatsReport.Value(new String(pairs[2 * i]), new String(pairs[2 * i + 1]));
+    }
+    return new StatsReport(id, type, timestampMs, values);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class StatsSamplerTest {
+  private static final int PERIOD_MS = 1000;
+
+  /** Scheduler that keeps the ticks until the test runs them. */
+  private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+    final ArrayDeque<Runnable> ticks = new ArrayDeque<>();
+
+    ManualScheduler() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      ticks.add(command);
+      return null;
+    }
+  }
+
+  /** Source recording the generation of each request. */
+  private static class FakeSource implements StatsSampler.StatsSource {
+    final List<Integer> requests = new ArrayList<>();
+    boolean started = true;
+
+    @Override
+    public boolean requestStats(int generation) {
+      requests.add(generation);
+      return started;
+    }
+
+    int getLastGeneration() {
+      return requests.get(requests.size() - 1);
+    }
+  }
+
+  private final QueueExecutor workExecutor = new QueueExecutor();
+  private final FakeSource source = new FakeSource();
+  private ManualScheduler scheduler;
+  private final StatsSampler sampler =
+      new StatsSampler(workExecutor, source, new StatsSampler.SchedulerFactory() {
+        @Override
+        public ScheduledExecutorService create() {
+          scheduler = new ManualScheduler();
+          return scheduler;
+        }
+      });
+
+  private void tick() {
+    scheduler.ticks.poll().run();
+  }
+
+  @Test
+  public void testOneRequestInFlight() {
+    sampler.start(PERIOD_MS);
+    tick();
+    tick();
+    assertEquals(1, workExecutor.runAll());
+    tick();
+    assertEquals(1, source.requests.size());
+    assertEquals(2, sampler.getSkippedSamples());
+
+    sampler.onSampleComplete(source.getLastGeneration());
+    assertEquals(1, sampler.getCompletedSamples());
+    tick();
+    workExecutor.runAll();
+    assertEquals(2, source.requests.size());
+  }
+
+  @Test
+  public void testFailedRequestDoesNotBlockNextTick() {
+    source.started = false;
+    sampler.start(PERIOD_MS);
+    tick();
+    workExecutor.runAll();
+    tick();
+    workExecutor.runAll();
+
+    assertEquals(2, source.requests.size());
+    assertEquals(0, sampler.getSkippedSamples());
+  }
+
+  @Test
+  public void testRestartIgnoresStaleCompletion() {
+    sampler.start(PERIOD_MS);
+    tick();
+    workExecutor.runAll();
+    final int staleGeneration = source.getLastGeneration();
+
+    sampler.start(PERIOD_MS);
+    tick();
+    workExecutor.runAll();
+    final int generation = source.getLastGeneration();
+    // The completion of the first request does not end the one of the new generation.
+    sampler.onSampleComplete(staleGeneration);
+    tick();
+    workExecutor.runAll();
+    assertEquals(2, source.requests.size());
+    assertEquals(0, sampler.getCompletedSamples());
+    assertEquals(1, sampler.getSkippedSamples());
+
+    sampler.onSampleComplete(generation);
+    assertEquals(1, sampler.getCompletedSamples());
+    tick();
+    workExecutor.runAll();
+    assertEquals(3, source.requests.size());
+  }
+
+  @Test
+  public void testRequestQueuedBeforeRestartRunsOnce() {
+    sampler.start(PERIOD_MS);
+    tick();
+    sampler.start(PERIOD_MS);
+    tick();
+
+    // Both posted requests run, but only one reaches the source.
+    assertEquals(2, workExecutor.runAll());
+    assertEquals(1, source.requests.size());
+  }
+
+  @Test
+  public void testCompletionAfterStopIsIgnored() {
+    sampler.start(PERIOD_MS);
+    tick();
+    workExecutor.runAll();
+    sampler.stop();
+
+    sampler.onSampleComplete(source.getLastGeneration());
+    assertEquals(0, sampler.getCompletedSamples());
+  }
+}
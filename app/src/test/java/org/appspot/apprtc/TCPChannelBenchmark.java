@@ -0,0 +1,281 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.TCPChannelClient.TCPChannelEvents;
+import org.junit.Test;
+
+/**
+ * Sends signaling-sized messages over localhost with TCPChannelClient and NioTCPChannelClient and
+ * prints the message throughput of a burst and the delivery latency of paced messages, measured
+ * from send() to onTCPMessage() on the executor of the receiving side.
+ */
+public class TCPChannelBenchmark {
+  private static final int BURST_MESSAGES = 20000;
+  private static final int PACED_MESSAGES = 2000;
+  private static final int PACED_BATCH = 10;
+  private static final long PACED_INTERVAL_NS = 1000000;
+  private static final long TIMEOUT_SECONDS = 30;
+  // About the size of an ICE candidate message.
+  private static final String PAYLOAD;
+  static {
+    final char[] payload = new char[220];
+    Arrays.fill(payload, 'x');
+    PAYLOAD = new String(payload);
+  }
+
+  private interface Transport {
+    TCPChannel create(ExecutorService executor, TCPChannelEvents events, String ip, int port);
+  }
+
+  private static final Transport LINE_TRANSPORT = new Transport() {
+    @Override
+    public TCPChannel create(
+        ExecutorService executor, TCPChannelEvents events, String ip, int port) {
+      return new TCPChannelClient(executor, events, ip, port);
+    }
+
+    @Override
+    public String toString() {
+      return "TCPChannelClient";
+    }
+  };
+
+  private static final Transport FRAMED_TRANSPORT = new Transport() {
+    @Override
+    public TCPChannel create(
+        ExecutorService executor, TCPChannelEvents events, String ip, int port) {
+      return new NioTCPChannelClient(executor, events, ip, port);
+    }
+
+    @Override
+    public String toString() {
+      return "NioTCPChannelClient";
+    }
+  };
+
+  /** Records the delivery latency of the messages received by one side. */
+  private static class Receiver implements TCPChannelEvents {
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch closed = new CountDownLatch(1);
+    volatile String error;
+    private long[] latenciesNs = new long[0];
+    private int received;
+    private int nextSequence;
+    private CountDownLatch done = new CountDownLatch(0);
+    volatile long lastReceivedNs;
+
+    // Called on the receiving executor before the messages are sent.
+    void expect(int messages) {
+      latenciesNs = new long[messages];
+      received = 0;
+      nextSequence = 0;
+      done = new CountDownLatch(1);
+    }
+
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {
+      final long nowNs = System.nanoTime();
+      final int separator = message.indexOf(' ');
+      final int sequence = Integer.parseInt(message.substring(0, separator));
+      final long sentNs = Long.parseLong(message.substring(separator + 1, message.indexOf(' ',
+          separator + 1)));
+      if (sequence != nextSequence++) {
+        error = "Message " + sequence + " out of order";
+      }
+      latenciesNs[received++] = nowNs - sentNs;
+      lastReceivedNs = nowNs;
+      if (received == latenciesNs.length) {
+        done.countDown();
+      }
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      error = description;
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPClose() {
+      closed.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue("Timed out", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      assertNull(error);
+    }
+
+    long percentileUs(double percentile) {
+      final long[] sorted = latenciesNs.clone();
+      Arrays.sort(sorted);
+      return sorted[(int) Math.ceil(percentile * sorted.length) - 1] / 1000;
+    }
+  }
+
+  /** Events of the sending side, which only has to connect. */
+  private static class Sender implements TCPChannelEvents {
+    final CountDownLatch connected = new CountDownLatch(1);
+    volatile String error;
+
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {}
+
+    @Override
+    public void onTCPError(String description) {
+      error = description;
+      connected.countDown();
+    }
+
+    @Override
+    public void onTCPClose() {}
+  }
+
+  @Test
+  public void lineTransport() throws Exception {
+    run(LINE_TRANSPORT);
+  }
+
+  @Test
+  public void framedTransport() throws Exception {
+    run(FRAMED_TRANSPORT);
+  }
+
+  private static void run(final Transport transport) throws Exception {
+    final int port = findFreePort();
+    final ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+    final ExecutorService clientExecutor = Executors.newSingleThreadExecutor();
+    final Receiver receiver = new Receiver();
+    final Sender sender = new Sender();
+    final TCPChannel[] channels = new TCPChannel[2];
+    try {
+      serverExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          channels[0] = transport.create(serverExecutor, receiver, "0.0.0.0", port);
+        }
+      }).get();
+      // Neither transport reports when it listens.
+      Thread.sleep(300);
+      clientExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          channels[1] = transport.create(clientExecutor, sender, "127.0.0.1", port);
+        }
+      }).get();
+      assertTrue(sender.connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      assertTrue(receiver.connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      assertNull(sender.error);
+      assertNull(receiver.error);
+
+      // Burst: all messages sent in one executor task.
+      expect(serverExecutor, receiver, BURST_MESSAGES);
+      final long burstStartNs = System.nanoTime();
+      clientExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < BURST_MESSAGES; i++) {
+            channels[1].send(message(i));
+          }
+        }
+      });
+      receiver.await();
+      final double burstSeconds = (receiver.lastReceivedNs - burstStartNs) / 1e9;
+      System.out.println(String.format("%-20s burst: %8.0f msg/s, p50 %6d us, p99 %6d us",
+          transport, BURST_MESSAGES / burstSeconds, receiver.percentileUs(0.5),
+          receiver.percentileUs(0.99)));
+
+      // Paced: a few messages every millisecond, like candidates trickling in.
+      expect(serverExecutor, receiver, PACED_MESSAGES);
+      for (int batch = 0; batch < PACED_MESSAGES / PACED_BATCH; batch++) {
+        final int first = batch * PACED_BATCH;
+        clientExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = first; i < first + PACED_BATCH; i++) {
+              channels[1].send(message(i));
+            }
+          }
+        });
+        final long untilNs = System.nanoTime() + PACED_INTERVAL_NS;
+        while (System.nanoTime() < untilNs) {
+          Thread.yield();
+        }
+      }
+      receiver.await();
+      System.out.println(String.format("%-20s paced:                 p50 %6d us, p99 %6d us",
+          transport, receiver.percentileUs(0.5), receiver.percentileUs(0.99)));
+
+      clientExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          channels[1].disconnect();
+        }
+      }).get();
+      assertTrue(receiver.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    } finally {
+      serverExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (channels[0] != null) {
+            channels[0].disconnect();
+          }
+        }
+      }).get();
+      serverExecutor.shutdown();
+      clientExecutor.shutdown();
+    }
+  }
+
+  private static void expect(ExecutorService executor, final Receiver receiver,
+      final int messages) throws Exception {
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        receiver.expect(messages);
+      }
+    }).get();
+  }
+
+  private static String message(int sequence) {
+    return sequence + " " + System.nanoTime() + " " + PAYLOAD;
+  }
+
+  private static int findFreePort() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
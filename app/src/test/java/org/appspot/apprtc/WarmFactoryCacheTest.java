@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class WarmFactoryCacheTest {
+  private final WarmFactoryCache<String, Object> cache = new WarmFactoryCache<>();
+  private final Object client = new Object();
+  private final Object otherClient = new Object();
+
+  /** Creates factories named after the key and records the disposed ones. */
+  private static class FakeCreator implements WarmFactoryCache.Creator<String> {
+    final String key;
+    int created;
+    final List<String> disposed = new ArrayList<>();
+
+    FakeCreator(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public String create() {
+      created++;
+      return key + created;
+    }
+
+    @Override
+    public void dispose(String factory) {
+      disposed.add(factory);
+    }
+  }
+
+  @Test
+  public void testPrewarmedFactoryIsUsedByCalls() {
+    final FakeCreator creator = new FakeCreator("a");
+    assertTrue(cache.prewarm("a", creator));
+    assertTrue(cache.prewarm("a", creator));
+    assertEquals(1, creator.created);
+
+    assertEquals("a1", cache.acquire("a", creator, client));
+    assertSame(client, cache.getClient());
+    assertTrue(cache.release(client));
+    assertNull(cache.getClient());
+    assertEquals("a1", cache.acquire("a", creator, otherClient));
+    assertEquals(1, creator.created);
+    assertTrue(creator.disposed.isEmpty());
+  }
+
+  @Test
+  public void testUnusedFactoryIsReplacedForOtherKey() {
+    final FakeCreator creatorA = new FakeCreator("a");
+    final FakeCreator creatorB = new FakeCreator("b");
+    cache.prewarm("a", creatorA);
+
+    assertTrue(cache.prewarm("b", creatorB));
+    assertEquals(1, creatorA.disposed.size());
+    assertEquals("a1", creatorA.disposed.get(0));
+    assertEquals("b1", cache.acquire("b", creatorB, client));
+    assertTrue(cache.release(client));
+
+    assertEquals("a2", cache.acquire("a", creatorA, client));
+    assertEquals(1, creatorB.disposed.size());
+    assertTrue(cache.hasFactory());
+  }
+
+  @Test
+  public void testFactoryInUseIsNotReplaced() {
+    final FakeCreator creatorA = new FakeCreator("a");
+    final FakeCreator creatorB = new FakeCreator("b");
+    assertEquals("a1", cache.acquire("a", creatorA, client));
+
+    assertFalse(cache.prewarm("b", creatorB));
+    assertNull(cache.acquire("b", creatorB, otherClient));
+    assertNull(cache.acquire("a", creatorA, otherClient));
+    assertEquals(0, creatorB.created);
+    assertTrue(creatorA.disposed.isEmpty());
+    assertSame(client, cache.getClient());
+
+    // The client keeps the factory over calls.
+    assertEquals("a1", cache.acquire("a", creatorA, client));
+    assertEquals(1, creatorA.created);
+  }
+
+  @Test
+  public void testReleaseByOtherClientKeepsFactoryInUse() {
+    final FakeCreator creator = new FakeCreator("a");
+    cache.acquire("a", creator, client);
+
+    assertFalse(cache.release(otherClient));
+    assertSame(client, cache.getClient());
+    assertTrue(cache.release(client));
+    assertFalse(cache.release(client));
+    assertTrue(cache.hasFactory());
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fires bursts of candidate POSTs at a local keep-alive HTTP server, like the room server sees
+ * while candidates trickle in, and prints the request rate and the p50/p99 latency from send() to
+ * the completion callback for the pooled AsyncHttpURLConnection and for the thread-per-request
+ * baseline.
+ */
+public class AsyncHttpURLConnectionBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int WARMUP_REQUESTS = 200;
+  // About the candidates gathered for one call, and a flood far beyond that.
+  private static final int CALL_REQUESTS = 30;
+  private static final int BURST_REQUESTS = 1000;
+  private static final long TIMEOUT_SECONDS = 60;
+  private static final String CANDIDATE_MESSAGE = "{\"type\":\"candidate\",\"label\":0,\"id\":"
+      + "\"audio\",\"candidate\":\"candidate:1467250027 1 udp 2122260223 192.168.0.196 46243 "
+      + "typ host generation 0 ufrag 6Rm1 network-id 1 network-cost 10\"}";
+  private static final byte[] RESPONSE = "{\"result\":\"SUCCESS\"}".getBytes(UTF_8);
+  static {
+    // The JDK server writes response headers and body separately and leaves Nagle on, so every
+    // kept-alive response would wait for the client's delayed ACK; measure the client instead.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private String url;
+  private final AtomicInteger received = new AtomicInteger();
+
+  /** Sends one request with either implementation. */
+  private interface Client {
+    void send(String url, String message, AsyncHttpEvents events);
+  }
+
+  private static final Client POOLED_CLIENT = new Client() {
+    @Override
+    public void send(String url, String message, AsyncHttpEvents events) {
+      new AsyncHttpURLConnection("POST", url, message, events).send();
+    }
+
+    @Override
+    public String toString() {
+      return "AsyncHttpURLConnection";
+    }
+  };
+
+  private static final Client BASELINE_CLIENT = new Client() {
+    @Override
+    public void send(String url, String message, AsyncHttpEvents events) {
+      new BaselineAsyncHttpURLConnection("POST", url, message, events).send();
+    }
+
+    @Override
+    public String toString() {
+      return "thread per request";
+    }
+  };
+
+  /** Outcome of one burst. Latencies are recorded for completed requests only. */
+  private static class Burst {
+    final int requests;
+    final long[] latenciesNs;
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final CountDownLatch done;
+    long elapsedNs;
+
+    Burst(int requests) {
+      this.requests = requests;
+      latenciesNs = new long[requests];
+      done = new CountDownLatch(requests);
+    }
+
+    long percentileUs(double percentile) {
+      final long[] sorted = Arrays.copyOf(latenciesNs, completed.get());
+      Arrays.sort(sorted);
+      return sorted[(int) Math.ceil(percentile * sorted.length) - 1] / 1000;
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+    server.createContext("/message", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        final byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+        }
+        in.close();
+        received.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, RESPONSE.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(RESPONSE);
+        out.close();
+      }
+    });
+    serverExecutor = Executors.newFixedThreadPool(8);
+    server.setExecutor(serverExecutor);
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/message";
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdown();
+  }
+
+  @Test
+  public void pooledConnections() throws Exception {
+    burst(POOLED_CLIENT, WARMUP_REQUESTS);
+    final Burst call = burst(POOLED_CLIENT, CALL_REQUESTS);
+    print(POOLED_CLIENT, call);
+    assertEquals(0, call.failed.get());
+    assertEquals(CALL_REQUESTS, call.completed.get());
+
+    // The flood overruns the request queue; the excess is rejected with an error.
+    final Burst flood = burst(POOLED_CLIENT, BURST_REQUESTS);
+    print(POOLED_CLIENT, flood);
+    assertEquals(BURST_REQUESTS, flood.completed.get() + flood.failed.get());
+    assertTrue(flood.completed.get()
+        >= AsyncHttpURLConnection.MAX_THREADS + AsyncHttpURLConnection.MAX_QUEUED_REQUESTS);
+  }
+
+  @Test
+  public void threadPerRequest() throws Exception {
+    burst(BASELINE_CLIENT, WARMUP_REQUESTS);
+    print(BASELINE_CLIENT, burst(BASELINE_CLIENT, CALL_REQUESTS));
+    print(BASELINE_CLIENT, burst(BASELINE_CLIENT, BURST_REQUESTS));
+  }
+
+  private Burst burst(Client client, int requests) throws InterruptedException {
+    final Burst burst = new Burst(requests);
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      final long sentNs = System.nanoTime();
+      client.send(url, CANDIDATE_MESSAGE, new AsyncHttpEvents() {
+        @Override
+        public void onHttpError(String errorMessage) {
+          burst.failed.incrementAndGet();
+          burst.done.countDown();
+        }
+
+        @Override
+        public void onHttpComplete(String response) {
+          final long latencyNs = System.nanoTime() - sentNs;
+          if (new String(RESPONSE, UTF_8).equals(response)) {
+            burst.latenciesNs[burst.completed.getAndIncrement()] = latencyNs;
+          } else {
+            burst.failed.incrementAndGet();
+          }
+          burst.done.countDown();
+        }
+      });
+    }
+    assertTrue("Timed out", burst.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    burst.elapsedNs = System.nanoTime() - startNs;
+    return burst;
+  }
+
+  private static void print(Client client, Burst burst) {
+    System.out.println(String.format(
+        "%-24s %6d requests: %7.0f req/s, p50 %7d us, p99 %7d us, %d failed", client,
+        burst.requests, burst.completed.get() / (burst.elapsedNs / 1e9),
+        burst.percentileUs(0.5), burst.percentileUs(0.99), burst.failed.get()));
+  }
+}